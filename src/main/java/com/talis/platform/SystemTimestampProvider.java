@@ -23,4 +23,9 @@ public class SystemTimestampProvider implements TimestampProvider{
 	public long getCurrentTimeInMillis() {
 		return System.currentTimeMillis();
 	}
+
+	@Override
+	public long getNanoTime() {
+		return System.nanoTime();
+	}
 }
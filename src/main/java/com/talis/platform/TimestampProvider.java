@@ -20,4 +20,10 @@ public interface TimestampProvider {
 	
 	public long getCurrentTimeInMillis();
 
+	/**
+	 * @return a monotonic time in nanoseconds, only meaningful as the 
+	 * difference between two readings in the same JVM
+	 */
+	public long getNanoTime();
+
 }
@@ -16,10 +16,40 @@
 
 package com.talis.platform.sequencing;
 
+import java.util.concurrent.Future;
+
 public interface Clock {
 
 	public long getNextSequence(String key) throws SequencingException;
 
+	/**
+	 * Advance the sequence for key by count in a single operation, returning
+	 * the contiguous block of sequences issued to the caller
+	 */
+	public SequenceRange getNextSequences(String key, int count) 
+	throws SequencingException;
+
 	public long getSequence(String key) throws SequencingException;
 
+	/**
+	 * Variant of getSequence which returns absent, rather than throwing 
+	 * NoSuchSequenceException, when there is no sequence for key
+	 */
+	public long getSequenceOrDefault(String key, long absent) 
+	throws SequencingException;
+
+	/**
+	 * Non-blocking variant of getNextSequence. Any SequencingException is
+	 * reported through the returned future as the cause of an
+	 * ExecutionException
+	 */
+	public Future<Long> getNextSequenceAsync(String key);
+
+	/**
+	 * Non-blocking variant of getSequence. Any SequencingException, including
+	 * NoSuchSequenceException, is reported through the returned future as the
+	 * cause of an ExecutionException
+	 */
+	public Future<Long> getSequenceAsync(String key);
+
 }
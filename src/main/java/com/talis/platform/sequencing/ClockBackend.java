@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import com.google.inject.Module;
+
+/**
+ * A storage engine which H1 can be started with. Backends are found with a
+ * ServiceLoader, so one packaged in its own jar only needs to be listed in
+ * META-INF/services/com.talis.platform.sequencing.ClockBackend and put on the
+ * classpath. The module must bind Clock to an implementation class, along
+ * with anything that class needs, and SequencingMetrics.
+ */
+public interface ClockBackend {
+
+	/**
+	 * @return the name the backend is selected by
+	 */
+	public String getName();
+
+	public Module getModule();
+
+}
@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+/**
+ * Wraps the Clock provided by the backend to add behaviour such as caching
+ * or combining, whatever the backend. Decorators are found with a 
+ * ServiceLoader in the same way as backends, and the Clock returned should 
+ * extend ForwardingClock so that the backend's own Clock can still be 
+ * reached through it.
+ */
+public interface ClockDecorator {
+
+	/**
+	 * @return the name the decorator is selected by
+	 */
+	public String getName();
+
+	public Clock decorate(Clock clock);
+
+}
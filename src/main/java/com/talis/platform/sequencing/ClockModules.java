@@ -0,0 +1,201 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.util.Modules;
+import com.talis.platform.sequencing.file.MappedFileModule;
+import com.talis.platform.sequencing.memory.InMemoryModule;
+import com.talis.platform.sequencing.metrics.NullSequencingMetrics;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+import com.talis.platform.sequencing.zookeeper.SequentialZooKeeperModule;
+import com.talis.platform.sequencing.zookeeper.ZooKeeperModule;
+
+/**
+ * Assembles the Clock bindings the server is started with. The backend is 
+ * chosen by name from the ClockBackends on the classpath, and any decorators 
+ * named are wrapped around its Clock in the order given, so the first one 
+ * listed sits closest to the backend. When no backend is named the older 
+ * boolean properties are honoured, falling back to ZooKeeper.
+ */
+public class ClockModules {
+
+	static final Logger LOG = LoggerFactory.getLogger(ClockModules.class);
+
+	public static final String BACKEND_PROPERTY = 
+		"com.talis.platform.sequencing.backend";
+	public static final String DECORATORS_PROPERTY = 
+		"com.talis.platform.sequencing.decorators";
+	public static final String METRICS_PROPERTY = 
+		"com.talis.platform.sequencing.metrics";
+
+	public static final String JMX_METRICS = "jmx";
+	public static final String NO_METRICS = "none";
+
+	private ClockModules() {}
+
+	public static Module fromConfiguration() {
+		return assemble(readBackendName(), 
+						readNames(System.getProperty(DECORATORS_PROPERTY)),
+						System.getProperty(METRICS_PROPERTY, JMX_METRICS));
+	}
+
+	static Module assemble(String backendName, List<String> decoratorNames, 
+							String metrics) {
+		ClockBackend backend = findBackend(backendName);
+		List<ClockDecorator> decorators = new ArrayList<ClockDecorator>();
+		for (String name : decoratorNames) {
+			decorators.add(findDecorator(name));
+		}
+		LOG.info(String.format("Using %s clock backend with decorators %s "
+				+ "and %s metrics", backend.getName(), decoratorNames, metrics));
+
+		Module module = backend.getModule();
+		if (!decorators.isEmpty()) {
+			module = Modules.override(module).with(
+						new DecoratingModule(findClockTarget(module), decorators));
+		}
+		if (NO_METRICS.equals(metrics)) {
+			module = Modules.override(module).with(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(SequencingMetrics.class).to(NullSequencingMetrics.class);
+				}
+			});
+		} else if (!JMX_METRICS.equals(metrics)) {
+			throw new IllegalArgumentException(String.format(
+					"Unknown metrics binding %s, expected %s or %s", 
+					metrics, JMX_METRICS, NO_METRICS));
+		}
+		return module;
+	}
+
+	static String readBackendName() {
+		String name = System.getProperty(BACKEND_PROPERTY);
+		if (null != name && name.trim().length() > 0) {
+			return name.trim();
+		}
+		if (Boolean.getBoolean(InMemoryModule.ENABLED_PROPERTY)) {
+			return InMemoryModule.NAME;
+		} else if (Boolean.getBoolean(MappedFileModule.ENABLED_PROPERTY)) {
+			return MappedFileModule.NAME;
+		} else if (Boolean.getBoolean(SequentialZooKeeperModule.ENABLED_PROPERTY)) {
+			return SequentialZooKeeperModule.NAME;
+		}
+		return ZooKeeperModule.NAME;
+	}
+
+	static List<String> readNames(String property) {
+		List<String> names = new ArrayList<String>();
+		if (null == property) {
+			return names;
+		}
+		for (String name : property.split(",")) {
+			name = name.trim();
+			if (name.length() > 0) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	static ClockBackend findBackend(String name) {
+		List<String> available = new ArrayList<String>();
+		for (ClockBackend backend : ServiceLoader.load(ClockBackend.class)) {
+			if (backend.getName().equals(name)) {
+				return backend;
+			}
+			available.add(backend.getName());
+		}
+		throw new IllegalArgumentException(String.format(
+				"Unknown clock backend %s, available backends are %s", 
+				name, available));
+	}
+
+	static ClockDecorator findDecorator(String name) {
+		List<String> available = new ArrayList<String>();
+		for (ClockDecorator decorator : ServiceLoader.load(ClockDecorator.class)) {
+			if (decorator.getName().equals(name)) {
+				return decorator;
+			}
+			available.add(decorator.getName());
+		}
+		throw new IllegalArgumentException(String.format(
+				"Unknown clock decorator %s, available decorators are %s", 
+				name, available));
+	}
+
+	/**
+	 * @return the key of the implementation the module binds Clock to
+	 */
+	@SuppressWarnings("unchecked")
+	static Key<? extends Clock> findClockTarget(Module module) {
+		Key<Clock> clockKey = Key.get(Clock.class);
+		for (Element element : Elements.getElements(module)) {
+			if (element instanceof Binding 
+					&& clockKey.equals(((Binding<?>) element).getKey())) {
+				if (element instanceof LinkedKeyBinding) {
+					return ((LinkedKeyBinding<Clock>) element).getLinkedKey();
+				}
+				throw new IllegalArgumentException(
+						"Clock backends must bind Clock to an implementation class");
+			}
+		}
+		throw new IllegalArgumentException("Clock backend does not bind Clock");
+	}
+
+	private static class DecoratingModule extends AbstractModule {
+		private final Key<? extends Clock> target;
+		private final List<ClockDecorator> decorators;
+
+		DecoratingModule(Key<? extends Clock> target, List<ClockDecorator> decorators) {
+			this.target = target;
+			this.decorators = decorators;
+		}
+
+		@Override
+		protected void configure() {
+			final Provider<? extends Clock> backend = getProvider(target);
+			bind(Clock.class).toProvider(new Provider<Clock>() {
+				@Override
+				public Clock get() {
+					Clock clock = backend.get();
+					for (ClockDecorator decorator : decorators) {
+						clock = decorator.decorate(clock);
+					}
+					return clock;
+				}
+			}).in(Scopes.SINGLETON);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import java.util.concurrent.Future;
+
+/**
+ * Clock which passes every call on to another. Decorators extend this and
+ * override only the calls they change.
+ */
+public abstract class ForwardingClock implements Clock {
+
+	private final Clock delegate;
+
+	protected ForwardingClock(Clock delegate) {
+		this.delegate = delegate;
+	}
+
+	public Clock getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return the innermost Clock, once every decorator has been unwrapped
+	 */
+	public static Clock unwrap(Clock clock) {
+		while (clock instanceof ForwardingClock) {
+			clock = ((ForwardingClock) clock).getDelegate();
+		}
+		return clock;
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		return delegate.getNextSequence(key);
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		return delegate.getNextSequences(key, count);
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		return delegate.getSequence(key);
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent)
+	throws SequencingException {
+		return delegate.getSequenceOrDefault(key, absent);
+	}
+
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		return delegate.getNextSequenceAsync(key);
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		return delegate.getSequenceAsync(key);
+	}
+
+}
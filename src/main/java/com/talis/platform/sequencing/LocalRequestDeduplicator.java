@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+
+/**
+ * Bounded table of recent request ids, held in memory on this node only. 
+ * Entries are dropped once they are older than the configured time to live
+ * or, oldest first, when the table is full, so a retry arriving after that
+ * is treated as a new request.
+ */
+@Singleton
+public class LocalRequestDeduplicator implements RequestDeduplicator {
+
+	static final Logger LOG = LoggerFactory.getLogger(LocalRequestDeduplicator.class);
+
+	public static final String SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.dedup.size";
+	public static final String TTL_PROPERTY = 
+		"com.talis.platform.sequencing.dedup.ttl";
+
+	public static final int DEFAULT_SIZE = 100000;
+	public static final long DEFAULT_TTL = 10 * 60 * 1000l;
+
+	private final TimestampProvider myTimestampProvider;
+	private final SequencingMetrics myMetrics;
+	private final int myMaxSize;
+	private final long myTimeToLive;
+	// insertion ordered, so the oldest entries are always at the head
+	private final Map<String, Request> myEntries;
+
+	@Inject
+	public LocalRequestDeduplicator(TimestampProvider timestampProvider, 
+									SequencingMetrics metrics) {
+		this(timestampProvider, metrics, 
+			Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE),
+			Long.getLong(TTL_PROPERTY, DEFAULT_TTL));
+	}
+
+	LocalRequestDeduplicator(TimestampProvider timestampProvider, 
+							SequencingMetrics metrics, int maxSize, 
+							long timeToLive) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Request table size must be positive");
+		}
+		myTimestampProvider = timestampProvider;
+		myMetrics = metrics;
+		myMaxSize = maxSize;
+		myTimeToLive = timeToLive;
+		myEntries = new LinkedHashMap<String, Request>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Request> eldest) {
+				return size() > myMaxSize;
+			}
+		};
+		LOG.info(String.format("Initialising request deduplication. Max size: %s "
+				+ "| Time to live: %sms", myMaxSize, myTimeToLive));
+	}
+
+	@Override
+	public String deduplicate(String key, String requestId, Increment increment)
+	throws SequencingException {
+		String name = key + " " + requestId;
+		while (true) {
+			Request entry;
+			boolean leader = false;
+			synchronized (myEntries) {
+				long now = myTimestampProvider.getCurrentTimeInMillis();
+				expire(now);
+				entry = myEntries.get(name);
+				if (null == entry) {
+					entry = new Request(now + myTimeToLive);
+					myEntries.put(name, entry);
+					leader = true;
+				}
+			}
+			if (leader) {
+				return run(name, entry, increment);
+			}
+			await(entry, key, requestId);
+			if (!entry.failed) {
+				LOG.debug(String.format("Request %s for key %s is a duplicate, "
+						+ "returning %s", requestId, key, entry.result));
+				myMetrics.incrementDuplicateRequests();
+				return entry.result;
+			}
+			// the first attempt failed and has been forgotten, so go round
+			// again and try it ourselves
+		}
+	}
+
+	private String run(String name, Request entry, Increment increment) 
+	throws SequencingException {
+		boolean succeeded = false;
+		try {
+			entry.result = increment.run();
+			succeeded = true;
+			return entry.result;
+		} finally {
+			if (!succeeded) {
+				entry.failed = true;
+				synchronized (myEntries) {
+					if (myEntries.get(name) == entry) {
+						myEntries.remove(name);
+					}
+				}
+			}
+			entry.done.countDown();
+		}
+	}
+
+	private void await(Request entry, String key, String requestId) 
+	throws SequencingException {
+		try {
+			entry.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SequencingException(String.format(
+					"Interrupted waiting for request %s for key %s", 
+					requestId, key), e);
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Request> entries = myEntries.values().iterator();
+		while (entries.hasNext() && entries.next().expires <= now) {
+			entries.remove();
+		}
+	}
+
+	int size() {
+		synchronized (myEntries) {
+			return myEntries.size();
+		}
+	}
+
+	private static class Request {
+		final long expires;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile String result;
+		volatile boolean failed = false;
+
+		Request(long expires) {
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Remembers the result of recent increments made on behalf of a client 
+ * supplied request id, so that a client retrying a request it never saw the
+ * answer to is given the sequences it was issued the first time rather 
+ * than new ones.
+ */
+@ImplementedBy(LocalRequestDeduplicator.class)
+public interface RequestDeduplicator {
+
+	public interface Increment {
+		/**
+		 * Make the increment, returning the response to give the client
+		 */
+		public String run() throws SequencingException;
+	}
+
+	/**
+	 * Run increment unless a request with the same id has already been made 
+	 * for key, in which case the response it was given is returned instead.
+	 * A request made while another with the same id is still running waits
+	 * for it to finish. If the first request fails, nothing is remembered 
+	 * and the next request with that id runs afresh.
+	 */
+	public String deduplicate(String key, String requestId, Increment increment)
+	throws SequencingException;
+
+}
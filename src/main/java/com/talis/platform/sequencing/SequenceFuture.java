@@ -0,0 +1,111 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Future result of an asynchronous Clock operation, completed by whichever
+ * thread finishes the operation. Failures are reported as an
+ * ExecutionException wrapping the SequencingException raised by the Clock.
+ * The underlying operations cannot be cancelled.
+ */
+public class SequenceFuture implements Future<Long> {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+	private volatile long value;
+	private volatile Throwable failure;
+
+	public static SequenceFuture completed(long value) {
+		SequenceFuture future = new SequenceFuture();
+		future.set(value);
+		return future;
+	}
+
+	public static SequenceFuture failed(Throwable failure) {
+		SequenceFuture future = new SequenceFuture();
+		future.setException(failure);
+		return future;
+	}
+
+	/**
+	 * @return false if the future had already been completed
+	 */
+	public boolean set(long value) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.value = value;
+		latch.countDown();
+		return true;
+	}
+
+	/**
+	 * @return false if the future had already been completed
+	 */
+	public boolean setException(Throwable failure) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.failure = failure;
+		latch.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	@Override
+	public Long get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return getResult();
+	}
+
+	@Override
+	public Long get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException("Timed out waiting for sequence");
+		}
+		return getResult();
+	}
+
+	private Long getResult() throws ExecutionException {
+		if (null != failure) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
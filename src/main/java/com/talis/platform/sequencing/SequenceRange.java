@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+/**
+ * A contiguous, inclusive block of sequences issued for a single key.
+ */
+public class SequenceRange {
+
+	private final long start;
+	private final long end;
+
+	public SequenceRange(long start, long end) {
+		if (end < start) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid range %s - %s", start, end));
+		}
+		this.start = start;
+		this.end = end;
+	}
+
+	public static SequenceRange endingAt(long end, int count) {
+		return new SequenceRange(end - count + 1, end);
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long size() {
+		return end - start + 1;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SequenceRange)) {
+			return false;
+		}
+		SequenceRange other = (SequenceRange) obj;
+		return start == other.start && end == other.end;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (start ^ (start >>> 32)) * 31 + (int) (end ^ (end >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return start + "-" + end;
+	}
+}
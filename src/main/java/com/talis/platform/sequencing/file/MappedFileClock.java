@@ -0,0 +1,445 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Clock for a single H1 node which keeps its counters in a memory-mapped 
+ * file, with no ZooKeeper ensemble. The file is an open addressing hash 
+ * table of fixed size slots, each holding one key and its counter, so the
+ * index lives in the mapping rather than on the heap. Counters are updated
+ * in place and a single flusher thread syncs the mapping to disk, so that
+ * concurrent increments share one sync; no sequence is handed out until the
+ * sync covering it has finished. 
+ * 
+ * Every slot is checked when the file is opened. A slot left half claimed 
+ * by a crash is never matched again, but still occupies its place in the
+ * table so later keys can be found. The number of slots is fixed when the 
+ * file is created.
+ */
+public class MappedFileClock implements Clock {
+
+	static final Logger LOG = LoggerFactory.getLogger(MappedFileClock.class);
+
+	public static final String PATH_PROPERTY = 
+		"com.talis.platform.sequencing.file.path";
+	public static final String DEFAULT_PATH = "counters.dat";
+	public static final String SLOTS_PROPERTY = 
+		"com.talis.platform.sequencing.file.slots";
+	public static final int DEFAULT_SLOTS = 65536;
+
+	static final int SLOT_SIZE = 256;
+	static final int MAX_KEY_BYTES = SLOT_SIZE - 18;
+	static final long MAGIC = 0x4831434c4f434b31L; // H1CLOCK1
+
+	// slot layout: the counter comes first so that it is 8 byte aligned
+	private static final int VALUE = 0;
+	private static final int HASH = 8;
+	private static final int STATE = 12;
+	private static final int LENGTH = 16;
+	private static final int KEY = 18;
+
+	private static final int EMPTY = 0;
+	private static final int USED = 0x55534544;
+	private static final int DEAD = 0x44454144;
+
+	private static final int LOCK_STRIPES = 1024;
+
+	private final File myFile;
+	private final int mySlots;
+	private final RandomAccessFile myRandomAccessFile;
+	private final MappedByteBuffer myBuffer;
+	private final Object[] myLocks = new Object[LOCK_STRIPES];
+	private final Object myClaimLock = new Object();
+	private final Thread myFlusher;
+	private volatile int myKeys = 0;
+	private long myRequested = 0;
+	private long myDurable = 0;
+	private boolean myClosed = false;
+
+	@Inject
+	public MappedFileClock() throws IOException {
+		this(new File(System.getProperty(PATH_PROPERTY, DEFAULT_PATH)),
+			Integer.getInteger(SLOTS_PROPERTY, DEFAULT_SLOTS));
+	}
+
+	public MappedFileClock(File file, int slots) throws IOException {
+		if (slots < 1 || (long) (slots + 1) * SLOT_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format(
+					"Counter file must have between 1 and %s slots", 
+					Integer.MAX_VALUE / SLOT_SIZE - 1));
+		}
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			myLocks[i] = new Object();
+		}
+		myFile = file;
+		mySlots = slots;
+		boolean created = !file.exists();
+		myRandomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = myRandomAccessFile.getChannel();
+			if (null == channel.tryLock()) {
+				throw new IOException(String.format(
+						"Counter file %s is in use by another process", file));
+			}
+			myBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 
+									(long) (slots + 1) * SLOT_SIZE);
+			if (created) {
+				myBuffer.putLong(0, MAGIC);
+				myBuffer.putInt(8, slots);
+				myBuffer.force();
+			} else {
+				checkHeader();
+				recover();
+			}
+		} catch (IOException e) {
+			myRandomAccessFile.close();
+			throw e;
+		}
+		myFlusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "h1-file-flusher");
+		myFlusher.setDaemon(true);
+		myFlusher.start();
+		LOG.info(String.format("Opened counter file %s with %s of %s slots in use", 
+									myFile, myKeys, mySlots));
+	}
+
+	private void checkHeader() throws IOException {
+		if (myBuffer.getLong(0) != MAGIC) {
+			throw new IOException(String.format("%s is not a counter file", myFile));
+		}
+		int slots = myBuffer.getInt(8);
+		if (slots != mySlots) {
+			throw new IOException(String.format(
+					"Counter file %s was created with %s slots, not %s", 
+					myFile, slots, mySlots));
+		}
+	}
+
+	private void recover() {
+		int keys = 0;
+		int dead = 0;
+		for (int slot = 0; slot < mySlots; slot++) {
+			int offset = offset(slot);
+			int state = myBuffer.getInt(offset + STATE);
+			if (EMPTY == state || DEAD == state) {
+				dead += EMPTY == state ? 0 : 1;
+				continue;
+			}
+			int length = myBuffer.getShort(offset + LENGTH);
+			if (USED == state && length >= 0 && length <= MAX_KEY_BYTES 
+					&& myBuffer.getInt(offset + HASH) == hash(readKey(offset, length))) {
+				keys++;
+			} else {
+				LOG.warn(String.format("Counter file slot %s was not completely "
+						+ "written, so will not be used", slot));
+				myBuffer.putInt(offset + STATE, DEAD);
+				dead++;
+			}
+		}
+		myKeys = keys;
+		LOG.info(String.format("Recovered %s keys from %s, %s unusable slots", 
+									keys, myFile, dead));
+	}
+
+	public void close() throws InterruptedException, IOException {
+		synchronized (this) {
+			myClosed = true;
+			notifyAll();
+		}
+		myFlusher.join();
+		myBuffer.force();
+		myRandomAccessFile.close();
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		return incrementBy(key, 1);
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		return SequenceRange.endingAt(incrementBy(key, count), count);
+	}
+
+	public long incrementBy(String key, int delta) throws SequencingException {
+		if (delta < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Cannot increment sequence for key %s by %s", key, delta));
+		}
+		byte[] bytes = encode(key);
+		int slot = find(bytes, true);
+		long value;
+		long ticket;
+		synchronized (lockFor(slot)) {
+			int offset = offset(slot) + VALUE;
+			value = myBuffer.getLong(offset) + delta;
+			myBuffer.putLong(offset, value);
+			ticket = requestSync();
+		}
+		awaitSync(ticket, key);
+		return value;
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		int slot = find(encode(key), false);
+		if (slot < 0) {
+			throw new NoSuchSequenceException(String.format(
+					"No sequence found for key %s", key), null);
+		}
+		synchronized (lockFor(slot)) {
+			return myBuffer.getLong(offset(slot) + VALUE);
+		}
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent) 
+	throws SequencingException {
+		int slot = find(encode(key), false);
+		if (slot < 0) {
+			return absent;
+		}
+		synchronized (lockFor(slot)) {
+			return myBuffer.getLong(offset(slot) + VALUE);
+		}
+	}
+
+	/**
+	 * Completed on the calling thread, as no operation goes further than 
+	 * the local disk
+	 */
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		try {
+			return SequenceFuture.completed(getNextSequence(key));
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		try {
+			return SequenceFuture.completed(getSequence(key));
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+
+	/**
+	 * @return the number of keys in the file
+	 */
+	public int getKeyCount() {
+		return myKeys;
+	}
+
+	private int find(byte[] key, boolean create) throws SequencingException {
+		int hash = hash(key);
+		// reading myKeys first makes every key claimed so far visible
+		if (myKeys > 0) {
+			int slot = probe(key, hash);
+			if (slot >= 0) {
+				return slot;
+			}
+		}
+		if (!create) {
+			// may have missed a key being claimed, so look again holding 
+			// the claim lock
+			synchronized (myClaimLock) {
+				return probe(key, hash);
+			}
+		}
+		synchronized (myClaimLock) {
+			int slot = probe(key, hash);
+			if (slot >= 0) {
+				return slot;
+			}
+			return claim(key, hash);
+		}
+	}
+
+	/**
+	 * @return the slot holding key, or -1 if it isn't in the file
+	 */
+	private int probe(byte[] key, int hash) {
+		int start = (hash & Integer.MAX_VALUE) % mySlots;
+		for (int i = 0; i < mySlots; i++) {
+			int slot = (start + i) % mySlots;
+			int offset = offset(slot);
+			int state = myBuffer.getInt(offset + STATE);
+			if (EMPTY == state) {
+				return -1;
+			}
+			if (USED == state && myBuffer.getInt(offset + HASH) == hash
+					&& matches(offset, key)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int claim(byte[] key, int hash) throws SequencingException {
+		int start = (hash & Integer.MAX_VALUE) % mySlots;
+		for (int i = 0; i < mySlots; i++) {
+			int slot = (start + i) % mySlots;
+			int offset = offset(slot);
+			if (EMPTY != myBuffer.getInt(offset + STATE)) {
+				continue;
+			}
+			synchronized (lockFor(slot)) {
+				myBuffer.putLong(offset + VALUE, -1);
+				myBuffer.putInt(offset + HASH, hash);
+				myBuffer.putShort(offset + LENGTH, (short) key.length);
+				for (int b = 0; b < key.length; b++) {
+					myBuffer.put(offset + KEY + b, key[b]);
+				}
+				// written last, so a crash before this point leaves the 
+				// slot empty
+				myBuffer.putInt(offset + STATE, USED);
+			}
+			myKeys++;
+			return slot;
+		}
+		throw new SequencingException(String.format(
+				"Counter file %s is full, with %s keys", myFile, mySlots), null);
+	}
+
+	private boolean matches(int offset, byte[] key) {
+		if (myBuffer.getShort(offset + LENGTH) != key.length) {
+			return false;
+		}
+		for (int b = 0; b < key.length; b++) {
+			if (myBuffer.get(offset + KEY + b) != key[b]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private byte[] readKey(int offset, int length) {
+		byte[] key = new byte[length];
+		for (int b = 0; b < length; b++) {
+			key[b] = myBuffer.get(offset + KEY + b);
+		}
+		return key;
+	}
+
+	private static int offset(int slot) {
+		// the first slot's worth of the file is the header
+		return (slot + 1) * SLOT_SIZE;
+	}
+
+	private Object lockFor(int slot) {
+		return myLocks[slot % LOCK_STRIPES];
+	}
+
+	private static byte[] encode(String key) throws SequencingException {
+		byte[] bytes;
+		try {
+			bytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+		if (bytes.length > MAX_KEY_BYTES) {
+			throw new SequencingException(String.format(
+					"Key %s is longer than %s bytes", key, MAX_KEY_BYTES), null);
+		}
+		return bytes;
+	}
+
+	/**
+	 * FNV-1a, which is stored with each key so that recovery can tell a
+	 * completely written key from a torn one
+	 */
+	static int hash(byte[] key) {
+		int hash = 0x811c9dc5;
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	private synchronized long requestSync() {
+		notifyAll();
+		return ++myRequested;
+	}
+
+	private synchronized void awaitSync(long ticket, String key) 
+	throws SequencingException {
+		while (myDurable < ticket && !myClosed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SequencingException(String.format(
+						"Interrupted syncing counter for key %s", key), e);
+			}
+		}
+		if (myDurable < ticket) {
+			throw new SequencingException(String.format(
+					"Counter file closed before key %s was synced", key), null);
+		}
+	}
+
+	private void flush() {
+		while (true) {
+			long target;
+			synchronized (this) {
+				while (myRequested == myDurable && !myClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only close() stops the flusher
+					}
+				}
+				if (myRequested == myDurable) {
+					return;
+				}
+				target = myRequested;
+			}
+			myBuffer.force();
+			synchronized (this) {
+				myDurable = target;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.talis.jersey.exceptions.BadRequestException;
+import com.talis.platform.sequencing.metrics.HotKeys;
+import com.talis.platform.sequencing.metrics.HotKeys.HotKey;
+import com.talis.platform.sequencing.metrics.HotKeysJmx;
+
+/**
+ * The keys with the most increment requests and the most version conflicts
+ * in ZooKeeper over the last complete minute, as the HotKeys MBean reports
+ * them. Each line holds the kind of ranking, the key, its estimated count 
+ * and the most by which that count may be overestimated, tab separated.
+ */
+@Singleton
+@Path("/admin/hotkeys")
+public class HotKeyReport {
+
+	static final String REQUESTS = "requests";
+	static final String COLLISIONS = "collisions";
+
+	private final HotKeysJmx hotKeys;
+	private final int defaultTop = Integer.getInteger(HotKeysJmx.TOP_PROPERTY, 
+														HotKeysJmx.DEFAULT_TOP);
+
+	@Inject
+	public HotKeyReport(HotKeysJmx hotKeys) {
+		this.hotKeys = hotKeys;
+	}
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public String getHotKeys(@QueryParam("top") Integer top) {
+		int count = null == top ? defaultTop : top;
+		int capacity = hotKeys.getRequests().getCapacity();
+		if (count < 1 || count > capacity) {
+			throw new BadRequestException(String.format(
+					"Top must be between 1 and %s", capacity));
+		}
+		StringBuilder report = new StringBuilder();
+		append(report, REQUESTS, hotKeys.getRequests(), count);
+		append(report, COLLISIONS, hotKeys.getCollisions(), count);
+		return report.toString();
+	}
+
+	private static void append(StringBuilder report, String kind, 
+								HotKeys keys, int count) {
+		List<HotKey> top = keys.getTop(count);
+		for (HotKey key : top) {
+			report.append(kind).append('\t')
+					.append(key.getKey()).append('\t')
+					.append(key.getCount()).append('\t')
+					.append(key.getError()).append('\n');
+		}
+	}
+}
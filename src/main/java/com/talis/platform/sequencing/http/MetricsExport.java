@@ -0,0 +1,62 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.talis.platform.sequencing.metrics.OpenMetricsRegistry;
+import com.talis.platform.sequencing.metrics.OpenMetricsWriter;
+
+/**
+ * Every metric in OpenMetricsRegistry, in the OpenMetrics text format for
+ * Prometheus to scrape. Samples are written to the response as they are 
+ * read from the recorders, and reading them resets nothing, so scrapes may
+ * come as often as needed alongside the JMX beans.
+ */
+@Singleton
+@Path("/metrics")
+public class MetricsExport {
+
+	private final OpenMetricsRegistry registry;
+
+	@Inject
+	public MetricsExport(OpenMetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@GET
+	@Produces(OpenMetricsWriter.CONTENT_TYPE)
+	public StreamingOutput getMetrics() {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				registry.writeTo(new OpenMetricsWriter(new BufferedWriter(
+						new OutputStreamWriter(output, "UTF-8"))));
+			}
+		};
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.spi.container.ResourceFilters;
+import com.talis.jersey.exceptions.BadRequestException;
+import com.talis.jersey.exceptions.ServerErrorException;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.ForwardingClock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.zookeeper.OwnershipClock;
+
+/**
+ * Requests forwarded by other H1 nodes for keys this node owns. They are 
+ * served from this node's counters, even if its view of the membership has
+ * since moved the key elsewhere, so that a request is never forwarded twice.
+ * Increments always return the range issued, as "start-end". Only available
+ * when the ownership clock is in use.
+ */
+@Singleton
+@Path("/owned/")
+@ResourceFilters(RequestStages.class)
+public class OwnedSequence {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OwnedSequence.class);
+
+	private final Clock clock;
+
+	@Inject
+	public OwnedSequence(Clock clock) {
+		this.clock = clock;
+	}
+
+	@POST
+	@Path("{key}")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String incrementSequence(@PathParam("key") String key, 
+			@DefaultValue("1") @QueryParam("count") int count) {
+		OwnershipClock ownershipClock = getOwnershipClock();
+		if (count < 1) {
+			throw new BadRequestException("Count must be positive");
+		}
+		try {
+			return ownershipClock.incrementLocally("/" + key, count).toString();
+		} catch (Exception e) {
+			LOG.error(String.format("Clock errored when incrementing forwarded "
+					+ "sequence for key /%s", key), e);
+			throw new ServerErrorException("Internal Error");
+		}
+	}
+
+	@GET
+	@Path("{key}")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String getCurrentSequence(@PathParam("key") String key) {
+		OwnershipClock ownershipClock = getOwnershipClock();
+		try {
+			return Long.toString(ownershipClock.getSequenceLocally("/" + key));
+		} catch (NoSuchSequenceException e) {
+			return "-1";
+		} catch (Exception e) {
+			LOG.error(String.format("Clock errored when getting forwarded "
+					+ "sequence for key /%s", key), e);
+			throw new ServerErrorException("Internal Error");
+		}
+	}
+
+	private OwnershipClock getOwnershipClock() {
+		Clock backend = ForwardingClock.unwrap(clock);
+		if (!(backend instanceof OwnershipClock)) {
+			throw new BadRequestException("Key ownership is not enabled on this node");
+		}
+		return (OwnershipClock) backend;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ResourceFilter;
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+
+/**
+ * Times the stages of a request which happen in Jersey rather than in the
+ * resource methods. As a servlet filter in front of the Jersey servlet it 
+ * sees the request arrive and the response finish being written; as a 
+ * resource filter on the resources it sees the resource method about to be 
+ * called and returning. Dispatch is the time from arrival to the resource 
+ * method, covering matching and parameter extraction, and serialization the
+ * time from the method returning to the response being written. Requests 
+ * which never reach a resource method record neither.
+ */
+@Singleton
+public class RequestStages implements Filter, ResourceFilter, 
+								ContainerRequestFilter, ContainerResponseFilter {
+
+	// shared by every instance, as Jersey and the servlet container may not
+	// be handed the same one; each request stays on one thread throughout
+	private static final ThreadLocal<Stages> STAGES = new ThreadLocal<Stages>() {
+		@Override
+		protected Stages initialValue() {
+			return new Stages();
+		}
+	};
+
+	private final SequencingMetrics myMetrics;
+	private final TimestampProvider myTimestampProvider;
+
+	@Inject
+	public RequestStages(SequencingMetrics metrics, 
+							TimestampProvider timestampProvider) {
+		myMetrics = metrics;
+		myTimestampProvider = timestampProvider;
+	}
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, 
+							FilterChain chain) 
+	throws IOException, ServletException {
+		Stages stages = STAGES.get();
+		stages.timing = true;
+		stages.dispatched = false;
+		stages.returned = false;
+		stages.received = myTimestampProvider.getNanoTime();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			long written = myTimestampProvider.getNanoTime();
+			stages.timing = false;
+			if (stages.dispatched) {
+				myMetrics.recordDispatchLatency(stages.invoked - stages.received);
+			}
+			if (stages.returned) {
+				myMetrics.recordSerializationLatency(written - stages.completed);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public ContainerRequestFilter getRequestFilter() {
+		return this;
+	}
+
+	@Override
+	public ContainerResponseFilter getResponseFilter() {
+		return this;
+	}
+
+	/**
+	 * The resource method is about to be called
+	 */
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		Stages stages = STAGES.get();
+		if (stages.timing) {
+			stages.invoked = myTimestampProvider.getNanoTime();
+			stages.dispatched = true;
+		}
+		return request;
+	}
+
+	/**
+	 * The resource method has returned, or thrown an exception which has 
+	 * been mapped to a response, which is yet to be written
+	 */
+	@Override
+	public ContainerResponse filter(ContainerRequest request, 
+									ContainerResponse response) {
+		Stages stages = STAGES.get();
+		if (stages.timing) {
+			stages.completed = myTimestampProvider.getNanoTime();
+			stages.returned = true;
+		}
+		return response;
+	}
+
+	private static class Stages {
+		boolean timing;
+		boolean dispatched;
+		boolean returned;
+		long received;
+		long invoked;
+		long completed;
+	}
+}
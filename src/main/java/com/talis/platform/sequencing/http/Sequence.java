@@ -17,12 +17,19 @@
 package com.talis.platform.sequencing.http;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -34,29 +41,59 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.spi.container.ResourceFilters;
 import com.talis.jersey.exceptions.BadRequestException;
 import com.talis.jersey.exceptions.ServerErrorException;
 import com.talis.platform.TimestampProvider;
 import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.LocalRequestDeduplicator;
 import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.RangesNotSupportedException;
+import com.talis.platform.sequencing.RequestDeduplicator;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
 import com.talis.platform.sequencing.metrics.SequencingMetrics;
 
+@Singleton
 @Path("/seq/")
+@ResourceFilters(RequestStages.class)
 public class Sequence {
 	
 	private static final Long DEFAULT_SEQUENCE = -1l;
 
+	public static final String MAX_COUNT_PROPERTY = 
+		"com.talis.platform.sequencing.http.maxcount";
+	public static final int DEFAULT_MAX_COUNT = 100000;
+
+	public static final String QUERY_TIMEOUT_PROPERTY = 
+		"com.talis.platform.sequencing.http.query.timeout";
+	public static final long DEFAULT_QUERY_TIMEOUT = 5000l;
+
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	public static final int MAX_REQUEST_ID_LENGTH = 256;
+
 	private static final Logger LOG = LoggerFactory.getLogger(Sequence.class);
 	
 	private final Clock clock;
 	private final SequencingMetrics metrics;
 	private final TimestampProvider timestampProvider;
+	private final RequestDeduplicator deduplicator;
+	private final int maxCount = Integer.getInteger(MAX_COUNT_PROPERTY, DEFAULT_MAX_COUNT);
+	private final long queryTimeout = Long.getLong(QUERY_TIMEOUT_PROPERTY, DEFAULT_QUERY_TIMEOUT);
 	
-	@Inject
 	public Sequence(Clock clock, TimestampProvider timestampProvider, SequencingMetrics metrics) {
+		this(clock, timestampProvider, metrics, 
+				new LocalRequestDeduplicator(timestampProvider, metrics));
+	}
+
+	@Inject
+	public Sequence(Clock clock, TimestampProvider timestampProvider, 
+			SequencingMetrics metrics, RequestDeduplicator deduplicator) {
 		this.clock = clock;
 		this.timestampProvider = timestampProvider;
 		this.metrics = metrics;
+		this.deduplicator = deduplicator;
 	}
 
 	@GET
@@ -68,11 +105,70 @@ public class Sequence {
 		}
 		LOG.debug("Starting query for keys {}", keys);
 		Map<String, Long> results = new HashMap<String, Long>();
-		for (String key : keys) {
+		if (keys.size() == 1) {
+			String key = keys.first();
 			results.put(key, getSequence(key));
+			return results;
+		}
+		return getSequences(keys);
+	}
+
+	/**
+	 * Issue the reads for every key at once and then gather the results, so
+	 * the query takes about as long as the slowest key rather than the sum of
+	 * all of them. The whole query must complete within the query timeout.
+	 * If a read can't be issued, those already issued are cancelled.
+	 */
+	private Map<String, Long> getSequences(SortedSet<String> keys) {
+		long start = timestampProvider.getNanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(queryTimeout);
+		Map<String, Future<Long>> pending = new LinkedHashMap<String, Future<Long>>();
+		for (String key : keys) {
+			try {
+				pending.put(key, clock.getSequenceAsync("/" + key));
+			} catch (RuntimeException e) {
+				for (Future<Long> issued : pending.values()) {
+					issued.cancel(true);
+				}
+				throw readError(key, e);
+			}
+		}
+		Map<String, Long> results = new HashMap<String, Long>();
+		// each result is timed as it arrives, which is also the time the wait
+		// for the next one starts
+		long now = start;
+		for (Map.Entry<String, Future<Long>> entry : pending.entrySet()) {
+			String key = entry.getKey();
+			try {
+				Long sequence = entry.getValue().get(
+						Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+				now = timestampProvider.getNanoTime();
+				metrics.recordSequenceReadLatency(now - start);
+				LOG.debug("Current sequence for key /{} is {}", key, sequence);
+				results.put(key, sequence);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof NoSuchSequenceException) {
+					// Don't add this to error metrics, as it's not really an error.
+					LOG.debug("Sequence for key /{} not found. Returning -1", key);
+					results.put(key, DEFAULT_SEQUENCE);
+				} else {
+					throw readError(key, e.getCause());
+				}
+			} catch (TimeoutException e) {
+				throw readError(key, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw readError(key, e);
+			}
 		}
 		return results;
 	}
+
+	private ServerErrorException readError(String key, Throwable cause) {
+		metrics.incrementReadErrorResponses();
+		LOG.error(String.format("Clock errored when getting sequence for key /%s", key), cause);
+		return new ServerErrorException(String.format("Internal Error while accessing sequence /%s", key));
+	}
 	
     @POST		
 	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)		
@@ -89,16 +185,68 @@ public class Sequence {
 		return sequence.toString();
 	}
 
+    public String incrementSequence(String key) {
+		return incrementSequence(key, 1);
+	}
+
+	public String incrementSequence(String key, int count) {
+		return incrementSequence(key, count, null);
+	}
+
+	/**
+	 * Advance the sequence for key by count. A single increment returns the
+	 * new value of the sequence, a larger count returns the contiguous range
+	 * of sequences issued as "start-end". If the request carries an
+	 * Idempotency-Key header, a retry of it with the same key returns the 
+	 * original response rather than advancing the sequence again.
+	 */
 	@POST
     @Path("{key}")
 	@Produces(MediaType.TEXT_PLAIN)
-    public String incrementSequence(@PathParam("key") String key) {
+    public String incrementSequence(@PathParam("key") final String key, 
+    		@DefaultValue("1") @QueryParam("count") final int count,
+    		@HeaderParam(IDEMPOTENCY_KEY_HEADER) String requestId) {
+		if (count < 1 || count > maxCount) {
+			LOG.error("Invalid count {} requested for key {}", count, key);
+			throw new BadRequestException(String.format(
+					"Count must be between 1 and %s", maxCount));
+		}
+		metrics.recordKeyRequest("/" + key);
+		if (null == requestId) {
+			return increment(key, count);
+		}
+		if (requestId.length() > MAX_REQUEST_ID_LENGTH) {
+			LOG.error("Request id for key {} is too long", key);
+			throw new BadRequestException(String.format(
+					"%s must be at most %s characters", 
+					IDEMPOTENCY_KEY_HEADER, MAX_REQUEST_ID_LENGTH));
+		}
+		try {
+			return deduplicator.deduplicate("/" + key, requestId, 
+					new RequestDeduplicator.Increment() {
+				@Override
+				public String run() {
+					return increment(key, count);
+				}
+			});
+		} catch (SequencingException e) {
+			metrics.incrementErrorResponses();
+			LOG.error(String.format("Unable to deduplicate request %s for key /%s", 
+										requestId, key), e);
+			throw new ServerErrorException("Internal Error");
+		}
+	}
+
+	private String increment(String key, int count) {
+		if (count > 1) {
+			return incrementSequenceByRange(key, count);
+		}
 		try {
 			key = "/" + key;
 			LOG.debug("Getting next sequence for key {}", key);
-			long start = timestampProvider.getCurrentTimeInMillis();
+			long start = timestampProvider.getNanoTime();
 			Long sequence = clock.getNextSequence(key);
-			long end = timestampProvider.getCurrentTimeInMillis();
+			long end = timestampProvider.getNanoTime();
 			metrics.recordSequenceWriteLatency(end - start);
 			LOG.debug("Next sequence for key {} is {}", key, sequence);
 			return sequence.toString();
@@ -109,19 +257,42 @@ public class Sequence {
 		}
     }
 	
+	private String incrementSequenceByRange(String key, int count) {
+		try {
+			key = "/" + key;
+			LOG.debug("Getting next {} sequences for key {}", count, key);
+			long start = timestampProvider.getNanoTime();
+			SequenceRange range = clock.getNextSequences(key, count);
+			long end = timestampProvider.getNanoTime();
+			metrics.recordSequenceWriteLatency(end - start);
+			LOG.debug("Next sequences for key {} are {}", key, range);
+			return range.toString();
+		} catch (RangesNotSupportedException e) {
+			// the request can never succeed against this clock, so it is 
+			// the client's error rather than ours
+			LOG.debug("Clock cannot issue ranges, rejecting count {} for key {}", 
+						count, key);
+			throw new BadRequestException(e.getMessage());
+		} catch (Exception e) {
+			metrics.incrementErrorResponses();
+			LOG.error( String.format("Clock errored when incrementing sequence for key %s by %s", key, count), e);
+			throw new ServerErrorException("Internal Error");
+		}
+	}
+	
 	private Long getSequence(String key) {
 		try {
 			key = "/" + key;
 			LOG.debug("Getting sequence for key {}", key);
-			long start = timestampProvider.getCurrentTimeInMillis();
-			Long sequence = clock.getSequence(key);
-			long end = timestampProvider.getCurrentTimeInMillis();
+			long start = timestampProvider.getNanoTime();
+			Long sequence = clock.getSequenceOrDefault(key, DEFAULT_SEQUENCE);
+			long end = timestampProvider.getNanoTime();
 			metrics.recordSequenceReadLatency(end - start);
 			LOG.debug("Current sequence for key {} is {}", key, sequence);
 			return sequence;
 		} catch (NoSuchSequenceException e) {
 			// Don't add this to error metrics, as it's not really an error.
-			LOG.info( String.format("Sequence for key %s not found. Returning -1", key), e);
+			LOG.debug("Sequence for key {} not found. Returning -1", key);
 			return DEFAULT_SEQUENCE;
 		} catch (Exception e) {
 			metrics.incrementReadErrorResponses();
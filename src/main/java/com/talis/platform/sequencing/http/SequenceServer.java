@@ -21,10 +21,11 @@ import org.slf4j.LoggerFactory;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.servlet.ServletModule;
 import com.talis.jersey.HttpServer;
 import com.talis.jersey.guice.JerseyServletModule;
 import com.talis.platform.sequencing.BaseModule;
-import com.talis.platform.sequencing.zookeeper.ZooKeeperModule;
+import com.talis.platform.sequencing.ClockModules;
 
 @SuppressWarnings("PMD")
 public class SequenceServer {
@@ -41,8 +42,16 @@ public class SequenceServer {
 
 	public void start() throws Exception {
 		Injector injector = Guice.createInjector(
-				new ZooKeeperModule(),
+				ClockModules.fromConfiguration(),
 				new BaseModule(),
+				new ServletModule() {
+					@Override
+					protected void configureServlets() {
+						// times the stages in Jersey either side of the 
+						// resource methods
+						filter("/*").through(RequestStages.class);
+					}
+				},
 				new JerseyServletModule("com.talis.platform.sequencing"));
 
 		LOG.info("Starting webserver on port %s ", httpPort);
@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.memory;
+
+import java.util.concurrent.Future;
+
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Clock which keeps its counters in memory and nowhere else, so every 
+ * sequence is lost when the process stops. It is meant for tests and for 
+ * measuring the cost of the HTTP layer without a backing store, not for 
+ * production use.
+ */
+public class InMemoryClock implements Clock {
+
+	private static final long ABSENT = Long.MIN_VALUE;
+
+	private final LongCounterMap counters = new LongCounterMap();
+
+	@Override
+	public long getNextSequence(String key) {
+		return counters.addAndGet(key, -1, 1);
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Cannot increment sequence for key %s by %s", key, count));
+		}
+		return SequenceRange.endingAt(counters.addAndGet(key, -1, count), count);
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		long sequence = counters.get(key, ABSENT);
+		if (ABSENT == sequence) {
+			throw new NoSuchSequenceException(String.format(
+					"No sequence found for key %s", key), null);
+		}
+		return sequence;
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent) {
+		long sequence = counters.get(key, ABSENT);
+		return ABSENT == sequence ? absent : sequence;
+	}
+
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		return SequenceFuture.completed(getNextSequence(key));
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		try {
+			return SequenceFuture.completed(getSequence(key));
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.memory;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.ClockBackend;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+import com.talis.platform.sequencing.metrics.SequencingMetricsJmx;
+
+/**
+ * Binds the in-memory Clock, which keeps nothing once the server stops
+ */
+public class InMemoryModule extends AbstractModule implements ClockBackend {
+
+	public static final String ENABLED_PROPERTY = 
+		"com.talis.platform.sequencing.memory";
+
+	public static final String NAME = "memory";
+
+	@Override
+	protected void configure() {
+		bind(Clock.class).to(InMemoryClock.class).in(Scopes.SINGLETON);
+		bind(SequencingMetrics.class).to(SequencingMetricsJmx.class).in(Scopes.SINGLETON);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Module getModule() {
+		return this;
+	}
+
+}
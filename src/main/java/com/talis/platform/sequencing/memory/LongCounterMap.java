@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.memory;
+
+/**
+ * Map from String keys to long counters which keeps the counters in 
+ * primitive arrays, so there is no boxed Long or entry object per key. The
+ * keys are split over a fixed number of segments by hash, each an open 
+ * addressing table with linear probing guarded by its own lock, so threads
+ * working on keys in different segments don't contend. A segment doubles in
+ * size once it is three quarters full. Keys are never removed.
+ */
+public class LongCounterMap {
+
+	public static final int DEFAULT_SEGMENTS = 64;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment[] segments;
+
+	public LongCounterMap() {
+		this(DEFAULT_SEGMENTS);
+	}
+
+	public LongCounterMap(int segmentCount) {
+		if (segmentCount < 1 || Integer.bitCount(segmentCount) != 1) {
+			throw new IllegalArgumentException(
+					"Segment count must be a positive power of two");
+		}
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Add delta to the counter for key, which starts at initial if it isn't
+	 * in the map yet
+	 * @return the new value of the counter
+	 */
+	public long addAndGet(String key, long initial, long delta) {
+		int hash = spread(key.hashCode());
+		return segmentFor(hash).addAndGet(key, hash, initial, delta);
+	}
+
+	/**
+	 * @return the value of the counter for key, or absent if it isn't in 
+	 * the map
+	 */
+	public long get(String key, long absent) {
+		int hash = spread(key.hashCode());
+		return segmentFor(hash).get(key, hash, absent);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private Segment segmentFor(int hash) {
+		// the low bits pick the slot within a segment, so use the high ones
+		return segments[(hash >>> 16) & (segments.length - 1)];
+	}
+
+	private static int spread(int hash) {
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		return hash ^ (hash >>> 7) ^ (hash >>> 4);
+	}
+
+	private static class Segment {
+		private String[] keys = new String[INITIAL_CAPACITY];
+		private long[] values = new long[INITIAL_CAPACITY];
+		private int size = 0;
+
+		synchronized long addAndGet(String key, int hash, long initial, long delta) {
+			int slot = indexOf(keys, key, hash);
+			if (null == keys[slot]) {
+				if ((size + 1) * 4 > keys.length * 3) {
+					grow();
+					slot = indexOf(keys, key, hash);
+				}
+				keys[slot] = key;
+				values[slot] = initial;
+				size++;
+			}
+			values[slot] += delta;
+			return values[slot];
+		}
+
+		synchronized long get(String key, int hash, long absent) {
+			int slot = indexOf(keys, key, hash);
+			return null == keys[slot] ? absent : values[slot];
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * @return the slot holding key, or the empty slot it would go in
+		 */
+		private static int indexOf(String[] keys, String key, int hash) {
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			while (null != keys[slot] && !keys[slot].equals(key)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void grow() {
+			String[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new String[oldKeys.length * 2];
+			values = new long[oldValues.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (null != oldKeys[i]) {
+					int slot = indexOf(keys, oldKeys[i], spread(oldKeys[i].hashCode()));
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.talis.platform.SystemTimestampProvider;
+import com.talis.platform.TimestampProvider;
+
+/**
+ * Tracks the keys seen most often, in a fixed amount of memory however many
+ * distinct keys there are, using the space-saving algorithm. At most the 
+ * configured number of keys are counted at once; a key arriving when the 
+ * table is full takes over the counter with the lowest count, inheriting 
+ * that count as its possible overestimate. Any key seen more often than 
+ * the window's total divided by the table size is guaranteed to be in the
+ * table. Keys are counted over one minute windows and reported for the 
+ * last complete one, so the counts are per minute rates.
+ * 
+ * Every increment records its key, so rather than one table behind one 
+ * lock, each thread records into one of a set of stripes, each its own 
+ * table of the configured size, picked the same way as for a 
+ * {@link StripedCounter}. Reading merges the stripes: counts for a key are 
+ * summed, and a key missing from a full stripe may have been evicted there,
+ * so it is also credited with that stripe's lowest count, as both count and 
+ * error. Counts are therefore still never lower than the real ones.
+ */
+public class HotKeys {
+
+	public static final String SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.metrics.hotkeys.size";
+
+	public static final int DEFAULT_SIZE = 100;
+
+	static final long WINDOW_MILLIS = 60000;
+
+	private final TimestampProvider myTimestampProvider;
+	private final int myCapacity;
+	private final Stripe[] myStripes;
+
+	public HotKeys() {
+		this(new SystemTimestampProvider(), 
+				Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+	}
+
+	HotKeys(TimestampProvider timestampProvider, int capacity) {
+		this(timestampProvider, capacity, StripedCounter.STRIPES);
+	}
+
+	HotKeys(TimestampProvider timestampProvider, int capacity, int stripes) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Hot key table size must be positive");
+		}
+		myTimestampProvider = timestampProvider;
+		myCapacity = capacity;
+		long window = timestampProvider.getCurrentTimeInMillis() / WINDOW_MILLIS;
+		myStripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			myStripes[i] = new Stripe(capacity, window);
+		}
+	}
+
+	public int getCapacity() {
+		return myCapacity;
+	}
+
+	public void record(String key) {
+		record(StripedCounter.stripeFor(Thread.currentThread().getId(), 
+				myStripes.length), key);
+	}
+
+	void record(int stripe, String key) {
+		myStripes[stripe].record(currentWindow(), key);
+	}
+
+	/**
+	 * @return up to count of the keys seen most often in the last complete
+	 * minute, most frequent first
+	 */
+	public List<HotKey> getTop(int count) {
+		long window = currentWindow();
+		// per key: summed count, summed error, and the summed lowest counts
+		// of the full stripes the key was found in
+		Map<String, long[]> merged = new HashMap<String, long[]>();
+		long floors = 0;
+		for (Stripe stripe : myStripes) {
+			floors += stripe.mergeInto(window, merged);
+		}
+		List<HotKey> keys = new ArrayList<HotKey>(merged.size());
+		for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+			long[] sums = entry.getValue();
+			long missing = floors - sums[2];
+			keys.add(new HotKey(entry.getKey(), sums[0] + missing, sums[1] + missing));
+		}
+		Collections.sort(keys, new Comparator<HotKey>() {
+			@Override
+			public int compare(HotKey a, HotKey b) {
+				if (a.count != b.count) {
+					return a.count > b.count ? -1 : 1;
+				}
+				return a.key.compareTo(b.key);
+			}
+		});
+		return keys.size() > count ? keys.subList(0, count) : keys;
+	}
+
+	private long currentWindow() {
+		return myTimestampProvider.getCurrentTimeInMillis() / WINDOW_MILLIS;
+	}
+
+	private static class Stripe {
+		private final int capacity;
+		private long window;
+		private Summary current;
+		private Summary last;
+
+		Stripe(int capacity, long window) {
+			this.capacity = capacity;
+			this.window = window;
+			current = new Summary(capacity);
+			last = new Summary(capacity);
+		}
+
+		synchronized void record(long now, String key) {
+			roll(now);
+			current.offer(key);
+		}
+
+		synchronized long mergeInto(long now, Map<String, long[]> merged) {
+			roll(now);
+			return last.mergeInto(merged);
+		}
+
+		private void roll(long now) {
+			if (now <= window) {
+				return;
+			}
+			// nothing was recorded in the last minute if a whole window has passed
+			last = now == window + 1 ? current : new Summary(capacity);
+			current = new Summary(capacity);
+			window = now;
+		}
+	}
+
+	public static class HotKey {
+		private final String key;
+		private final long count;
+		private final long error;
+
+		public HotKey(String key, long count, long error) {
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the estimated count, which is never lower than the real one
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the most by which the count may overestimate the real one
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return key + " " + count;
+		}
+	}
+
+	/**
+	 * Stream-summary of the counters: counters with the same count share a 
+	 * bucket, and buckets are kept in a list in order of count, so both 
+	 * incrementing a counter and finding one with the lowest count take 
+	 * constant time.
+	 */
+	private static class Summary {
+		private final int capacity;
+		private final Map<String, Counter> counters = new HashMap<String, Counter>();
+		private Bucket lowest;
+
+		Summary(int capacity) {
+			this.capacity = capacity;
+		}
+
+		void offer(String key) {
+			Counter counter = counters.get(key);
+			if (null == counter) {
+				if (counters.size() < capacity) {
+					counter = new Counter(key);
+				} else {
+					counter = lowest.first;
+					counters.remove(counter.key);
+					counter.key = key;
+					counter.error = counter.count;
+				}
+				counters.put(key, counter);
+			}
+			increment(counter);
+		}
+
+		private void increment(Counter counter) {
+			Bucket from = counter.bucket;
+			long count = counter.count + 1;
+			Bucket next = null == from ? lowest : from.next;
+			Bucket to;
+			if (null != next && next.count == count) {
+				to = next;
+			} else {
+				to = new Bucket(count);
+				to.prev = from;
+				to.next = next;
+				if (null != next) {
+					next.prev = to;
+				}
+				if (null == from) {
+					lowest = to;
+				} else {
+					from.next = to;
+				}
+			}
+			if (null != from) {
+				detach(counter);
+			}
+			counter.count = count;
+			to.add(counter);
+		}
+
+		private void detach(Counter counter) {
+			Bucket bucket = counter.bucket;
+			bucket.remove(counter);
+			if (null == bucket.first) {
+				if (null == bucket.prev) {
+					lowest = bucket.next;
+				} else {
+					bucket.prev.next = bucket.next;
+				}
+				if (null != bucket.next) {
+					bucket.next.prev = bucket.prev;
+				}
+			}
+		}
+
+		/**
+		 * Adds this summary's counters to the per key sums.
+		 * @return the lowest count if the table is full, as any key not in it
+		 * may have been seen that often, otherwise 0
+		 */
+		long mergeInto(Map<String, long[]> merged) {
+			long floor = counters.size() < capacity ? 0 : lowest.count;
+			for (Counter counter : counters.values()) {
+				long[] sums = merged.get(counter.key);
+				if (null == sums) {
+					sums = new long[3];
+					merged.put(counter.key, sums);
+				}
+				sums[0] += counter.count;
+				sums[1] += counter.error;
+				sums[2] += floor;
+			}
+			return floor;
+		}
+	}
+
+	private static class Bucket {
+		final long count;
+		Bucket prev;
+		Bucket next;
+		Counter first;
+
+		Bucket(long count) {
+			this.count = count;
+		}
+
+		void add(Counter counter) {
+			counter.bucket = this;
+			counter.prev = null;
+			counter.next = first;
+			if (null != first) {
+				first.prev = counter;
+			}
+			first = counter;
+		}
+
+		void remove(Counter counter) {
+			if (null == counter.prev) {
+				first = counter.next;
+			} else {
+				counter.prev.next = counter.next;
+			}
+			if (null != counter.next) {
+				counter.next.prev = counter.prev;
+			}
+			counter.bucket = null;
+		}
+	}
+
+	private static class Counter {
+		String key;
+		long count = 0;
+		long error = 0;
+		Bucket bucket;
+		Counter prev;
+		Counter next;
+
+		Counter(String key) {
+			this.key = key;
+		}
+	}
+}
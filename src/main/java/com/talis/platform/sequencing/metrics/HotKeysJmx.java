@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.talis.jmx.JmxSupport;
+import com.talis.platform.sequencing.metrics.HotKeys.HotKey;
+
+/**
+ * The keys receiving the most increment requests, and the keys losing the 
+ * most compare-and-set races in ZooKeeper, over the last complete minute.
+ * One instance is shared by the request and ZooKeeper metrics, which feed
+ * it; each attribute lists the top keys as "key count".
+ */
+@Singleton
+public class HotKeysJmx extends JmxSupport implements HotKeysJmxMBean {
+
+	public static final String TOP_PROPERTY = 
+		"com.talis.platform.sequencing.metrics.hotkeys.top";
+
+	public static final int DEFAULT_TOP = 10;
+
+	private final HotKeys requests;
+	private final HotKeys collisions;
+	private final int top = Integer.getInteger(TOP_PROPERTY, DEFAULT_TOP);
+
+	@Inject
+	public HotKeysJmx() throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException, NullPointerException, IOException {
+		this(new HotKeys(), new HotKeys());
+	}
+
+	public HotKeysJmx(HotKeys requests, HotKeys collisions) 
+	throws MalformedObjectNameException, InstanceAlreadyExistsException, 
+			MBeanRegistrationException, NotCompliantMBeanException, 
+			NullPointerException, IOException {
+		super();
+		this.requests = requests;
+		this.collisions = collisions;
+	}
+
+	@Override
+	public String getBeanName() {
+		return "com.talis:name=HotKeys";
+	}
+
+	public HotKeys getRequests() {
+		return requests;
+	}
+
+	public HotKeys getCollisions() {
+		return collisions;
+	}
+
+	@Override
+	public String[] getHotKeysByRequests() {
+		return describe(requests.getTop(top));
+	}
+
+	@Override
+	public String[] getHotKeysByCollisions() {
+		return describe(collisions.getTop(top));
+	}
+
+	private static String[] describe(List<HotKey> keys) {
+		String[] descriptions = new String[keys.size()];
+		for (int i = 0; i < descriptions.length; i++) {
+			descriptions[i] = keys.get(i).toString();
+		}
+		return descriptions;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics of the JVM the server runs in, read from the platform MXBeans 
+ * each time they are written.
+ */
+public class JvmMetrics {
+
+	static final String HEAP = OpenMetricsWriter.label("area", "heap");
+	static final String NON_HEAP = OpenMetricsWriter.label("area", "nonheap");
+
+	private JvmMetrics() {}
+
+	public static List<OpenMetric> create() {
+		final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+		final List<GarbageCollectorMXBean> collectors = 
+			ManagementFactory.getGarbageCollectorMXBeans();
+		final String[] collectorLabels = new String[collectors.size()];
+		for (int i = 0; i < collectorLabels.length; i++) {
+			collectorLabels[i] = 
+				OpenMetricsWriter.label("gc", collectors.get(i).getName());
+		}
+
+		List<OpenMetric> metrics = new ArrayList<OpenMetric>();
+		metrics.add(new OpenMetric("jvm_uptime_seconds", OpenMetric.GAUGE, 
+				"Time since the JVM started") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, runtime.getUptime() / 1e3);
+			}
+		});
+		metrics.add(new OpenMetric("jvm_memory_used_bytes", OpenMetric.GAUGE, 
+				"Memory in use by area") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, HEAP, 
+							memory.getHeapMemoryUsage().getUsed());
+				out.sample(getName(), labels, NON_HEAP, 
+							memory.getNonHeapMemoryUsage().getUsed());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_memory_committed_bytes", OpenMetric.GAUGE, 
+				"Memory committed by area") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, HEAP, 
+							memory.getHeapMemoryUsage().getCommitted());
+				out.sample(getName(), labels, NON_HEAP, 
+							memory.getNonHeapMemoryUsage().getCommitted());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_memory_max_bytes", OpenMetric.GAUGE, 
+				"Most memory which may be used by area, or -1 if unbounded") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				MemoryUsage heap = memory.getHeapMemoryUsage();
+				MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+				out.sample(getName(), labels, HEAP, heap.getMax());
+				out.sample(getName(), labels, NON_HEAP, nonHeap.getMax());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_gc_collections", OpenMetric.COUNTER, 
+				"Collections run by each garbage collector") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				for (int i = 0; i < collectorLabels.length; i++) {
+					out.sample("jvm_gc_collections_total", labels, 
+							collectorLabels[i], 
+							Math.max(0, collectors.get(i).getCollectionCount()));
+				}
+			}
+		});
+		metrics.add(new OpenMetric("jvm_gc_collection_seconds", OpenMetric.COUNTER, 
+				"Time spent in each garbage collector") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				for (int i = 0; i < collectorLabels.length; i++) {
+					out.sample("jvm_gc_collection_seconds_total", labels, 
+							collectorLabels[i], 
+							Math.max(0, collectors.get(i).getCollectionTime()) / 1e3);
+				}
+			}
+		});
+		metrics.add(new OpenMetric("jvm_threads", OpenMetric.GAUGE, 
+				"Live threads, including daemon threads") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, threads.getThreadCount());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_threads_daemon", OpenMetric.GAUGE, 
+				"Live daemon threads") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, threads.getDaemonThreadCount());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_threads_peak", OpenMetric.GAUGE, 
+				"Most live threads at once since the JVM started") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, threads.getPeakThreadCount());
+			}
+		});
+		metrics.add(new OpenMetric("jvm_classes_loaded", OpenMetric.GAUGE, 
+				"Classes currently loaded") {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(getName(), labels, classes.getLoadedClassCount());
+			}
+		});
+		return metrics;
+	}
+}
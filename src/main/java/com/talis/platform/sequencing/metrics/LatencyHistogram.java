@@ -0,0 +1,207 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log-bucketed histogram of latencies in microseconds, in the style of
+ * HdrHistogram. Values below 32 are counted exactly; above that each power
+ * of two is split into 32 linear sub-buckets, so any value reported is 
+ * within about 3% of the values it stands for. Values up to 2^36 
+ * microseconds (a little over 19 hours) are tracked and anything larger is 
+ * counted as that. Recording takes a few atomic increments and never 
+ * locks, so it is safe on the request path from any number of threads. The
+ * bucket counts and the running total are striped by thread, like a 
+ * StripedCounter, so that threads recording similar latencies do not 
+ * contend on the same buckets; each stripe is allocated by the first thread 
+ * to record in it. Reads merge the stripes and may see a recording in 
+ * progress only partly applied.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int MAX_MAGNITUDE = 36;
+	static final long HIGHEST_TRACKABLE_VALUE = (1l << MAX_MAGNITUDE) - 1;
+	static final int BUCKETS = 
+		SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// each stripe of counts takes 8KB and a histogram is kept for every 15
+	// seconds of the last 15 minutes, so there are fewer stripes than for a
+	// StripedCounter
+	static final int STRIPES = Math.min(StripedCounter.STRIPES, 8);
+
+	private final AtomicReferenceArray<AtomicLongArray> stripes = 
+		new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+
+	public void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), HIGHEST_TRACKABLE_VALUE);
+		countsForCurrentThread().incrementAndGet(indexFor(value));
+		total.add(value);
+		updateMin(value);
+		updateMax(value);
+	}
+
+	/**
+	 * Add everything recorded in other to this histogram
+	 */
+	public void add(LatencyHistogram other) {
+		long[] theirs = other.counts();
+		AtomicLongArray counts = countsForCurrentThread();
+		long samples = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (theirs[i] > 0) {
+				counts.addAndGet(i, theirs[i]);
+				samples += theirs[i];
+			}
+		}
+		if (samples > 0) {
+			total.add(other.total.sum());
+			updateMin(other.getMin());
+			updateMax(other.getMax());
+		}
+	}
+
+	private AtomicLongArray countsForCurrentThread() {
+		int stripe = StripedCounter.stripeFor(Thread.currentThread().getId(), 
+												STRIPES);
+		AtomicLongArray counts = stripes.get(stripe);
+		if (null == counts) {
+			stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+			counts = stripes.get(stripe);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the count in each bucket, summed over the stripes
+	 */
+	private long[] counts() {
+		long[] counts = new long[BUCKETS];
+		for (int s = 0; s < STRIPES; s++) {
+			AtomicLongArray stripe = stripes.get(s);
+			if (null != stripe) {
+				for (int i = 0; i < BUCKETS; i++) {
+					counts[i] += stripe.get(i);
+				}
+			}
+		}
+		return counts;
+	}
+
+	private void updateMin(long value) {
+		long current = min.get();
+		while (value < current && !min.compareAndSet(current, value)) {
+			current = min.get();
+		}
+	}
+
+	private void updateMax(long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	static int indexFor(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value which is counted in the given bucket
+	 */
+	static long highestValueIn(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + subBucket) << shift;
+		return lowest + (1l << shift) - 1;
+	}
+
+	public long getCount() {
+		return sum(counts());
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the mean of the recorded values, or 0 if there are none
+	 */
+	public long getMean() {
+		long samples = getCount();
+		return samples == 0 ? 0 : total.sum() / samples;
+	}
+
+	/**
+	 * @return the smallest value recorded, or 0 if there are none
+	 */
+	public long getMin() {
+		long value = min.get();
+		return value == Long.MAX_VALUE ? 0 : value;
+	}
+
+	/**
+	 * @return the largest value recorded, or 0 if there are none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return a value no smaller than the given percentage of the recorded 
+	 * values, and no larger than the largest of them, or 0 if there are none
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = counts();
+		long samples = sum(counts);
+		if (samples == 0) {
+			return 0;
+		}
+		double fraction = Math.min(Math.max(percentile, 0.0), 100.0) / 100.0;
+		// allow for rounding, so that 99.9% of 1000 is 999 rather than 1000
+		long target = Math.max(1, (long) Math.ceil(fraction * samples - 1e-9));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValueIn(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -15,56 +15,111 @@
  */
 
 package com.talis.platform.sequencing.metrics;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
+import com.talis.platform.SystemTimestampProvider;
+import com.talis.platform.TimestampProvider;
+
+/**
+ * Latencies recorded in milliseconds or nanoseconds. Each is kept in a 
+ * histogram with microsecond resolution for the 15 second period it was
+ * recorded in, and the figures reported cover the last minute; only the
+ * count of operations and their total latency are kept since start. 
+ * Reading never resets anything, so several monitoring tools can read the
+ * same metric and all see the same figures.
+ */
 public class LatencyMetric {
 
-	private final AtomicInteger count = new AtomicInteger(0);
-	private final AtomicLong totalLatency = new AtomicLong(0);
-	private final AtomicLong minLatency = new AtomicLong(0);
-	private final AtomicLong maxLatency = new AtomicLong(0);
-	private final AtomicInteger sampleLatency = new AtomicInteger(0);
-	
-	public int getCount() {
-		int valueToReturn = count.get();
-		count.set(0);
-		return valueToReturn;
+	private final RollingCounter count;
+	private final StripedCounter sum = new StripedCounter();
+	private final TimeBuckets<LatencyHistogram> buckets;
+
+	public LatencyMetric() {
+		this(new SystemTimestampProvider());
+	}
+
+	LatencyMetric(TimestampProvider timestampProvider) {
+		count = new RollingCounter(timestampProvider);
+		// histograms are large, so only keep those for the window they are
+		// reported over; the longer windows only need the count
+		buckets = new TimeBuckets<LatencyHistogram>(timestampProvider, 1) {
+			@Override
+			protected LatencyHistogram newValue() {
+				return new LatencyHistogram();
+			}
+		};
+	}
+
+	/**
+	 * @return operations recorded since start
+	 */
+	public long getCount() {
+		return count.getTotal();
+	}
+
+	/**
+	 * @return total of every latency recorded since start, in nanoseconds
+	 */
+	public long getSumNanos() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param minutes between 1 and 15
+	 * @return operations recorded in the last few minutes, to the nearest 15
+	 * seconds
+	 */
+	public long getCount(int minutes) {
+		return count.getLastMinutes(minutes);
 	}
 
 	public long getAverageLatency() {
-		long averageWriteLatency = 0;
-		if (sampleLatency.get() > 0){
-			averageWriteLatency = 
-				totalLatency.get() / sampleLatency.get();
-			sampleLatency.set(0);
-			totalLatency.set(0);
-		}
-		return averageWriteLatency;
+		return lastMinute().getMean() / 1000;
 	}
 	
 	public long getMaxLatency() {
-		long valueToReturn = maxLatency.get();
-		maxLatency.set(0);
-		return valueToReturn;
+		return lastMinute().getMax() / 1000;
 	}
 
 	public long getMinLatency() {
-		long valueToReturn = minLatency.get();
-		minLatency.set(0);
-		return valueToReturn;
+		return lastMinute().getMin() / 1000;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return latency in microseconds
+	 */
+	public long getLatencyAtPercentile(double percentile) {
+		return lastMinute().getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @return highest latency in microseconds
+	 */
+	public long getHighestLatencyMicros() {
+		return lastMinute().getMax();
+	}
+
+	LatencyHistogram lastMinute() {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram histogram : buckets.lastMinutes(1)) {
+			merged.add(histogram);
+		}
+		return merged;
 	}
 	
+	/**
+	 * @param latency in milliseconds
+	 */
 	public void recordLatency(long latency) {
-		count.incrementAndGet();
-		sampleLatency.incrementAndGet();
-		totalLatency.addAndGet(latency);
-		if (latency < minLatency.get()  
-			|| minLatency.get() == 0 ){
-			minLatency.set(latency);
-		}
-		if (latency > maxLatency.get()){
-			maxLatency.set(latency);
-		}
+		recordLatencyNanos(latency * 1000000);
+	}
+
+	/**
+	 * @param latency in nanoseconds, recorded to the nearest microsecond
+	 */
+	public void recordLatencyNanos(long latency) {
+		count.increment();
+		sum.add(latency);
+		buckets.current().record((latency + 500) / 1000);
 	}
 }
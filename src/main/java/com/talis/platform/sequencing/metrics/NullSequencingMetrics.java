@@ -27,7 +27,19 @@ public class NullSequencingMetrics implements SequencingMetrics {
 	@Override
 	public void recordSequenceReadLatency(long latency) {}
 
+	@Override
+	public void recordDispatchLatency(long latency) {}
+
+	@Override
+	public void recordSerializationLatency(long latency) {}
+
 	@Override
 	public void incrementReadErrorResponses() {}
 
+	@Override
+	public void incrementDuplicateRequests() {}
+
+	@Override
+	public void recordKeyRequest(String key) {}
+
 }
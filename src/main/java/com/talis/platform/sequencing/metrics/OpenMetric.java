@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.io.IOException;
+
+/**
+ * A metric family as exported to Prometheus, along with the recorder its 
+ * samples are read from. Several recorders may be exported under the same
+ * family with different labels, such as the metrics of each federated 
+ * ensemble; see OpenMetricsRegistry. Names of every sample are worked out
+ * up front, so writing them allocates nothing beyond the formatted values.
+ */
+public abstract class OpenMetric {
+
+	public static final String COUNTER = "counter";
+	public static final String GAUGE = "gauge";
+	public static final String SUMMARY = "summary";
+	public static final String HISTOGRAM = "histogram";
+
+	static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	static final String[] QUANTILES = { 
+		OpenMetricsWriter.label("quantile", "0.5"), 
+		OpenMetricsWriter.label("quantile", "0.9"),
+		OpenMetricsWriter.label("quantile", "0.99"), 
+		OpenMetricsWriter.label("quantile", "0.999") 
+	};
+
+	private final String name;
+	private final String type;
+	private final String help;
+
+	protected OpenMetric(String name, String type, String help) {
+		this.name = name;
+		this.type = type;
+		this.help = help;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+
+	/**
+	 * Write the samples for this metric, without the family metadata
+	 */
+	public abstract void writeSamples(OpenMetricsWriter out, String labels) 
+	throws IOException;
+
+	/**
+	 * @param name without the _total suffix, which is added to the sample
+	 */
+	public static OpenMetric counter(String name, String help, 
+										final RollingCounter counter) {
+		final String total = name + "_total";
+		return new OpenMetric(name, COUNTER, help) {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				out.sample(total, labels, counter.getTotal());
+			}
+		};
+	}
+
+	/**
+	 * Quantiles cover the last minute and are in seconds, as are the sum and
+	 * count of every latency recorded since start
+	 */
+	public static OpenMetric summary(String name, String help, 
+										final LatencyMetric latency) {
+		final String count = name + "_count";
+		final String sum = name + "_sum";
+		return new OpenMetric(name, SUMMARY, help) {
+			@Override
+			public void writeSamples(OpenMetricsWriter out, String labels) 
+			throws IOException {
+				LatencyHistogram lastMinute = latency.lastMinute();
+				for (int i = 0; i < PERCENTILES.length; i++) {
+					out.sample(getName(), labels, QUANTILES[i], 
+						lastMinute.getValueAtPercentile(PERCENTILES[i]) / 1e6);
+				}
+				out.sample(count, labels, latency.getCount());
+				out.sample(sum, labels, latency.getSumNanos() / 1e9);
+			}
+		};
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Metric families exported to Prometheus, in the order they were first 
+ * registered. Registering is rare, so each registration copies the lot and
+ * scrapes read whatever was last published without locking or building 
+ * anything up, however many are running at once.
+ */
+@Singleton
+public class OpenMetricsRegistry {
+
+	private volatile List<Family> families = Collections.emptyList();
+
+	@Inject
+	public OpenMetricsRegistry() {
+		this(JvmMetrics.create());
+	}
+
+	OpenMetricsRegistry(List<OpenMetric> defaults) {
+		register(defaults, null);
+	}
+
+	/**
+	 * @param labels distinguishing these metrics from any others registered 
+	 * under the same names, or null
+	 */
+	public synchronized void register(List<OpenMetric> metrics, String labels) {
+		List<Family> updated = new ArrayList<Family>(families);
+		for (OpenMetric metric : metrics) {
+			int index = indexOf(updated, metric.getName());
+			if (index < 0) {
+				updated.add(new Family(metric, labels));
+			} else {
+				Family family = updated.get(index);
+				if (!family.type.equals(metric.getType())) {
+					throw new IllegalArgumentException(String.format(
+							"Metric %s is already registered as a %s", 
+							metric.getName(), family.type));
+				}
+				updated.set(index, family.with(metric, labels));
+			}
+		}
+		families = Collections.unmodifiableList(updated);
+	}
+
+	private static int indexOf(List<Family> families, String name) {
+		for (int i = 0; i < families.size(); i++) {
+			if (families.get(i).name.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write every family, followed by the end of the exposition
+	 */
+	public void writeTo(OpenMetricsWriter out) throws IOException {
+		for (Family family : families) {
+			out.family(family.name, family.type, family.help);
+			for (int i = 0; i < family.metrics.length; i++) {
+				family.metrics[i].writeSamples(out, family.labels[i]);
+			}
+		}
+		out.finish();
+	}
+
+	private static class Family {
+		final String name;
+		final String type;
+		final String help;
+		final OpenMetric[] metrics;
+		final String[] labels;
+
+		Family(OpenMetric metric, String labels) {
+			this(metric.getName(), metric.getType(), metric.getHelp(), 
+					new OpenMetric[] { metric }, new String[] { labels });
+		}
+
+		private Family(String name, String type, String help, 
+						OpenMetric[] metrics, String[] labels) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+			this.metrics = metrics;
+			this.labels = labels;
+		}
+
+		Family with(OpenMetric metric, String label) {
+			OpenMetric[] moreMetrics = new OpenMetric[metrics.length + 1];
+			System.arraycopy(metrics, 0, moreMetrics, 0, metrics.length);
+			moreMetrics[metrics.length] = metric;
+			String[] moreLabels = new String[labels.length + 1];
+			System.arraycopy(labels, 0, moreLabels, 0, labels.length);
+			moreLabels[labels.length] = label;
+			return new Family(name, type, help, moreMetrics, moreLabels);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics in the OpenMetrics text format, one sample per line, 
+ * straight to the underlying Writer. Labels are passed as ready formatted
+ * text, such as that returned by label, so that nothing needs to be built 
+ * up per sample; null means no labels.
+ */
+public class OpenMetricsWriter {
+
+	public static final String CONTENT_TYPE = 
+		"application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	private final Writer out;
+
+	public OpenMetricsWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return name="value", with the value escaped as the format requires
+	 */
+	public static String label(String name, String value) {
+		return name + "=\"" + escape(value, true) + "\"";
+	}
+
+	/**
+	 * @return both sets of labels, either of which may be null
+	 */
+	public static String join(String labels, String more) {
+		if (null == labels) {
+			return more;
+		}
+		if (null == more) {
+			return labels;
+		}
+		return labels + "," + more;
+	}
+
+	private static String escape(String text, boolean quotes) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				escaped.append("\\\\");
+			} else if (c == '\n') {
+				escaped.append("\\n");
+			} else if (c == '"' && quotes) {
+				escaped.append("\\\"");
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	public void family(String name, String type, String help) throws IOException {
+		out.write("# TYPE ");
+		out.write(name);
+		out.write(' ');
+		out.write(type);
+		out.write("\n# HELP ");
+		out.write(name);
+		out.write(' ');
+		out.write(escape(help, false));
+		out.write('\n');
+	}
+
+	public void sample(String name, String labels, long value) throws IOException {
+		sample(name, labels, null, value);
+	}
+
+	/**
+	 * @param label added to labels, for the sample only
+	 */
+	public void sample(String name, String labels, String label, long value) 
+	throws IOException {
+		writeName(name, labels, label);
+		out.write(Long.toString(value));
+		out.write('\n');
+	}
+
+	public void sample(String name, String labels, double value) 
+	throws IOException {
+		sample(name, labels, null, value);
+	}
+
+	/**
+	 * @param label added to labels, for the sample only
+	 */
+	public void sample(String name, String labels, String label, double value) 
+	throws IOException {
+		writeName(name, labels, label);
+		out.write(Double.toString(value));
+		out.write('\n');
+	}
+
+	private void writeName(String name, String labels, String label) 
+	throws IOException {
+		out.write(name);
+		if (null != labels || null != label) {
+			out.write('{');
+			if (null != labels) {
+				out.write(labels);
+				if (null != label) {
+					out.write(',');
+				}
+			}
+			if (null != label) {
+				out.write(label);
+			}
+			out.write('}');
+		}
+		out.write(' ');
+	}
+
+	/**
+	 * Marks the end of the exposition and flushes it
+	 */
+	public void finish() throws IOException {
+		out.write("# EOF\n");
+		out.flush();
+	}
+}
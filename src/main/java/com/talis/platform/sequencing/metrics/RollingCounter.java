@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import com.talis.platform.SystemTimestampProvider;
+import com.talis.platform.TimestampProvider;
+
+/**
+ * Count of events since start, which can also report how many happened in
+ * the last few minutes. Reading never resets anything, so several 
+ * monitoring tools can read the same counter and all see the same figures.
+ */
+public class RollingCounter {
+
+	private final StripedCounter total = new StripedCounter();
+	private final TimeBuckets<StripedCounter> buckets;
+
+	public RollingCounter() {
+		this(new SystemTimestampProvider());
+	}
+
+	RollingCounter(TimestampProvider timestampProvider) {
+		buckets = new TimeBuckets<StripedCounter>(timestampProvider) {
+			@Override
+			protected StripedCounter newValue() {
+				return new StripedCounter();
+			}
+		};
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		total.add(delta);
+		buckets.current().add(delta);
+	}
+
+	/**
+	 * @return every event counted since start
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * @param minutes between 1 and 15
+	 * @return events counted in the last few minutes, to the nearest 15 
+	 * seconds
+	 */
+	public long getLastMinutes(int minutes) {
+		long sum = 0;
+		for (StripedCounter counter : buckets.lastMinutes(minutes)) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+}
@@ -16,10 +16,17 @@
 
 package com.talis.platform.sequencing.metrics;
 
+/**
+ * Latencies are in nanoseconds, taken from TimestampProvider.getNanoTime
+ */
 public interface SequencingMetrics {
 
 	public void recordSequenceWriteLatency(long latency);
 	public void recordSequenceReadLatency(long latency);
+	public void recordDispatchLatency(long latency);
+	public void recordSerializationLatency(long latency);
 	public void incrementErrorResponses();
 	public void incrementReadErrorResponses();
+	public void incrementDuplicateRequests();
+	public void recordKeyRequest(String key);
 }
@@ -17,42 +17,110 @@
 package com.talis.platform.sequencing.metrics;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 
+import com.google.inject.Inject;
 import com.talis.jmx.JmxSupport;
 
+/**
+ * Counts are totals since start, with windowed counts over the last 1, 5 
+ * and 15 minutes alongside them. Reading any attribute leaves the metrics
+ * as they were, so any number of tools can sample them at once. When 
+ * injected they are also exported to Prometheus through OpenMetricsRegistry.
+ */
 public class SequencingMetricsJmx extends JmxSupport 
 implements SequencingMetrics, SequencingMetricsJmxMBean {
 	
 	private final LatencyMetric writeLatencyMetrics = new LatencyMetric();
 	private final LatencyMetric readLatencyMetrics = new LatencyMetric();
+	private final LatencyMetric dispatchLatencyMetrics = new LatencyMetric();
+	private final LatencyMetric serializationLatencyMetrics = new LatencyMetric();
 
-	private final AtomicInteger errorResponses = new AtomicInteger(0);
-	private final AtomicInteger readErrorResponses = new AtomicInteger(0);
+	private final RollingCounter errorResponses = new RollingCounter();
+	private final RollingCounter readErrorResponses = new RollingCounter();
+	private final RollingCounter duplicateRequests = new RollingCounter();
+	private final HotKeys keyRequests;
 	
 	public SequencingMetricsJmx() throws MalformedObjectNameException,
 			InstanceAlreadyExistsException, MBeanRegistrationException,
 			NotCompliantMBeanException, NullPointerException, IOException {
+		this(new HotKeys());
+	}
+
+	@Inject
+	public SequencingMetricsJmx(HotKeysJmx hotKeys, OpenMetricsRegistry registry) 
+	throws MalformedObjectNameException, InstanceAlreadyExistsException, 
+			MBeanRegistrationException, NotCompliantMBeanException, 
+			NullPointerException, IOException {
+		this(hotKeys.getRequests());
+		registry.register(getOpenMetrics(), null);
+	}
+
+	SequencingMetricsJmx(HotKeys keyRequests) throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException, NullPointerException, IOException {
 		super();
+		this.keyRequests = keyRequests;
 	}
 	
 	@Override
 	public String getBeanName() {
 		return "com.talis:name=SequencingMetrics";
 	}
+
+	/**
+	 * @return these metrics as exported to Prometheus; hot keys are left out
+	 */
+	public List<OpenMetric> getOpenMetrics() {
+		List<OpenMetric> metrics = new ArrayList<OpenMetric>();
+		metrics.add(OpenMetric.summary("h1_write_latency_seconds", 
+				"Latency of increments", writeLatencyMetrics));
+		metrics.add(OpenMetric.counter("h1_write_errors", 
+				"Increments which failed", errorResponses));
+		metrics.add(OpenMetric.counter("h1_duplicate_requests", 
+				"Increments answered from an earlier request with the same id", 
+				duplicateRequests));
+		metrics.add(OpenMetric.summary("h1_read_latency_seconds", 
+				"Latency of reads", readLatencyMetrics));
+		metrics.add(OpenMetric.counter("h1_read_errors", 
+				"Reads which failed", readErrorResponses));
+		metrics.add(OpenMetric.summary("h1_dispatch_latency_seconds", 
+				"Time from a request reaching Jersey to its resource method", 
+				dispatchLatencyMetrics));
+		metrics.add(OpenMetric.summary("h1_serialization_latency_seconds", 
+				"Time from a resource method returning to its response being written", 
+				serializationLatencyMetrics));
+		return metrics;
+	}
 	
-	// Write latency metrics
+	// Write latency metrics, over the last minute apart from the totals
 	
 	@Override
-	public int getWriteSequenceOperations() {
+	public long getWriteSequenceOperations() {
 		return writeLatencyMetrics.getCount();
 	}
 
+	@Override
+	public long getWriteSequenceOperations1m() {
+		return writeLatencyMetrics.getCount(1);
+	}
+
+	@Override
+	public long getWriteSequenceOperations5m() {
+		return writeLatencyMetrics.getCount(5);
+	}
+
+	@Override
+	public long getWriteSequenceOperations15m() {
+		return writeLatencyMetrics.getCount(15);
+	}
+
 	@Override
 	public long getMinWriteSequenceLatency() {
 		return writeLatencyMetrics.getMinLatency();
@@ -68,62 +136,249 @@ implements SequencingMetrics, SequencingMetricsJmxMBean {
 		return writeLatencyMetrics.getAverageLatency();
 	}
 
+	// percentiles in microseconds
+	@Override
+	public long getWriteSequenceLatencyP50() {
+		return writeLatencyMetrics.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getWriteSequenceLatencyP90() {
+		return writeLatencyMetrics.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getWriteSequenceLatencyP99() {
+		return writeLatencyMetrics.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getWriteSequenceLatencyP999() {
+		return writeLatencyMetrics.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getWriteSequenceLatencyMax() {
+		return writeLatencyMetrics.getHighestLatencyMicros();
+	}
+
 	@Override
 	public void recordSequenceWriteLatency(long latency) {
-		writeLatencyMetrics.recordLatency(latency);
+		writeLatencyMetrics.recordLatencyNanos(latency);
 	}
 	
-	// Read latency metrix
+	// Read latency metrics, over the last minute apart from the totals
 	
 	@Override
-	public int getReadSequenceOperations() {
+	public long getReadSequenceOperations() {
 		return readLatencyMetrics.getCount();
 	}
 
+	@Override
+	public long getReadSequenceOperations1m() {
+		return readLatencyMetrics.getCount(1);
+	}
+
+	@Override
+	public long getReadSequenceOperations5m() {
+		return readLatencyMetrics.getCount(5);
+	}
+
+	@Override
+	public long getReadSequenceOperations15m() {
+		return readLatencyMetrics.getCount(15);
+	}
+
 	@Override
 	public long getMinReadSequenceLatency() {
 		return readLatencyMetrics.getMinLatency();
 	}
-
+	
 	@Override
 	public long getMaxReadSequenceLatency() {
 		return readLatencyMetrics.getMaxLatency();
 	}
-	
+
 	@Override
 	public long getAverageReadSequenceLatency() {
 		return readLatencyMetrics.getAverageLatency();
 	}
 
+	// percentiles in microseconds
+	@Override
+	public long getReadSequenceLatencyP50() {
+		return readLatencyMetrics.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getReadSequenceLatencyP90() {
+		return readLatencyMetrics.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getReadSequenceLatencyP99() {
+		return readLatencyMetrics.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getReadSequenceLatencyP999() {
+		return readLatencyMetrics.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getReadSequenceLatencyMax() {
+		return readLatencyMetrics.getHighestLatencyMicros();
+	}
+
 	@Override
 	public void recordSequenceReadLatency(long latency) {
-		readLatencyMetrics.recordLatency(latency);
+		readLatencyMetrics.recordLatencyNanos(latency);
+	}
+	
+	// Stages either side of the resource method, with percentiles in 
+	// microseconds over the last minute
+
+	@Override
+	public void recordDispatchLatency(long latency) {
+		dispatchLatencyMetrics.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getDispatchLatencyP50() {
+		return dispatchLatencyMetrics.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getDispatchLatencyP90() {
+		return dispatchLatencyMetrics.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getDispatchLatencyP99() {
+		return dispatchLatencyMetrics.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getDispatchLatencyP999() {
+		return dispatchLatencyMetrics.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getDispatchLatencyMax() {
+		return dispatchLatencyMetrics.getHighestLatencyMicros();
+	}
+
+	@Override
+	public void recordSerializationLatency(long latency) {
+		serializationLatencyMetrics.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getSerializationLatencyP50() {
+		return serializationLatencyMetrics.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getSerializationLatencyP90() {
+		return serializationLatencyMetrics.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getSerializationLatencyP99() {
+		return serializationLatencyMetrics.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getSerializationLatencyP999() {
+		return serializationLatencyMetrics.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getSerializationLatencyMax() {
+		return serializationLatencyMetrics.getHighestLatencyMicros();
 	}
 	
 	// Error metrics
 
 	@Override
 	public void incrementErrorResponses() {
-		errorResponses.incrementAndGet();
+		errorResponses.increment();
+	}
+
+	@Override
+	public long getErrorResponseCount() {
+		return errorResponses.getTotal();
+	}
+
+	@Override
+	public long getErrorResponseCount1m() {
+		return errorResponses.getLastMinutes(1);
+	}
+
+	@Override
+	public long getErrorResponseCount5m() {
+		return errorResponses.getLastMinutes(5);
+	}
+
+	@Override
+	public long getErrorResponseCount15m() {
+		return errorResponses.getLastMinutes(15);
 	}
 
 	@Override
 	public void incrementReadErrorResponses() {
-		readErrorResponses.incrementAndGet();
+		readErrorResponses.increment();
 	}
-	
+
+	@Override
+	public long getReadErrorResponseCount() {
+		return readErrorResponses.getTotal();
+	}
+
+	@Override
+	public long getReadErrorResponseCount1m() {
+		return readErrorResponses.getLastMinutes(1);
+	}
+
+	@Override
+	public long getReadErrorResponseCount5m() {
+		return readErrorResponses.getLastMinutes(5);
+	}
+
+	@Override
+	public long getReadErrorResponseCount15m() {
+		return readErrorResponses.getLastMinutes(15);
+	}
+
+	@Override
+	public void incrementDuplicateRequests() {
+		duplicateRequests.increment();
+	}
+
+	@Override
+	public long getDuplicateRequestCount() {
+		return duplicateRequests.getTotal();
+	}
+
+	@Override
+	public long getDuplicateRequestCount1m() {
+		return duplicateRequests.getLastMinutes(1);
+	}
+
+	@Override
+	public long getDuplicateRequestCount5m() {
+		return duplicateRequests.getLastMinutes(5);
+	}
+
 	@Override
-	public int getErrorResponseCount() {
-		int valueToReturn = errorResponses.get();
-		errorResponses.set(0);
-		return valueToReturn;
+	public long getDuplicateRequestCount15m() {
+		return duplicateRequests.getLastMinutes(15);
 	}
 
+	// hot keys are reported by HotKeysJmx
 	@Override
-	public int getReadErrorResponseCount() {
-		int valueToReturn = readErrorResponses.get();
-		readErrorResponses.set(0);
-		return valueToReturn;
+	public void recordKeyRequest(String key) {
+		keyRequests.record(key);
 	}
 
 }
@@ -19,15 +19,52 @@ package com.talis.platform.sequencing.metrics;
 public interface SequencingMetricsJmxMBean {
 
 	// Write metrics
-	public int getWriteSequenceOperations();
+	public long getWriteSequenceOperations();
+	public long getWriteSequenceOperations1m();
+	public long getWriteSequenceOperations5m();
+	public long getWriteSequenceOperations15m();
 	public long getAverageWriteSequenceLatency();
 	public long getMinWriteSequenceLatency();
 	public long getMaxWriteSequenceLatency();
-	public int getErrorResponseCount();
+	public long getWriteSequenceLatencyP50();
+	public long getWriteSequenceLatencyP90();
+	public long getWriteSequenceLatencyP99();
+	public long getWriteSequenceLatencyP999();
+	public long getWriteSequenceLatencyMax();
+	public long getErrorResponseCount();
+	public long getErrorResponseCount1m();
+	public long getErrorResponseCount5m();
+	public long getErrorResponseCount15m();
+	public long getDuplicateRequestCount();
+	public long getDuplicateRequestCount1m();
+	public long getDuplicateRequestCount5m();
+	public long getDuplicateRequestCount15m();
 	// Read metrics
-	public int getReadSequenceOperations();
+	public long getReadSequenceOperations();
+	public long getReadSequenceOperations1m();
+	public long getReadSequenceOperations5m();
+	public long getReadSequenceOperations15m();
 	public long getAverageReadSequenceLatency();
 	public long getMinReadSequenceLatency();
 	public long getMaxReadSequenceLatency();
-	public int getReadErrorResponseCount();
+	public long getReadSequenceLatencyP50();
+	public long getReadSequenceLatencyP90();
+	public long getReadSequenceLatencyP99();
+	public long getReadSequenceLatencyP999();
+	public long getReadSequenceLatencyMax();
+	public long getReadErrorResponseCount();
+	public long getReadErrorResponseCount1m();
+	public long getReadErrorResponseCount5m();
+	public long getReadErrorResponseCount15m();
+	// Stages outside the resource methods
+	public long getDispatchLatencyP50();
+	public long getDispatchLatencyP90();
+	public long getDispatchLatencyP99();
+	public long getDispatchLatencyP999();
+	public long getDispatchLatencyMax();
+	public long getSerializationLatencyP50();
+	public long getSerializationLatencyP90();
+	public long getSerializationLatencyP99();
+	public long getSerializationLatencyP999();
+	public long getSerializationLatencyMax();
 }
@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells, in the manner of LongAdder, so that 
+ * threads adding to it at the same time mostly update different cache lines
+ * instead of all contending for one. Threads are assigned a cell by their
+ * id. Reading sums the cells, so a read racing with updates may miss some
+ * of them, but never sees a value which was not true at some point.
+ */
+public class StripedCounter {
+
+	// longs per stripe, so that each stripe has a cache line to itself
+	private static final int PADDING = 8;
+	static final int STRIPES = 
+		stripesFor(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	static int stripesFor(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.addAndGet(cellFor(Thread.currentThread().getId()), delta);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int cellFor(long threadId) {
+		return stripeFor(threadId, STRIPES) * PADDING;
+	}
+
+	/**
+	 * @return the stripe, of a power of two number of them, that the thread
+	 * with the given id updates
+	 */
+	static int stripeFor(long threadId, int stripes) {
+		// thread ids are handed out in sequence, so spread them out first
+		int hash = (int) (threadId ^ (threadId >>> 32)) * 0x9E3779B9;
+		return (hash >>> 16) & (stripes - 1);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.talis.platform.TimestampProvider;
+
+/**
+ * Ring of values, one for each 15 second period of the last few minutes, 15
+ * unless fewer are asked for. Recording goes to the value for the current
+ * period, which is created by whichever thread first records in that period
+ * and replaces the one left in its slot from a full window before. Reads only gather values, so any 
+ * number of readers can look at the same windows without disturbing each
+ * other or the recorders.
+ */
+abstract class TimeBuckets<T> {
+
+	static final long BUCKET_MILLIS = 15000;
+	static final int BUCKETS_PER_MINUTE = (int) (60000 / BUCKET_MILLIS);
+	static final int MAX_MINUTES = 15;
+
+	private final TimestampProvider timestampProvider;
+	private final int maxMinutes;
+	private final AtomicReferenceArray<Bucket<T>> slots;
+
+	TimeBuckets(TimestampProvider timestampProvider) {
+		this(timestampProvider, MAX_MINUTES);
+	}
+
+	/**
+	 * @param maxMinutes the longest window that can be read, which sets how
+	 * many values are kept
+	 */
+	TimeBuckets(TimestampProvider timestampProvider, int maxMinutes) {
+		if (maxMinutes < 1 || maxMinutes > MAX_MINUTES) {
+			throw new IllegalArgumentException(String.format(
+					"Windows must be between 1 and %s minutes", MAX_MINUTES));
+		}
+		this.timestampProvider = timestampProvider;
+		this.maxMinutes = maxMinutes;
+		// one extra slot so that the oldest period of a full window isn't
+		// overwritten while the current one is young
+		slots = new AtomicReferenceArray<Bucket<T>>(
+					maxMinutes * BUCKETS_PER_MINUTE + 1);
+	}
+
+	protected abstract T newValue();
+
+	/**
+	 * @return the value for the current period
+	 */
+	T current() {
+		long period = timestampProvider.getCurrentTimeInMillis() / BUCKET_MILLIS;
+		int slot = slotFor(period);
+		Bucket<T> bucket = slots.get(slot);
+		// a bucket from a later period means the clock has gone back, in
+		// which case carry on with it rather than throwing it away
+		while (null == bucket || bucket.period < period) {
+			Bucket<T> fresh = new Bucket<T>(period, newValue());
+			if (slots.compareAndSet(slot, bucket, fresh)) {
+				return fresh.value;
+			}
+			bucket = slots.get(slot);
+		}
+		return bucket.value;
+	}
+
+	/**
+	 * @return the values for the current period and those before it going 
+	 * back the given number of minutes, so the window is up to 15 seconds 
+	 * shorter than asked for while the current period is young
+	 */
+	List<T> lastMinutes(int minutes) {
+		if (minutes < 1 || minutes > maxMinutes) {
+			throw new IllegalArgumentException(String.format(
+					"Windows must be between 1 and %s minutes", maxMinutes));
+		}
+		long period = timestampProvider.getCurrentTimeInMillis() / BUCKET_MILLIS;
+		List<T> values = new ArrayList<T>();
+		for (long p = period - minutes * BUCKETS_PER_MINUTE + 1; p <= period; p++) {
+			Bucket<T> bucket = slots.get(slotFor(p));
+			if (null != bucket && bucket.period == p) {
+				values.add(bucket.value);
+			}
+		}
+		return values;
+	}
+
+	private int slotFor(long period) {
+		int size = slots.length();
+		return (int) (((period % size) + size) % size);
+	}
+
+	private static class Bucket<T> {
+		final long period;
+		final T value;
+
+		Bucket(long period, T value) {
+			this.period = period;
+			this.value = value;
+		}
+	}
+}
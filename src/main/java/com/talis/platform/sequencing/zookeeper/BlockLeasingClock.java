@@ -0,0 +1,283 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Clock which leases blocks of sequences from ZooKeeper for keys in the
+ * configured namespaces and serves them from memory, fetching the next block
+ * in the background once the current one runs low. Sequences issued for a
+ * leased key are unique, and increase monotonically on any one node, but are
+ * not contiguous: blocks are interleaved between nodes and any unused part of
+ * a block is lost when the node stops. Keys outside the leased namespaces are
+ * passed straight through to the ZooKeeper clock.
+ */
+public class BlockLeasingClock implements Clock {
+
+	static final Logger LOG = LoggerFactory.getLogger(BlockLeasingClock.class);
+
+	public static final String PREFIXES_PROPERTY =
+		"com.talis.platform.sequencing.zookeeper.leasing.prefixes";
+	public static final String BLOCK_SIZE_PROPERTY =
+		"com.talis.platform.sequencing.zookeeper.leasing.blocksize";
+	public static final String LOW_WATER_PROPERTY =
+		"com.talis.platform.sequencing.zookeeper.leasing.lowwater";
+
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+	private final Provider<ZkClock> myClockProvider;
+	private final List<String> myPrefixes;
+	private final int myBlockSize;
+	private final int myLowWater;
+	private final ConcurrentMap<String, Lease> myLeases =
+		new ConcurrentHashMap<String, Lease>();
+	private final ExecutorService myPrefetcher =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-lease-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	@Inject
+	public BlockLeasingClock(Provider<ZkClock> clockProvider) {
+		this(clockProvider,
+			readPrefixes(),
+			Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE),
+			Integer.getInteger(LOW_WATER_PROPERTY, -1));
+	}
+
+	BlockLeasingClock(Provider<ZkClock> clockProvider, List<String> prefixes,
+						int blockSize, int lowWater) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Lease block size must be positive");
+		}
+		myClockProvider = clockProvider;
+		myPrefixes = prefixes;
+		myBlockSize = blockSize;
+		myLowWater = lowWater < 0 ? blockSize / 5 : Math.min(lowWater, blockSize);
+		LOG.info(String.format("Initialising block leasing Clock for prefixes %s. "
+				+ "Block size: %s | Low water mark: %s",
+				myPrefixes, myBlockSize, myLowWater));
+	}
+
+	/**
+	 * @return true if any key namespaces have been configured for leasing
+	 */
+	public static boolean isConfigured() {
+		return !readPrefixes().isEmpty();
+	}
+
+	static List<String> readPrefixes() {
+		String property = System.getProperty(PREFIXES_PROPERTY);
+		if (null == property) {
+			return Collections.emptyList();
+		}
+		List<String> prefixes = new ArrayList<String>();
+		for (String prefix : property.split(",")) {
+			prefix = prefix.trim();
+			if (prefix.length() > 0) {
+				prefixes.add(prefix);
+			}
+		}
+		return prefixes;
+	}
+
+	boolean isLeased(String key) {
+		String name = key.startsWith("/") ? key.substring(1) : key;
+		for (String prefix : myPrefixes) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		if (!isLeased(key)) {
+			return myClockProvider.get().getNextSequence(key);
+		}
+		return getLease(key).next();
+	}
+
+	/**
+	 * Ranges for leased keys are served from the current block when it has
+	 * enough sequences left, otherwise they are leased from ZooKeeper
+	 * separately so that the range stays contiguous. The rest of the current
+	 * block is then given up, so that later sequences still follow the range.
+	 */
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		if (!isLeased(key)) {
+			return myClockProvider.get().getNextSequences(key, count);
+		}
+		return getLease(key).nextRange(count);
+	}
+
+	private Lease getLease(String key) {
+		Lease lease = myLeases.get(key);
+		if (null == lease) {
+			Lease newLease = new Lease(key);
+			lease = myLeases.putIfAbsent(key, newLease);
+			if (null == lease) {
+				lease = newLease;
+			}
+		}
+		return lease;
+	}
+
+	/**
+	 * For leased keys this is the high water mark of every block leased so
+	 * far across all nodes, so it is an upper bound on any sequence issued
+	 * rather than the last one issued by this node.
+	 */
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		return myClockProvider.get().getSequence(key);
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent)
+	throws SequencingException {
+		return myClockProvider.get().getSequenceOrDefault(key, absent);
+	}
+
+	/**
+	 * Leased keys are normally served from memory, so they are completed on
+	 * the calling thread; only a caller which exhausts a block before the 
+	 * prefetch has landed will block here.
+	 */
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		if (!isLeased(key)) {
+			return myClockProvider.get().getNextSequenceAsync(key);
+		}
+		try {
+			return SequenceFuture.completed(getLease(key).next());
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		return myClockProvider.get().getSequenceAsync(key);
+	}
+
+	private long[] leaseBlock(String key) throws SequencingException {
+		long end = myClockProvider.get().incrementBy(key, myBlockSize);
+		LOG.debug(String.format("Leased block %s - %s for key %s",
+									end - myBlockSize + 1, end, key));
+		return new long[] { end - myBlockSize + 1, end };
+	}
+
+	private class Lease {
+		private final String key;
+		private long next = 0;
+		private long end = -1;
+		private Future<long[]> prefetch;
+
+		Lease(String key) {
+			this.key = key;
+		}
+
+		synchronized long next() throws SequencingException {
+			if (next > end) {
+				long[] block = takeNextBlock();
+				next = block[0];
+				end = block[1];
+			}
+			long sequence = next++;
+			prefetchIfRunningLow();
+			return sequence;
+		}
+
+		synchronized SequenceRange nextRange(int count) 
+		throws SequencingException {
+			if (end - next + 1 < count) {
+				SequenceRange range = 
+					myClockProvider.get().getNextSequences(key, count);
+				// both the current block and any block being prefetched may
+				// be below the range, so drop them and lease afresh next time
+				next = end + 1;
+				if (null != prefetch) {
+					prefetch.cancel(false);
+					prefetch = null;
+				}
+				return range;
+			}
+			SequenceRange range = new SequenceRange(next, next + count - 1);
+			next += count;
+			prefetchIfRunningLow();
+			return range;
+		}
+
+		private void prefetchIfRunningLow() {
+			if (null == prefetch && end - next + 1 <= myLowWater) {
+				prefetch = myPrefetcher.submit(new Callable<long[]>() {
+					@Override
+					public long[] call() throws Exception {
+						return leaseBlock(key);
+					}
+				});
+			}
+		}
+
+		private long[] takeNextBlock() throws SequencingException {
+			if (null != prefetch) {
+				Future<long[]> pending = prefetch;
+				prefetch = null;
+				try {
+					return pending.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SequencingException(String.format(
+						"Interrupted waiting for block lease for key %s", key), e);
+				} catch (ExecutionException e) {
+					LOG.warn(String.format("Background lease failed for key %s, "
+							+ "retrying in the foreground", key), e.getCause());
+				}
+			}
+			return leaseBlock(key);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Spreads counters over two levels of 256 buckets below a configurable root, 
+ * so key /foo is stored at ROOT/ab/cd/foo where abcd is the start of the MD5
+ * of foo. No single node ends up with more than a fraction of the keys as 
+ * children, which keeps getChildren calls, and the snapshot entries for each
+ * node, small however many keys there are. Buckets are created on demand.
+ */
+public class BucketedKeyLayout implements KeyLayout {
+
+	public static final String LAYOUT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.layout";
+	public static final String ROOT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.layout.root";
+
+	public static final String BUCKETED = "bucketed";
+	public static final String DEFAULT_ROOT = "/h1/seq";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String myRoot;
+
+	public BucketedKeyLayout() {
+		this(System.getProperty(ROOT_PROPERTY, DEFAULT_ROOT));
+	}
+
+	BucketedKeyLayout(String root) {
+		if (!root.startsWith("/") || root.endsWith("/")) {
+			throw new IllegalArgumentException(String.format(
+					"Layout root %s must start, and not end, with /", root));
+		}
+		myRoot = root;
+	}
+
+	/**
+	 * @return true if the bucketed layout has been selected
+	 */
+	public static boolean isConfigured() {
+		return BUCKETED.equals(System.getProperty(LAYOUT_PROPERTY));
+	}
+
+	@Override
+	public String pathFor(String key) {
+		String name = key.startsWith("/") ? key.substring(1) : key;
+		byte[] digest = md5(name);
+		StringBuilder path = new StringBuilder(myRoot.length() + name.length() + 8);
+		path.append(myRoot).append('/');
+		appendHex(path, digest[0]);
+		path.append('/');
+		appendHex(path, digest[1]);
+		path.append('/').append(name);
+		return path.toString();
+	}
+
+	private static void appendHex(StringBuilder builder, byte b) {
+		builder.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+	}
+
+	private static byte[] md5(String name) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(name.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "bucketed:" + myRoot;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Membership of a group of H1 nodes which split the key space between them.
+ * Each node registers an ephemeral znode named after its HTTP address below
+ * a shared root, and every node builds the same consistent hash ring from
+ * the registered names to decide which of them owns a key. Membership is 
+ * re-read whenever ZooKeeper reports a change and at a fixed interval, which
+ * also puts back this node's registration after its session is replaced.
+ */
+public class ClusterMembership implements Watcher {
+
+	static final Logger LOG = LoggerFactory.getLogger(ClusterMembership.class);
+
+	public static final String ROOT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.root";
+	public static final String DEFAULT_ROOT = "/h1-members";
+
+	public static final String REFRESH_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.refresh";
+	public static final long DEFAULT_REFRESH = 1000;
+
+	public interface Listener {
+		public void membershipChanged(ConsistentHashRing ring);
+	}
+
+	private final ZooKeeperProvider myProvider;
+	private final String myRoot;
+	private final String mySelf;
+	private final String myNode;
+	private final long myRefreshInterval;
+	private final List<Listener> myListeners = new CopyOnWriteArrayList<Listener>();
+	private final ScheduledExecutorService myRefresher = 
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-membership");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	private volatile ConsistentHashRing myRing;
+
+	public ClusterMembership(ZooKeeperProvider provider, String root, String self, 
+								long refreshInterval) {
+		myProvider = provider;
+		myRoot = root;
+		mySelf = self;
+		myNode = root + "/" + self;
+		myRefreshInterval = refreshInterval;
+		myRing = new ConsistentHashRing(Collections.singleton(self));
+	}
+
+	/**
+	 * Register this node and read the current membership before returning
+	 */
+	public void start() throws KeeperException, InterruptedException {
+		refresh();
+		myRefresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refreshQuietly();
+			}
+		}, myRefreshInterval, myRefreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void close() {
+		myRefresher.shutdownNow();
+		try {
+			myProvider.get().delete(myNode, -1);
+		} catch (Exception e) {
+			LOG.warn(String.format("Unable to remove membership node %s", myNode), e);
+		}
+	}
+
+	public void addListener(Listener listener) {
+		myListeners.add(listener);
+	}
+
+	public String getSelf() {
+		return mySelf;
+	}
+
+	public Set<String> getMembers() {
+		return myRing.getNodes();
+	}
+
+	/**
+	 * @return the address of the node which owns key
+	 */
+	public String ownerOf(String key) {
+		return myRing.nodeFor(key);
+	}
+
+	public boolean isSelf(String member) {
+		return mySelf.equals(member);
+	}
+
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.NodeChildrenChanged) {
+			myRefresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					refreshQuietly();
+				}
+			});
+		}
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (Exception e) {
+			LOG.warn("Unable to refresh cluster membership", e);
+		}
+	}
+
+	synchronized void refresh() throws KeeperException, InterruptedException {
+		ZooKeeper zooKeeper = myProvider.get();
+		Stat stat = zooKeeper.exists(myNode, false);
+		if (null == stat || stat.getEphemeralOwner() != zooKeeper.getSessionId()) {
+			register(zooKeeper);
+		}
+		Set<String> members = new TreeSet<String>(zooKeeper.getChildren(myRoot, this));
+		if (members.isEmpty() || members.equals(myRing.getNodes())) {
+			return;
+		}
+		LOG.info(String.format("Cluster membership is now %s", members));
+		myRing = new ConsistentHashRing(members);
+		for (Listener listener : myListeners) {
+			listener.membershipChanged(myRing);
+		}
+	}
+
+	private void register(ZooKeeper zooKeeper) 
+	throws KeeperException, InterruptedException {
+		while (true) {
+			try {
+				zooKeeper.create(myNode, new byte[0], ZkClock.DEFAULT_ACL, 
+									CreateMode.EPHEMERAL);
+				LOG.info(String.format("Registered as cluster member %s", myNode));
+				return;
+			} catch (KeeperException.NoNodeException e) {
+				ZkPaths.createParents(zooKeeper, myNode);
+			} catch (KeeperException.NodeExistsException e) {
+				Stat stat = zooKeeper.exists(myNode, false);
+				if (null != stat 
+						&& stat.getEphemeralOwner() != zooKeeper.getSessionId()) {
+					// left behind by an earlier session of this node, which 
+					// ZooKeeper hasn't expired yet
+					LOG.info(String.format("Removing stale membership node %s", myNode));
+					try {
+						zooKeeper.delete(myNode, stat.getVersion());
+					} catch (KeeperException.NoNodeException gone) {
+						// expired in the meantime
+					}
+				} else if (null != stat) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.ForwardingClock;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Combines concurrent single increments of the same key into one ranged
+ * increment of the wrapped Clock, so that any backend gets the batching
+ * ZkClock does for itself. Everything else is passed straight through.
+ */
+public class CombiningClock extends ForwardingClock {
+
+	private final IncrementCombiner myCombiner;
+	private final IncrementCombiner.Incrementer myIncrementer;
+
+	public CombiningClock(final Clock delegate) {
+		this(delegate, new IncrementCombiner());
+	}
+
+	CombiningClock(final Clock delegate, IncrementCombiner combiner) {
+		super(delegate);
+		myCombiner = combiner;
+		myIncrementer = new IncrementCombiner.Incrementer() {
+			@Override
+			public long incrementBy(String key, int delta)
+			throws SequencingException {
+				return delegate.getNextSequences(key, delta).getEnd();
+			}
+		};
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		return myCombiner.increment(key, myIncrementer);
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Maps keys onto a set of named nodes, such that adding or removing a node
+ * only moves the keys which belong to it; the rest stay where they are. Each
+ * node is placed at several points around the ring to even out the share of
+ * keys it gets. Positions are taken from MD5, so every H1 instance with the
+ * same node names agrees on where each key lives.
+ */
+public class ConsistentHashRing {
+
+	public static final int DEFAULT_POINTS_PER_NODE = 160;
+
+	private final SortedMap<Long, String> myRing = new TreeMap<Long, String>();
+	private final Set<String> myNodes;
+
+	public ConsistentHashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_POINTS_PER_NODE);
+	}
+
+	public ConsistentHashRing(Collection<String> nodes, int pointsPerNode) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Ring must have at least one node");
+		}
+		if (pointsPerNode < 1) {
+			throw new IllegalArgumentException(
+					"Each node must have at least one point on the ring");
+		}
+		myNodes = Collections.unmodifiableSet(new LinkedHashSet<String>(nodes));
+		for (String node : myNodes) {
+			for (int i = 0; i < pointsPerNode; i++) {
+				// on the rare collision the node which sorts first wins, so
+				// that the outcome doesn't depend on the order nodes are listed
+				long point = hash(node + "#" + i);
+				String existing = myRing.get(point);
+				if (null == existing || node.compareTo(existing) < 0) {
+					myRing.put(point, node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the node which owns key
+	 */
+	public String nodeFor(String key) {
+		SortedMap<Long, String> tail = myRing.tailMap(hash(key));
+		// wrap round to the start of the ring
+		return tail.isEmpty() 
+				? myRing.get(myRing.firstKey()) : tail.get(tail.firstKey());
+	}
+
+	public Set<String> getNodes() {
+		return myNodes;
+	}
+
+	static long hash(String value) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistentHashRing" + myNodes;
+	}
+}
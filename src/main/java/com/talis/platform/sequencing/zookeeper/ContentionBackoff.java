@@ -0,0 +1,163 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Works out how long to wait before retrying a compare-and-set which lost to
+ * another client. Delays follow decorrelated jitter: each one is drawn 
+ * between the base delay and three times the previous delay, up to a cap, so
+ * contending clients quickly fall out of step with each other.
+ * 
+ * An estimate of how contended each key is (the exponentially weighted rate
+ * of conflicts across recent attempts) widens the first delay for keys which
+ * are known to be hot, so that those clients back off properly straight away
+ * rather than after several more failed writes. Estimates for keys which 
+ * cool down are discarded.
+ */
+public class ContentionBackoff {
+
+	public static final String BASE_DELAY_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.backoff.base";
+	public static final String MAX_DELAY_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.backoff.max";
+	public static final String MAX_ATTEMPTS_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.backoff.maxattempts";
+
+	public static final long DEFAULT_BASE_DELAY = 1l;
+	public static final long DEFAULT_MAX_DELAY = 100l;
+	public static final int DEFAULT_MAX_ATTEMPTS = 50;
+
+	// weight given to the latest attempt in the contention estimate
+	static final double ALPHA = 0.2;
+	// estimates below this are dropped rather than tracked
+	static final double FORGET_BELOW = 0.01;
+
+	private final long myBaseDelay;
+	private final long myMaxDelay;
+	private final int myMaxAttempts;
+	private final Random myRandom = new Random();
+	private final ConcurrentMap<String, Estimate> myEstimates = 
+		new ConcurrentHashMap<String, Estimate>();
+
+	public ContentionBackoff() {
+		this(Long.getLong(BASE_DELAY_PROPERTY, DEFAULT_BASE_DELAY),
+			Long.getLong(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY),
+			Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+	}
+
+	ContentionBackoff(long baseDelay, long maxDelay, int maxAttempts) {
+		if (baseDelay < 0 || maxDelay < baseDelay || maxAttempts < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid backoff settings. Base: %s | Max: %s | Attempts: %s",
+					baseDelay, maxDelay, maxAttempts));
+		}
+		myBaseDelay = baseDelay;
+		myMaxDelay = maxDelay;
+		myMaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return true if another attempt may be made after the given number of
+	 * attempts have failed
+	 */
+	public boolean mayRetry(int failedAttempts) {
+		return failedAttempts < myMaxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return myMaxAttempts;
+	}
+
+	/**
+	 * Record a failed attempt on key, and work out how long to wait before the
+	 * next one
+	 * 
+	 * @param previousDelay the delay before the failed attempt, 0 if it was
+	 * the first
+	 * @return the delay in milliseconds
+	 */
+	public long conflicted(String key, long previousDelay) {
+		double contention = update(key, 1.0);
+		long upper;
+		if (previousDelay <= 0) {
+			upper = myBaseDelay + Math.round((myMaxDelay - myBaseDelay) * contention);
+		} else {
+			upper = Math.min(myMaxDelay, previousDelay * 3);
+		}
+		upper = Math.max(upper, myBaseDelay);
+		return myBaseDelay + nextLong(upper - myBaseDelay + 1);
+	}
+
+	/**
+	 * Record a successful attempt on key
+	 */
+	public void committed(String key) {
+		if (myEstimates.containsKey(key)) {
+			update(key, 0.0);
+		}
+	}
+
+	/**
+	 * @return the current contention estimate for key, between 0 and 1
+	 */
+	public double contention(String key) {
+		Estimate estimate = myEstimates.get(key);
+		return null == estimate ? 0.0 : estimate.get();
+	}
+
+	private double update(String key, double sample) {
+		Estimate estimate = myEstimates.get(key);
+		if (null == estimate) {
+			Estimate newEstimate = new Estimate();
+			estimate = myEstimates.putIfAbsent(key, newEstimate);
+			if (null == estimate) {
+				estimate = newEstimate;
+			}
+		}
+		double value = estimate.update(sample);
+		if (value < FORGET_BELOW) {
+			myEstimates.remove(key, estimate);
+		}
+		return value;
+	}
+
+	private long nextLong(long bound) {
+		if (bound <= 1) {
+			return 0;
+		}
+		synchronized (myRandom) {
+			return (long) (myRandom.nextDouble() * bound);
+		}
+	}
+
+	private static class Estimate {
+		private double value = 0.0;
+
+		synchronized double update(double sample) {
+			value = (1 - ALPHA) * value + ALPHA * sample;
+			return value;
+		}
+
+		synchronized double get() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only log of the counters owned by this node, kept on local disk so
+ * that an owner which restarts can carry on from the last sequence it issued.
+ * Each record holds the last sequence issued for a key and the end of the 
+ * block it was taken from. Appends are written and synced in batches by a 
+ * single writer thread, so concurrent callers share one fsync; a caller must 
+ * wait for its record to be synced before handing out the sequence. Once the 
+ * log grows past its maximum size it is rewritten with just the latest record
+ * for each key, into a synced file which is renamed over the log, and the 
+ * directory is synced before any more records are appended. A partly written
+ * record at the end of the log, left by a crash, is discarded when the log 
+ * is opened.
+ */
+public class CounterLog {
+
+	static final Logger LOG = LoggerFactory.getLogger(CounterLog.class);
+
+	public static final String FILE_NAME = "counters.log";
+
+	private final File myFile;
+	private final long myMaxSize;
+	private final Map<String, Record> myRecords = new HashMap<String, Record>();
+	private final Thread myWriter;
+	private List<Record> myPending = new ArrayList<Record>();
+	private long myAppended = 0;
+	private long myDurable = 0;
+	private IOException myFailure;
+	private boolean myClosed = false;
+	private FileOutputStream myFileStream;
+	private DataOutputStream myOut;
+
+	public CounterLog(File directory, long maxSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException(String.format(
+					"Unable to create counter log directory %s", directory));
+		}
+		myFile = new File(directory, FILE_NAME);
+		myMaxSize = maxSize;
+		replay();
+		openForAppend();
+		myWriter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		}, "h1-counter-log");
+		myWriter.setDaemon(true);
+		myWriter.start();
+		LOG.info(String.format("Opened counter log %s with %s keys", 
+									myFile, myRecords.size()));
+	}
+
+	/**
+	 * @return the latest record for key, or null if there isn't one
+	 */
+	public synchronized Record get(String key) {
+		return myRecords.get(key);
+	}
+
+	/**
+	 * Queue a record for writing. 
+	 * @return a ticket to pass to await
+	 */
+	public synchronized long append(String key, long issued, long blockEnd) 
+	throws IOException {
+		if (null != myFailure) {
+			throw new IOException("Counter log has failed", myFailure);
+		}
+		if (myClosed) {
+			throw new IOException("Counter log has been closed");
+		}
+		Record record = new Record(key, issued, blockEnd);
+		myRecords.put(key, record);
+		myPending.add(record);
+		notifyAll();
+		return ++myAppended;
+	}
+
+	/**
+	 * Wait until the record for ticket, and every one appended before it, 
+	 * has been synced to disk
+	 */
+	public synchronized void await(long ticket) 
+	throws IOException, InterruptedException {
+		while (myDurable < ticket && null == myFailure) {
+			wait();
+		}
+		if (myDurable < ticket) {
+			throw new IOException("Counter log has failed", myFailure);
+		}
+	}
+
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			myClosed = true;
+			notifyAll();
+		}
+		myWriter.join();
+		IOUtils.closeQuietly(myOut);
+	}
+
+	private void writeBatches() {
+		while (true) {
+			List<Record> batch;
+			long last;
+			synchronized (this) {
+				while (myPending.isEmpty() && !myClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only close() stops the writer
+					}
+				}
+				if (myPending.isEmpty()) {
+					return;
+				}
+				batch = myPending;
+				myPending = new ArrayList<Record>();
+				last = myAppended;
+			}
+			try {
+				for (Record record : batch) {
+					write(myOut, record);
+				}
+				myOut.flush();
+				myFileStream.getChannel().force(false);
+				LOG.debug(String.format("Synced %s counter log records", batch.size()));
+				if (myFileStream.getChannel().size() > myMaxSize) {
+					compact();
+				}
+				synchronized (this) {
+					myDurable = last;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				LOG.error("Unable to write counter log", e);
+				synchronized (this) {
+					myFailure = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		List<Record> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<Record>(myRecords.values());
+		}
+		File compacted = new File(myFile.getParentFile(), FILE_NAME + ".compact");
+		FileOutputStream fileStream = new FileOutputStream(compacted);
+		try {
+			DataOutputStream out = new DataOutputStream(
+										new BufferedOutputStream(fileStream));
+			for (Record record : snapshot) {
+				write(out, record);
+			}
+			out.flush();
+			fileStream.getChannel().force(false);
+		} finally {
+			fileStream.close();
+		}
+		myOut.close();
+		if (!compacted.renameTo(myFile)) {
+			throw new IOException(String.format(
+					"Unable to replace %s with %s", myFile, compacted));
+		}
+		// otherwise a crash could bring back the old log, without the 
+		// records synced to the new one from here on
+		syncDirectory(myFile.getParentFile());
+		openForAppend();
+		LOG.info(String.format("Compacted counter log to %s records", snapshot.size()));
+	}
+
+	/**
+	 * Sync the directory itself, so that a rename in it is durable. Java 6 
+	 * has no way to open a directory, so this goes through java.nio.file 
+	 * when running on Java 7 or later, and is skipped on earlier runtimes 
+	 * and platforms which can't open directories.
+	 */
+	static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			Class<?> paths = Class.forName("java.nio.file.Paths");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Class<?> openOption = Class.forName("java.nio.file.OpenOption");
+			Object dir = paths.getMethod("get", String.class, String[].class)
+								.invoke(null, directory.getPath(), new String[0]);
+			Object options = Array.newInstance(openOption, 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption")
+									.getField("READ").get(null));
+			channel = (FileChannel) FileChannel.class.getMethod("open", path, 
+									options.getClass()).invoke(null, dir, options);
+		} catch (ClassNotFoundException e) {
+			LOG.debug("Unable to sync directories before Java 7");
+			return;
+		} catch (InvocationTargetException e) {
+			LOG.debug(String.format("Unable to open directory %s to sync it", 
+										directory), e.getCause());
+			return;
+		} catch (Exception e) {
+			LOG.warn(String.format("Unable to open directory %s to sync it", 
+										directory), e);
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void openForAppend() throws IOException {
+		myFileStream = new FileOutputStream(myFile, true);
+		myOut = new DataOutputStream(new BufferedOutputStream(myFileStream));
+	}
+
+	private static void write(DataOutputStream out, Record record) 
+	throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeUTF(record.getKey());
+		payload.writeLong(record.getIssued());
+		payload.writeLong(record.getBlockEnd());
+		payload.flush();
+		byte[] data = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		out.writeInt(data.length);
+		out.write(data);
+		out.writeLong(crc.getValue());
+	}
+
+	private void replay() throws IOException {
+		if (!myFile.exists()) {
+			return;
+		}
+		long valid = 0;
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(myFile)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length < 0 || length > 65536) {
+					break;
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				long checksum = in.readLong();
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				if (crc.getValue() != checksum) {
+					break;
+				}
+				DataInputStream payload = 
+					new DataInputStream(new ByteArrayInputStream(data));
+				Record record = new Record(payload.readUTF(), payload.readLong(), 
+											payload.readLong());
+				myRecords.put(record.getKey(), record);
+				valid += 4 + length + 8;
+			}
+		} catch (EOFException e) {
+			// the end of the log, or a record cut short by a crash
+		} finally {
+			in.close();
+		}
+		if (valid < myFile.length()) {
+			LOG.warn(String.format("Discarding %s bytes of incomplete records "
+					+ "from the end of %s", myFile.length() - valid, myFile));
+			RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+			try {
+				file.setLength(valid);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	public static class Record {
+		private final String key;
+		private final long issued;
+		private final long blockEnd;
+
+		Record(String key, long issued, long blockEnd) {
+			this.key = key;
+			this.issued = issued;
+			this.blockEnd = blockEnd;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the last sequence issued for the key
+		 */
+		public long getIssued() {
+			return issued;
+		}
+
+		/**
+		 * @return the last sequence in the block leased from ZooKeeper
+		 */
+		public long getBlockEnd() {
+			return blockEnd;
+		}
+	}
+}
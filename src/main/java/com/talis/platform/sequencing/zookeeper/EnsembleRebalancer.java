@@ -0,0 +1,200 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves counters between federated ensembles so that each one lives on the
+ * ensemble the consistent hash ring gives it. Run this after adding an
+ * ensemble to the server list. Only the keys the new ensemble takes over 
+ * are moved.
+ * 
+ * Every ensemble is searched for counters in the configured key layout: 
+ * nodes which hold exactly 8 bytes, have no children and sit where the 
+ * layout would put a key of the same name. Each counter found on the wrong 
+ * ensemble is copied to its owner, keeping the higher value if the owner 
+ * already has it, and is then deleted only if it hasn't changed since it was
+ * read, so keys incremented on the old ensemble during the move are copied
+ * again. Keys incremented on their new ensemble before they have been moved
+ * would start again from 0, so H1 must be stopped while the rebalancer runs 
+ * and only restarted with the new server list once it has finished. Running
+ * it again after an interruption is safe.
+ */
+public class EnsembleRebalancer {
+
+	static final Logger LOG = LoggerFactory.getLogger(EnsembleRebalancer.class);
+
+	public static final String THREADS_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.rebalance.threads";
+	public static final int DEFAULT_THREADS = 8;
+
+	private final Map<String, ZooKeeper> myEnsembles;
+	private final ConsistentHashRing myRing;
+	private final KeyLayout myLayout;
+	private final int myThreads;
+
+	public EnsembleRebalancer(Map<String, ZooKeeper> ensembles, KeyLayout layout, 
+								int threads) {
+		myEnsembles = new LinkedHashMap<String, ZooKeeper>(ensembles);
+		myRing = new ConsistentHashRing(myEnsembles.keySet());
+		myLayout = layout;
+		myThreads = threads;
+	}
+
+	/**
+	 * @return the number of counters moved
+	 */
+	public int rebalance() throws KeeperException, InterruptedException {
+		int moved = 0;
+		for (String ensemble : myEnsembles.keySet()) {
+			moved += rebalance(ensemble);
+		}
+		return moved;
+	}
+
+	private int rebalance(final String ensemble) 
+	throws KeeperException, InterruptedException {
+		List<String> keys = findMisplacedKeys(ensemble);
+		LOG.info(String.format("Moving %s counters off ensemble %s using %s threads",
+									keys.size(), ensemble, myThreads));
+		ExecutorService executor = Executors.newFixedThreadPool(myThreads);
+		try {
+			List<Future<Void>> pending = new ArrayList<Future<Void>>(keys.size());
+			for (final String key : keys) {
+				pending.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						moveKey(key, ensemble, myRing.nodeFor(key));
+						return null;
+					}
+				}));
+			}
+			int moved = 0;
+			for (int i = 0; i < pending.size(); i++) {
+				try {
+					pending.get(i).get();
+					moved++;
+				} catch (ExecutionException e) {
+					LOG.error(String.format("Failed to move key %s", 
+												keys.get(i)), e.getCause());
+				}
+			}
+			LOG.info(String.format("Moved %s of %s counters off ensemble %s", 
+										moved, keys.size(), ensemble));
+			return moved;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	List<String> findMisplacedKeys(String ensemble) 
+	throws KeeperException, InterruptedException {
+		List<String> keys = new ArrayList<String>();
+		collectMisplacedKeys(myEnsembles.get(ensemble), ensemble, "/", keys);
+		return keys;
+	}
+
+	private void collectMisplacedKeys(ZooKeeper zooKeeper, String ensemble, 
+										String parent, List<String> keys) 
+	throws KeeperException, InterruptedException {
+		for (String child : zooKeeper.getChildren(parent, false)) {
+			String path = "/".equals(parent) ? "/" + child : parent + "/" + child;
+			if ("/zookeeper".equals(path)) {
+				continue;
+			}
+			Stat stat = zooKeeper.exists(path, false);
+			if (null == stat) {
+				continue;
+			}
+			if (stat.getNumChildren() > 0) {
+				collectMisplacedKeys(zooKeeper, ensemble, path, keys);
+				continue;
+			}
+			String key = "/" + child;
+			if (stat.getDataLength() == 8 
+					&& path.equals(myLayout.pathFor(key))
+					&& !ensemble.equals(myRing.nodeFor(key))) {
+				keys.add(key);
+			}
+		}
+	}
+
+	void moveKey(String key, String from, String to) 
+	throws KeeperException, InterruptedException {
+		ZooKeeper source = myEnsembles.get(from);
+		ZooKeeper target = myEnsembles.get(to);
+		String path = myLayout.pathFor(key);
+		while (true) {
+			Stat stat = new Stat();
+			byte[] data;
+			try {
+				data = source.getData(path, false, stat);
+			} catch (KeeperException.NoNodeException e) {
+				return;
+			}
+			ZkPaths.copyCounter(target, path, data);
+			try {
+				source.delete(path, stat.getVersion());
+				LOG.debug(String.format("Moved %s from %s to %s", key, from, to));
+				return;
+			} catch (KeeperException.NoNodeException e) {
+				return;
+			} catch (KeeperException.BadVersionException e) {
+				LOG.info(String.format("Key %s changed while being moved, "
+											+ "copying again", key));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> ensembles = new ZooKeeperProvider().getEnsembles();
+		if (ensembles.size() < 2) {
+			System.err.println("The server list must name at least two ensembles");
+			System.exit(1);
+		}
+		Map<String, ZooKeeper> zooKeepers = new LinkedHashMap<String, ZooKeeper>();
+		try {
+			for (Map.Entry<String, String> ensemble : ensembles.entrySet()) {
+				zooKeepers.put(ensemble.getKey(), 
+						new ZooKeeperProvider(ensemble.getValue()).get());
+			}
+			KeyLayout layout = BucketedKeyLayout.isConfigured() 
+					? new BucketedKeyLayout() : new FlatKeyLayout();
+			int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+			new EnsembleRebalancer(zooKeepers, layout, threads).rebalance();
+		} finally {
+			for (ZooKeeper zooKeeper : zooKeepers.values()) {
+				zooKeeper.close();
+			}
+		}
+	}
+}
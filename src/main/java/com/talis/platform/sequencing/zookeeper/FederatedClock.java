@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.metrics.HotKeys;
+import com.talis.platform.sequencing.metrics.HotKeysJmx;
+import com.talis.platform.sequencing.metrics.OpenMetricsRegistry;
+import com.talis.platform.sequencing.metrics.OpenMetricsWriter;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetricsJmx;
+
+/**
+ * Clock which shards keys across several ZooKeeper ensembles, so that write
+ * capacity grows with the number of ensembles. Each key belongs to the 
+ * ensemble chosen for it by a consistent hash ring over the ensemble names,
+ * and is handled by a ZkClock, with its own sessions and metrics, for that 
+ * ensemble. Adding an ensemble moves only the keys the ring now gives it; 
+ * see EnsembleRebalancer.
+ */
+public class FederatedClock implements Clock {
+
+	static final Logger LOG = LoggerFactory.getLogger(FederatedClock.class);
+
+	private final ConsistentHashRing myRing;
+	private final Map<String, ZkClock> myClocks;
+
+	@Inject
+	public FederatedClock(ZooKeeperProvider zooKeeperProvider, KeyLayout layout, 
+							ContentionBackoff backoff, HotKeysJmx hotKeys, 
+							OpenMetricsRegistry registry, 
+							TimestampProvider timestampProvider)
+	throws SequencingException {
+		this(createClocks(readEnsembles(zooKeeperProvider), layout, backoff, 
+							hotKeys.getCollisions(), registry, timestampProvider));
+	}
+
+	FederatedClock(Map<String, ZkClock> clocks) {
+		myClocks = Collections.unmodifiableMap(
+						new LinkedHashMap<String, ZkClock>(clocks));
+		myRing = new ConsistentHashRing(myClocks.keySet());
+		LOG.info(String.format("Initialising federated Clock over ensembles %s", 
+									myClocks.keySet()));
+	}
+
+	/**
+	 * @return true if the server list names more than one ensemble
+	 */
+	public static boolean isConfigured() {
+		try {
+			return new ZooKeeperProvider().getEnsembles().size() > 1;
+		} catch (IOException e) {
+			LOG.warn("Unable to read server list", e);
+			return false;
+		}
+	}
+
+	private static Map<String, String> readEnsembles(ZooKeeperProvider provider) 
+	throws SequencingException {
+		try {
+			return provider.getEnsembles();
+		} catch (IOException e) {
+			throw new SequencingException("Unable to read ensemble list", e);
+		}
+	}
+
+	private static Map<String, ZkClock> createClocks(Map<String, String> ensembles, 
+										KeyLayout layout, ContentionBackoff backoff,
+										HotKeys keyCollisions, 
+										OpenMetricsRegistry registry,
+										TimestampProvider timestampProvider)
+	throws SequencingException {
+		Map<String, ZkClock> clocks = new LinkedHashMap<String, ZkClock>();
+		for (Map.Entry<String, String> ensemble : ensembles.entrySet()) {
+			ZooKeeperMetricsJmx metrics;
+			try {
+				metrics = ZooKeeperMetricsJmx.forEnsemble(ensemble.getKey(), 
+																keyCollisions);
+			} catch (Exception e) {
+				throw new SequencingException(String.format(
+						"Unable to register metrics for ensemble %s", 
+						ensemble.getKey()), e);
+			}
+			registry.register(metrics.getOpenMetrics(), 
+					OpenMetricsWriter.label("ensemble", ensemble.getKey()));
+			ZooKeeperProvider provider = new ZooKeeperProvider(ensemble.getValue());
+			metrics.watchSessions(provider);
+			clocks.put(ensemble.getKey(), new ZkClock(provider, metrics, 
+					new IncrementCombiner(), new ZkReadCache(metrics), 
+					new ZkMissCache(metrics), layout, backoff, 
+					timestampProvider));
+		}
+		return clocks;
+	}
+
+	/**
+	 * @return the name of the ensemble which holds key
+	 */
+	public String ensembleFor(String key) {
+		return myRing.nodeFor(key);
+	}
+
+	private ZkClock clockFor(String key) {
+		return myClocks.get(myRing.nodeFor(key));
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		return clockFor(key).getNextSequence(key);
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		return clockFor(key).getNextSequences(key, count);
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		return clockFor(key).getSequence(key);
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent)
+	throws SequencingException {
+		return clockFor(key).getSequenceOrDefault(key, absent);
+	}
+
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		return clockFor(key).getNextSequenceAsync(key);
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		return clockFor(key).getSequenceAsync(key);
+	}
+}
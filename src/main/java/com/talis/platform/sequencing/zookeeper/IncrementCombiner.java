@@ -0,0 +1,177 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Combines concurrent increments of the same key made from within this JVM.
+ * Callers queue up behind a single leader thread, which advances the counter
+ * by the size of the queue in one operation and then hands each waiter its
+ * own number from the committed range. The numbers handed out are contiguous,
+ * so combining does not introduce gaps.
+ */
+public class IncrementCombiner {
+
+	static final Logger LOG = LoggerFactory.getLogger(IncrementCombiner.class);
+
+	public interface Incrementer {
+		/**
+		 * Advance the counter for key by delta, returning the last value of
+		 * the committed range
+		 */
+		public long incrementBy(String key, int delta) throws SequencingException;
+	}
+
+	private final ConcurrentMap<String, KeyQueue> queues =
+		new ConcurrentHashMap<String, KeyQueue>();
+
+	public long increment(String key, Incrementer incrementer)
+	throws SequencingException {
+		Waiter waiter = new Waiter();
+		KeyQueue queue = enqueue(key, waiter);
+		while (!waiter.done) {
+			if (queue.tryLead(waiter)) {
+				combine(key, queue, incrementer);
+			} else {
+				queue.await(waiter);
+			}
+		}
+		if (null != waiter.failure) {
+			throw waiter.failure;
+		}
+		return waiter.sequence;
+	}
+
+	private KeyQueue enqueue(String key, Waiter waiter) {
+		while (true) {
+			KeyQueue queue = queues.get(key);
+			if (null == queue) {
+				KeyQueue newQueue = new KeyQueue();
+				queue = queues.putIfAbsent(key, newQueue);
+				if (null == queue) {
+					queue = newQueue;
+				}
+			}
+			if (queue.add(waiter)) {
+				return queue;
+			}
+			// the queue was retired between the lookup and the add, so
+			// go round again to pick up its replacement
+		}
+	}
+
+	private void combine(String key, KeyQueue queue, Incrementer incrementer) {
+		List<Waiter> batch = queue.drain();
+		try {
+			LOG.debug(String.format("Combining %s increments for key %s",
+										batch.size(), key));
+			long last = incrementer.incrementBy(key, batch.size());
+			long next = last - batch.size() + 1;
+			for (Waiter waiter : batch) {
+				waiter.sequence = next++;
+				waiter.done = true;
+			}
+		} catch (SequencingException e) {
+			for (Waiter waiter : batch) {
+				waiter.failure = e;
+				waiter.done = true;
+			}
+		} catch (RuntimeException e) {
+			SequencingException failure = new SequencingException(
+					String.format("Combined increment failed for key %s", key), e);
+			for (Waiter waiter : batch) {
+				waiter.failure = failure;
+				waiter.done = true;
+			}
+		} finally {
+			if (queue.release()) {
+				queues.remove(key, queue);
+			}
+		}
+	}
+
+	private static class Waiter {
+		volatile boolean done = false;
+		volatile long sequence;
+		volatile SequencingException failure;
+	}
+
+	private static class KeyQueue {
+		private final List<Waiter> pending = new ArrayList<Waiter>();
+		private boolean leading = false;
+		private boolean retired = false;
+
+		synchronized boolean add(Waiter waiter) {
+			if (retired) {
+				return false;
+			}
+			pending.add(waiter);
+			return true;
+		}
+
+		synchronized boolean tryLead(Waiter waiter) {
+			if (leading || waiter.done) {
+				return false;
+			}
+			leading = true;
+			return true;
+		}
+
+		synchronized List<Waiter> drain() {
+			List<Waiter> batch = new ArrayList<Waiter>(pending);
+			pending.clear();
+			return batch;
+		}
+
+		synchronized void await(Waiter waiter) {
+			boolean interrupted = false;
+			while (leading && !waiter.done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// the leader will still complete our increment, so keep
+					// waiting for it and restore the flag afterwards
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * @return true if the queue has been retired as nobody is waiting on it
+		 */
+		synchronized boolean release() {
+			leading = false;
+			if (pending.isEmpty()) {
+				retired = true;
+			}
+			notifyAll();
+			return retired;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves counters stored directly under the ZooKeeper root into the layout
+ * selected by the com.talis.platform.sequencing.zookeeper.layout properties,
+ * copying keys in parallel. Any node under the root which holds exactly 8 
+ * bytes and has no children is taken to be a counter.
+ * 
+ * Every H1 instance must be stopped before the migration is run and only
+ * started again, with the new layout, once it has finished. An instance
+ * still using the flat layout would recreate a migrated counter at the root
+ * and start it again from 0, and nothing the migration can do afterwards
+ * would stop those sequences from being issued twice.
+ * 
+ * Each counter is copied and then deleted only if it has not changed since
+ * it was read, and if the new node already exists the higher of the two
+ * values is kept, so the migration is safe to run again if it is
+ * interrupted.
+ */
+public class KeyLayoutMigration {
+
+	static final Logger LOG = LoggerFactory.getLogger(KeyLayoutMigration.class);
+
+	public static final String THREADS_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.layout.migration.threads";
+	public static final int DEFAULT_THREADS = 8;
+
+	private final ZooKeeper myZooKeeper;
+	private final KeyLayout myLayout;
+	private final int myThreads;
+
+	public KeyLayoutMigration(ZooKeeper zooKeeper, KeyLayout layout, int threads) {
+		myZooKeeper = zooKeeper;
+		myLayout = layout;
+		myThreads = threads;
+	}
+
+	/**
+	 * @return the number of counters migrated
+	 */
+	public int migrate() throws KeeperException, InterruptedException {
+		List<String> keys = findLegacyKeys();
+		LOG.info(String.format("Migrating %s counters to %s layout using %s threads",
+									keys.size(), myLayout, myThreads));
+		ExecutorService executor = Executors.newFixedThreadPool(myThreads);
+		try {
+			List<Future<Void>> pending = new ArrayList<Future<Void>>(keys.size());
+			for (final String key : keys) {
+				pending.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						migrateKey(key);
+						return null;
+					}
+				}));
+			}
+			int migrated = 0;
+			for (int i = 0; i < pending.size(); i++) {
+				try {
+					pending.get(i).get();
+					migrated++;
+				} catch (ExecutionException e) {
+					LOG.error(String.format("Failed to migrate key %s", 
+												keys.get(i)), e.getCause());
+				}
+			}
+			LOG.info(String.format("Migrated %s of %s counters", 
+										migrated, keys.size()));
+			return migrated;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	List<String> findLegacyKeys() throws KeeperException, InterruptedException {
+		List<String> keys = new ArrayList<String>();
+		for (String child : myZooKeeper.getChildren("/", false)) {
+			String key = "/" + child;
+			Stat stat = myZooKeeper.exists(key, false);
+			if (null != stat && stat.getDataLength() == 8 
+					&& stat.getNumChildren() == 0
+					&& !key.equals(myLayout.pathFor(key))) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	void migrateKey(String key) throws KeeperException, InterruptedException {
+		String path = myLayout.pathFor(key);
+		while (true) {
+			Stat stat = new Stat();
+			byte[] data;
+			try {
+				data = myZooKeeper.getData(key, false, stat);
+			} catch (KeeperException.NoNodeException e) {
+				return;
+			}
+			ZkPaths.copyCounter(myZooKeeper, path, data);
+			try {
+				myZooKeeper.delete(key, stat.getVersion());
+				LOG.debug(String.format("Migrated %s to %s", key, path));
+				return;
+			} catch (KeeperException.NoNodeException e) {
+				return;
+			} catch (KeeperException.BadVersionException e) {
+				LOG.info(String.format("Key %s changed during migration, "
+											+ "copying again", key));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (!BucketedKeyLayout.isConfigured()) {
+			System.err.println(String.format("Set %s=%s to select the layout "
+					+ "to migrate to", BucketedKeyLayout.LAYOUT_PROPERTY, 
+					BucketedKeyLayout.BUCKETED));
+			System.exit(1);
+		}
+		ZooKeeper zooKeeper = new ZooKeeperProvider().get();
+		try {
+			int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+			new KeyLayoutMigration(zooKeeper, new BucketedKeyLayout(), threads)
+				.migrate();
+		} finally {
+			zooKeeper.close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Passes requests for keys owned by another H1 node on to that node's 
+ * /owned/ resource, which serves them from its own counters without 
+ * forwarding them again.
+ */
+public class OwnerForwarder {
+
+	static final Logger LOG = LoggerFactory.getLogger(OwnerForwarder.class);
+
+	public static final String TIMEOUT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.forward.timeout";
+	public static final int DEFAULT_TIMEOUT = 2000;
+
+	public static final String OWNED_PATH = "/owned/";
+
+	private final int myTimeout;
+
+	public OwnerForwarder() {
+		this(Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+	}
+
+	public OwnerForwarder(int timeout) {
+		myTimeout = timeout;
+	}
+
+	public SequenceRange increment(String owner, String key, int count) 
+	throws SequencingException {
+		String body = request(owner, key, "POST", "?count=" + count);
+		int separator = body.indexOf('-');
+		try {
+			return new SequenceRange(Long.parseLong(body.substring(0, separator)), 
+									 Long.parseLong(body.substring(separator + 1)));
+		} catch (RuntimeException e) {
+			throw new SequencingException(String.format(
+					"Unexpected response %s from %s for key %s", body, owner, key), e);
+		}
+	}
+
+	public long getSequence(String owner, String key) throws SequencingException {
+		String body = request(owner, key, "GET", "");
+		long sequence;
+		try {
+			sequence = Long.parseLong(body);
+		} catch (NumberFormatException e) {
+			throw new SequencingException(String.format(
+					"Unexpected response %s from %s for key %s", body, owner, key), e);
+		}
+		if (sequence < 0) {
+			throw new NoSuchSequenceException(String.format(
+					"No sequence found for key %s on %s", key, owner), null);
+		}
+		return sequence;
+	}
+
+	private String request(String owner, String key, String method, String query) 
+	throws SequencingException {
+		LOG.debug(String.format("Forwarding %s for key %s to %s", method, key, owner));
+		InputStream in = null;
+		try {
+			URL url = new URL("http://" + owner + OWNED_PATH + encode(key) + query);
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(myTimeout);
+			connection.setReadTimeout(myTimeout);
+			connection.setRequestMethod(method);
+			if ("POST".equals(method)) {
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(0);
+				connection.getOutputStream().close();
+			}
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				IOUtils.closeQuietly(connection.getErrorStream());
+				throw new SequencingException(String.format(
+						"Owner %s returned %s for key %s", owner, status, key), null);
+			}
+			in = connection.getInputStream();
+			return IOUtils.toString(in, "UTF-8").trim();
+		} catch (IOException e) {
+			throw new SequencingException(String.format(
+					"Unable to forward request for key %s to %s", key, owner), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static String encode(String key) throws UnsupportedEncodingException {
+		String name = key.startsWith("/") ? key.substring(1) : key;
+		return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+	}
+}
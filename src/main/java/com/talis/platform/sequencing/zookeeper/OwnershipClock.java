@@ -0,0 +1,422 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+/**
+ * Clock which splits the key space between a group of H1 nodes, so that each
+ * key is only ever incremented by the node which owns it. The owner serves 
+ * a key from an in-memory counter and records every sequence it issues in a
+ * local CounterLog, which syncs appends in batches, rather than making a 
+ * ZooKeeper write for each one. ZooKeeper holds a high water mark for each
+ * key: the owner leases blocks of sequences by advancing it and only issues
+ * sequences from the block it holds. Other nodes forward requests for the 
+ * key to its owner.
+ * 
+ * When a key changes hands the new owner carries on from the high water mark,
+ * so the rest of the previous owner's block is skipped. An owner which 
+ * restarts carries on from its log instead, as long as the high water mark
+ * still marks the end of its last block and so nobody else has issued 
+ * sequences for the key in the meantime. For a short time after membership 
+ * changes two nodes may both believe they own a key; the leases keep their
+ * sequences unique, but they may not increase in order until every node has
+ * seen the change.
+ */
+public class OwnershipClock implements Clock, ClusterMembership.Listener {
+
+	static final Logger LOG = LoggerFactory.getLogger(OwnershipClock.class);
+
+	public static final String ADDRESS_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.address";
+	public static final String DIRECTORY_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.dir";
+	public static final String DEFAULT_DIRECTORY = "ownership";
+	public static final String BLOCK_SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.blocksize";
+	public static final int DEFAULT_BLOCK_SIZE = 10000;
+	public static final String LOG_SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.ownership.log.maxsize";
+	public static final long DEFAULT_LOG_SIZE = 64 * 1024 * 1024;
+
+	private final ZkClock myZkClock;
+	private final ClusterMembership myMembership;
+	private final CounterLog myLog;
+	private final OwnerForwarder myForwarder;
+	private final int myBlockSize;
+	private final ConcurrentMap<String, OwnedCounter> myCounters = 
+		new ConcurrentHashMap<String, OwnedCounter>();
+	private final ExecutorService myForwardingExecutor = 
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-forward");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	@Inject
+	public OwnershipClock(ZkClock zkClock, ZooKeeperProvider zooKeeperProvider)
+	throws SequencingException {
+		this(zkClock, 
+			startMembership(zooKeeperProvider), 
+			openLog(), 
+			new OwnerForwarder(), 
+			Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE));
+	}
+
+	OwnershipClock(ZkClock zkClock, ClusterMembership membership, CounterLog log,
+					OwnerForwarder forwarder, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Ownership block size must be positive");
+		}
+		myZkClock = zkClock;
+		myMembership = membership;
+		myLog = log;
+		myForwarder = forwarder;
+		myBlockSize = blockSize;
+		myMembership.addListener(this);
+		LOG.info(String.format("Initialising ownership Clock as %s. Block size: %s",
+									myMembership.getSelf(), myBlockSize));
+	}
+
+	/**
+	 * @return true if this node has been given an address to register as an
+	 * owner of keys
+	 */
+	public static boolean isConfigured() {
+		return null != System.getProperty(ADDRESS_PROPERTY);
+	}
+
+	private static ClusterMembership startMembership(ZooKeeperProvider provider) 
+	throws SequencingException {
+		ClusterMembership membership = new ClusterMembership(provider, 
+				System.getProperty(ClusterMembership.ROOT_PROPERTY, 
+									ClusterMembership.DEFAULT_ROOT),
+				System.getProperty(ADDRESS_PROPERTY),
+				Long.getLong(ClusterMembership.REFRESH_PROPERTY, 
+								ClusterMembership.DEFAULT_REFRESH));
+		try {
+			membership.start();
+		} catch (KeeperException e) {
+			throw new SequencingException("Unable to join cluster", e);
+		} catch (InterruptedException e) {
+			throw new SequencingException("Interrupted joining cluster", e);
+		}
+		return membership;
+	}
+
+	private static CounterLog openLog() throws SequencingException {
+		File directory = new File(
+				System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+		try {
+			return new CounterLog(directory, 
+						Long.getLong(LOG_SIZE_PROPERTY, DEFAULT_LOG_SIZE));
+		} catch (IOException e) {
+			throw new SequencingException(String.format(
+					"Unable to open counter log in %s", directory), e);
+		}
+	}
+
+	boolean isOwned(String key) {
+		return myMembership.isSelf(myMembership.ownerOf(key));
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		return getNextSequences(key, 1).getEnd();
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		String owner = myMembership.ownerOf(key);
+		if (myMembership.isSelf(owner)) {
+			return incrementLocally(key, count);
+		}
+		return myForwarder.increment(owner, key, count);
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		String owner = myMembership.ownerOf(key);
+		if (myMembership.isSelf(owner)) {
+			return getSequenceLocally(key);
+		}
+		return myForwarder.getSequence(owner, key);
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent) 
+	throws SequencingException {
+		String owner = myMembership.ownerOf(key);
+		if (myMembership.isSelf(owner)) {
+			long last = lastIssued(key);
+			return last < 0 ? absent : last;
+		}
+		try {
+			return myForwarder.getSequence(owner, key);
+		} catch (NoSuchSequenceException e) {
+			return absent;
+		}
+	}
+
+	/**
+	 * Keys owned by this node are served on the calling thread, as they
+	 * rarely need to go to ZooKeeper; forwarded requests are made in the
+	 * background.
+	 */
+	@Override
+	public Future<Long> getNextSequenceAsync(final String key) {
+		if (isOwned(key)) {
+			try {
+				return SequenceFuture.completed(getNextSequence(key));
+			} catch (SequencingException e) {
+				return SequenceFuture.failed(e);
+			}
+		}
+		return myForwardingExecutor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return getNextSequence(key);
+			}
+		});
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(final String key) {
+		if (isOwned(key)) {
+			try {
+				return SequenceFuture.completed(getSequence(key));
+			} catch (SequencingException e) {
+				return SequenceFuture.failed(e);
+			}
+		}
+		return myForwardingExecutor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return getSequence(key);
+			}
+		});
+	}
+
+	/**
+	 * Issue sequences for key from this node's own counter, whichever node
+	 * the key belongs to. Requests forwarded by other nodes are served this
+	 * way so that they are never passed on again.
+	 */
+	public SequenceRange incrementLocally(String key, int count) 
+	throws SequencingException {
+		if (count < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Cannot increment sequence for key %s by %s", key, count));
+		}
+		if (!isOwned(key)) {
+			LOG.debug(String.format("Serving key %s which belongs to %s", 
+										key, myMembership.ownerOf(key)));
+		}
+		long ticket;
+		SequenceRange range;
+		while (true) {
+			OwnedCounter counter = getCounter(key);
+			synchronized (counter) {
+				if (counter.retired) {
+					// dropped while we waited for it; a counter loaded after
+					// that will see everything this one issued
+					continue;
+				}
+				range = counter.take(count);
+				try {
+					ticket = myLog.append(key, range.getEnd(), counter.blockEnd);
+				} catch (IOException e) {
+					throw new SequencingException(String.format(
+							"Unable to log sequence for key %s", key), e);
+				}
+			}
+			break;
+		}
+		// wait for the sync outside the lock so that later increments of
+		// the same key can join the batch
+		try {
+			myLog.await(ticket);
+		} catch (IOException e) {
+			throw new SequencingException(String.format(
+					"Unable to log sequence for key %s", key), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SequencingException(String.format(
+					"Interrupted logging sequence for key %s", key), e);
+		}
+		return range;
+	}
+
+	/**
+	 * @return the last sequence this node issued for key or, if it hasn't
+	 * issued any since taking the key over, the high water mark in ZooKeeper,
+	 * which is an upper bound on any sequence issued for it
+	 */
+	public long getSequenceLocally(String key) throws SequencingException {
+		long last = lastIssued(key);
+		if (last < 0) {
+			throw new NoSuchSequenceException(String.format(
+					"No sequence found for key %s", key), null);
+		}
+		return last;
+	}
+
+	private long lastIssued(String key) throws SequencingException {
+		while (true) {
+			OwnedCounter counter = getCounter(key);
+			synchronized (counter) {
+				if (counter.retired) {
+					continue;
+				}
+				counter.load();
+				long last = counter.next - 1;
+				if (last < 0) {
+					// no entry is kept for keys which don't exist, so polling
+					// for keys nobody has created can't grow the counters
+					// without end
+					retire(counter);
+				}
+				return last;
+			}
+		}
+	}
+
+	private OwnedCounter getCounter(String key) {
+		OwnedCounter counter = myCounters.get(key);
+		if (null == counter) {
+			OwnedCounter newCounter = new OwnedCounter(key);
+			counter = myCounters.putIfAbsent(key, newCounter);
+			if (null == counter) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	int countersHeld() {
+		return myCounters.size();
+	}
+
+	/**
+	 * Forget the counters for keys which now belong to another node, so that
+	 * if they come back they are picked up again from ZooKeeper
+	 */
+	@Override
+	public void membershipChanged(ConsistentHashRing ring) {
+		for (OwnedCounter counter : myCounters.values()) {
+			if (!myMembership.isSelf(ring.nodeFor(counter.key))) {
+				synchronized (counter) {
+					retire(counter);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Must hold the counter's monitor, so that no increment is part way
+	 * through it when it goes and the next counter for its key is only
+	 * loaded once everything this one issued has been logged
+	 */
+	private void retire(OwnedCounter counter) {
+		counter.retired = true;
+		myCounters.remove(counter.key, counter);
+	}
+
+	public void close() throws InterruptedException {
+		myForwardingExecutor.shutdownNow();
+		myMembership.close();
+		myLog.close();
+	}
+
+	/**
+	 * Guarded by its own monitor
+	 */
+	private class OwnedCounter {
+		private final String key;
+		private boolean loaded = false;
+		private boolean retired = false;
+		private long next;
+		private long blockEnd;
+
+		OwnedCounter(String key) {
+			this.key = key;
+		}
+
+		void load() throws SequencingException {
+			if (loaded) {
+				return;
+			}
+			long highWater;
+			try {
+				highWater = myZkClock.getSequenceUncached(key);
+			} catch (NoSuchSequenceException e) {
+				highWater = -1;
+			}
+			CounterLog.Record record = myLog.get(key);
+			if (null != record && record.getBlockEnd() == highWater) {
+				LOG.debug(String.format("Resuming key %s from logged sequence %s", 
+											key, record.getIssued()));
+				next = record.getIssued() + 1;
+			} else {
+				next = highWater + 1;
+			}
+			blockEnd = highWater;
+			loaded = true;
+		}
+
+		SequenceRange take(int count) throws SequencingException {
+			load();
+			if (next + count - 1 > blockEnd) {
+				int size = Math.max(myBlockSize, count);
+				long end = myZkClock.incrementBy(key, size);
+				if (end - size != blockEnd) {
+					// somebody else has leased from this key since our last
+					// block, so the rest of ours can't be trusted
+					next = end - size + 1;
+				}
+				blockEnd = end;
+				LOG.debug(String.format("Leased block ending %s for key %s", end, key));
+			}
+			SequenceRange range = new SequenceRange(next, next + count - 1);
+			next += count;
+			return range;
+		}
+	}
+}
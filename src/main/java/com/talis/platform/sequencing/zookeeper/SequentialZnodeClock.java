@@ -0,0 +1,491 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.RangesNotSupportedException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
+
+/**
+ * Clock which issues sequences by creating PERSISTENT_SEQUENTIAL children 
+ * under a parent node for each key. The ZooKeeper leader assigns the suffix 
+ * of each child, so concurrent increments never collide and never need to be 
+ * retried, however many nodes are issuing sequences for the same key.
+ * 
+ * The parent node for a key is ROOT followed by the path the configured 
+ * KeyLayout gives the key, so /foo is at ROOT/foo with the flat layout and 
+ * at ROOT/h1/seq/ab/cd/foo with the bucketed one, which keeps the number of
+ * parents under any one node small however many keys there are. Missing 
+ * ancestors are created along with the parent. The parent holds an 8 byte 
+ * offset which is added to the suffix of each child to give the sequence. 
+ * When a parent is first created, the offset is taken from the counter 
+ * node written by ZkClock for the same key (if there is one, found using 
+ * the configured KeyLayout), so keys can be moved over to this clock 
+ * without going backwards. Once a key has been moved, ZkClock must no 
+ * longer be used for it.
+ * 
+ * Sequences are unique and increase monotonically, but they are not 
+ * contiguous: ZooKeeper also advances the suffix counter when old children
+ * are pruned, and a create which is retried after a connection loss may 
+ * leave an unused child behind. Contiguous ranges cannot be issued by this
+ * clock.
+ * 
+ * ZooKeeper builds the suffix from the parent's child version, a signed 32
+ * bit counter which goes up on every create and every delete. A key can 
+ * therefore take at most 2^31 - 1 creates and prunes in all, which is about 
+ * a billion increments with pruning on, after which the suffix would turn
+ * negative. Rather than let sequences go backwards, increments of a key
+ * which has got that far fail, and the key must be moved to a new name.
+ * 
+ * The offset of each parent, and the suffix at which it was last pruned, 
+ * are remembered for the most recently used keys only, up to 
+ * com.talis.platform.sequencing.zookeeper.sequential.keys of them. A key
+ * which has been forgotten reads its offset from the parent again and 
+ * starts counting towards its next prune afresh.
+ * 
+ * The session for each operation is looked up from the provider's pool by
+ * the parent path, so all operations on a key go through the same session,
+ * and a request which finds its session expired is parked until the 
+ * replacement is connected, as ZkClock does.
+ */
+public class SequentialZnodeClock implements Clock {
+
+	static final Logger LOG = LoggerFactory.getLogger(SequentialZnodeClock.class);
+
+	public static final String ROOT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.sequential.root";
+	public static final String PRUNE_INTERVAL_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.sequential.pruneinterval";
+
+	public static final String MAX_KEYS_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.sequential.keys";
+
+	public static final String DEFAULT_ROOT = "/h1-seq";
+	public static final int DEFAULT_PRUNE_INTERVAL = 100;
+	public static final int DEFAULT_MAX_KEYS = 100000;
+
+	static final String CHILD_PREFIX = "s-";
+	static final byte[] EMPTY_DATA = new byte[0];
+
+	private final ZooKeeperProvider myZooKeeperProvider;
+	private final ZooKeeperMetrics myMetrics;
+	private final KeyLayout myLayout;
+	private final String myRoot;
+	private final int myPruneInterval;
+	private final long retryDelay = Long.getLong(ZkClock.RETRY_DELAY_PROPERTY, 100l);
+	private final int retryCount = Integer.getInteger(ZkClock.RETRY_COUNT_PROPERTY, 10);
+
+	private final Map<String, Long> myOffsets;
+	private final Map<String, Long> myLastPrunes;
+	private final ExecutorService myPruner = 
+		Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-seq-prune");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	@Inject
+	public SequentialZnodeClock(ZooKeeperProvider zooKeeperProvider, 
+								ZooKeeperMetrics metrics, KeyLayout layout) {
+		this(zooKeeperProvider, metrics, layout,
+			System.getProperty(ROOT_PROPERTY, DEFAULT_ROOT),
+			Integer.getInteger(PRUNE_INTERVAL_PROPERTY, DEFAULT_PRUNE_INTERVAL),
+			Integer.getInteger(MAX_KEYS_PROPERTY, DEFAULT_MAX_KEYS));
+	}
+
+	SequentialZnodeClock(ZooKeeperProvider zooKeeperProvider, 
+						ZooKeeperMetrics metrics, KeyLayout layout, 
+						String root, int pruneInterval, int maxKeys) {
+		if (maxKeys < 1) {
+			throw new IllegalArgumentException("Maximum number of keys must be positive");
+		}
+		LOG.info(String.format("Initialising sequential znode Clock. Root: %s | "
+				+ "Prune interval: %s | Max keys: %s", root, pruneInterval, maxKeys));
+		myZooKeeperProvider = zooKeeperProvider;
+		myMetrics = metrics;
+		myLayout = layout;
+		myRoot = root;
+		myPruneInterval = pruneInterval;
+		myOffsets = leastRecentlyUsed(maxKeys);
+		myLastPrunes = leastRecentlyUsed(maxKeys);
+	}
+
+	private static Map<String, Long> leastRecentlyUsed(final int maxSize) {
+		return Collections.synchronizedMap(
+				new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxSize;
+			}
+		});
+	}
+
+	int keysHeld() {
+		return myOffsets.size();
+	}
+
+	String parentPath(String key) {
+		return myRoot + myLayout.pathFor(key.startsWith("/") ? key : "/" + key);
+	}
+
+	// operations on a key always use the same session so they stay in order
+	private ZooKeeper keeperFor(String parent) {
+		return myZooKeeperProvider.get(parent);
+	}
+
+	@Override
+	public long getNextSequence(String key) throws SequencingException {
+		String parent = parentPath(key);
+		KeeperException mostRecentException = null;
+		for (int i = 0; i < retryCount; i++) {
+			ZooKeeper keeper = keeperFor(parent);
+			try {
+				long offset = getOffset(keeper, key, parent);
+				String child = keeper.create(parent + "/" + CHILD_PREFIX, 
+						EMPTY_DATA, ZkClock.DEFAULT_ACL, 
+						CreateMode.PERSISTENT_SEQUENTIAL);
+				long suffix = parseSuffix(child);
+				if (suffix < 0) {
+					LOG.error(String.format("Sequential suffix of %s has wrapped, "
+							+ "no more sequences can be issued for key %s", 
+							parent, key));
+					throw new SequencingException(String.format(
+							"Sequences exhausted for key %s", key), null);
+				}
+				prunePeriodically(parent, suffix);
+				LOG.debug(String.format("Key:Seq => %s, %s", key, offset + suffix));
+				return offset + suffix;
+			} catch (KeeperException.NoNodeException e) {
+				// parent removed since we read the offset
+				myOffsets.remove(parent);
+				mostRecentException = e;
+			} catch (KeeperException.SessionExpiredException e) {
+				myMetrics.incrementSessionExpiredEvents();
+				LOG.warn("Session expired for: " + keeper
+						+ " so waiting for its replacement: " + e, e);
+				if (!awaitReplacementSession(parent, keeper)) {
+					throw new SequencingException("Session expired", e);
+				}
+				mostRecentException = e;
+			} catch (KeeperException.ConnectionLossException e) {
+				myMetrics.incrementConnectionLossEvents();
+				mostRecentException = e;
+				LOG.debug("Attempt " + i + " failed with connection loss so "
+						+ "attempting to reconnect: " + e, e);
+				retryWithDelay(i);
+			} catch (KeeperException e) {
+				myMetrics.incrementKeeperExceptions();
+				LOG.error(String.format("Caught an unexpected error when "
+						+ "incrementing sequence for key %s", key), e);
+				mostRecentException = e;
+			} catch (InterruptedException e) {
+				myMetrics.incrementInterruptedExceptions();
+				Thread.currentThread().interrupt();
+				throw new SequencingException(String.format(
+						"Interrupted incrementing sequence for key %s", key), e);
+			}
+		}
+		throw new SequencingException(String.format(
+				"Failed to obtain next sequence for key %s", key), 
+				mostRecentException);
+	}
+
+	/**
+	 * Not supported, as the sequences issued by this clock are not 
+	 * guaranteed to be contiguous
+	 */
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		throw new RangesNotSupportedException(
+				"Contiguous ranges cannot be issued by the sequential znode clock");
+	}
+
+	@Override
+	public long getSequence(String key) throws SequencingException {
+		String parent = parentPath(key);
+		KeeperException mostRecentException = null;
+		for (int i = 0; i < retryCount; i++) {
+			ZooKeeper keeper = keeperFor(parent);
+			try {
+				return readSequence(keeper, key, parent);
+			} catch (KeeperException.NoNodeException e) {
+				String msg = String.format(ZkClock.NOT_FOUND_FORMAT, key);
+				LOG.debug(msg);
+				throw new NoSuchSequenceException(msg, e);
+			} catch (KeeperException.SessionExpiredException e) {
+				myMetrics.incrementSessionExpiredEvents();
+				if (!awaitReplacementSession(parent, keeper)) {
+					throw new SequencingException("Session expired", e);
+				}
+				mostRecentException = e;
+			} catch (KeeperException e) {
+				String msg = String.format("KeeperException while getting sequence for key: %s", key);
+				LOG.debug(msg);
+				throw new SequencingException(msg, e);
+			} catch (InterruptedException e) {
+				String msg = String.format("InterruptedException while getting sequence for key: %s", key);
+				LOG.debug(msg);
+				throw new SequencingException(msg, e);
+			}
+		}
+		throw new SequencingException(String.format(
+				"Failed to get sequence for key %s", key), mostRecentException);
+	}
+
+	private long readSequence(ZooKeeper keeper, String key, String parent) 
+	throws KeeperException, InterruptedException {
+		Stat stat = new Stat();
+		byte[] data;
+		try {
+			data = keeper.getData(parent, false, stat);
+		} catch (KeeperException.NoNodeException e) {
+			// not migrated yet, so the legacy counter is current
+			data = keeper.getData(myLayout.pathFor(key), false, stat);
+			return ByteBuffer.wrap(data).getLong();
+		}
+		long offset = ByteBuffer.wrap(data).getLong();
+		long last = -1;
+		for (String child : keeper.getChildren(parent, false)) {
+			last = Math.max(last, parseSuffix(child));
+		}
+		return offset + last;
+	}
+
+	/**
+	 * A miss still costs a read of both the parent and the legacy counter
+	 */
+	@Override
+	public long getSequenceOrDefault(String key, long absent)
+	throws SequencingException {
+		try {
+			return getSequence(key);
+		} catch (NoSuchSequenceException e) {
+			return absent;
+		}
+	}
+
+	/**
+	 * Completes on the calling thread
+	 */
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		try {
+			return SequenceFuture.completed(getNextSequence(key));
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+
+	/**
+	 * Completes on the calling thread
+	 */
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		try {
+			return SequenceFuture.completed(getSequence(key));
+		} catch (SequencingException e) {
+			return SequenceFuture.failed(e);
+		}
+	}
+
+	private long getOffset(ZooKeeper keeper, String key, String parent) 
+	throws KeeperException, InterruptedException {
+		Long offset = myOffsets.get(parent);
+		if (null == offset) {
+			offset = readOrCreateParent(keeper, key, parent);
+			myOffsets.put(parent, offset);
+		}
+		return offset;
+	}
+
+	private long readOrCreateParent(ZooKeeper keeper, String key, String parent) 
+	throws KeeperException, InterruptedException {
+		try {
+			return readOffset(keeper, parent);
+		} catch (KeeperException.NoNodeException e) {
+			// fall through and create it
+		}
+		long offset = 0;
+		try {
+			byte[] legacy = keeper.getData(myLayout.pathFor(key), false, new Stat());
+			offset = ByteBuffer.wrap(legacy).getLong() + 1;
+			LOG.info(String.format("Migrating key %s from counter node, "
+					+ "sequences will continue from %s", key, offset));
+		} catch (KeeperException.NoNodeException e) {
+			LOG.debug(String.format("No counter node for key %s", key));
+		}
+		byte[] data = ByteBuffer.allocate(8).putLong(offset).array();
+		try {
+			try {
+				keeper.create(parent, data, ZkClock.DEFAULT_ACL, 
+								CreateMode.PERSISTENT);
+			} catch (KeeperException.NoNodeException e) {
+				ZkPaths.createParents(keeper, parent);
+				keeper.create(parent, data, ZkClock.DEFAULT_ACL, 
+								CreateMode.PERSISTENT);
+			}
+			myMetrics.incrementKeyCreations();
+			return offset;
+		} catch (KeeperException.NodeExistsException e) {
+			LOG.info(String.format("Tried to create %s, but it already exists. "
+					+ "Probably a (harmless) race condition", parent));
+			return readOffset(keeper, parent);
+		}
+	}
+
+	private long readOffset(ZooKeeper keeper, String parent) 
+	throws KeeperException, InterruptedException {
+		byte[] data = keeper.getData(parent, false, new Stat());
+		return ByteBuffer.wrap(data).getLong();
+	}
+
+	/**
+	 * @param child name or path of a child, whose suffix may be negative 
+	 * once the parent's child version has wrapped
+	 */
+	static long parseSuffix(String child) {
+		int name = child.lastIndexOf('/') + 1;
+		return Long.parseLong(child.substring(name + CHILD_PREFIX.length()));
+	}
+
+	private void prunePeriodically(final String parent, long suffix) {
+		if (myPruneInterval < 1) {
+			return;
+		}
+		synchronized (myLastPrunes) {
+			Long last = myLastPrunes.get(parent);
+			if (null == last) {
+				myLastPrunes.put(parent, suffix);
+				return;
+			}
+			if (suffix - last < myPruneInterval) {
+				return;
+			}
+			myLastPrunes.put(parent, suffix);
+		}
+		myPruner.execute(new Runnable() {
+			@Override
+			public void run() {
+				prune(parent);
+			}
+		});
+	}
+
+	/**
+	 * Delete every child of parent except the newest, which is kept so that
+	 * the current value can still be read
+	 */
+	void prune(String parent) {
+		try {
+			ZooKeeper keeper = keeperFor(parent);
+			List<String> children = keeper.getChildren(parent, false);
+			long newest = -1;
+			for (String child : children) {
+				newest = Math.max(newest, parseSuffix(child));
+			}
+			int deleted = 0;
+			for (String child : children) {
+				if (parseSuffix(child) == newest) {
+					continue;
+				}
+				try {
+					keeper.delete(parent + "/" + child, -1);
+					deleted++;
+				} catch (KeeperException.NoNodeException e) {
+					// pruned by another node
+				}
+			}
+			LOG.debug(String.format("Pruned %s children of %s", deleted, parent));
+		} catch (KeeperException e) {
+			LOG.warn(String.format("Unable to prune children of %s", parent), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the session used for parent was replaced before the
+	 * park timeout
+	 */
+	private boolean awaitReplacementSession(String parent, ZooKeeper expired) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicBoolean replaced = new AtomicBoolean(false);
+		long parked = System.nanoTime();
+		myZooKeeperProvider.park(myZooKeeperProvider.stripeFor(parent), expired, 
+				new ZooKeeperProvider.ParkedRequest() {
+			@Override
+			public void resume(ZooKeeper keeper) {
+				replaced.set(true);
+				latch.countDown();
+			}
+
+			@Override
+			public void expire() {
+				latch.countDown();
+			}
+		});
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			myMetrics.recordWaitLatency(System.nanoTime() - parked);
+		}
+		return replaced.get();
+	}
+
+	private void retryWithDelay(int attemptCount) {
+		if (attemptCount > 0) {
+			try {
+				Thread.sleep(attemptCount * retryDelay);
+			} catch (InterruptedException e) {
+				LOG.debug("Failed to sleep: " + e, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import com.google.inject.Scopes;
+import com.talis.platform.sequencing.Clock;
+
+/**
+ * Binds the sequential znode Clock in place of the compare-and-set ZkClock
+ */
+public class SequentialZooKeeperModule extends ZooKeeperModule {
+
+	public static final String ENABLED_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.sequential";
+
+	public static final String NAME = "sequential";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	protected void bindClock() {
+		bind(Clock.class).to(SequentialZnodeClock.class).in(Scopes.SINGLETON);
+	}
+
+}
@@ -18,9 +18,19 @@ package com.talis.platform.sequencing.zookeeper;
 
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
@@ -29,52 +39,153 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
+import com.talis.platform.SystemTimestampProvider;
+import com.talis.platform.TimestampProvider;
 import com.talis.platform.sequencing.Clock;
 import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
 import com.talis.platform.sequencing.SequencingException;
 import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
 
-public class ZkClock implements Clock {
+/**
+ * Clock which keeps each counter in a ZooKeeper node and advances it with a
+ * versioned compare-and-set. One instance is shared by all requests. It holds
+ * a handle for each pooled session. When a session expires, operations on
+ * the affected keys are parked with the provider while it connects the
+ * replacement, and are then replayed on the new session, or fail once the
+ * park timeout has passed.
+ */
+public class ZkClock implements Clock, IncrementCombiner.Incrementer {
 
 	static final String NOT_FOUND_FORMAT = "Sequence with key %s not found";
 
 	static final Logger LOG = LoggerFactory.getLogger(ZkClock.class);
 
+	static final long DEFAULT_VALUE = -1;
 	static final byte[] DEFAULT_DATA = ByteBuffer.allocate(8)
-			.putLong(-1).array();
+			.putLong(DEFAULT_VALUE).array();
 	static final List<ACL> DEFAULT_ACL = ZooDefs.Ids.OPEN_ACL_UNSAFE;
 
 	static final String RETRY_DELAY_PROPERTY = 
 			"com.talis.platform.sequencing.zookeeper.retrydelay";
 	static final String RETRY_COUNT_PROPERTY = 
 			"com.talis.platform.sequencing.zookeeper.retrycount";
+	static final String COMBINING_PROPERTY = 
+			"com.talis.platform.sequencing.zookeeper.combining";
+
+	// Async operations run their callbacks on the ZooKeeper event thread, 
+	// which must never sleep, so retries after a delay are scheduled here
+	private static final ScheduledExecutorService RETRY_SCHEDULER = 
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-zk-async-retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
-	private final ZooKeeper myZooKeeper;
+	private final ZooKeeperProvider myZooKeeperProvider;
+	private final AtomicReferenceArray<ZooKeeper> myZooKeepers;
 	private final ZooKeeperMetrics myMetrics;
+	private final IncrementCombiner myCombiner;
+	private final ZkReadCache myReadCache;
+	private final ZkMissCache myMissCache;
+	private final KeyLayout myLayout;
+	private final ContentionBackoff myBackoff;
+	private final TimestampProvider myTimestampProvider;
 	
 	private final long retryDelay = Long.getLong(RETRY_DELAY_PROPERTY, 100l);
 	private final int retryCount = Integer.getInteger(RETRY_COUNT_PROPERTY, 10);
+	private final boolean combining = Boolean.getBoolean(COMBINING_PROPERTY);
 
-	@Inject
 	public ZkClock(ZooKeeperProvider zooKeeperProvider, ZooKeeperMetrics metrics)
+	throws SequencingException {
+		this(zooKeeperProvider, metrics, new IncrementCombiner(), 
+				new ZkReadCache(metrics), new FlatKeyLayout(), 
+				new ContentionBackoff());
+	}
+
+	public ZkClock(ZooKeeperProvider zooKeeperProvider, ZooKeeperMetrics metrics,
+					IncrementCombiner combiner, ZkReadCache readCache, 
+					KeyLayout layout, ContentionBackoff backoff)
+	throws SequencingException {
+		this(zooKeeperProvider, metrics, combiner, readCache, 
+				new ZkMissCache(metrics, 0), layout, backoff);
+	}
+
+	public ZkClock(ZooKeeperProvider zooKeeperProvider, ZooKeeperMetrics metrics,
+					IncrementCombiner combiner, ZkReadCache readCache, 
+					ZkMissCache missCache, KeyLayout layout, 
+					ContentionBackoff backoff)
+	throws SequencingException {
+		this(zooKeeperProvider, metrics, combiner, readCache, missCache, 
+				layout, backoff, new SystemTimestampProvider());
+	}
+
+	@Inject
+	public ZkClock(ZooKeeperProvider zooKeeperProvider, ZooKeeperMetrics metrics,
+					IncrementCombiner combiner, ZkReadCache readCache, 
+					ZkMissCache missCache, KeyLayout layout, 
+					ContentionBackoff backoff, TimestampProvider timestampProvider)
 	throws SequencingException {
 		LOG.info("Initialising ZooKeeper backed Clock instance");
-		myZooKeeper = zooKeeperProvider.get();
+		myZooKeeperProvider = zooKeeperProvider;
+		myZooKeepers = new AtomicReferenceArray<ZooKeeper>(
+								zooKeeperProvider.getPoolSize());
+		for (int i = 0; i < myZooKeepers.length(); i++) {
+			myZooKeepers.set(i, zooKeeperProvider.get(i));
+		}
 		myMetrics = metrics;
+		myCombiner = combiner;
+		myReadCache = readCache;
+		myMissCache = missCache;
+		myLayout = layout;
+		myBackoff = backoff;
+		myTimestampProvider = timestampProvider;
 	}
 
 	@Override
 	public long getNextSequence(String key) throws SequencingException {
+		if (combining) {
+			return myCombiner.increment(key, this);
+		}
+		return incrementBy(key, 1);
+	}
+
+	@Override
+	public SequenceRange getNextSequences(String key, int count)
+	throws SequencingException {
+		return SequenceRange.endingAt(incrementBy(key, count), count);
+	}
+
+	@Override
+	public long incrementBy(String key, int delta) throws SequencingException {
+		if (delta < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Cannot increment sequence for key %s by %s", key, delta));
+		}
 		KeeperException mostRecentException = null;
+		String path = myLayout.pathFor(key);
 
 		for (int i = 0; i < retryCount; i++) {
 			try {
-				return getAndIncrement(key);
+				return getAndAdd(path, delta);
+			} catch (KeeperException.BadVersionException e) {
+				// getAndAdd only gives up on a version conflict once the 
+				// backoff is exhausted, so going round again won't help
+				throw new SequencingException(String.format(
+						"Gave up obtaining next sequence for key %s after %s "
+						+ "conflicting updates", key, myBackoff.getMaxAttempts()), e);
 			} catch (KeeperException.SessionExpiredException e) {
 				myMetrics.incrementSessionExpiredEvents();
-				LOG.warn("Session expired for: " + myZooKeeper
+				LOG.warn("Session expired for: " + keeperFor(path)
 						+ " so reconnecting due to: " + e, e);
-				throw new SequencingException("Session expired", e);
+				if (!awaitReplacementSession(path)) {
+					throw new SequencingException("Session expired", e);
+				}
+				mostRecentException = e;
 			} catch (KeeperException.ConnectionLossException e) {
 				myMetrics.incrementConnectionLossEvents();
 				mostRecentException = e;
@@ -93,27 +204,59 @@ public class ZkClock implements Clock {
 				mostRecentException);
 	}
 
-	private long getAndIncrement(String key) throws KeeperException {
-		LOG.debug(String.format("Incrementing sequence for key %s", key));
+	private long getAndAdd(String key, int delta) throws KeeperException {
+		LOG.debug(String.format("Incrementing sequence for key %s by %s", 
+									key, delta));
 		Stat stat = new Stat();
 		boolean committed = false;
 		long id = 0;
+		int attempts = 0;
+		long delay = 0;
+		long start = now();
+		// a key known to be missing is created straight away
+		boolean mayBeNew = myMissCache.isEnabled() && myMissCache.isMissing(key);
 		while (!committed) {
+			long attemptStarted = now();
 			try {
-				byte[] data = myZooKeeper.getData(key, false, stat);
+				if (mayBeNew) {
+					mayBeNew = false;
+					id = DEFAULT_VALUE + delta;
+					if (createKey(key, id)) {
+						myMetrics.recordKeyCreationLatency(elapsedSince(start));
+						invalidateCachedValue(key);
+						break;
+					}
+				}
+				byte[] data = getData(key, null, stat);
 				ByteBuffer buf = ByteBuffer.wrap(data);
 				id = buf.getLong();
 				buf.rewind();
-				buf.putLong(++id);
-				myZooKeeper.setData(key, buf.array(), stat.getVersion());
+				id += delta;
+				buf.putLong(id);
+				attempts++;
+				setData(key, buf.array(), stat.getVersion());
 				committed = true;
+				myBackoff.committed(key);
+				myMetrics.recordCasAttempts(attempts);
+				if (attempts > 1) {
+					myMetrics.recordCasRetryLatency(attemptStarted - start);
+				}
+				invalidateCachedValue(key);
 			} catch (KeeperException.NoNodeException e) {
-				createKey(key);
+				mayBeNew = true;
 				committed = false;
 			} catch (KeeperException.BadVersionException e) {
-				myMetrics.incrementKeyCollisions();
+				myMetrics.incrementKeyCollisions(key);
+				if (!myBackoff.mayRetry(attempts)) {
+					LOG.warn(String.format("Another client updated key %s, "
+							+ "giving up after %s attempts", key, attempts));
+					throw e;
+				}
+				delay = myBackoff.conflicted(key, delay);
 				LOG.debug(String.format(
-						"Another client updated key %s, retrying", key));
+						"Another client updated key %s, retrying in %sms", 
+						key, delay));
+				backOff(delay);
 				committed = false;
 			} catch (InterruptedException e) {
 				// at this point, we don't know that our update happened.
@@ -133,12 +276,28 @@ public class ZkClock implements Clock {
 		return id;
 	}
 
-	private void createKey(String key) throws KeeperException {
-		LOG.debug(String.format("Creating new node for key %s", key));
+	/**
+	 * Create the node for key holding the first value issued for it, so that
+	 * the first increment of a new key takes a single write
+	 * 
+	 * @return false if the key already exists, or if it can't be said whether
+	 * the create succeeded, in which case the caller falls back to 
+	 * compare-and-set
+	 */
+	private boolean createKey(String key, long value) throws KeeperException {
+		LOG.debug(String.format("Creating new node for key %s with value %s", 
+									key, value));
+		byte[] data = ByteBuffer.allocate(8).putLong(value).array();
 		try {
-			myZooKeeper.create(key, DEFAULT_DATA,
-								DEFAULT_ACL, CreateMode.PERSISTENT);
+			try {
+				createNode(key, data);
+			} catch (KeeperException.NoNodeException e) {
+				// the layout puts this key below a node that doesn't exist yet
+				createParents(key);
+				createNode(key, data);
+			}
 			myMetrics.incrementKeyCreations();
+			return true;
 		} catch (InterruptedException e) {
 			myMetrics.incrementInterruptedExceptions();
 			LOG.error(String.format(
@@ -154,32 +313,246 @@ public class ZkClock implements Clock {
 				throw e;
 			}
 		}
+		return false;
+	}
+
+	// Each round trip is timed whether or not it succeeds, so that the time
+	// spent on conflicts and misses shows up too
+
+	private long now() {
+		return myTimestampProvider.getNanoTime();
+	}
+
+	private long elapsedSince(long start) {
+		return now() - start;
+	}
+
+	private byte[] getData(String key, Watcher watcher, Stat stat) 
+	throws KeeperException, InterruptedException {
+		long sent = now();
+		try {
+			if (null == watcher) {
+				return keeperFor(key).getData(key, false, stat);
+			}
+			return keeperFor(key).getData(key, watcher, stat);
+		} finally {
+			myMetrics.recordGetDataLatency(elapsedSince(sent));
+		}
+	}
+
+	private void setData(String key, byte[] data, int version) 
+	throws KeeperException, InterruptedException {
+		long sent = now();
+		try {
+			keeperFor(key).setData(key, data, version);
+		} finally {
+			myMetrics.recordSetDataLatency(elapsedSince(sent));
+		}
+	}
+
+	private void createNode(String key, byte[] data) 
+	throws KeeperException, InterruptedException {
+		long sent = now();
+		try {
+			keeperFor(key).create(key, data, DEFAULT_ACL, CreateMode.PERSISTENT);
+		} finally {
+			myMetrics.recordCreateLatency(elapsedSince(sent));
+		}
+	}
+
+	private void createParents(String path) throws KeeperException {
+		try {
+			ZkPaths.createParents(keeperFor(path), path);
+		} catch (InterruptedException e) {
+			myMetrics.incrementInterruptedExceptions();
+			LOG.error(String.format(
+					"Caught InterruptedException when creating parents of %s",
+					path), e);
+		}
 	}
 
 	private void retryWithDelay(int attemptCount) {
 		if (attemptCount > 0) {
-			try {
-				Thread.sleep(attemptCount * retryDelay);
-			} catch (InterruptedException e) {
-				LOG.debug("Failed to sleep: " + e, e);
+			sleep(attemptCount * retryDelay);
+		}
+	}
+
+	// operations on a key always use the same session so they stay in order
+	private ZooKeeper keeperFor(String path) {
+		return myZooKeepers.get(myZooKeeperProvider.stripeFor(path));
+	}
+
+	/**
+	 * Park until the session used for path has been replaced. The resume or
+	 * expire callback is run once, on a provider thread.
+	 */
+	private void parkUntilReplaced(String path, final Runnable resume, 
+									final Runnable expire) {
+		final int stripe = myZooKeeperProvider.stripeFor(path);
+		final ZooKeeper expired = myZooKeepers.get(stripe);
+		final long parked = now();
+		myZooKeeperProvider.park(stripe, expired, 
+				new ZooKeeperProvider.ParkedRequest() {
+			@Override
+			public void resume(ZooKeeper keeper) {
+				myMetrics.recordWaitLatency(elapsedSince(parked));
+				if (myZooKeepers.compareAndSet(stripe, expired, keeper)) {
+					LOG.info(String.format(
+							"Replaced expired ZooKeeper session %s", stripe));
+				}
+				resume.run();
+			}
+
+			@Override
+			public void expire() {
+				myMetrics.recordWaitLatency(elapsedSince(parked));
+				expire.run();
+			}
+		});
+	}
+
+	/**
+	 * @return true if the session used for path was replaced before the
+	 * park timeout
+	 */
+	private boolean awaitReplacementSession(String path) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicBoolean replaced = new AtomicBoolean(false);
+		parkUntilReplaced(path, new Runnable() {
+			@Override
+			public void run() {
+				replaced.set(true);
+				latch.countDown();
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
 			}
+		});
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return replaced.get();
+	}
+
+	private void backOff(long delay) {
+		if (delay > 0) {
+			sleep(delay);
+		}
+	}
+
+	/**
+	 * @return next, wrapped to record how long it waited before running
+	 */
+	private Runnable afterWait(final Runnable next) {
+		final long waiting = now();
+		return new Runnable() {
+			@Override
+			public void run() {
+				myMetrics.recordWaitLatency(elapsedSince(waiting));
+				next.run();
+			}
+		};
+	}
+
+	private void sleep(long millis) {
+		long started = now();
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			LOG.debug("Failed to sleep: " + e, e);
+		} finally {
+			myMetrics.recordWaitLatency(elapsedSince(started));
+		}
+	}
+
+	// our own writes are visible to the caller before the watch notification
+	// for them is delivered, so drop the cached value straight away
+	private void invalidateCachedValue(String key) {
+		if (myReadCache.isEnabled()) {
+			myReadCache.invalidate(key);
+		}
+		if (myMissCache.isEnabled()) {
+			myMissCache.invalidate(key);
 		}
 	}
 
 	@Override
 	public long getSequence(String key) throws SequencingException {
+		Long sequence = readSequence(key, true, true);
+		if (null == sequence) {
+			throw new NoSuchSequenceException(
+						String.format(NOT_FOUND_FORMAT, key), null);
+		}
+		return sequence;
+	}
+
+	@Override
+	public long getSequenceOrDefault(String key, long absent) 
+	throws SequencingException {
+		Long sequence = readSequence(key, true, true);
+		return null == sequence ? absent : sequence;
+	}
+
+	/**
+	 * Read the current value for key from ZooKeeper even if the read or miss
+	 * caches are enabled
+	 */
+	long getSequenceUncached(String key) throws SequencingException {
+		Long sequence = readSequence(key, true, false);
+		if (null == sequence) {
+			throw new NoSuchSequenceException(
+						String.format(NOT_FOUND_FORMAT, key), null);
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return the current value for key, or null if it doesn't exist
+	 */
+	private Long readSequence(String key, boolean mayPark, boolean mayCache) 
+	throws SequencingException {
 		LOG.debug(String.format("Get current sequence for key %s", key));
+		String path = myLayout.pathFor(key);
+		boolean useCache = mayCache && myReadCache.isEnabled();
+		if (useCache) {
+			Long cached = myReadCache.get(path);
+			if (null != cached) {
+				return cached;
+			}
+		}
+		if (mayCache && myMissCache.isMissing(path)) {
+			return null;
+		}
 		Stat stat = new Stat();
 		byte[] data;
+		Object load = null;
 		try {
-			data = myZooKeeper.getData(key, false, stat);
+			if (useCache) {
+				load = myReadCache.startLoad(path);
+				data = getData(path, myReadCache, stat);
+				long sequence = ByteBuffer.wrap(data).getLong();
+				myReadCache.completeLoad(path, load, sequence);
+				return sequence;
+			}
+			data = getData(path, null, stat);
 			ByteBuffer buf = ByteBuffer.wrap(data);
 			return buf.getLong();
 		} catch (KeeperException.NoNodeException e) {
-			String msg = String.format(NOT_FOUND_FORMAT, key);
-			LOG.debug(msg);
-			throw new NoSuchSequenceException(msg, e);
+			LOG.debug(String.format(NOT_FOUND_FORMAT, key));
+			if (mayCache) {
+				recordMiss(path);
+			}
+			return null;
 		} catch (KeeperException e) {
+			if (mayPark && e.code() == KeeperException.Code.SESSIONEXPIRED
+					&& awaitReplacementSession(path)) {
+				return readSequence(key, false, mayCache);
+			}
 			String msg = String.format("KeeperException while getting sequence for key: %s", key);
 			LOG.debug(msg);
 			throw new SequencingException(msg, e);
@@ -187,6 +560,351 @@ public class ZkClock implements Clock {
 			String msg = String.format("InterruptedException while getting sequence for key: %s", key);
 			LOG.debug(msg);
 			throw new SequencingException(msg, e);
+		} finally {
+			if (null != load) {
+				// a no-op if the load completed
+				myReadCache.cancelLoad(path, load);
+			}
+		}
+	}
+
+	/**
+	 * Set an exists watch on a key which wasn't found, and remember it as
+	 * missing if it still doesn't exist once the watch is in place
+	 */
+	private void recordMiss(String key) {
+		if (!myMissCache.isEnabled()) {
+			return;
+		}
+		Object load = myMissCache.startLoad(key);
+		try {
+			if (null == keeperFor(key).exists(key, myMissCache)) {
+				myMissCache.completeLoad(key, load);
+			}
+		} catch (KeeperException e) {
+			LOG.debug(String.format("Unable to watch for creation of key %s", key), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// a no-op if the load completed
+			myMissCache.cancelLoad(key, load);
+		}
+	}
+
+	@Override
+	public Future<Long> getNextSequenceAsync(String key) {
+		SequenceFuture future = new SequenceFuture();
+		new AsyncIncrement(myLayout.pathFor(key), future).start();
+		return future;
+	}
+
+	@Override
+	public Future<Long> getSequenceAsync(String key) {
+		SequenceFuture future = new SequenceFuture();
+		new AsyncRead(myLayout.pathFor(key), future).start();
+		return future;
+	}
+
+	/**
+	 * Callback driven version of getAndAdd. Each step is issued from the 
+	 * callback of the previous one, so no thread is held while an operation
+	 * is in flight. Retries follow the same rules as the blocking version.
+	 */
+	private class AsyncIncrement implements AsyncCallback.DataCallback,
+			AsyncCallback.StatCallback, AsyncCallback.StringCallback {
+
+		private final String key;
+		private final SequenceFuture future;
+		private final long started = now();
+		private long attemptStarted;
+		// only one operation is in flight at a time
+		private long sent;
+		private int failures = 0;
+		private int attempts = 0;
+		private long delay = 0;
+		private boolean mayBeNew;
+
+		AsyncIncrement(String key, SequenceFuture future) {
+			this.key = key;
+			this.future = future;
+			mayBeNew = myMissCache.isEnabled() && myMissCache.isMissing(key);
+		}
+
+		void start() {
+			attemptStarted = now();
+			if (mayBeNew) {
+				mayBeNew = false;
+				create();
+				return;
+			}
+			sent = now();
+			keeperFor(key).getData(key, false, (AsyncCallback.DataCallback) this, null);
+		}
+
+		// create the key holding its first value, falling back to
+		// compare-and-set if another client got there first
+		private void create() {
+			long id = DEFAULT_VALUE + 1;
+			LOG.debug(String.format("Creating new node for key %s with value %s", 
+										key, id));
+			sent = now();
+			keeperFor(key).create(key, ByteBuffer.allocate(8).putLong(id).array(), 
+					DEFAULT_ACL, CreateMode.PERSISTENT, this, Long.valueOf(id));
+		}
+
+		// getData completed
+		@Override
+		public void processResult(int rc, String path, Object ctx, byte[] data,
+				Stat stat) {
+			myMetrics.recordGetDataLatency(elapsedSince(sent));
+			KeeperException.Code code = KeeperException.Code.get(rc);
+			switch (code) {
+			case OK:
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				long id = buf.getLong() + 1;
+				buf.rewind();
+				buf.putLong(id);
+				attempts++;
+				sent = now();
+				keeperFor(key).setData(key, buf.array(), stat.getVersion(), 
+						(AsyncCallback.StatCallback) this, Long.valueOf(id));
+				break;
+			case NONODE:
+				create();
+				break;
+			default:
+				handleFailure(code);
+			}
+		}
+
+		// setData completed
+		@Override
+		public void processResult(int rc, String path, Object ctx, Stat stat) {
+			myMetrics.recordSetDataLatency(elapsedSince(sent));
+			KeeperException.Code code = KeeperException.Code.get(rc);
+			switch (code) {
+			case OK:
+				LOG.debug(String.format("Key:Seq => %s, %s", key, ctx));
+				myBackoff.committed(key);
+				myMetrics.recordCasAttempts(attempts);
+				if (attempts > 1) {
+					myMetrics.recordCasRetryLatency(attemptStarted - started);
+				}
+				invalidateCachedValue(key);
+				future.set((Long) ctx);
+				break;
+			case BADVERSION:
+				myMetrics.incrementKeyCollisions(key);
+				if (!myBackoff.mayRetry(attempts)) {
+					LOG.warn(String.format("Another client updated key %s, "
+							+ "giving up after %s attempts", key, attempts));
+					future.setException(new SequencingException(String.format(
+							"Gave up obtaining next sequence for key %s after %s "
+							+ "conflicting updates", key, attempts), 
+							KeeperException.create(code, key)));
+					break;
+				}
+				delay = myBackoff.conflicted(key, delay);
+				LOG.debug(String.format(
+						"Another client updated key %s, retrying in %sms", 
+						key, delay));
+				// never sleep on the event thread
+				RETRY_SCHEDULER.schedule(afterWait(new Runnable() {
+					@Override
+					public void run() {
+						start();
+					}
+				}), delay, TimeUnit.MILLISECONDS);
+				break;
+			default:
+				handleFailure(code);
+			}
+		}
+
+		// create completed
+		@Override
+		public void processResult(int rc, String path, Object ctx, String name) {
+			myMetrics.recordCreateLatency(elapsedSince(sent));
+			KeeperException.Code code = KeeperException.Code.get(rc);
+			switch (code) {
+			case OK:
+				LOG.debug(String.format("Key:Seq => %s, %s", key, ctx));
+				myMetrics.incrementKeyCreations();
+				myMetrics.recordKeyCreationLatency(elapsedSince(started));
+				invalidateCachedValue(key);
+				future.set((Long) ctx);
+				break;
+			case NODEEXISTS:
+				LOG.info(String.format(
+						"Tried to create %s, but it already exists. "
+								+ "Probably a (harmless) race condition", key));
+				start();
+				break;
+			case NONODE:
+				// parents must be created first, but not on the event thread
+				RETRY_SCHEDULER.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							createParents(key);
+							create();
+						} catch (KeeperException e) {
+							handleFailure(e.code());
+						}
+					}
+				});
+				break;
+			default:
+				handleFailure(code);
+			}
+		}
+
+		private void handleFailure(KeeperException.Code code) {
+			KeeperException e = KeeperException.create(code, key);
+			if (code == KeeperException.Code.SESSIONEXPIRED) {
+				myMetrics.incrementSessionExpiredEvents();
+				LOG.warn("Session expired for: " + keeperFor(key)
+						+ " so reconnecting due to: " + e, e);
+				final SequencingException failure = 
+					new SequencingException("Session expired", e);
+				if (++failures >= retryCount) {
+					future.setException(failure);
+					return;
+				}
+				parkUntilReplaced(key, new Runnable() {
+					@Override
+					public void run() {
+						start();
+					}
+				}, new Runnable() {
+					@Override
+					public void run() {
+						future.setException(failure);
+					}
+				});
+				return;
+			}
+			if (code == KeeperException.Code.CONNECTIONLOSS) {
+				myMetrics.incrementConnectionLossEvents();
+				LOG.debug("Attempt " + failures + " failed with connection loss "
+						+ "so attempting to reconnect: " + e, e);
+			} else {
+				myMetrics.incrementKeeperExceptions();
+				LOG.error(String.format("Caught an unexpected error when "
+						+ "incrementing sequence for key %s", key), e);
+			}
+			if (++failures >= retryCount) {
+				future.setException(new SequencingException(String.format(
+						"Failed to obtain next sequence for key %s", key), e));
+				return;
+			}
+			RETRY_SCHEDULER.schedule(afterWait(new Runnable() {
+				@Override
+				public void run() {
+					start();
+				}
+			}), (failures - 1) * retryDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private class MissRecorder implements AsyncCallback.StatCallback {
+
+		@Override
+		public void processResult(int rc, String path, Object ctx, Stat stat) {
+			if (KeeperException.Code.get(rc) == KeeperException.Code.NONODE) {
+				myMissCache.completeLoad(path, ctx);
+			} else {
+				myMissCache.cancelLoad(path, ctx);
+			}
+		}
+	}
+
+	private class AsyncRead implements AsyncCallback.DataCallback {
+
+		private final String key;
+		private final SequenceFuture future;
+		private boolean parked = false;
+		private long sent;
+
+		AsyncRead(String key, SequenceFuture future) {
+			this.key = key;
+			this.future = future;
+		}
+
+		void start() {
+			LOG.debug(String.format("Get current sequence for key %s", key));
+			if (myMissCache.isMissing(key)) {
+				future.setException(new NoSuchSequenceException(
+						String.format(NOT_FOUND_FORMAT, key), null));
+				return;
+			}
+			if (myReadCache.isEnabled()) {
+				Long cached = myReadCache.get(key);
+				if (null != cached) {
+					future.set(cached);
+					return;
+				}
+				Object load = myReadCache.startLoad(key);
+				sent = now();
+				keeperFor(key).getData(key, myReadCache, this, load);
+				return;
+			}
+			sent = now();
+			keeperFor(key).getData(key, false, this, null);
+		}
+
+		@Override
+		public void processResult(int rc, String path, Object ctx, byte[] data,
+				Stat stat) {
+			myMetrics.recordGetDataLatency(elapsedSince(sent));
+			KeeperException.Code code = KeeperException.Code.get(rc);
+			if (null != ctx && code != KeeperException.Code.OK) {
+				myReadCache.cancelLoad(key, ctx);
+			}
+			switch (code) {
+			case OK:
+				long sequence = ByteBuffer.wrap(data).getLong();
+				if (null != ctx) {
+					myReadCache.completeLoad(key, ctx, sequence);
+				}
+				future.set(sequence);
+				break;
+			case NONODE:
+				String msg = String.format(NOT_FOUND_FORMAT, key);
+				LOG.debug(msg);
+				if (myMissCache.isEnabled()) {
+					Object load = myMissCache.startLoad(key);
+					keeperFor(key).exists(key, myMissCache, new MissRecorder(), load);
+				}
+				future.setException(new NoSuchSequenceException(msg, 
+											KeeperException.create(code, key)));
+				break;
+			default:
+				if (code == KeeperException.Code.SESSIONEXPIRED && !parked) {
+					parked = true;
+					final KeeperException.Code failure = code;
+					parkUntilReplaced(key, new Runnable() {
+						@Override
+						public void run() {
+							start();
+						}
+					}, new Runnable() {
+						@Override
+						public void run() {
+							fail(failure);
+						}
+					});
+					break;
+				}
+				fail(code);
+			}
+		}
+
+		private void fail(KeeperException.Code code) {
+			String msg = String.format("KeeperException while getting sequence for key: %s", key);
+			LOG.debug(msg);
+			future.setException(new SequencingException(msg, 
+										KeeperException.create(code, key)));
 		}
 	}
 }
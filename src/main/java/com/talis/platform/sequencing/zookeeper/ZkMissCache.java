@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
+
+/**
+ * Bounded, least recently used set of keys known not to exist, so that
+ * clients polling for keys which haven't been created yet are answered from
+ * memory. A key is only recorded once an exists watch has been set on it 
+ * with this cache as the watcher, so it is dropped as soon as the node is
+ * created, and the whole cache is dropped if the connection to the ensemble
+ * is lost. Keys evicted from the cache leave their watch behind on the 
+ * server until the node is created or the session ends.
+ * 
+ * As with the read cache, a load is started before the watch is set and only
+ * completed if no notification for the key has arrived in the meantime.
+ */
+public class ZkMissCache extends ZkWatchCache<Boolean> {
+
+	static final Logger LOG = LoggerFactory.getLogger(ZkMissCache.class);
+
+	public static final String SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.misscache.size";
+
+	private final ZooKeeperMetrics myMetrics;
+
+	@Inject
+	public ZkMissCache(ZooKeeperMetrics metrics) {
+		this(metrics, Integer.getInteger(SIZE_PROPERTY, 0));
+	}
+
+	ZkMissCache(ZooKeeperMetrics metrics, int maxSize) {
+		super(LOG, "miss", maxSize);
+		myMetrics = metrics;
+	}
+
+	/**
+	 * @return true if key is known not to exist
+	 */
+	public boolean isMissing(String key) {
+		if (null == lookup(key)) {
+			return false;
+		}
+		myMetrics.incrementMissCacheHits();
+		return true;
+	}
+
+	/**
+	 * Record key as missing, unless it has been created or reloaded since 
+	 * token was issued
+	 */
+	public void completeLoad(String key, Object token) {
+		completeLoad(key, token, Boolean.TRUE);
+	}
+
+	@Override
+	protected boolean invalidatedBy(Event.EventType type) {
+		return type == Event.EventType.NodeCreated;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.nio.ByteBuffer;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+final class ZkPaths {
+
+	private ZkPaths() {}
+
+	/**
+	 * Create any missing ancestors of path, as empty persistent nodes
+	 */
+	static void createParents(ZooKeeper zooKeeper, String path) 
+	throws KeeperException, InterruptedException {
+		int index = path.indexOf('/', 1);
+		while (index > 0) {
+			String parent = path.substring(0, index);
+			try {
+				zooKeeper.create(parent, new byte[0], ZkClock.DEFAULT_ACL, 
+									CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+				// created by an earlier key in the same bucket
+			}
+			index = path.indexOf('/', index + 1);
+		}
+	}
+
+	/**
+	 * Write a counter to path, creating it and its parents if need be. If 
+	 * the counter already exists, the higher of the two values is kept.
+	 */
+	static void copyCounter(ZooKeeper zooKeeper, String path, byte[] data) 
+	throws KeeperException, InterruptedException {
+		long value = ByteBuffer.wrap(data).getLong();
+		while (true) {
+			try {
+				zooKeeper.create(path, data, ZkClock.DEFAULT_ACL, 
+									CreateMode.PERSISTENT);
+				return;
+			} catch (KeeperException.NoNodeException e) {
+				ZkPaths.createParents(zooKeeper, path);
+				continue;
+			} catch (KeeperException.NodeExistsException e) {
+				// fall through and compare
+			}
+			Stat stat = new Stat();
+			try {
+				long existing = ByteBuffer.wrap(
+						zooKeeper.getData(path, false, stat)).getLong();
+				if (existing >= value) {
+					return;
+				}
+				zooKeeper.setData(path, data, stat.getVersion());
+				return;
+			} catch (KeeperException.NoNodeException e) {
+				// deleted under us, so try to create it again
+			} catch (KeeperException.BadVersionException e) {
+				// incremented under us, so compare again
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
+
+/**
+ * Bounded, least recently used cache of current sequence values. Values are
+ * read from ZooKeeper with this cache registered as the data watcher, so an
+ * entry is dropped as soon as the node changes or is deleted, and the whole
+ * cache is dropped if the connection to the ensemble is lost. Reads served
+ * from the cache are therefore as fresh as ZooKeeper's watch notifications.
+ * 
+ * A load is started before the read is issued and only completed if no
+ * notification for the key has arrived in the meantime, so a change racing
+ * with the read can never leave a stale value behind.
+ */
+public class ZkReadCache extends ZkWatchCache<Long> {
+
+	static final Logger LOG = LoggerFactory.getLogger(ZkReadCache.class);
+
+	public static final String SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.readcache.size";
+
+	private final ZooKeeperMetrics myMetrics;
+
+	@Inject
+	public ZkReadCache(ZooKeeperMetrics metrics) {
+		this(metrics, Integer.getInteger(SIZE_PROPERTY, 0));
+	}
+
+	ZkReadCache(ZooKeeperMetrics metrics, int maxSize) {
+		super(LOG, "read", maxSize);
+		myMetrics = metrics;
+	}
+
+	/**
+	 * @return the cached value for key, or null if it must be read from 
+	 * ZooKeeper
+	 */
+	public Long get(String key) {
+		Long value = lookup(key);
+		if (null == value) {
+			myMetrics.incrementReadCacheMisses();
+			return null;
+		}
+		myMetrics.incrementReadCacheHits();
+		return value;
+	}
+
+	/**
+	 * Cache value for key, unless the key has been invalidated or reloaded 
+	 * since token was issued
+	 */
+	public void completeLoad(String key, Object token, long value) {
+		completeLoad(key, token, Long.valueOf(value));
+	}
+
+	@Override
+	protected boolean invalidatedBy(Event.EventType type) {
+		return type == Event.EventType.NodeDataChanged 
+				|| type == Event.EventType.NodeDeleted;
+	}
+
+	@Override
+	protected void evicted() {
+		myMetrics.incrementReadCacheEvictions();
+	}
+}
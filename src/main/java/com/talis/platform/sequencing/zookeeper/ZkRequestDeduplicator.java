@@ -0,0 +1,304 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.LocalRequestDeduplicator;
+import com.talis.platform.sequencing.RequestDeduplicator;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+
+/**
+ * Request table shared by every H1 node through ZooKeeper, so that a retry
+ * which lands on a different node is still recognised. The first node to
+ * see a request id claims it with an ephemeral node, which is given the 
+ * response once the increment has been made; other nodes seeing the same id
+ * wait for the response to appear. Claims are deleted by the node which 
+ * made them once they are older than the time to live, or when the 
+ * increment fails, and disappear with the node's session if it stops.
+ * 
+ * Requests on this node are first deduplicated in memory, so only the 
+ * first of several concurrent duplicates goes to ZooKeeper. If ZooKeeper 
+ * can't be reached the increment is made anyway, as losing deduplication 
+ * is better than losing the increment.
+ */
+public class ZkRequestDeduplicator implements RequestDeduplicator {
+
+	static final Logger LOG = LoggerFactory.getLogger(ZkRequestDeduplicator.class);
+
+	public static final String SHARED_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.dedup.shared";
+	public static final String ROOT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.dedup.root";
+	public static final String WAIT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.dedup.wait";
+
+	public static final String DEFAULT_ROOT = "/h1-requests";
+	public static final long DEFAULT_WAIT = 5000l;
+
+	private static final byte[] PENDING = new byte[0];
+	private static final String ENCODING = "UTF-8";
+
+	private final ZooKeeperProvider myZooKeeperProvider;
+	private final RequestDeduplicator myLocal;
+	private final TimestampProvider myTimestampProvider;
+	private final SequencingMetrics myMetrics;
+	private final String myRoot;
+	private final long myTimeToLive;
+	private final long myWait;
+	private final Queue<Claim> myClaims = new ConcurrentLinkedQueue<Claim>();
+	private final ScheduledExecutorService myPruner =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-dedup-pruner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	@Inject
+	public ZkRequestDeduplicator(ZooKeeperProvider zooKeeperProvider, 
+			LocalRequestDeduplicator local, TimestampProvider timestampProvider, 
+			SequencingMetrics metrics) {
+		this(zooKeeperProvider, local, timestampProvider, metrics,
+			System.getProperty(ROOT_PROPERTY, DEFAULT_ROOT),
+			Long.getLong(LocalRequestDeduplicator.TTL_PROPERTY, 
+						LocalRequestDeduplicator.DEFAULT_TTL),
+			Long.getLong(WAIT_PROPERTY, DEFAULT_WAIT));
+	}
+
+	ZkRequestDeduplicator(ZooKeeperProvider zooKeeperProvider, 
+			RequestDeduplicator local, TimestampProvider timestampProvider, 
+			SequencingMetrics metrics, String root, long timeToLive, long wait) {
+		myZooKeeperProvider = zooKeeperProvider;
+		myLocal = local;
+		myTimestampProvider = timestampProvider;
+		myMetrics = metrics;
+		myRoot = root;
+		myTimeToLive = timeToLive;
+		myWait = wait;
+		long interval = Math.max(1, Math.min(1000, timeToLive / 10));
+		myPruner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				prune();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		LOG.info(String.format("Initialising shared request deduplication under %s",
+								myRoot));
+	}
+
+	/**
+	 * @return true if request ids should be shared between nodes
+	 */
+	public static boolean isConfigured() {
+		return Boolean.getBoolean(SHARED_PROPERTY);
+	}
+
+	@Override
+	public String deduplicate(final String key, final String requestId, 
+								final Increment increment)
+	throws SequencingException {
+		return myLocal.deduplicate(key, requestId, new Increment() {
+			@Override
+			public String run() throws SequencingException {
+				return deduplicateShared(key, requestId, increment);
+			}
+		});
+	}
+
+	private String deduplicateShared(String key, String requestId, 
+										Increment increment)
+	throws SequencingException {
+		String path = pathFor(key, requestId);
+		long deadline = myTimestampProvider.getCurrentTimeInMillis() + myWait;
+		while (true) {
+			ZooKeeper keeper = myZooKeeperProvider.get(path);
+			try {
+				claim(keeper, path);
+			} catch (KeeperException.NodeExistsException e) {
+				String result = awaitResult(keeper, path, deadline, key, requestId);
+				if (null != result) {
+					LOG.debug(String.format("Request %s for key %s was made on "
+							+ "another node, returning %s", requestId, key, result));
+					myMetrics.incrementDuplicateRequests();
+					return result;
+				}
+				// the other claim failed, so go round again and try ourselves
+				continue;
+			} catch (KeeperException e) {
+				LOG.warn(String.format("Unable to claim request %s for key %s, "
+						+ "incrementing without deduplication", requestId, key), e);
+				return increment.run();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SequencingException(String.format(
+						"Interrupted claiming request %s for key %s", 
+						requestId, key), e);
+			}
+			return runClaimed(keeper, path, increment);
+		}
+	}
+
+	private void claim(ZooKeeper keeper, String path) 
+	throws KeeperException, InterruptedException {
+		try {
+			keeper.create(path, PENDING, ZkClock.DEFAULT_ACL, CreateMode.EPHEMERAL);
+		} catch (KeeperException.NoNodeException e) {
+			ZkPaths.createParents(keeper, path);
+			keeper.create(path, PENDING, ZkClock.DEFAULT_ACL, CreateMode.EPHEMERAL);
+		}
+	}
+
+	private String runClaimed(ZooKeeper keeper, String path, Increment increment)
+	throws SequencingException {
+		String result;
+		try {
+			result = increment.run();
+		} catch (SequencingException e) {
+			release(keeper, path);
+			throw e;
+		} catch (RuntimeException e) {
+			release(keeper, path);
+			throw e;
+		}
+		try {
+			keeper.setData(path, result.getBytes(ENCODING), -1);
+			myClaims.add(new Claim(path, myTimestampProvider.getCurrentTimeInMillis()));
+		} catch (Exception e) {
+			// the increment has been made, so the caller must still see it
+			LOG.warn(String.format("Unable to record response for %s", path), e);
+			release(keeper, path);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the response recorded against the claim at path, or null if
+	 * the claim went away without one
+	 */
+	private String awaitResult(ZooKeeper keeper, String path, long deadline, 
+								String key, String requestId)
+	throws SequencingException {
+		try {
+			while (true) {
+				final CountDownLatch changed = new CountDownLatch(1);
+				byte[] data = keeper.getData(path, new Watcher() {
+					@Override
+					public void process(WatchedEvent event) {
+						changed.countDown();
+					}
+				}, null);
+				if (data.length > 0) {
+					return new String(data, ENCODING);
+				}
+				long remaining = deadline - myTimestampProvider.getCurrentTimeInMillis();
+				if (remaining <= 0 
+						|| !changed.await(remaining, TimeUnit.MILLISECONDS)) {
+					throw new SequencingException(String.format(
+							"Request %s for key %s is still in progress on "
+							+ "another node", requestId, key), null);
+				}
+			}
+		} catch (KeeperException.NoNodeException e) {
+			return null;
+		} catch (KeeperException e) {
+			throw new SequencingException(String.format(
+					"Unable to read response for request %s for key %s", 
+					requestId, key), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SequencingException(String.format(
+					"Interrupted waiting for request %s for key %s", 
+					requestId, key), e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void release(ZooKeeper keeper, String path) {
+		try {
+			keeper.delete(path, -1);
+		} catch (KeeperException.NoNodeException e) {
+			// already gone
+		} catch (Exception e) {
+			LOG.warn(String.format("Unable to release claim %s", path), e);
+		}
+	}
+
+	void prune() {
+		long expiry = myTimestampProvider.getCurrentTimeInMillis() - myTimeToLive;
+		Claim claim = myClaims.peek();
+		while (null != claim && claim.created <= expiry) {
+			try {
+				myZooKeeperProvider.get(claim.path).delete(claim.path, -1);
+			} catch (KeeperException.NoNodeException e) {
+				// already gone, with the session which made it
+			} catch (Exception e) {
+				LOG.debug(String.format("Unable to prune claim %s, will retry", 
+											claim.path), e);
+				return;
+			}
+			myClaims.remove();
+			claim = myClaims.peek();
+		}
+	}
+
+	String pathFor(String key, String requestId) {
+		String name = key + " " + requestId;
+		try {
+			return String.format("%s/%02x/%s", myRoot, name.hashCode() & 0xff, 
+									URLEncoder.encode(name, ENCODING));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void close() {
+		myPruner.shutdownNow();
+	}
+
+	private static class Claim {
+		final String path;
+		final long created;
+
+		Claim(String path, long created) {
+			this.path = path;
+			this.created = created;
+		}
+	}
+}
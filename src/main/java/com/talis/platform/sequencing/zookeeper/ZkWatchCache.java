@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+
+/**
+ * Bounded, least recently used map from keys to what is known about them in
+ * ZooKeeper, kept fresh by watches which have this cache as their watcher. 
+ * An entry is dropped when a watch reports the kind of event which makes it
+ * stale, and the whole cache is dropped if the connection to the ensemble 
+ * is lost.
+ * 
+ * A load is started before the watch is set, and only completed if no 
+ * notification for the key has arrived in the meantime, so an event racing
+ * with the load can never leave a stale entry behind.
+ */
+abstract class ZkWatchCache<V> implements Watcher {
+
+	private final Logger myLog;
+	private final String myName;
+	private final int myMaxSize;
+	private final Map<String, Load<V>> myEntries;
+
+	/**
+	 * @param name what the cache holds, for logging
+	 */
+	ZkWatchCache(Logger log, String name, int maxSize) {
+		myLog = log;
+		myName = name;
+		myMaxSize = maxSize;
+		myEntries = new LinkedHashMap<String, Load<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Load<V>> eldest) {
+				if (size() > myMaxSize) {
+					evicted();
+					return true;
+				}
+				return false;
+			}
+		};
+		if (isEnabled()) {
+			myLog.info(String.format("Initialising %s cache. Max size: %s", 
+										name, myMaxSize));
+		}
+	}
+
+	public boolean isEnabled() {
+		return myMaxSize > 0;
+	}
+
+	/**
+	 * @return true if an event of the given type on a key makes its entry
+	 * stale
+	 */
+	protected abstract boolean invalidatedBy(Event.EventType type);
+
+	/**
+	 * Called when the least recently used entry is dropped to make room
+	 */
+	protected void evicted() {
+	}
+
+	/**
+	 * @return the loaded entry for key, or null if there is none
+	 */
+	protected synchronized V lookup(String key) {
+		Load<V> entry = myEntries.get(key);
+		return null == entry ? null : entry.value;
+	}
+
+	/**
+	 * Mark the start of a load of key. The token returned must be passed to
+	 * completeLoad or cancelLoad once the watch has been set.
+	 */
+	public synchronized Object startLoad(String key) {
+		Load<V> entry = new Load<V>();
+		myEntries.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Record value for key, unless the key has been invalidated or reloaded 
+	 * since token was issued
+	 */
+	protected synchronized void completeLoad(String key, Object token, V value) {
+		Load<V> entry = myEntries.get(key);
+		if (entry == token) {
+			entry.value = value;
+		}
+	}
+
+	/**
+	 * Abandon a load which failed, leaving any completed or later load in 
+	 * place
+	 */
+	public synchronized void cancelLoad(String key, Object token) {
+		Load<V> entry = myEntries.get(key);
+		if (entry == token && null == entry.value) {
+			myEntries.remove(key);
+		}
+	}
+
+	public synchronized void invalidate(String key) {
+		myEntries.remove(key);
+	}
+
+	public synchronized void clear() {
+		myEntries.clear();
+	}
+
+	synchronized int size() {
+		return myEntries.size();
+	}
+
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None) {
+			if (event.getState() != Event.KeeperState.SyncConnected) {
+				myLog.info(String.format("Connection state is %s, dropping %s "
+						+ "cache", event.getState(), myName));
+				clear();
+			}
+		} else if (invalidatedBy(event.getType())) {
+			myLog.debug(String.format("%s for key %s, dropping it from %s cache",
+						event.getType(), event.getPath(), myName));
+			invalidate(event.getPath());
+		}
+	}
+
+	private static class Load<V> {
+		V value;
+	}
+}
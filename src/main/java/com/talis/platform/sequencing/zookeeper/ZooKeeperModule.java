@@ -18,22 +18,62 @@ package com.talis.platform.sequencing.zookeeper;
 
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Module;
 import com.google.inject.Scopes;
 import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.ClockBackend;
+import com.talis.platform.sequencing.RequestDeduplicator;
 import com.talis.platform.sequencing.metrics.SequencingMetrics;
 import com.talis.platform.sequencing.metrics.SequencingMetricsJmx;
 import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
 import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetricsJmx;
 
-public class ZooKeeperModule extends AbstractModule {
+public class ZooKeeperModule extends AbstractModule implements ClockBackend {
+
+	public static final String NAME = "zookeeper";
 
 	@Override
 	protected void configure() {
 		bind(ZooKeeperProvider.class).in(Scopes.SINGLETON);
-		bind(Clock.class).to(ZkClock.class);
+		bind(IncrementCombiner.class).in(Scopes.SINGLETON);
+		bind(ZkReadCache.class).in(Scopes.SINGLETON);
+		bind(ZkMissCache.class).in(Scopes.SINGLETON);
+		bind(ContentionBackoff.class).in(Scopes.SINGLETON);
+		if (BucketedKeyLayout.isConfigured()) {
+			bind(KeyLayout.class).to(BucketedKeyLayout.class).in(Scopes.SINGLETON);
+		} else {
+			bind(KeyLayout.class).to(FlatKeyLayout.class).in(Scopes.SINGLETON);
+		}
+		bind(ZkClock.class).in(Scopes.SINGLETON);
+		bindClock();
+		if (ZkRequestDeduplicator.isConfigured()) {
+			bind(RequestDeduplicator.class).to(ZkRequestDeduplicator.class).in(Scopes.SINGLETON);
+		}
 		bind(ZooKeeperMetrics.class).to(ZooKeeperMetricsJmx.class).in(Scopes.SINGLETON);
 		bind(SequencingMetrics.class).to(SequencingMetricsJmx.class).in(Scopes.SINGLETON);
 	}
 
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Module getModule() {
+		return this;
+	}
+
+	protected void bindClock() {
+		if (OwnershipClock.isConfigured()) {
+			bind(Clock.class).to(OwnershipClock.class).in(Scopes.SINGLETON);
+		} else if (FederatedClock.isConfigured()) {
+			bind(Clock.class).to(FederatedClock.class).in(Scopes.SINGLETON);
+		} else if (BlockLeasingClock.isConfigured()) {
+			bind(Clock.class).to(BlockLeasingClock.class).in(Scopes.SINGLETON);
+		} else {
+			bind(Clock.class).to(ZkClock.class);
+		}
+	}
+
 }
 	
\ No newline at end of file
@@ -19,6 +19,18 @@ package com.talis.platform.sequencing.zookeeper;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -31,6 +43,25 @@ import org.slf4j.LoggerFactory;
 import com.google.inject.Provider;
 
 
+/**
+ * Provides the ZooKeeper sessions used to generate sequences. By default 
+ * there is a single session, but a pool of them can be configured so that 
+ * traffic is spread over several sockets and client event threads. Keys are 
+ * striped over the pool by hash, so all operations on any one key go 
+ * through the same session and stay in order. Each session connects to the
+ * whole ensemble; the client picks a server from the list at random, so the
+ * sessions in a pool are spread across the servers.
+ * 
+ * When a session expires its replacement is opened straight away in the 
+ * background. Requests which hit the expired session can be parked until 
+ * the replacement is connected, within a bounded queue and a deadline, 
+ * rather than failing or waiting on the connection themselves.
+ * 
+ * The server list file normally holds a single ZooKeeper connect string.
+ * It may instead name several ensembles, one per line, as name=connect 
+ * string; get() then connects to the first of them, and the federated clock
+ * opens a provider for each.
+ */
 public class ZooKeeperProvider implements Provider<ZooKeeper>, Watcher{
 
 	static final Logger LOG = LoggerFactory.getLogger(ZooKeeperProvider.class);
@@ -47,93 +78,251 @@ public class ZooKeeperProvider implements Provider<ZooKeeper>, Watcher{
 	public static final String CONNECTION_TIMEOUT_PROPERTY = 
 		"com.talis.platform.sequencing.zookeeper.connection.timeout";
 	
-	private String ensembleList;
-	private volatile ZooKeeper zookeeper;
-	private boolean connected = false;
+	public static final int DEFAULT_POOL_SIZE = 1;
+	public static final String POOL_SIZE_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.pool.size";
+	
+	public static final int DEFAULT_PARK_CAPACITY = 1000;
+	public static final String PARK_CAPACITY_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.park.capacity";
 
-	@Override
-	public void process(WatchedEvent event) {
-		switch (event.getType()) {
-		case None:
-			processNoneTypeEvent(event.getState());
-		default:
-			// do nothing
-		}
+	public static final long DEFAULT_PARK_TIMEOUT = 2000l;
+	public static final String PARK_TIMEOUT_PROPERTY = 
+		"com.talis.platform.sequencing.zookeeper.park.timeout";
+
+	// name given to the ensemble in a server list which doesn't name any
+	public static final String DEFAULT_ENSEMBLE = "default";
+
+	/**
+	 * A request waiting for an expired session to be replaced
+	 */
+	public interface ParkedRequest {
+		/**
+		 * The replacement session is connected
+		 */
+		public void resume(ZooKeeper keeper);
+		/**
+		 * The session could not be replaced in time, or too many requests
+		 * were already waiting for it
+		 */
+		public void expire();
 	}
 
-	private void processNoneTypeEvent(Event.KeeperState state) {
-		switch (state) {
-		case SyncConnected:
-			LOG.info("Received connected event, notifying waiting thread "
-					+ "(there should only be one)");
-			synchronized (this) {
-				connected = true;
-				notify();
+	// Parked requests are resumed and expired here, off the ZooKeeper event
+	// thread and off the threads of the requests which parked them
+	private static final ScheduledExecutorService PARKING = 
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-zk-park");
+				thread.setDaemon(true);
+				return thread;
 			}
-			break;
-		case Expired:
-			LOG.info("Session expired event, disposing of client instance");
-			reset();
-			break;
-		default:
-			// do nothing
+		});
+
+	// Sessions are looked up here for parked requests whose handle the pool
+	// doesn't know, as the lookup may block waiting for a connection and 
+	// must not hold up the parking thread. The lookup is immediate while the
+	// session is connected, so threads are only kept busy while it is not.
+	private static final ExecutorService LOOKUP = 
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "h1-zk-park-lookup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	private final String fixedEnsembleList;
+	private String ensembleList;
+	private final Session[] sessions;
+	private final int parkCapacity = 
+		Integer.getInteger(PARK_CAPACITY_PROPERTY, DEFAULT_PARK_CAPACITY);
+
+	public ZooKeeperProvider() {
+		this(null);
+	}
+
+	/**
+	 * Provide sessions for the given ensemble rather than the one in the 
+	 * server list file
+	 */
+	public ZooKeeperProvider(String ensembleList) {
+		fixedEnsembleList = ensembleList;
+		int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+		if (poolSize < 1) {
+			throw new IllegalArgumentException(
+					"ZooKeeper session pool size must be positive");
+		}
+		sessions = new Session[poolSize];
+		for (int i = 0; i < poolSize; i++) {
+			sessions[i] = new Session(i);
 		}
 	}
 
+	/**
+	 * Watcher for the first session in the pool, which is the one handed out
+	 * by get()
+	 */
+	@Override
+	public void process(WatchedEvent event) {
+		sessions[0].process(event);
+	}
+
 	@Override
 	public ZooKeeper get(){
-		if (null == zookeeper) {
-			LOG.info("No ZooKeeper instance cached");
-			synchronized (this) {
-				if (null == zookeeper) {
-					try {
-						zookeeper = newKeeperInstance();
-						LOG.info("Waiting for connection to zookeeper server");
-						waitForConnection();
-					} catch (IOException e) {
-						LOG.error("Unable to create ZooKeeper instance", e);
-						throw new ZooKeeperInitialisationException(
-								"Unable to provide client for sequence generation",
-								e);
-					}
-				}
-			}
-		}else{
-			LOG.info("Returning cached ZooKeeper instance");
+		return sessions[0].get();
+	}
+
+	/**
+	 * @return the session which operations on key should go through
+	 */
+	public ZooKeeper get(String key) {
+		return get(stripeFor(key));
+	}
+
+	/**
+	 * @return the session at the given position in the pool
+	 */
+	public ZooKeeper get(int stripe) {
+		if (0 == stripe) {
+			return get();
 		}
-		return zookeeper;
+		return sessions[stripe].get();
 	}
 
-	private void waitForConnection() throws ZooKeeperInitialisationException {
-		long connectionTimeout = Long.getLong(CONNECTION_TIMEOUT_PROPERTY,
-												DEFAULT_CONNECTION_TIMEOUT);
-		synchronized (this) {
-			try {
-				wait(connectionTimeout);
-			} catch (InterruptedException e) {
-				LOG.info("Interrupted while waiting for connection");
-			}
-			
-			if (!connected) {
-				zookeeper = null;
-				throw new ZooKeeperInitialisationException("Connection timed out or interrupted");
+	public int getPoolSize() {
+		return sessions.length;
+	}
+
+	public int stripeFor(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % sessions.length;
+	}
+
+	/**
+	 * @return true if the session at the given position in the pool is 
+	 * currently connected
+	 */
+	public boolean isConnected(int stripe) {
+		return sessions[stripe].isConnected();
+	}
+
+	/**
+	 * @return the number of times the session at the given position in the 
+	 * pool has (re)connected
+	 */
+	public int getConnections(int stripe) {
+		return sessions[stripe].connections.get();
+	}
+
+	/**
+	 * @return the number of times the session at the given position in the 
+	 * pool has expired
+	 */
+	public int getExpiries(int stripe) {
+		return sessions[stripe].expiries.get();
+	}
+
+	public String getEnsembleList() throws IOException {
+		synchronized (sessions) {
+			if (null == ensembleList) {
+				ensembleList = null == fixedEnsembleList 
+						? readEnsembleList() : fixedEnsembleList;
 			}
+			return ensembleList;
 		}
 	}
 
-	public String getEnsembleList() throws IOException {
-		if (null == ensembleList) {
-			ensembleList = readEnsembleList();
+	public void reset() {
+		synchronized (sessions) {
+			ensembleList = null;
+		}
+		for (Session session : sessions) {
+			session.reset();
 		}
-		return ensembleList;
 	}
 
-	public synchronized void reset() {
-		ensembleList = null;
-		zookeeper = null;
+	/**
+	 * Park a request which failed because its session expired, until the 
+	 * replacement session is connected. The request is resumed with the new
+	 * session, or expired if the queue for the session is full or the 
+	 * session is not back before the park timeout. Each request is told 
+	 * exactly once, on a background thread.
+	 */
+	public void park(int stripe, ZooKeeper expired, ParkedRequest request) {
+		Parked parked = new Parked(request);
+		long timeout = Long.getLong(PARK_TIMEOUT_PROPERTY, DEFAULT_PARK_TIMEOUT);
+		parked.timeout = PARKING.schedule(parked.expiry(), timeout, 
+											TimeUnit.MILLISECONDS);
+		Session session = sessions[stripe];
+		if (session.manages(expired)) {
+			session.park(expired, parked);
+		} else {
+			// the handle didn't come from this session, so just ask for
+			// whatever is current
+			LOOKUP.execute(parked.lookup(stripe, expired));
+		}
+	}
+
+	/**
+	 * The number of requests currently parked on the session at the given 
+	 * position in the pool
+	 */
+	public int getParked(int stripe) {
+		return sessions[stripe].parkedCount();
+	}
+
+	/**
+	 * @return the connect string of each ensemble in the server list file,
+	 * by name, in the order they are listed
+	 */
+	public Map<String, String> getEnsembles() throws IOException {
+		return parseEnsembles(readServerList());
+	}
+
+	static Map<String, String> parseEnsembles(List<String> lines) {
+		Map<String, String> ensembles = new LinkedHashMap<String, String>();
+		for (String line : lines) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			int separator = line.indexOf('=');
+			if (separator < 0) {
+				if (!ensembles.isEmpty()) {
+					throw new IllegalArgumentException(String.format(
+							"Unnamed ensemble %s in a list of named ensembles", line));
+				}
+				// a plain connect string is the whole list
+				ensembles.put(DEFAULT_ENSEMBLE, line);
+				break;
+			}
+			String name = line.substring(0, separator).trim();
+			String list = line.substring(separator + 1).trim();
+			if (name.length() == 0 || list.length() == 0 
+					|| ensembles.containsKey(name)) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid ensemble definition %s", line));
+			}
+			ensembles.put(name, list);
+		}
+		if (ensembles.isEmpty()) {
+			throw new IllegalArgumentException("No ZooKeeper ensembles listed");
+		}
+		return ensembles;
 	}
 
 	private String readEnsembleList() throws IOException {
+		String list = getEnsembles().values().iterator().next();
+		if (LOG.isInfoEnabled()) {
+			LOG.info(String.format("Read ensemble list => %s", list));
+		}
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> readServerList() throws IOException {
 		InputStream ensembleListStream = this.getClass().getResourceAsStream(
 				DEFAULT_SERVER_LIST_LOCATION);
 		String theFilename = System.getProperty(SERVER_LIST_LOCATION_PROPERTY);
@@ -150,30 +339,308 @@ public class ZooKeeperProvider implements Provider<ZooKeeper>, Watcher{
 			ensembleListStream = FileUtils
 					.openInputStream(new File(theFilename));
 		}
+		try {
+			return IOUtils.readLines(ensembleListStream);
+		} finally {
+			IOUtils.closeQuietly(ensembleListStream);
+		}
+	}
 
-		String list = ((String) IOUtils.readLines(ensembleListStream).get(0))
-				.trim();
-		if (LOG.isInfoEnabled()) {
-			LOG.info(String.format("Read ensemble list => %s", list));
+	private class Parked {
+		private final ParkedRequest request;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+		private volatile Future<?> timeout;
+
+		Parked(ParkedRequest request) {
+			this.request = request;
+		}
+
+		void resume(ZooKeeper keeper) {
+			if (done.compareAndSet(false, true)) {
+				cancelTimeout();
+				request.resume(keeper);
+			}
+		}
+
+		void expire() {
+			if (done.compareAndSet(false, true)) {
+				cancelTimeout();
+				request.expire();
+			}
+		}
+
+		private void cancelTimeout() {
+			if (null != timeout) {
+				timeout.cancel(false);
+			}
+		}
+
+		Runnable resumption(final ZooKeeper keeper) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					resume(keeper);
+				}
+			};
+		}
+
+		Runnable expiry() {
+			return new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			};
+		}
+
+		/**
+		 * Run on the lookup executor, handing the outcome back to the 
+		 * parking thread
+		 */
+		Runnable lookup(final int stripe, final ZooKeeper expired) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ZooKeeper keeper = get(stripe);
+						if (keeper != expired) {
+							PARKING.execute(resumption(keeper));
+							return;
+						}
+					} catch (RuntimeException e) {
+						LOG.warn(String.format("Unable to replace expired "
+								+ "ZooKeeper session %s", stripe), e);
+					}
+					PARKING.execute(expiry());
+				}
+			};
 		}
-		return list;
 	}
 
-	private ZooKeeper newKeeperInstance() throws IOException {
-		int sessionTimeout = Integer.getInteger(SESSION_TIMEOUT_PROPERTY,
-				DEFAULT_SESSION_TIMEOUT);
+	private class Session implements Watcher {
 
-		if (LOG.isInfoEnabled()) {
-			LOG.info(String.format(
-					"Creating new ZooKeeper instance. Servers: %s | Session Timeout: %s",
-					getEnsembleList(), sessionTimeout));
+		private final int index;
+		private volatile ZooKeeper zookeeper;
+		private volatile ZooKeeper previous;
+		// whether the current client has connected since it was created
+		private volatile boolean connected = false;
+		private volatile boolean disconnected = false;
+		private final List<Parked> parked = new ArrayList<Parked>();
+		private final AtomicInteger connections = new AtomicInteger(0);
+		private final AtomicInteger expiries = new AtomicInteger(0);
+
+		Session(int index) {
+			this.index = index;
 		}
-		connected = false;
-		ZooKeeper keeper = new ZooKeeper(getEnsembleList(), sessionTimeout, this);
 
-		if (LOG.isInfoEnabled()) {
-			LOG.info("Created ZooKeeper instance");
+		@Override
+		public void process(WatchedEvent event) {
+			switch (event.getType()) {
+			case None:
+				processNoneTypeEvent(event.getState());
+			default:
+				// do nothing
+			}
+		}
+
+		private void processNoneTypeEvent(Event.KeeperState state) {
+			switch (state) {
+			case SyncConnected:
+				LOG.info(String.format("Session %s received connected event, "
+						+ "notifying waiting threads", index));
+				connections.incrementAndGet();
+				List<Parked> ready;
+				ZooKeeper keeper;
+				synchronized (this) {
+					connected = true;
+					disconnected = false;
+					notifyAll();
+					keeper = zookeeper;
+					ready = new ArrayList<Parked>(parked);
+					parked.clear();
+				}
+				for (Parked request : ready) {
+					PARKING.execute(request.resumption(keeper));
+				}
+				break;
+			case Disconnected:
+				LOG.info(String.format("Session %s disconnected", index));
+				disconnected = true;
+				break;
+			case Expired:
+				LOG.info(String.format("Session %s expired, opening a "
+						+ "replacement", index));
+				expiries.incrementAndGet();
+				reconnect(zookeeper);
+				break;
+			default:
+				// do nothing
+			}
+		}
+
+		ZooKeeper get() {
+			ZooKeeper keeper = zookeeper;
+			if (isUsable(keeper) && connected) {
+				return keeper;
+			}
+			LOG.info(String.format("No connected ZooKeeper instance for "
+					+ "session %s", index));
+			synchronized (this) {
+				if (!isUsable(zookeeper)) {
+					try {
+						zookeeper = newKeeperInstance();
+					} catch (IOException e) {
+						LOG.error("Unable to create ZooKeeper instance", e);
+						throw new ZooKeeperInitialisationException(
+								"Unable to provide client for sequence generation",
+								e);
+					}
+				}
+				if (!connected) {
+					LOG.info("Waiting for connection to zookeeper server");
+					waitForConnection();
+				}
+				return zookeeper;
+			}
+		}
+
+		// a client whose session has expired is closed, but the expiry event
+		// that makes us dispose of it may not have been delivered yet
+		private boolean isUsable(ZooKeeper keeper) {
+			return null != keeper && keeper.getState().isAlive();
+		}
+
+		boolean isConnected() {
+			return isUsable(zookeeper) && connected && !disconnected;
+		}
+
+		boolean manages(ZooKeeper keeper) {
+			return null != keeper && (keeper == zookeeper || keeper == previous);
+		}
+
+		synchronized int parkedCount() {
+			return parked.size();
+		}
+
+		void park(ZooKeeper expired, Parked request) {
+			synchronized (this) {
+				if (expired == zookeeper || !connected) {
+					if (parked.size() >= parkCapacity) {
+						LOG.warn(String.format("Too many requests parked on "
+								+ "session %s, failing fast", index));
+						PARKING.execute(request.expiry());
+						return;
+					}
+					parked.add(request);
+				} else {
+					// the replacement is already connected
+					PARKING.execute(request.resumption(zookeeper));
+					return;
+				}
+			}
+			// the request may have seen the expiry before we did
+			reconnect(expired);
+		}
+
+		/**
+		 * Open a replacement for the given client unless that has already
+		 * been done. This doesn't wait for the new client to connect.
+		 */
+		void reconnect(ZooKeeper expired) {
+			List<Parked> failed = null;
+			synchronized (this) {
+				if (null == expired || expired != zookeeper) {
+					return;
+				}
+				try {
+					previous = zookeeper;
+					zookeeper = newKeeperInstance();
+				} catch (IOException e) {
+					LOG.error(String.format("Unable to replace ZooKeeper "
+							+ "instance for session %s", index), e);
+					zookeeper = null;
+					failed = new ArrayList<Parked>(parked);
+					parked.clear();
+				}
+			}
+			if (null != failed) {
+				for (Parked request : failed) {
+					PARKING.execute(request.expiry());
+				}
+			}
+		}
+
+		synchronized void reset() {
+			zookeeper = null;
+			previous = null;
+			connected = false;
+			disconnected = false;
+		}
+
+		private void waitForConnection() throws ZooKeeperInitialisationException {
+			long connectionTimeout = Long.getLong(CONNECTION_TIMEOUT_PROPERTY,
+													DEFAULT_CONNECTION_TIMEOUT);
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + connectionTimeout;
+				long remaining = connectionTimeout;
+				try {
+					while (!connected && remaining > 0) {
+						wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					LOG.info("Interrupted while waiting for connection");
+				}
+				
+				if (!connected) {
+					zookeeper = null;
+					throw new ZooKeeperInitialisationException("Connection timed out or interrupted");
+				}
+			}
+		}
+
+		// must be called holding the lock on this session
+		private ZooKeeper newKeeperInstance() throws IOException {
+			int sessionTimeout = Integer.getInteger(SESSION_TIMEOUT_PROPERTY,
+					DEFAULT_SESSION_TIMEOUT);
+
+			if (LOG.isInfoEnabled()) {
+				LOG.info(String.format(
+						"Creating new ZooKeeper instance for session %s. "
+						+ "Servers: %s | Session Timeout: %s",
+						index, getEnsembleList(), sessionTimeout));
+			}
+			connected = false;
+			disconnected = false;
+			ClientWatcher watcher = new ClientWatcher();
+			ZooKeeper keeper = new ZooKeeper(getEnsembleList(), sessionTimeout, 
+												watcher);
+			watcher.keeper = keeper;
+
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Created ZooKeeper instance");
+			}
+			return keeper;
+		}
+
+		/**
+		 * Passes on events for the session's current client, and drops those
+		 * from clients it has already replaced
+		 */
+		private class ClientWatcher implements Watcher {
+			private volatile ZooKeeper keeper;
+
+			@Override
+			public void process(WatchedEvent event) {
+				boolean current;
+				// the client and this watcher are both set up under the lock
+				synchronized (Session.this) {
+					current = keeper == zookeeper;
+				}
+				if (current) {
+					Session.this.process(event);
+				}
+			}
 		}
-		return keeper;
 	}
 }
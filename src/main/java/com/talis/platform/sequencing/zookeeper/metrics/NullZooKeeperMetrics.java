@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper.metrics;
+
+public class NullZooKeeperMetrics implements ZooKeeperMetrics {
+
+	@Override
+	public void incrementKeyCollisions(String key) {}
+
+	@Override
+	public void incrementKeyCreations() {}
+
+	@Override
+	public void recordKeyCreationLatency(long latency) {}
+
+	@Override
+	public void incrementKeeperExceptions() {}
+
+	@Override
+	public void incrementSessionExpiredEvents() {}
+
+	@Override
+	public void incrementConnectionLossEvents() {}
+
+	@Override
+	public void incrementInterruptedExceptions() {}
+
+	@Override
+	public void incrementReadCacheHits() {}
+
+	@Override
+	public void incrementReadCacheMisses() {}
+
+	@Override
+	public void incrementReadCacheEvictions() {}
+
+	@Override
+	public void incrementMissCacheHits() {}
+
+	@Override
+	public void recordCasAttempts(int attempts) {}
+
+	@Override
+	public void recordGetDataLatency(long latency) {}
+
+	@Override
+	public void recordSetDataLatency(long latency) {}
+
+	@Override
+	public void recordCreateLatency(long latency) {}
+
+	@Override
+	public void recordCasRetryLatency(long latency) {}
+
+	@Override
+	public void recordWaitLatency(long latency) {}
+
+}
@@ -16,13 +16,27 @@
 
 package com.talis.platform.sequencing.zookeeper.metrics;
 
+/**
+ * Latencies are in nanoseconds
+ */
 public interface ZooKeeperMetrics {
 
-	public void incrementKeyCollisions();
+	public void incrementKeyCollisions(String key);
 	public void incrementKeyCreations();
+	public void recordKeyCreationLatency(long latency);
 	public void incrementKeeperExceptions();
 	public void incrementSessionExpiredEvents();
 	public void incrementConnectionLossEvents();
 	public void incrementInterruptedExceptions();
+	public void incrementReadCacheHits();
+	public void incrementReadCacheMisses();
+	public void incrementReadCacheEvictions();
+	public void incrementMissCacheHits();
+	public void recordCasAttempts(int attempts);
+	public void recordGetDataLatency(long latency);
+	public void recordSetDataLatency(long latency);
+	public void recordCreateLatency(long latency);
+	public void recordCasRetryLatency(long latency);
+	public void recordWaitLatency(long latency);
 	
 }
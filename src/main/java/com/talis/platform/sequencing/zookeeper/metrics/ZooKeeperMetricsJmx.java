@@ -17,23 +17,57 @@
 package com.talis.platform.sequencing.zookeeper.metrics;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
 
+import com.google.inject.Inject;
 import com.talis.jmx.JmxSupport;
+import com.talis.platform.sequencing.metrics.HotKeys;
+import com.talis.platform.sequencing.metrics.HotKeysJmx;
+import com.talis.platform.sequencing.metrics.LatencyMetric;
+import com.talis.platform.sequencing.metrics.OpenMetric;
+import com.talis.platform.sequencing.metrics.OpenMetricsRegistry;
+import com.talis.platform.sequencing.metrics.OpenMetricsWriter;
+import com.talis.platform.sequencing.metrics.RollingCounter;
+import com.talis.platform.sequencing.metrics.StripedCounter;
+import com.talis.platform.sequencing.zookeeper.ZooKeeperProvider;
 
 public class ZooKeeperMetricsJmx extends JmxSupport
 implements ZooKeeperMetrics, ZooKeeperMetricsJmxMBean {
 
+	// hot keys are reported by HotKeysJmx
+	private final HotKeys keyCollisions;
+	// the pool whose sessions are reported, once known
+	private volatile ZooKeeperProvider sessions;
 	
 	public ZooKeeperMetricsJmx() throws MalformedObjectNameException,
 			InstanceAlreadyExistsException, MBeanRegistrationException,
 			NotCompliantMBeanException, NullPointerException, IOException {
+		this(new HotKeys());
+	}
+
+	@Inject
+	public ZooKeeperMetricsJmx(HotKeysJmx hotKeys, OpenMetricsRegistry registry,
+								ZooKeeperProvider sessions) 
+	throws MalformedObjectNameException, InstanceAlreadyExistsException, 
+			MBeanRegistrationException, NotCompliantMBeanException, 
+			NullPointerException, IOException {
+		this(hotKeys.getCollisions());
+		watchSessions(sessions);
+		registry.register(getOpenMetrics(), null);
+	}
+
+	ZooKeeperMetricsJmx(HotKeys keyCollisions) throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException, NullPointerException, IOException {
 		super();
+		this.keyCollisions = keyCollisions;
 	}
 
 	@Override
@@ -41,85 +75,741 @@ implements ZooKeeperMetrics, ZooKeeperMetricsJmxMBean {
 		return "com.talis:name=ZkSequencingMetrics";
 	};
 	
-	private final AtomicInteger keyCollisions = new AtomicInteger(0);
+	/**
+	 * Metrics for one of several federated ensembles, registered under the
+	 * usual name qualified by the name of the ensemble
+	 */
+	public static ZooKeeperMetricsJmx forEnsemble(final String ensemble) 
+	throws MalformedObjectNameException, InstanceAlreadyExistsException, 
+			MBeanRegistrationException, NotCompliantMBeanException, 
+			NullPointerException, IOException {
+		return forEnsemble(ensemble, new HotKeys());
+	}
+
+	/**
+	 * @param keyCollisions shared with the other ensembles, so that the 
+	 * hot keys are ranked across all of them
+	 */
+	public static ZooKeeperMetricsJmx forEnsemble(final String ensemble, 
+												HotKeys keyCollisions) 
+	throws MalformedObjectNameException, InstanceAlreadyExistsException, 
+			MBeanRegistrationException, NotCompliantMBeanException, 
+			NullPointerException, IOException {
+		// the bean is registered by the superclass constructor, which is
+		// fine here as captured variables are assigned before it runs
+		return new ZooKeeperMetricsJmx(keyCollisions) {
+			@Override
+			public String getBeanName() {
+				return "com.talis:name=ZkSequencingMetrics,ensemble=" 
+						+ ObjectName.quote(ensemble);
+			}
+		};
+	}
+	
+	/**
+	 * Report the state of each session in the provider's pool
+	 */
+	public void watchSessions(ZooKeeperProvider provider) {
+		sessions = provider;
+	}
+	
+	/**
+	 * @return these metrics as exported to Prometheus; hot keys are left out.
+	 * Federated ensembles export theirs under the same names, labelled with
+	 * the name of the ensemble.
+	 */
+	public List<OpenMetric> getOpenMetrics() {
+		List<OpenMetric> metrics = new ArrayList<OpenMetric>();
+		metrics.add(OpenMetric.counter("h1_zk_key_collisions", 
+				"Increments which lost a version conflict", collisions));
+		metrics.add(OpenMetric.counter("h1_zk_key_creations", 
+				"Keys created", keyCreations));
+		metrics.add(OpenMetric.summary("h1_zk_key_creation_latency_seconds", 
+				"Latency of the first increment of new keys", keyCreationLatency));
+		metrics.add(OpenMetric.counter("h1_zk_connection_losses", 
+				"Operations which lost their connection", connectionLossEvents));
+		metrics.add(OpenMetric.counter("h1_zk_session_expiries", 
+				"Operations whose session expired", sessionExpiredEvents));
+		metrics.add(OpenMetric.counter("h1_zk_interruptions", 
+				"Operations interrupted while waiting", interruptedExceptions));
+		metrics.add(OpenMetric.counter("h1_zk_keeper_exceptions", 
+				"Operations which failed in ZooKeeper, for any reason", 
+				keeperExceptions));
+		metrics.add(OpenMetric.counter("h1_zk_read_cache_hits", 
+				"Reads answered from the read cache", readCacheHits));
+		metrics.add(OpenMetric.counter("h1_zk_read_cache_misses", 
+				"Reads not found in the read cache", readCacheMisses));
+		metrics.add(OpenMetric.counter("h1_zk_read_cache_evictions", 
+				"Entries evicted from the read cache", readCacheEvictions));
+		metrics.add(OpenMetric.counter("h1_zk_miss_cache_hits", 
+				"Reads of missing keys answered from the miss cache", 
+				missCacheHits));
+		metrics.add(new CasAttemptsHistogram());
+		metrics.add(OpenMetric.summary("h1_zk_get_data_latency_seconds", 
+				"Latency of getData round trips", getDataLatency));
+		metrics.add(OpenMetric.summary("h1_zk_set_data_latency_seconds", 
+				"Latency of setData round trips", setDataLatency));
+		metrics.add(OpenMetric.summary("h1_zk_create_latency_seconds", 
+				"Latency of create round trips", createLatency));
+		metrics.add(OpenMetric.summary("h1_zk_cas_retry_latency_seconds", 
+				"Time lost to conflicts by increments needing more than one attempt", 
+				casRetryLatency));
+		metrics.add(OpenMetric.summary("h1_zk_wait_latency_seconds", 
+				"Time spent backing off or waiting for a new session", 
+				waitLatency));
+		metrics.add(new SessionMetric("h1_zk_pool_session_connected", 
+				OpenMetric.GAUGE, "1 if the pooled session is connected") {
+			@Override
+			long valueFor(ZooKeeperProvider provider, int session) {
+				return provider.isConnected(session) ? 1 : 0;
+			}
+		});
+		metrics.add(new SessionMetric("h1_zk_pool_session_connections", 
+				OpenMetric.COUNTER, "Times the pooled session has (re)connected") {
+			@Override
+			long valueFor(ZooKeeperProvider provider, int session) {
+				return provider.getConnections(session);
+			}
+		});
+		metrics.add(new SessionMetric("h1_zk_pool_session_expiries", 
+				OpenMetric.COUNTER, "Times the pooled session has expired") {
+			@Override
+			long valueFor(ZooKeeperProvider provider, int session) {
+				return provider.getExpiries(session);
+			}
+		});
+		metrics.add(new SessionMetric("h1_zk_pool_session_parked_requests", 
+				OpenMetric.GAUGE, 
+				"Requests waiting for the pooled session to be replaced") {
+			@Override
+			long valueFor(ZooKeeperProvider provider, int session) {
+				return provider.getParked(session);
+			}
+		});
+		return metrics;
+	}
+
+	/**
+	 * One sample for each session in the pool, labelled with its position
+	 */
+	private abstract class SessionMetric extends OpenMetric {
+		private final String sample;
+
+		SessionMetric(String name, String type, String help) {
+			super(name, type, help);
+			sample = COUNTER.equals(type) ? name + "_total" : name;
+		}
+
+		abstract long valueFor(ZooKeeperProvider provider, int session);
+
+		@Override
+		public void writeSamples(OpenMetricsWriter out, String labels) 
+		throws IOException {
+			ZooKeeperProvider provider = sessions;
+			if (null == provider) {
+				return;
+			}
+			int size = provider.getPoolSize();
+			for (int i = 0; i < size; i++) {
+				out.sample(sample, labels, OpenMetricsWriter.label("session", 
+						Integer.toString(i)), valueFor(provider, i));
+			}
+		}
+	}
+	
+	private final RollingCounter collisions = new RollingCounter();
 	@Override
-	public void incrementKeyCollisions() {
-		keyCollisions.incrementAndGet();
+	public void incrementKeyCollisions(String key) {
+		collisions.increment();
+		keyCollisions.record(key);
 	}
 	
 	@Override
-	public int getKeyCollisions() {
-		int valueToReturn = keyCollisions.get();
-		keyCollisions.set(0);
-		return valueToReturn;
+	public long getKeyCollisions() {
+		return collisions.getTotal();
+	}
+
+	@Override
+	public long getKeyCollisions1m() {
+		return collisions.getLastMinutes(1);
+	}
+
+	@Override
+	public long getKeyCollisions5m() {
+		return collisions.getLastMinutes(5);
+	}
+
+	@Override
+	public long getKeyCollisions15m() {
+		return collisions.getLastMinutes(15);
 	}
 	
-	private final AtomicInteger keyCreations = new AtomicInteger(0);
+	private final RollingCounter keyCreations = new RollingCounter();
 	@Override
 	public void incrementKeyCreations() {
-		keyCreations.incrementAndGet();
+		keyCreations.increment();
 	}
 
 	@Override
-	public int getKeyCreations() {
-		int valueToReturn = keyCreations.get();
-		keyCreations.set(0);
-		return valueToReturn;
+	public long getKeyCreations() {
+		return keyCreations.getTotal();
 	}
 
+	@Override
+	public long getKeyCreations1m() {
+		return keyCreations.getLastMinutes(1);
+	}
+
+	@Override
+	public long getKeyCreations5m() {
+		return keyCreations.getLastMinutes(5);
+	}
 
-	private final AtomicInteger connectionLossEvents = new AtomicInteger(0);
+	@Override
+	public long getKeyCreations15m() {
+		return keyCreations.getLastMinutes(15);
+	}
+
+	// first increments of new keys, kept apart from the request latencies
+	private final LatencyMetric keyCreationLatency = new LatencyMetric();
+	@Override
+	public void recordKeyCreationLatency(long latency) {
+		keyCreationLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getAverageKeyCreationLatency() {
+		return keyCreationLatency.getAverageLatency();
+	}
+
+	@Override
+	public long getMinKeyCreationLatency() {
+		return keyCreationLatency.getMinLatency();
+	}
+
+	@Override
+	public long getMaxKeyCreationLatency() {
+		return keyCreationLatency.getMaxLatency();
+	}
+
+	@Override
+	public long getKeyCreationLatencyP50() {
+		return keyCreationLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getKeyCreationLatencyP90() {
+		return keyCreationLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getKeyCreationLatencyP99() {
+		return keyCreationLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getKeyCreationLatencyP999() {
+		return keyCreationLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getKeyCreationLatencyMax() {
+		return keyCreationLatency.getHighestLatencyMicros();
+	}
+
+
+	private final RollingCounter connectionLossEvents = new RollingCounter();
 	@Override
 	public void incrementConnectionLossEvents() {
-		connectionLossEvents.incrementAndGet();
-		keeperExceptions.incrementAndGet();
+		connectionLossEvents.increment();
+		keeperExceptions.increment();
+	}
+
+	@Override
+	public long getConnectionLossEvents() {
+		return connectionLossEvents.getTotal();
+	}
+
+	@Override
+	public long getConnectionLossEvents1m() {
+		return connectionLossEvents.getLastMinutes(1);
+	}
+
+	@Override
+	public long getConnectionLossEvents5m() {
+		return connectionLossEvents.getLastMinutes(5);
 	}
 
 	@Override
-	public int getConnectionLossEvents() {
-		int valueToReturn = connectionLossEvents.get();
-		connectionLossEvents.set(0);
-		return valueToReturn;
+	public long getConnectionLossEvents15m() {
+		return connectionLossEvents.getLastMinutes(15);
 	}
 
-	private final AtomicInteger sessionExpiredEvents = new AtomicInteger(0);
+	private final RollingCounter sessionExpiredEvents = new RollingCounter();
 	@Override
 	public void incrementSessionExpiredEvents() {
-		sessionExpiredEvents.incrementAndGet();
-		keeperExceptions.incrementAndGet();
+		sessionExpiredEvents.increment();
+		keeperExceptions.increment();
 	}
 
 	@Override
-	public int getSessionExpiredEvents() {
-		int valueToReturn = sessionExpiredEvents.get();
-		sessionExpiredEvents.set(0);
-		return valueToReturn;
+	public long getSessionExpiredEvents() {
+		return sessionExpiredEvents.getTotal();
 	}
 
-	private final AtomicInteger interruptedExceptions = new AtomicInteger(0);
+	@Override
+	public long getSessionExpiredEvents1m() {
+		return sessionExpiredEvents.getLastMinutes(1);
+	}
+
+	@Override
+	public long getSessionExpiredEvents5m() {
+		return sessionExpiredEvents.getLastMinutes(5);
+	}
+
+	@Override
+	public long getSessionExpiredEvents15m() {
+		return sessionExpiredEvents.getLastMinutes(15);
+	}
+
+	private final RollingCounter interruptedExceptions = new RollingCounter();
 	@Override
 	public void incrementInterruptedExceptions() {
-		interruptedExceptions.incrementAndGet();
+		interruptedExceptions.increment();
 	}
 	
 	@Override
-	public int getInterruptedExceptions() {
-		int valueToReturn = interruptedExceptions.get();
-		interruptedExceptions.set(0);
-		return valueToReturn;
+	public long getInterruptedExceptions() {
+		return interruptedExceptions.getTotal();
 	}
 
-	private final AtomicInteger keeperExceptions = new AtomicInteger(0);
+	@Override
+	public long getInterruptedExceptions1m() {
+		return interruptedExceptions.getLastMinutes(1);
+	}
+
+	@Override
+	public long getInterruptedExceptions5m() {
+		return interruptedExceptions.getLastMinutes(5);
+	}
+
+	@Override
+	public long getInterruptedExceptions15m() {
+		return interruptedExceptions.getLastMinutes(15);
+	}
+
+	private final RollingCounter keeperExceptions = new RollingCounter();
 	@Override
 	public void incrementKeeperExceptions() {
-		keeperExceptions.incrementAndGet();
+		keeperExceptions.increment();
 	}
 	
 	@Override
-	public int getKeeperExceptions() {
-		int valueToReturn = keeperExceptions.get();
-		keeperExceptions.set(0);
-		return valueToReturn;
+	public long getKeeperExceptions() {
+		return keeperExceptions.getTotal();
+	}
+
+	@Override
+	public long getKeeperExceptions1m() {
+		return keeperExceptions.getLastMinutes(1);
+	}
+
+	@Override
+	public long getKeeperExceptions5m() {
+		return keeperExceptions.getLastMinutes(5);
+	}
+
+	@Override
+	public long getKeeperExceptions15m() {
+		return keeperExceptions.getLastMinutes(15);
+	}
+	
+	private final RollingCounter readCacheHits = new RollingCounter();
+	@Override
+	public void incrementReadCacheHits() {
+		readCacheHits.increment();
 	}
 	
+	@Override
+	public long getReadCacheHits() {
+		return readCacheHits.getTotal();
+	}
+
+	@Override
+	public long getReadCacheHits1m() {
+		return readCacheHits.getLastMinutes(1);
+	}
+
+	@Override
+	public long getReadCacheHits5m() {
+		return readCacheHits.getLastMinutes(5);
+	}
+
+	@Override
+	public long getReadCacheHits15m() {
+		return readCacheHits.getLastMinutes(15);
+	}
+	
+	private final RollingCounter readCacheMisses = new RollingCounter();
+	@Override
+	public void incrementReadCacheMisses() {
+		readCacheMisses.increment();
+	}
+	
+	@Override
+	public long getReadCacheMisses() {
+		return readCacheMisses.getTotal();
+	}
+
+	@Override
+	public long getReadCacheMisses1m() {
+		return readCacheMisses.getLastMinutes(1);
+	}
+
+	@Override
+	public long getReadCacheMisses5m() {
+		return readCacheMisses.getLastMinutes(5);
+	}
+
+	@Override
+	public long getReadCacheMisses15m() {
+		return readCacheMisses.getLastMinutes(15);
+	}
+	
+	private final RollingCounter readCacheEvictions = new RollingCounter();
+	@Override
+	public void incrementReadCacheEvictions() {
+		readCacheEvictions.increment();
+	}
+	
+	@Override
+	public long getReadCacheEvictions() {
+		return readCacheEvictions.getTotal();
+	}
+
+	@Override
+	public long getReadCacheEvictions1m() {
+		return readCacheEvictions.getLastMinutes(1);
+	}
+
+	@Override
+	public long getReadCacheEvictions5m() {
+		return readCacheEvictions.getLastMinutes(5);
+	}
+
+	@Override
+	public long getReadCacheEvictions15m() {
+		return readCacheEvictions.getLastMinutes(15);
+	}
+	
+	private final RollingCounter missCacheHits = new RollingCounter();
+	@Override
+	public void incrementMissCacheHits() {
+		missCacheHits.increment();
+	}
+	
+	@Override
+	public long getMissCacheHits() {
+		return missCacheHits.getTotal();
+	}
+
+	@Override
+	public long getMissCacheHits1m() {
+		return missCacheHits.getLastMinutes(1);
+	}
+
+	@Override
+	public long getMissCacheHits5m() {
+		return missCacheHits.getLastMinutes(5);
+	}
+
+	@Override
+	public long getMissCacheHits15m() {
+		return missCacheHits.getLastMinutes(15);
+	}
+	
+	// attempts per successful increment, bucketed as 1, 2, 3-4, 5-8, 9-16
+	// and 17 or more
+	private final RollingCounter[] casAttempts = new RollingCounter[] {
+		new RollingCounter(), new RollingCounter(), new RollingCounter(),
+		new RollingCounter(), new RollingCounter(), new RollingCounter()
+	};
+	private final StripedCounter casAttemptsSum = new StripedCounter();
+	@Override
+	public void recordCasAttempts(int attempts) {
+		casAttemptsSum.add(attempts);
+		int bucket = 0;
+		for (int limit = 1; bucket < casAttempts.length - 1 && attempts > limit; 
+				limit *= 2) {
+			bucket++;
+		}
+		casAttempts[bucket].increment();
+	}
+	
+	@Override
+	public long getCasAttempts1() {
+		return casAttempts[0].getTotal();
+	}
+	
+	@Override
+	public long getCasAttempts2() {
+		return casAttempts[1].getTotal();
+	}
+	
+	@Override
+	public long getCasAttempts3To4() {
+		return casAttempts[2].getTotal();
+	}
+	
+	@Override
+	public long getCasAttempts5To8() {
+		return casAttempts[3].getTotal();
+	}
+	
+	@Override
+	public long getCasAttempts9To16() {
+		return casAttempts[4].getTotal();
+	}
+	
+	@Override
+	public long getCasAttempts17Plus() {
+		return casAttempts[5].getTotal();
+	}
+
+	private static final String[] CAS_ATTEMPTS_BOUNDS = {
+		OpenMetricsWriter.label("le", "1"), OpenMetricsWriter.label("le", "2"),
+		OpenMetricsWriter.label("le", "4"), OpenMetricsWriter.label("le", "8"),
+		OpenMetricsWriter.label("le", "16"), OpenMetricsWriter.label("le", "+Inf")
+	};
+
+	private class CasAttemptsHistogram extends OpenMetric {
+		CasAttemptsHistogram() {
+			super("h1_zk_cas_attempts", OpenMetric.HISTOGRAM, 
+					"Attempts taken by each successful increment");
+		}
+
+		@Override
+		public void writeSamples(OpenMetricsWriter out, String labels) 
+		throws IOException {
+			long cumulative = 0;
+			for (int i = 0; i < casAttempts.length; i++) {
+				cumulative += casAttempts[i].getTotal();
+				out.sample("h1_zk_cas_attempts_bucket", labels, 
+							CAS_ATTEMPTS_BOUNDS[i], cumulative);
+			}
+			out.sample("h1_zk_cas_attempts_count", labels, cumulative);
+			out.sample("h1_zk_cas_attempts_sum", labels, casAttemptsSum.sum());
+		}
+	}
+	
+
+	// State of each session in the pool, by position; empty until the pool
+	// is known
+	
+	@Override
+	public boolean[] getSessionsConnected() {
+		ZooKeeperProvider provider = sessions;
+		int size = null == provider ? 0 : provider.getPoolSize();
+		boolean[] connected = new boolean[size];
+		for (int i = 0; i < connected.length; i++) {
+			connected[i] = provider.isConnected(i);
+		}
+		return connected;
+	}
+
+	@Override
+	public int[] getSessionConnections() {
+		ZooKeeperProvider provider = sessions;
+		int size = null == provider ? 0 : provider.getPoolSize();
+		int[] connections = new int[size];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = provider.getConnections(i);
+		}
+		return connections;
+	}
+
+	@Override
+	public int[] getSessionExpiries() {
+		ZooKeeperProvider provider = sessions;
+		int size = null == provider ? 0 : provider.getPoolSize();
+		int[] expiries = new int[size];
+		for (int i = 0; i < expiries.length; i++) {
+			expiries[i] = provider.getExpiries(i);
+		}
+		return expiries;
+	}
+
+	@Override
+	public int[] getSessionParkedRequests() {
+		ZooKeeperProvider provider = sessions;
+		int size = null == provider ? 0 : provider.getPoolSize();
+		int[] parked = new int[size];
+		for (int i = 0; i < parked.length; i++) {
+			parked[i] = provider.getParked(i);
+		}
+		return parked;
+	}
+
+	// Latencies of each stage of an operation, with percentiles in 
+	// microseconds over the last minute
+
+	// round trips for getData, whether or not they succeed
+	private final LatencyMetric getDataLatency = new LatencyMetric();
+	@Override
+	public void recordGetDataLatency(long latency) {
+		getDataLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getGetDataLatencyP50() {
+		return getDataLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getGetDataLatencyP90() {
+		return getDataLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getGetDataLatencyP99() {
+		return getDataLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getGetDataLatencyP999() {
+		return getDataLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getGetDataLatencyMax() {
+		return getDataLatency.getHighestLatencyMicros();
+	}
+
+	// round trips for setData, including those which lost a version conflict
+	private final LatencyMetric setDataLatency = new LatencyMetric();
+	@Override
+	public void recordSetDataLatency(long latency) {
+		setDataLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getSetDataLatencyP50() {
+		return setDataLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getSetDataLatencyP90() {
+		return setDataLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getSetDataLatencyP99() {
+		return setDataLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getSetDataLatencyP999() {
+		return setDataLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getSetDataLatencyMax() {
+		return setDataLatency.getHighestLatencyMicros();
+	}
+
+	// round trips for create
+	private final LatencyMetric createLatency = new LatencyMetric();
+	@Override
+	public void recordCreateLatency(long latency) {
+		createLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getCreateLatencyP50() {
+		return createLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getCreateLatencyP90() {
+		return createLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getCreateLatencyP99() {
+		return createLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getCreateLatencyP999() {
+		return createLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getCreateLatencyMax() {
+		return createLatency.getHighestLatencyMicros();
+	}
+
+	// time lost to conflicts by increments which needed more than one attempt
+	private final LatencyMetric casRetryLatency = new LatencyMetric();
+	@Override
+	public void recordCasRetryLatency(long latency) {
+		casRetryLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getCasRetryLatencyP50() {
+		return casRetryLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getCasRetryLatencyP90() {
+		return casRetryLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getCasRetryLatencyP99() {
+		return casRetryLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getCasRetryLatencyP999() {
+		return casRetryLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getCasRetryLatencyMax() {
+		return casRetryLatency.getHighestLatencyMicros();
+	}
+
+	// time spent backing off, waiting to retry or parked for a replacement session
+	private final LatencyMetric waitLatency = new LatencyMetric();
+	@Override
+	public void recordWaitLatency(long latency) {
+		waitLatency.recordLatencyNanos(latency);
+	}
+
+	@Override
+	public long getWaitLatencyP50() {
+		return waitLatency.getLatencyAtPercentile(50);
+	}
+
+	@Override
+	public long getWaitLatencyP90() {
+		return waitLatency.getLatencyAtPercentile(90);
+	}
+
+	@Override
+	public long getWaitLatencyP99() {
+		return waitLatency.getLatencyAtPercentile(99);
+	}
+
+	@Override
+	public long getWaitLatencyP999() {
+		return waitLatency.getLatencyAtPercentile(99.9);
+	}
+
+	@Override
+	public long getWaitLatencyMax() {
+		return waitLatency.getHighestLatencyMicros();
+	}
 }
@@ -19,10 +19,87 @@ package com.talis.platform.sequencing.zookeeper.metrics;
 
 public interface ZooKeeperMetricsJmxMBean {
 
-	public int getKeyCollisions();
-	public int getKeyCreations();
-	public int getConnectionLossEvents();
-	public int getSessionExpiredEvents();
-	public int getInterruptedExceptions();
-	public int getKeeperExceptions();
+	public long getKeyCollisions();
+	public long getKeyCollisions1m();
+	public long getKeyCollisions5m();
+	public long getKeyCollisions15m();
+	public long getKeyCreations();
+	public long getKeyCreations1m();
+	public long getKeyCreations5m();
+	public long getKeyCreations15m();
+	public long getAverageKeyCreationLatency();
+	public long getMinKeyCreationLatency();
+	public long getMaxKeyCreationLatency();
+	public long getKeyCreationLatencyP50();
+	public long getKeyCreationLatencyP90();
+	public long getKeyCreationLatencyP99();
+	public long getKeyCreationLatencyP999();
+	public long getKeyCreationLatencyMax();
+	public long getConnectionLossEvents();
+	public long getConnectionLossEvents1m();
+	public long getConnectionLossEvents5m();
+	public long getConnectionLossEvents15m();
+	public long getSessionExpiredEvents();
+	public long getSessionExpiredEvents1m();
+	public long getSessionExpiredEvents5m();
+	public long getSessionExpiredEvents15m();
+	public long getInterruptedExceptions();
+	public long getInterruptedExceptions1m();
+	public long getInterruptedExceptions5m();
+	public long getInterruptedExceptions15m();
+	public long getKeeperExceptions();
+	public long getKeeperExceptions1m();
+	public long getKeeperExceptions5m();
+	public long getKeeperExceptions15m();
+	public long getReadCacheHits();
+	public long getReadCacheHits1m();
+	public long getReadCacheHits5m();
+	public long getReadCacheHits15m();
+	public long getReadCacheMisses();
+	public long getReadCacheMisses1m();
+	public long getReadCacheMisses5m();
+	public long getReadCacheMisses15m();
+	public long getReadCacheEvictions();
+	public long getReadCacheEvictions1m();
+	public long getReadCacheEvictions5m();
+	public long getReadCacheEvictions15m();
+	public long getMissCacheHits();
+	public long getMissCacheHits1m();
+	public long getMissCacheHits5m();
+	public long getMissCacheHits15m();
+	public long getCasAttempts1();
+	public long getCasAttempts2();
+	public long getCasAttempts3To4();
+	public long getCasAttempts5To8();
+	public long getCasAttempts9To16();
+	public long getCasAttempts17Plus();
+	public boolean[] getSessionsConnected();
+	public int[] getSessionConnections();
+	public int[] getSessionExpiries();
+	public int[] getSessionParkedRequests();
+	public long getGetDataLatencyP50();
+	public long getGetDataLatencyP90();
+	public long getGetDataLatencyP99();
+	public long getGetDataLatencyP999();
+	public long getGetDataLatencyMax();
+	public long getSetDataLatencyP50();
+	public long getSetDataLatencyP90();
+	public long getSetDataLatencyP99();
+	public long getSetDataLatencyP999();
+	public long getSetDataLatencyMax();
+	public long getCreateLatencyP50();
+	public long getCreateLatencyP90();
+	public long getCreateLatencyP99();
+	public long getCreateLatencyP999();
+	public long getCreateLatencyMax();
+	public long getCasRetryLatencyP50();
+	public long getCasRetryLatencyP90();
+	public long getCasRetryLatencyP99();
+	public long getCasRetryLatencyP999();
+	public long getCasRetryLatencyMax();
+	public long getWaitLatencyP50();
+	public long getWaitLatencyP90();
+	public long getWaitLatencyP99();
+	public long getWaitLatencyP999();
+	public long getWaitLatencyMax();
 }
@@ -0,0 +1,157 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.talis.platform.sequencing.memory.InMemoryClock;
+import com.talis.platform.sequencing.memory.InMemoryModule;
+import com.talis.platform.sequencing.metrics.NullSequencingMetrics;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+import com.talis.platform.sequencing.zookeeper.CombiningClock;
+import com.talis.platform.sequencing.zookeeper.SequentialZooKeeperModule;
+import com.talis.platform.sequencing.zookeeper.ZooKeeperModule;
+
+public class ClockModulesTest {
+
+	private static final List<String> NONE = Collections.emptyList();
+
+	@After
+	public void clearProperties() {
+		System.clearProperty(ClockModules.BACKEND_PROPERTY);
+		System.clearProperty(InMemoryModule.ENABLED_PROPERTY);
+		System.clearProperty(SequentialZooKeeperModule.ENABLED_PROPERTY);
+	}
+
+	@Test
+	public void backendIsFoundByName() {
+		Injector injector = Guice.createInjector(
+				ClockModules.assemble("memory", NONE, ClockModules.JMX_METRICS));
+		assertTrue(injector.getInstance(Clock.class) instanceof InMemoryClock);
+		assertSame(injector.getInstance(Clock.class), 
+					injector.getInstance(Clock.class));
+	}
+
+	@Test
+	public void builtInBackendsAreRegistered() {
+		for (String name : Arrays.asList("zookeeper", "sequential", "file", "memory")) {
+			assertEquals(name, ClockModules.findBackend(name).getName());
+		}
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void unknownBackendIsRejected() {
+		ClockModules.assemble("floppy", NONE, ClockModules.JMX_METRICS);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void unknownDecoratorIsRejected() {
+		ClockModules.assemble("memory", Arrays.asList("gilded"), 
+								ClockModules.JMX_METRICS);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void unknownMetricsBindingIsRejected() {
+		ClockModules.assemble("memory", NONE, "carrier-pigeon");
+	}
+
+	@Test
+	public void decoratorsWrapTheBackendClock() throws Exception {
+		Injector injector = Guice.createInjector(ClockModules.assemble(
+				"memory", Arrays.asList("combining"), ClockModules.JMX_METRICS));
+		Clock clock = injector.getInstance(Clock.class);
+		assertTrue(clock instanceof CombiningClock);
+		assertTrue(ForwardingClock.unwrap(clock) instanceof InMemoryClock);
+		assertSame(clock, injector.getInstance(Clock.class));
+		assertEquals(0, clock.getNextSequence("/foo"));
+		assertEquals(new SequenceRange(1, 3), clock.getNextSequences("/foo", 3));
+		assertEquals(3, clock.getSequence("/foo"));
+	}
+
+	@Test
+	public void decoratorsAreAppliedInOrder() {
+		Injector injector = Guice.createInjector(ClockModules.assemble(
+				"memory", Arrays.asList("combining", "combining"), 
+				ClockModules.JMX_METRICS));
+		ForwardingClock outer = (ForwardingClock) injector.getInstance(Clock.class);
+		ForwardingClock inner = (ForwardingClock) outer.getDelegate();
+		assertTrue(inner.getDelegate() instanceof InMemoryClock);
+	}
+
+	@Test
+	public void metricsCanBeSwitchedOff() {
+		Injector injector = Guice.createInjector(
+				ClockModules.assemble("memory", NONE, ClockModules.NO_METRICS));
+		assertTrue(injector.getInstance(SequencingMetrics.class) 
+					instanceof NullSequencingMetrics);
+	}
+
+	@Test
+	public void backendDefaultsToZooKeeper() {
+		assertEquals(ZooKeeperModule.NAME, ClockModules.readBackendName());
+	}
+
+	@Test
+	public void legacyPropertiesStillSelectBackend() {
+		System.setProperty(SequentialZooKeeperModule.ENABLED_PROPERTY, "true");
+		assertEquals(SequentialZooKeeperModule.NAME, ClockModules.readBackendName());
+		System.setProperty(InMemoryModule.ENABLED_PROPERTY, "true");
+		assertEquals(InMemoryModule.NAME, ClockModules.readBackendName());
+	}
+
+	@Test
+	public void backendPropertyTakesPrecedence() {
+		System.setProperty(InMemoryModule.ENABLED_PROPERTY, "true");
+		System.setProperty(ClockModules.BACKEND_PROPERTY, "file");
+		assertEquals("file", ClockModules.readBackendName());
+	}
+
+	@Test
+	public void decoratorNamesAreTrimmedAndBlanksIgnored() {
+		assertEquals(Arrays.asList("a", "b"), ClockModules.readNames(" a, ,b ,"));
+		assertTrue(ClockModules.readNames(null).isEmpty());
+	}
+
+	@Test
+	public void clockTargetIsTheLinkedImplementation() {
+		assertEquals(Key.get(InMemoryClock.class), 
+					ClockModules.findClockTarget(new InMemoryModule()));
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void backendMustLinkClockToAnImplementation() {
+		ClockModules.findClockTarget(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(Clock.class).toInstance(new InMemoryClock());
+			}
+		});
+	}
+}
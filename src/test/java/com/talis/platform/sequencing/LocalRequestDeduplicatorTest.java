@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.metrics.NullSequencingMetrics;
+
+public class LocalRequestDeduplicatorTest {
+
+	private static final String KEY = "/deduplicated";
+
+	private SettableTimestampProvider timestampProvider;
+	private LocalRequestDeduplicator deduplicator;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		timestampProvider = new SettableTimestampProvider();
+		deduplicator = new LocalRequestDeduplicator(timestampProvider, 
+								new NullSequencingMetrics(), 3, 1000);
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void repeatedRequestReturnsFirstResult() throws Exception {
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+		assertEquals(1, increment.calls.get());
+	}
+
+	@Test
+	public void sameRequestIdForAnotherKeyIsANewRequest() throws Exception {
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+		assertEquals("1", deduplicator.deduplicate("/other", "request-1", increment));
+		assertEquals(2, increment.calls.get());
+	}
+
+	@Test
+	public void requestIsForgottenOnceExpired() throws Exception {
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+		timestampProvider.now = 999;
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+		timestampProvider.now = 1000;
+		assertEquals("1", deduplicator.deduplicate(KEY, "request-1", increment));
+		assertEquals(1, deduplicator.size());
+	}
+
+	@Test
+	public void oldestRequestIsForgottenWhenTableIsFull() throws Exception {
+		CountingIncrement increment = new CountingIncrement();
+		for (int i = 0; i < 4; i++) {
+			deduplicator.deduplicate(KEY, "request-" + i, increment);
+		}
+		assertEquals(3, deduplicator.size());
+		assertEquals("3", deduplicator.deduplicate(KEY, "request-3", increment));
+		assertEquals("4", deduplicator.deduplicate(KEY, "request-0", increment));
+	}
+
+	@Test
+	public void failedRequestIsNotRemembered() throws Exception {
+		final SequencingException failure = new SequencingException("BANG!", null);
+		try {
+			deduplicator.deduplicate(KEY, "request-1", 
+					new RequestDeduplicator.Increment() {
+				@Override
+				public String run() throws SequencingException {
+					throw failure;
+				}
+			});
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(0, deduplicator.size());
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", deduplicator.deduplicate(KEY, "request-1", increment));
+	}
+
+	@Test
+	public void concurrentDuplicatesWaitForFirstResult() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger(0);
+		final RequestDeduplicator.Increment increment = 
+			new RequestDeduplicator.Increment() {
+			@Override
+			public String run() throws SequencingException {
+				calls.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new SequencingException("Interrupted", e);
+				}
+				return "42";
+			}
+		};
+		Future<?>[] futures = new Future<?>[8];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return deduplicator.deduplicate(KEY, "request-1", increment);
+				}
+			});
+		}
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<?> future : futures) {
+			assertEquals("42", future.get());
+		}
+		assertEquals(1, calls.get());
+	}
+
+	class SettableTimestampProvider implements TimestampProvider {
+		volatile long now = 0;
+
+		@Override
+		public long getCurrentTimeInMillis() {
+			return now;
+		}
+
+		@Override
+		public long getNanoTime() {
+			return now * 1000000;
+		}
+	}
+
+	class CountingIncrement implements RequestDeduplicator.Increment {
+		final AtomicInteger calls = new AtomicInteger(0);
+
+		@Override
+		public String run() throws SequencingException {
+			return Integer.toString(calls.getAndIncrement());
+		}
+	}
+}
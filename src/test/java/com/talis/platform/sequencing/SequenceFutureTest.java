@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class SequenceFutureTest {
+
+	@Test
+	public void completedFutureReturnsValue() throws Exception {
+		SequenceFuture future = SequenceFuture.completed(42);
+		assertTrue(future.isDone());
+		assertEquals(Long.valueOf(42), future.get());
+	}
+
+	@Test
+	public void failedFutureThrowsExecutionExceptionWithCause() throws Exception {
+		SequencingException failure = new SequencingException("BANG!", null);
+		SequenceFuture future = SequenceFuture.failed(failure);
+		try {
+			future.get();
+			fail("Expected an exception here");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	@Test
+	public void onlyFirstCompletionWins() throws Exception {
+		SequenceFuture future = new SequenceFuture();
+		assertTrue(future.set(1));
+		assertFalse(future.set(2));
+		assertFalse(future.setException(new SequencingException("BANG!", null)));
+		assertEquals(Long.valueOf(1), future.get());
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void getTimesOutWhenIncomplete() throws Exception {
+		SequenceFuture future = new SequenceFuture();
+		assertFalse(future.isDone());
+		future.get(10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void cannotBeCancelled() throws Exception {
+		SequenceFuture future = new SequenceFuture();
+		assertFalse(future.cancel(true));
+		assertFalse(future.isCancelled());
+	}
+}
@@ -98,6 +98,33 @@ public class SequenceServerAcceptanceITCase {
 		assertSequenceValue(2, key);
 	}
 	
+	@Test
+	public void postWithCountReturnsContiguousRange() throws Exception {
+		String key = "rangeKey";
+		assertEquals(0, incrementKey(key));
+		HttpResponse response = httpClient.execute(
+				new HttpPost(buildUri(key) + "?count=500"));
+		try {
+			assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+			String returnedValue = IOUtils.toString(response.getEntity().getContent());
+			assertEquals("1-500", returnedValue);
+		} finally {
+			EntityUtils.consume(response.getEntity());
+		}
+		assertSequenceValue(500, key);
+	}
+	
+	@Test
+	public void postWithInvalidCountIsBadRequest() throws Exception {
+		HttpResponse response = httpClient.execute(
+				new HttpPost(buildUri("rangeKey") + "?count=0"));
+		try {
+			assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusLine().getStatusCode());
+		} finally {
+			EntityUtils.consume(response.getEntity());
+		}
+	}
+	
 	@Test
 	public void queryKeysWithSingleKey() throws Exception {
 		incrementKeysForQuery();
@@ -0,0 +1,191 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+
+public class MappedFileClockTest {
+
+	@Rule
+	public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private File file;
+	private MappedFileClock clock;
+
+	@Before
+	public void setup() throws Exception {
+		file = new File(tmpFolder.getRoot(), "counters.dat");
+		clock = new MappedFileClock(file, 1024);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		clock.close();
+	}
+
+	@Test
+	public void sequencesStartAtZeroAndIncreaseByOne() throws Exception {
+		for (long i = 0; i < 10; i++) {
+			assertEquals(i, clock.getNextSequence("/foo"));
+		}
+		assertEquals(9, clock.getSequence("/foo"));
+		assertEquals(new SequenceRange(10, 14), clock.getNextSequences("/foo", 5));
+		assertEquals(15, (long) clock.getNextSequenceAsync("/foo").get());
+		assertEquals(15, (long) clock.getSequenceAsync("/foo").get());
+	}
+
+	@Test (expected=NoSuchSequenceException.class)
+	public void readingAnUnknownKeyThrowsException() throws Exception {
+		clock.getNextSequence("/foo");
+		clock.getSequence("/bar");
+	}
+
+	@Test
+	public void unknownKeyReadsAsDefault() throws Exception {
+		clock.getNextSequence("/foo");
+		assertEquals(-1, clock.getSequenceOrDefault("/bar", -1));
+		assertEquals(0, clock.getSequenceOrDefault("/foo", -1));
+	}
+
+	@Test
+	public void countersSurviveReopening() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			clock.getNextSequences("/key-" + i, i + 1);
+		}
+		clock.close();
+		clock = new MappedFileClock(file, 1024);
+		assertEquals(100, clock.getKeyCount());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, clock.getSequence("/key-" + i));
+			assertEquals(i + 1, clock.getNextSequence("/key-" + i));
+		}
+	}
+
+	@Test
+	public void concurrentIncrementsAreUniqueAndContiguous() throws Exception {
+		final int threads = 8;
+		final int increments = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++) {
+				final String other = "/other-" + t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int i = 0; i < increments; i++) {
+							sequences.add(clock.getNextSequence("/shared"));
+							clock.getNextSequence(other);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(threads * increments, sequences.size());
+		assertEquals(threads * increments - 1, clock.getSequence("/shared"));
+		for (int t = 0; t < threads; t++) {
+			assertEquals(increments - 1, clock.getSequence("/other-" + t));
+		}
+	}
+
+	@Test
+	public void keysWhichCollideAreKeptApart() throws Exception {
+		clock.close();
+		clock = new MappedFileClock(new File(tmpFolder.getRoot(), "small.dat"), 8);
+		for (int i = 0; i < 8; i++) {
+			clock.getNextSequences("/key-" + i, i + 1);
+		}
+		for (int i = 0; i < 8; i++) {
+			assertEquals(i, clock.getSequence("/key-" + i));
+		}
+		try {
+			clock.getNextSequence("/one-too-many");
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			assertTrue(e.getMessage().contains("full"));
+		}
+	}
+
+	@Test
+	public void tornSlotIsNotUsedAfterRecovery() throws Exception {
+		clock.getNextSequences("/foo", 5);
+		clock.close();
+		// corrupt the first byte of the key in every used slot
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			for (int slot = 1; slot <= 1024; slot++) {
+				raf.seek(slot * MappedFileClock.SLOT_SIZE + 12);
+				if (raf.readInt() != 0) {
+					raf.seek(slot * MappedFileClock.SLOT_SIZE + 18);
+					raf.write('x');
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		clock = new MappedFileClock(file, 1024);
+		assertEquals(0, clock.getKeyCount());
+		assertEquals(0, clock.getNextSequence("/foo"));
+	}
+
+	@Test (expected=IOException.class)
+	public void slotCountMustMatchTheFile() throws Exception {
+		clock.close();
+		new MappedFileClock(file, 2048);
+	}
+
+	@Test (expected=SequencingException.class)
+	public void keysMustFitInASlot() throws Exception {
+		StringBuilder key = new StringBuilder("/");
+		for (int i = 0; i < MappedFileClock.MAX_KEY_BYTES; i++) {
+			key.append('k');
+		}
+		clock.getNextSequence(key.toString());
+	}
+}
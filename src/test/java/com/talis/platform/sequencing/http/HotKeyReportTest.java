@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.jersey.exceptions.BadRequestException;
+import com.talis.platform.sequencing.metrics.HotKeys;
+import com.talis.platform.sequencing.metrics.HotKeys.HotKey;
+import com.talis.platform.sequencing.metrics.HotKeysJmx;
+
+public class HotKeyReportTest {
+
+	HotKeys requests;
+	HotKeys collisions;
+	HotKeyReport resource;
+
+	@Before
+	public void setup() throws Exception {
+		requests = createStrictMock(HotKeys.class);
+		collisions = createStrictMock(HotKeys.class);
+		resource = new HotKeyReport(new HotKeysJmx(requests, collisions));
+	}
+
+	@After
+	public void teardown() {
+		verify(requests);
+		verify(collisions);
+	}
+
+	@Test
+	public void reportsTopKeysByRequestsThenCollisions() {
+		expect(requests.getCapacity()).andReturn(100);
+		expect(requests.getTop(2)).andReturn(Arrays.asList(
+				new HotKey("/a", 40, 0), new HotKey("/b", 12, 3)));
+		expect(collisions.getTop(2)).andReturn(Arrays.asList(
+				new HotKey("/a", 7, 0)));
+		replay(requests);
+		replay(collisions);
+		assertEquals("requests\t/a\t40\t0\n"
+				+ "requests\t/b\t12\t3\n"
+				+ "collisions\t/a\t7\t0\n", resource.getHotKeys(2));
+	}
+
+	@Test
+	public void reportIsEmptyWhenNoKeysSeen() {
+		expect(requests.getCapacity()).andReturn(100);
+		expect(requests.getTop(HotKeysJmx.DEFAULT_TOP))
+				.andReturn(Collections.<HotKey>emptyList());
+		expect(collisions.getTop(HotKeysJmx.DEFAULT_TOP))
+				.andReturn(Collections.<HotKey>emptyList());
+		replay(requests);
+		replay(collisions);
+		assertEquals("", resource.getHotKeys(null));
+	}
+
+	@Test (expected=BadRequestException.class)
+	public void topMustNotExceedTableSize() {
+		expect(requests.getCapacity()).andReturn(100);
+		replay(requests);
+		replay(collisions);
+		resource.getHotKeys(101);
+	}
+
+	@Test (expected=BadRequestException.class)
+	public void topMustBePositive() {
+		expect(requests.getCapacity()).andReturn(100);
+		replay(requests);
+		replay(collisions);
+		resource.getHotKeys(0);
+	}
+}
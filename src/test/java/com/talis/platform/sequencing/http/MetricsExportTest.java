@@ -0,0 +1,49 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.talis.platform.sequencing.metrics.OpenMetric;
+import com.talis.platform.sequencing.metrics.OpenMetricsRegistry;
+import com.talis.platform.sequencing.metrics.RollingCounter;
+
+public class MetricsExportTest {
+
+	@Test
+	public void registeredMetricsAreStreamedToResponse() throws Exception {
+		OpenMetricsRegistry registry = new OpenMetricsRegistry();
+		RollingCounter errors = new RollingCounter();
+		errors.add(5);
+		registry.register(Arrays.asList(
+				OpenMetric.counter("h1_test_errors", "Errors \u00e9", errors)), 
+				null);
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		new MetricsExport(registry).getMetrics().write(response);
+		String text = response.toString("UTF-8");
+		assertEquals("# TYPE h1_test_errors counter\n"
+				+ "# HELP h1_test_errors Errors \u00e9\n"
+				+ "h1_test_errors_total 5\n"
+				+ "# EOF\n", 
+				text.substring(text.indexOf("# TYPE h1_test_errors")));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.talis.jersey.exceptions.BadRequestException;
+import com.talis.jersey.exceptions.ServerErrorException;
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.zookeeper.CombiningClock;
+import com.talis.platform.sequencing.zookeeper.OwnershipClock;
+
+public class OwnedSequenceTest {
+
+	@Test
+	public void incrementIsServedLocallyAndReturnsRange() throws Exception {
+		OwnershipClock clock = createStrictMock(OwnershipClock.class);
+		expect(clock.incrementLocally("/foo", 1)).andReturn(new SequenceRange(7, 7));
+		replay(clock);
+		assertEquals("7-7", new OwnedSequence(clock).incrementSequence("foo", 1));
+		verify(clock);
+	}
+
+	@Test
+	public void readOfUnknownKeyReturnsMinusOne() throws Exception {
+		OwnershipClock clock = createStrictMock(OwnershipClock.class);
+		expect(clock.getSequenceLocally("/foo")).andThrow(
+				new NoSuchSequenceException("No such key", null));
+		replay(clock);
+		assertEquals("-1", new OwnedSequence(clock).getCurrentSequence("foo"));
+		verify(clock);
+	}
+
+	@Test
+	public void decoratedOwnershipClockIsUnwrapped() throws Exception {
+		OwnershipClock clock = createStrictMock(OwnershipClock.class);
+		expect(clock.incrementLocally("/foo", 1)).andReturn(new SequenceRange(7, 7));
+		replay(clock);
+		Clock decorated = new CombiningClock(clock);
+		assertEquals("7-7", new OwnedSequence(decorated).incrementSequence("foo", 1));
+		verify(clock);
+	}
+
+	@Test (expected=ServerErrorException.class)
+	public void clockErrorIsReportedAsServerError() throws Exception {
+		OwnershipClock clock = createStrictMock(OwnershipClock.class);
+		expect(clock.incrementLocally("/foo", 1)).andThrow(
+				new SequencingException("BANG!", null));
+		replay(clock);
+		new OwnedSequence(clock).incrementSequence("foo", 1);
+	}
+
+	@Test (expected=BadRequestException.class)
+	public void rejectedWhenOwnershipIsNotEnabled() {
+		Clock clock = createStrictMock(Clock.class);
+		replay(clock);
+		new OwnedSequence(clock).incrementSequence("foo", 1);
+	}
+}
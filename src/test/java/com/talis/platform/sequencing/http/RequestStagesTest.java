@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.http;
+
+import static org.easymock.EasyMock.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.metrics.SequencingMetrics;
+
+public class RequestStagesTest {
+
+	SequencingMetrics metrics;
+	TimestampProvider timestampProvider;
+	FilterChain chain;
+	RequestStages stages;
+
+	@Before
+	public void setup() {
+		metrics = createStrictMock(SequencingMetrics.class);
+		timestampProvider = createStrictMock(TimestampProvider.class);
+		chain = createStrictMock(FilterChain.class);
+		stages = new RequestStages(metrics, timestampProvider);
+	}
+
+	@Test
+	public void stagesEitherSideOfResourceMethodAreRecorded() throws Exception {
+		expect(timestampProvider.getNanoTime()).andReturn(1000l);
+		chain.doFilter(null, null);
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() throws Throwable {
+				stages.getRequestFilter().filter(null);
+				stages.getResponseFilter().filter(null, null);
+				return null;
+			}
+		});
+		expect(timestampProvider.getNanoTime()).andReturn(1300l);
+		expect(timestampProvider.getNanoTime()).andReturn(2000l);
+		expect(timestampProvider.getNanoTime()).andReturn(2600l);
+		metrics.recordDispatchLatency(300);
+		metrics.recordSerializationLatency(600);
+		replay(metrics, timestampProvider, chain);
+		stages.doFilter(null, null, chain);
+		verify(metrics, timestampProvider, chain);
+	}
+
+	@Test
+	public void requestsWhichNeverReachAResourceRecordNothing() throws Exception {
+		expect(timestampProvider.getNanoTime()).andReturn(1000l);
+		chain.doFilter(null, null);
+		expect(timestampProvider.getNanoTime()).andReturn(1300l);
+		replay(metrics, timestampProvider, chain);
+		stages.doFilter(null, null, chain);
+		verify(metrics, timestampProvider, chain);
+	}
+
+	@Test
+	public void dispatchIsRecordedWhenTheRequestFails() throws Exception {
+		expect(timestampProvider.getNanoTime()).andReturn(1000l);
+		chain.doFilter(null, null);
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() throws Throwable {
+				stages.getRequestFilter().filter(null);
+				throw new ServletException("unmapped");
+			}
+		});
+		expect(timestampProvider.getNanoTime()).andReturn(1300l);
+		expect(timestampProvider.getNanoTime()).andReturn(2000l);
+		metrics.recordDispatchLatency(300);
+		replay(metrics, timestampProvider, chain);
+		try {
+			stages.doFilter(null, null, chain);
+		} catch (ServletException e) {
+			// expected
+		}
+		verify(metrics, timestampProvider, chain);
+	}
+
+	@Test
+	public void resourceFiltersOutsideTheServletFilterRecordNothing() {
+		replay(metrics, timestampProvider, chain);
+		stages.getRequestFilter().filter(null);
+		stages.getResponseFilter().filter(null, null);
+		verify(metrics, timestampProvider, chain);
+	}
+}
@@ -23,6 +23,10 @@ import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -34,6 +38,9 @@ import com.talis.platform.SystemTimestampProvider;
 import com.talis.platform.TimestampProvider;
 import com.talis.platform.sequencing.Clock;
 import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.RangesNotSupportedException;
+import com.talis.platform.sequencing.SequenceFuture;
+import com.talis.platform.sequencing.SequenceRange;
 import com.talis.platform.sequencing.SequencingException;
 import com.talis.platform.sequencing.metrics.NullSequencingMetrics;
 import com.talis.platform.sequencing.metrics.SequencingMetrics;
@@ -85,6 +92,128 @@ public class SequenceTest {
 		assertEquals("999", resource.incrementSequence(key));
 	}
 	
+	@Test
+	public void postingWithCountUsesClockToIssueRangeAndReturnsIt() 
+	throws SequencingException{
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequences(fullKey, 500)).andReturn(new SequenceRange(1000l, 1499l));
+		replay(clock);
+
+		Sequence resource = new Sequence(clock, timestampProvider, metrics );
+		assertEquals("1000-1499", resource.incrementSequence(key, 500));
+	}
+	
+	@Test
+	public void postingWithCountOfOneIncrementsSequence() 
+	throws SequencingException{
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequence(fullKey)).andReturn(999l);
+		replay(clock);
+
+		Sequence resource = new Sequence(clock, timestampProvider, metrics );
+		assertEquals("999", resource.incrementSequence(key, 1));
+	}
+	
+	@Test (expected=BadRequestException.class)
+	public void postingWithCountOfZeroIsABadRequest() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		replay(clock);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		resource.incrementSequence(key, 0);
+	}
+	
+	@Test (expected=BadRequestException.class)
+	public void postingWithCountAboveMaximumIsABadRequest() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		replay(clock);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		resource.incrementSequence(key, Sequence.DEFAULT_MAX_COUNT + 1);
+	}
+	
+	@Test
+	public void retryingWithSameIdempotencyKeyReturnsOriginalSequence() 
+	throws SequencingException{
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequence(fullKey)).andReturn(999l);
+		expect(clock.getNextSequence(fullKey)).andReturn(1000l);
+		replay(clock);
+
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		assertEquals("999", resource.incrementSequence(key, 1, "request-1"));
+		assertEquals("999", resource.incrementSequence(key, 1, "request-1"));
+		assertEquals("1000", resource.incrementSequence(key, 1, "request-2"));
+	}
+	
+	@Test
+	public void retryingAFailedRequestIncrementsAgain() throws Exception {
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequence(fullKey)).andThrow(new SequencingException("BANG!", null));
+		expect(clock.getNextSequence(fullKey)).andReturn(999l);
+		replay(clock);
+
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		try {
+			resource.incrementSequence(key, 1, "request-1");
+			fail("Expected an exception here");
+		} catch (ServerErrorException e) {
+			// expected
+		}
+		assertEquals("999", resource.incrementSequence(key, 1, "request-1"));
+	}
+	
+	@Test (expected=BadRequestException.class)
+	public void postingWithOverlongIdempotencyKeyIsABadRequest() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		replay(clock);
+		
+		StringBuilder requestId = new StringBuilder();
+		while (requestId.length() <= Sequence.MAX_REQUEST_ID_LENGTH) {
+			requestId.append("x");
+		}
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		resource.incrementSequence(key, 1, requestId.toString());
+	}
+	
+	@Test (expected=BadRequestException.class)
+	public void return400IfClockCannotIssueRanges() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequences(fullKey, 10)).andThrow(
+				new RangesNotSupportedException("No ranges"));
+		replay(clock);
+		
+		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.recordKeyRequest(fullKey);
+		replay(mockMetrics);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, mockMetrics);
+		try{
+			resource.incrementSequence(key, 10);
+		}finally{
+			verify(mockMetrics);	
+		}
+	}
+	
+	@Test (expected=ServerErrorException.class)
+	public void return500AndIncrementErrorsIfClockThrowsExceptionIssuingRange() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		expect(clock.getNextSequences(fullKey, 10)).andThrow(new SequencingException("BANG!", null));
+		replay(clock);
+		
+		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.recordKeyRequest(fullKey);
+		mockMetrics.incrementErrorResponses();
+		replay(mockMetrics);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, mockMetrics);
+		try{
+			resource.incrementSequence(key, 10);
+		}finally{
+			verify(mockMetrics);	
+		}
+	}
+	
 	@Test
 	public void recordSequenceIncrementLatencyViaMetricsObject() 
 	throws Exception{
@@ -93,11 +222,12 @@ public class SequenceTest {
 		replay(clock);
 		
 		TimestampProvider mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.recordKeyRequest(fullKey);
 		mockMetrics.recordSequenceWriteLatency(50l);
 		replay(mockMetrics);
 		
@@ -107,6 +237,21 @@ public class SequenceTest {
 		verify(mockMetrics);
 	}
 	
+	@Test
+	public void rejectedIncrementsAreNotCountedAsKeyRequests() throws Exception {
+		clock = createStrictMock(Clock.class);
+		replay(clock);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, mockMetrics);
+		try{
+			resource.incrementSequence(key, 0);
+			fail("Expected an exception here");
+		}catch (BadRequestException e){
+			// expected
+		}
+		verify(mockMetrics);
+	}
+	
 	@Test (expected=ServerErrorException.class)
 	public void return500IfClockThrowsException() throws Exception { 
 		clock = createStrictMock(Clock.class);
@@ -120,7 +265,7 @@ public class SequenceTest {
 	@Test (expected=ServerErrorException.class)
 	public void return500IfClockThrowsExceptionDuringRead() throws Exception { 
 		clock = createStrictMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andThrow(new RuntimeException("BANG!"));
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andThrow(new RuntimeException("BANG!"));
 		replay(clock);
 		
 		Sequence resource = new Sequence(clock, timestampProvider, metrics);
@@ -134,6 +279,7 @@ public class SequenceTest {
 		replay(clock);
 		
 		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.recordKeyRequest(fullKey);
 		mockMetrics.incrementErrorResponses();
 		replay(mockMetrics);
 		
@@ -148,7 +294,7 @@ public class SequenceTest {
     @Test
 	public void getUsesClockToGetValue() throws SequencingException{
 		clock = createStrictMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(999l);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andReturn(999l);
 		replay(clock);
 		
 		Sequence resource = new Sequence(clock, timestampProvider, metrics);
@@ -156,11 +302,22 @@ public class SequenceTest {
 		verify(clock);
 	}
     
+    @Test
+	public void getReturnsNegativeOneWhenClockHasNoSequence() throws Exception { 
+		clock = createStrictMock(Clock.class);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andReturn(-1l);
+		replay(clock);
+		
+		Sequence resource = new Sequence(clock, timestampProvider, metrics);
+		assertEquals("-1", resource.getCurrentSequence(key));
+		verify(clock);
+	}
+    
     @Test
 	public void getReturnsNegativeOneWhenNoSuchSequenceExceptionIsThrown() throws Exception { 
 		clock = createStrictMock(Clock.class);
 		Exception ex = new NoSuchSequenceException("BOOM!", null);
-		expect(clock.getSequence(fullKey)).andThrow(ex);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andThrow(ex);
 		replay(clock);
 		
 		Sequence resource = new Sequence(clock, timestampProvider, metrics);
@@ -170,7 +327,7 @@ public class SequenceTest {
 	@Test (expected=ServerErrorException.class)
 	public void incrementClockReadErrorsViaMetricsObject() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andThrow(new RuntimeException("KABOOM!"));
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andThrow(new RuntimeException("KABOOM!"));
 		replay(clock);
 		
 		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -188,12 +345,12 @@ public class SequenceTest {
 	@Test
 	public void getCurrentSequenceIncrementsLatencyViaMetricsObject() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(999l);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andReturn(999l);
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -210,12 +367,12 @@ public class SequenceTest {
 		Long expectedKeySeq = 1066l;
 		
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(expectedKeySeq);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andReturn(expectedKeySeq);
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -233,15 +390,14 @@ public class SequenceTest {
 		Long expectedKeySeq = 42l;
 		Long expectedOtherKeySeq = 1066l;
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(expectedKeySeq);
-		expect(clock.getSequence(otherFullKey)).andReturn(expectedOtherKeySeq);
+		expect(clock.getSequenceAsync(fullKey)).andReturn(SequenceFuture.completed(expectedKeySeq));
+		expect(clock.getSequenceAsync(otherFullKey)).andReturn(SequenceFuture.completed(expectedOtherKeySeq));
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(200l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(270l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
+		expect(mockProvider.getNanoTime()).andReturn(170l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -261,11 +417,12 @@ public class SequenceTest {
 	@Test(expected = ServerErrorException.class)
 	public void getCurrentSequencesWhenFirstErrors() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(anyObject(String.class))).andThrow(new SequencingException("BOOM!", null));
+		expect(clock.getSequenceAsync(anyObject(String.class)))
+			.andReturn(SequenceFuture.failed(new SequencingException("BOOM!", null))).times(2);
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
 		replay(mockProvider);
 		
 		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -283,14 +440,14 @@ public class SequenceTest {
 	@Test(expected = ServerErrorException.class)
 	public void getCurrentSequencesWhenSecondErrors() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(anyObject(String.class))).andReturn(42l);
-		expect(clock.getSequence(anyObject(String.class))).andThrow(new SequencingException("BOOM!", null));
+		expect(clock.getSequenceAsync(anyObject(String.class))).andReturn(SequenceFuture.completed(42l));
+		expect(clock.getSequenceAsync(anyObject(String.class)))
+			.andReturn(SequenceFuture.failed(new SequencingException("BOOM!", null)));
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(200l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -306,20 +463,96 @@ public class SequenceTest {
 		assertQuerySequencesFailsWithCorrectErrorMessage(resource, keys);
 	}
 	
+	@Test(expected = ServerErrorException.class)
+	public void getCurrentSequencesWhenIssuingSecondErrors() throws Exception{
+		FutureTask<Long> first = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return 42l;
+			}
+		});
+		clock = createMock(Clock.class);
+		expect(clock.getSequenceAsync(anyObject(String.class))).andReturn(first);
+		expect(clock.getSequenceAsync(anyObject(String.class)))
+			.andThrow(new RejectedExecutionException("BOOM!"));
+		replay(clock);
+		
+		mockProvider = createStrictMock(TimestampProvider.class);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		replay(mockProvider);
+		
+		mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.incrementReadErrorResponses();
+		replay(mockMetrics);
+		
+		Sequence resource = new Sequence(clock, mockProvider, mockMetrics);
+		SortedSet<String> keys = new TreeSet<String>();
+		keys.add(otherKey);
+		keys.add(key);
+		
+		try {
+			assertQuerySequencesFailsWithCorrectErrorMessage(resource, keys);
+		} finally {
+			assertTrue(first.isCancelled());
+			verify(mockMetrics);
+		}
+	}
+	
+	@Test(expected = ServerErrorException.class)
+	public void getCurrentSequencesDeadlineComesFromTimestampProvider() throws Exception{
+		FutureTask<Long> never = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return 1066l;
+			}
+		});
+		clock = createMock(Clock.class);
+		expect(clock.getSequenceAsync(anyObject(String.class))).andReturn(SequenceFuture.completed(42l));
+		expect(clock.getSequenceAsync(anyObject(String.class))).andReturn(never);
+		replay(clock);
+		
+		mockProvider = createStrictMock(TimestampProvider.class);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(
+				100l + TimeUnit.MILLISECONDS.toNanos(Sequence.DEFAULT_QUERY_TIMEOUT));
+		replay(mockProvider);
+		
+		mockMetrics = createStrictMock(SequencingMetrics.class);
+		mockMetrics.recordSequenceReadLatency(TimeUnit.MILLISECONDS.toNanos(
+				Sequence.DEFAULT_QUERY_TIMEOUT));
+		mockMetrics.incrementReadErrorResponses();
+		replay(mockMetrics);
+		
+		Sequence resource = new Sequence(clock, mockProvider, mockMetrics);
+		SortedSet<String> keys = new TreeSet<String>();
+		keys.add(otherKey);
+		keys.add(key);
+		
+		long before = System.nanoTime();
+		try {
+			assertQuerySequencesFailsWithCorrectErrorMessage(resource, keys);
+		} finally {
+			// the query has already run out of time, so the second read isn't
+			// waited for
+			assertTrue(System.nanoTime() - before < TimeUnit.SECONDS.toNanos(1));
+			verify(mockMetrics);
+		}
+	}
+	
 	@Test
 	public void getCurrentSequencesTranslatesMissingSequenceIntoMinusOne() throws Exception{
 		Long expectedSequence = 42l;
 		Long expectedOtherSequence = -1l;
 		
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(expectedSequence);
-		expect(clock.getSequence(otherFullKey)).andThrow(new NoSuchSequenceException("BOOM!", null));
+		expect(clock.getSequenceAsync(fullKey)).andReturn(SequenceFuture.completed(expectedSequence));
+		expect(clock.getSequenceAsync(otherFullKey))
+			.andReturn(SequenceFuture.failed(new NoSuchSequenceException("BOOM!", null)));
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(200l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -342,12 +575,12 @@ public class SequenceTest {
 		Long expectedKeySeq = 1066l;
 		
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(expectedKeySeq);
+		expect(clock.getSequenceOrDefault(fullKey, -1l)).andReturn(expectedKeySeq);
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -363,11 +596,12 @@ public class SequenceTest {
 	@Test(expected = ServerErrorException.class)
 	public void getCurrentSequencesByFormPostWhenFirstErrors() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(anyObject(String.class))).andThrow(new SequencingException("BOOM!", null));
+		expect(clock.getSequenceAsync(anyObject(String.class)))
+			.andReturn(SequenceFuture.failed(new SequencingException("BOOM!", null))).times(2);
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
 		replay(mockProvider);
 		
 		SequencingMetrics mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -385,14 +619,14 @@ public class SequenceTest {
 	@Test(expected = ServerErrorException.class)
 	public void getCurrentSequencesByFormPostWhenSecondErrors() throws Exception{
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(anyObject(String.class))).andReturn(42l);
-		expect(clock.getSequence(anyObject(String.class))).andThrow(new SequencingException("BOOM!", null));
+		expect(clock.getSequenceAsync(anyObject(String.class))).andReturn(SequenceFuture.completed(42l));
+		expect(clock.getSequenceAsync(anyObject(String.class)))
+			.andReturn(SequenceFuture.failed(new SequencingException("BOOM!", null)));
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(200l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -414,14 +648,14 @@ public class SequenceTest {
 		Long expectedOtherSequence = -1l;
 		
 		clock = createMock(Clock.class);
-		expect(clock.getSequence(fullKey)).andReturn(expectedSequence);
-		expect(clock.getSequence(otherFullKey)).andThrow(new NoSuchSequenceException("BOOM!", null));
+		expect(clock.getSequenceAsync(fullKey)).andReturn(SequenceFuture.completed(expectedSequence));
+		expect(clock.getSequenceAsync(otherFullKey))
+			.andReturn(SequenceFuture.failed(new NoSuchSequenceException("BOOM!", null)));
 		replay(clock);
 		
 		mockProvider = createStrictMock(TimestampProvider.class);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(100l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(150l);
-		expect(mockProvider.getCurrentTimeInMillis()).andReturn(200l);
+		expect(mockProvider.getNanoTime()).andReturn(100l);
+		expect(mockProvider.getNanoTime()).andReturn(150l);
 		replay(mockProvider);
 		
 		mockMetrics = createStrictMock(SequencingMetrics.class);
@@ -439,6 +673,34 @@ public class SequenceTest {
 		assertEquals(expectedOtherSequence, currentSequences.get(otherKey));
 	}
 
+	@Test(expected = ServerErrorException.class)
+	public void getCurrentSequencesFailsWhenQueryTimesOut() throws Exception{
+		System.setProperty(Sequence.QUERY_TIMEOUT_PROPERTY, "50");
+		try {
+			clock = createMock(Clock.class);
+			expect(clock.getSequenceAsync(anyObject(String.class)))
+				.andReturn(new SequenceFuture()).times(2);
+			replay(clock);
+			
+			mockProvider = createStrictMock(TimestampProvider.class);
+			expect(mockProvider.getNanoTime()).andReturn(100l);
+			replay(mockProvider);
+			
+			mockMetrics = createStrictMock(SequencingMetrics.class);
+			mockMetrics.incrementReadErrorResponses();
+			replay(mockMetrics);
+			
+			Sequence resource = new Sequence(clock, mockProvider, mockMetrics);
+			SortedSet<String> keys = new TreeSet<String>();
+			keys.add(otherKey);
+			keys.add(key);
+			
+			assertQuerySequencesFailsWithCorrectErrorMessage(resource, keys);
+		} finally {
+			System.clearProperty(Sequence.QUERY_TIMEOUT_PROPERTY);
+		}
+	}
+
 	private void assertQuerySequencesFailsWithCorrectErrorMessage(
 			Sequence resource, SortedSet<String> keys) throws Exception {
 		try {
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+
+public class InMemoryClockTest {
+
+	private final InMemoryClock clock = new InMemoryClock();
+
+	@Test
+	public void sequencesStartAtZeroAndIncreaseByOne() throws Exception {
+		for (long i = 0; i < 10; i++) {
+			assertEquals(i, clock.getNextSequence("/foo"));
+		}
+		assertEquals(9, clock.getSequence("/foo"));
+		assertEquals(new SequenceRange(10, 14), clock.getNextSequences("/foo", 5));
+		assertEquals(15, (long) clock.getNextSequenceAsync("/foo").get());
+		assertEquals(15, (long) clock.getSequenceAsync("/foo").get());
+		assertEquals(0, clock.getNextSequence("/bar"));
+	}
+
+	@Test (expected=NoSuchSequenceException.class)
+	public void readingAnUnknownKeyThrowsException() throws Exception {
+		clock.getSequence("/foo");
+	}
+
+	@Test
+	public void unknownKeyReadsAsDefault() throws Exception {
+		assertEquals(-1, clock.getSequenceOrDefault("/foo", -1));
+		clock.getNextSequence("/foo");
+		assertEquals(0, clock.getSequenceOrDefault("/foo", -1));
+	}
+
+	@Test
+	public void asyncReadOfUnknownKeyFails() throws Exception {
+		try {
+			clock.getSequenceAsync("/foo").get();
+			fail("Expected an exception here");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoSuchSequenceException);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.memory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class LongCounterMapTest {
+
+	@Test
+	public void countersStartFromTheInitialValue() {
+		LongCounterMap map = new LongCounterMap();
+		assertEquals(-7, map.get("foo", -7));
+		assertEquals(5, map.addAndGet("foo", 0, 5));
+		assertEquals(6, map.addAndGet("foo", 0, 1));
+		assertEquals(6, map.get("foo", -7));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void segmentsGrowToHoldManyKeys() {
+		LongCounterMap map = new LongCounterMap(1);
+		for (int i = 0; i < 10000; i++) {
+			map.addAndGet("key-" + i, 0, i);
+		}
+		assertEquals(10000, map.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, map.get("key-" + i, -1));
+		}
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void segmentCountMustBeAPowerOfTwo() {
+		new LongCounterMap(12);
+	}
+
+	@Test
+	public void concurrentAddsAreNotLost() throws Exception {
+		final LongCounterMap map = new LongCounterMap(4);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < 10000; i++) {
+							map.addAndGet("key-" + (i % 100), 0, 1);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals(800, map.get("key-" + i, -1));
+		}
+	}
+}
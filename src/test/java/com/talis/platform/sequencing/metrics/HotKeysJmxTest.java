@@ -0,0 +1,61 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import com.talis.jmx.AbstractJmxSupportTest;
+import com.talis.jmx.JmxSupport;
+import com.talis.platform.sequencing.metrics.RollingCounterTest.SettableTimestampProvider;
+
+public class HotKeysJmxTest extends AbstractJmxSupportTest {
+
+	@Override
+	public JmxSupport getReporter() throws Exception {
+		return new HotKeysJmx();
+	}
+
+	@Test
+	public void attributesListTopKeysWithTheirCounts() throws Exception {
+		SettableTimestampProvider timestampProvider = new SettableTimestampProvider();
+		HotKeys requests = new HotKeys(timestampProvider, 10);
+		HotKeys collisions = new HotKeys(timestampProvider, 10);
+		HotKeysJmx reporter = new HotKeysJmx(requests, collisions);
+		requests.record("/a");
+		requests.record("/b");
+		requests.record("/b");
+		collisions.record("/b");
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		assertArrayEquals(new String[] {"/b 2", "/a 1"}, 
+				reporter.getHotKeysByRequests());
+		assertArrayEquals(new String[] {"/b 1"}, 
+				reporter.getHotKeysByCollisions());
+	}
+
+	@Test
+	public void metricsFeedTheSharedHotKeys() throws Exception {
+		SettableTimestampProvider timestampProvider = new SettableTimestampProvider();
+		HotKeys requests = new HotKeys(timestampProvider, 10);
+		SequencingMetricsJmx metrics = new SequencingMetricsJmx(requests);
+		metrics.recordKeyRequest("/a");
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		HotKeysJmx reporter = new HotKeysJmx(requests, new HotKeys());
+		assertArrayEquals(new String[] {"/a 1"}, reporter.getHotKeysByRequests());
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.metrics.HotKeys.HotKey;
+import com.talis.platform.sequencing.metrics.RollingCounterTest.SettableTimestampProvider;
+
+public class HotKeysTest {
+
+	SettableTimestampProvider timestampProvider;
+
+	@Before
+	public void setup() {
+		timestampProvider = new SettableTimestampProvider();
+		timestampProvider.now = 1200000;
+	}
+
+	@Test
+	public void keysAreReportedOnceTheirMinuteIsComplete() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 10);
+		hotKeys.record("/a");
+		hotKeys.record("/b");
+		hotKeys.record("/a");
+		hotKeys.record("/a");
+		assertTrue(hotKeys.getTop(10).isEmpty());
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(10);
+		assertEquals(2, top.size());
+		assertHotKey("/a", 3, 0, top.get(0));
+		assertHotKey("/b", 1, 0, top.get(1));
+	}
+
+	@Test
+	public void nothingIsReportedAfterAnIdleMinute() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 10);
+		hotKeys.record("/a");
+		timestampProvider.now += 2 * HotKeys.WINDOW_MILLIS;
+		assertTrue(hotKeys.getTop(10).isEmpty());
+	}
+
+	@Test
+	public void topIsLimitedToCountAsked() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 10);
+		for (int i = 0; i < 5; i++) {
+			for (int j = 0; j <= i; j++) {
+				hotKeys.record("/" + i);
+			}
+		}
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(2);
+		assertEquals(2, top.size());
+		assertHotKey("/4", 5, 0, top.get(0));
+		assertHotKey("/3", 4, 0, top.get(1));
+	}
+
+	@Test
+	public void newKeyTakesOverLowestCounterWhenFull() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 2);
+		hotKeys.record("/a");
+		hotKeys.record("/a");
+		hotKeys.record("/b");
+		hotKeys.record("/c");
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(10);
+		assertEquals(2, top.size());
+		assertHotKey("/a", 2, 0, top.get(0));
+		assertHotKey("/c", 2, 1, top.get(1));
+	}
+
+	@Test
+	public void heavyHitterIsFoundAmongManyMoreKeysThanTheTableHolds() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 8);
+		for (int i = 0; i < 10000; i++) {
+			hotKeys.record("/cold-" + i);
+			if (i % 4 == 0) {
+				hotKeys.record("/hot");
+			}
+		}
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(100);
+		assertEquals(8, top.size());
+		HotKey hottest = top.get(0);
+		assertEquals("/hot", hottest.getKey());
+		assertTrue(hottest.getCount() >= 2500);
+		assertTrue(hottest.getCount() - hottest.getError() <= 2500);
+	}
+
+	@Test
+	public void countsFromEachStripeAreSummed() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 10, 2);
+		hotKeys.record(0, "/a");
+		hotKeys.record(0, "/a");
+		hotKeys.record(0, "/b");
+		hotKeys.record(1, "/a");
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(10);
+		assertEquals(2, top.size());
+		assertHotKey("/a", 3, 0, top.get(0));
+		assertHotKey("/b", 1, 0, top.get(1));
+	}
+
+	@Test
+	public void keyMissingFromAFullStripeIsCreditedWithItsLowestCount() {
+		HotKeys hotKeys = new HotKeys(timestampProvider, 2, 2);
+		hotKeys.record(0, "/a");
+		hotKeys.record(0, "/a");
+		hotKeys.record(0, "/b");
+		hotKeys.record(0, "/b");
+		hotKeys.record(0, "/b");
+		hotKeys.record(1, "/c");
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(10);
+		assertEquals(3, top.size());
+		assertHotKey("/b", 3, 0, top.get(0));
+		assertHotKey("/c", 3, 2, top.get(1));
+		assertHotKey("/a", 2, 0, top.get(2));
+	}
+
+	@Test
+	public void keysRecordedFromManyThreadsAreAllCounted() throws Exception {
+		final HotKeys hotKeys = new HotKeys(timestampProvider, 10);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						hotKeys.record("/a");
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		timestampProvider.now += HotKeys.WINDOW_MILLIS;
+		List<HotKey> top = hotKeys.getTop(10);
+		assertEquals(1, top.size());
+		assertHotKey("/a", 8000, 0, top.get(0));
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void tableSizeMustBePositive() {
+		new HotKeys(timestampProvider, 0);
+	}
+
+	private void assertHotKey(String key, long count, long error, HotKey actual) {
+		assertEquals(key, actual.getKey());
+		assertEquals(count, actual.getCount());
+		assertEquals(error, actual.getError());
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	LatencyHistogram histogram;
+
+	@Before
+	public void setup() {
+		histogram = new LatencyHistogram();
+	}
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		for (int i = 1; i <= 20; i++) {
+			histogram.record(i);
+		}
+		assertEquals(10, histogram.getValueAtPercentile(50));
+		assertEquals(18, histogram.getValueAtPercentile(90));
+		assertEquals(20, histogram.getValueAtPercentile(100));
+		assertEquals(1, histogram.getMin());
+		assertEquals(20, histogram.getMax());
+	}
+
+	@Test
+	public void largeValuesAreWithinRelativeError() {
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 10);
+		}
+		assertWithinError(500000, histogram.getValueAtPercentile(50));
+		assertWithinError(990000, histogram.getValueAtPercentile(99));
+		assertWithinError(999000, histogram.getValueAtPercentile(99.9));
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+		assertEquals(500005, histogram.getMean());
+	}
+
+	@Test
+	public void tailIsVisibleBehindManyFastSamples() {
+		for (int i = 0; i < 990; i++) {
+			histogram.record(100);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(250000);
+		}
+		assertWithinError(100, histogram.getValueAtPercentile(50));
+		assertWithinError(100, histogram.getValueAtPercentile(99));
+		assertWithinError(250000, histogram.getValueAtPercentile(99.9));
+		assertEquals(250000, histogram.getMax());
+	}
+
+	@Test
+	public void outOfRangeValuesAreClamped() {
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getMin());
+		assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMax());
+		assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, 
+					histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void bucketsCoverEveryValueOnce() {
+		for (int i = 1; i < LatencyHistogram.BUCKETS; i++) {
+			long lowest = LatencyHistogram.highestValueIn(i - 1) + 1;
+			assertEquals(i, LatencyHistogram.indexFor(lowest));
+			assertEquals(i, LatencyHistogram.indexFor(
+								LatencyHistogram.highestValueIn(i)));
+		}
+		assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, 
+				LatencyHistogram.highestValueIn(LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void concurrentRecordingLosesNothing() throws Exception {
+		final int threads = 8;
+		final int samples = 10000;
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch endGate = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final long offset = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						startGate.await();
+						for (int i = 0; i < samples; i++) {
+							histogram.record(offset + i);
+						}
+					} catch (InterruptedException e) {
+						// counted as missing below
+					} finally {
+						endGate.countDown();
+					}
+				}
+			}.start();
+		}
+		startGate.countDown();
+		endGate.await();
+		assertEquals(threads * samples, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(threads - 1 + samples - 1, histogram.getMax());
+	}
+
+	@Test
+	public void percentilesCoverValuesRecordedOnEveryThread() throws Exception {
+		for (int t = 0; t < 4; t++) {
+			final long offset = t * 5;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 1; i <= 5; i++) {
+						histogram.record(offset + i);
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+		}
+		assertEquals(20, histogram.getCount());
+		assertEquals(10, histogram.getValueAtPercentile(50));
+		assertEquals(18, histogram.getValueAtPercentile(90));
+		assertEquals(20, histogram.getValueAtPercentile(100));
+		LatencyHistogram merged = new LatencyHistogram();
+		merged.add(histogram);
+		assertEquals(20, merged.getCount());
+		assertEquals(10, merged.getValueAtPercentile(50));
+	}
+
+	/**
+	 * Assert that actual is as close to expected as the histogram's sub 
+	 * buckets can resolve
+	 */
+	public static void assertWithinError(long expected, long actual) {
+		assertTrue(String.format("Expected about %s, was %s", expected, actual),
+				Math.abs(actual - expected) 
+					<= expected / LatencyHistogram.SUB_BUCKETS);
+	}
+}
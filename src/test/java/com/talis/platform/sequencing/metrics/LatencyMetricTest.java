@@ -1,5 +1,6 @@
 package com.talis.platform.sequencing.metrics;
 
+import static com.talis.platform.sequencing.metrics.LatencyHistogramTest.assertWithinError;
 import static org.junit.Assert.*;
 
 import org.junit.Before;
@@ -48,6 +49,23 @@ public class LatencyMetricTest {
 		assertEquals(0, metric.getAverageLatency());
 	}
 
+	@Test
+	public void testNanosecondLatenciesRecordedToNearestMicrosecond() {
+		metric.recordLatencyNanos(1499);
+		metric.recordLatencyNanos(2500);
+		assertEquals(2, metric.getCount());
+		assertEquals(3, metric.getHighestLatencyMicros());
+		assertEquals(1, metric.getLatencyAtPercentile(50));
+		assertEquals(0, metric.getMaxLatency());
+	}
+
+	@Test
+	public void testSumIsKeptInNanosecondsSinceStart() {
+		metric.recordLatencyNanos(1499);
+		metric.recordLatency(2);
+		assertEquals(2001499, metric.getSumNanos());
+	}
+
 	@Test
 	public void testGetMinLatencyForSingleDataPoint() {
 		metric.recordLatency(11);
@@ -97,4 +115,52 @@ public class LatencyMetricTest {
 		
 	}
 
+	@Test
+	public void testPercentilesAreReportedInMicroseconds() {
+		for (int i = 1; i <= 100; i++) {
+			metric.recordLatency(1);
+		}
+		metric.recordLatency(2000);
+		assertWithinError(1000, metric.getLatencyAtPercentile(50));
+		assertWithinError(1000, metric.getLatencyAtPercentile(99));
+		assertTrue(metric.getLatencyAtPercentile(100) > 1900000);
+		assertEquals(2000000, metric.getHighestLatencyMicros());
+	}
+
+	@Test
+	public void testPercentilesAreNotResetByReads() {
+		metric.recordLatency(5);
+		assertEquals(5, metric.getMaxLatency());
+		assertEquals(5000, metric.getLatencyAtPercentile(99));
+		assertEquals(5000, metric.getLatencyAtPercentile(99));
+		assertEquals(5000, metric.getHighestLatencyMicros());
+	}
+
+	@Test
+	public void testLatenciesLeaveTheWindowAfterAMinute() {
+		RollingCounterTest.SettableTimestampProvider timestampProvider = 
+			new RollingCounterTest.SettableTimestampProvider();
+		metric = new LatencyMetric(timestampProvider);
+		metric.recordLatency(100);
+		timestampProvider.now += 60000;
+		metric.recordLatency(2);
+		assertEquals(2, metric.getMaxLatency());
+		assertEquals(2, metric.getAverageLatency());
+		assertEquals(1, metric.getCount(1));
+		assertEquals(2, metric.getCount(5));
+		assertEquals(2, metric.getCount());
+	}
+
+	@Test
+	public void testCountsCoverFifteenMinutes() {
+		RollingCounterTest.SettableTimestampProvider timestampProvider = 
+			new RollingCounterTest.SettableTimestampProvider();
+		metric = new LatencyMetric(timestampProvider);
+		metric.recordLatency(100);
+		timestampProvider.now += 10 * 60000;
+		metric.recordLatency(2);
+		assertEquals(2, metric.getMaxLatency());
+		assertEquals(1, metric.getCount(5));
+		assertEquals(2, metric.getCount(15));
+	}
 }
@@ -0,0 +1,126 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OpenMetricsRegistryTest {
+
+	OpenMetricsRegistry registry;
+
+	@Before
+	public void setup() {
+		registry = new OpenMetricsRegistry(Collections.<OpenMetric>emptyList());
+	}
+
+	@Test
+	public void emptyRegistryWritesOnlyTheEnd() throws Exception {
+		assertEquals("# EOF\n", write(registry));
+	}
+
+	@Test
+	public void counterIsWrittenAsTotal() throws Exception {
+		RollingCounter errors = new RollingCounter();
+		errors.add(3);
+		registry.register(Arrays.asList(
+				OpenMetric.counter("h1_errors", "Errors", errors)), null);
+		assertEquals("# TYPE h1_errors counter\n"
+				+ "# HELP h1_errors Errors\n"
+				+ "h1_errors_total 3\n"
+				+ "# EOF\n", write(registry));
+	}
+
+	@Test
+	public void summaryIsWrittenInSeconds() throws Exception {
+		LatencyMetric latency = new LatencyMetric();
+		latency.recordLatencyNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		latency.recordLatencyNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		registry.register(Arrays.asList(
+				OpenMetric.summary("h1_latency_seconds", "Latency", latency)), 
+				null);
+		assertEquals("# TYPE h1_latency_seconds summary\n"
+				+ "# HELP h1_latency_seconds Latency\n"
+				+ "h1_latency_seconds{quantile=\"0.5\"} 0.001\n"
+				+ "h1_latency_seconds{quantile=\"0.9\"} 0.001\n"
+				+ "h1_latency_seconds{quantile=\"0.99\"} 0.001\n"
+				+ "h1_latency_seconds{quantile=\"0.999\"} 0.001\n"
+				+ "h1_latency_seconds_count 2\n"
+				+ "h1_latency_seconds_sum 0.002\n"
+				+ "# EOF\n", write(registry));
+	}
+
+	@Test
+	public void metricsWithTheSameNameAreWrittenTogether() throws Exception {
+		RollingCounter eastErrors = new RollingCounter();
+		RollingCounter eastRetries = new RollingCounter();
+		RollingCounter westErrors = new RollingCounter();
+		RollingCounter westRetries = new RollingCounter();
+		eastErrors.increment();
+		westRetries.add(2);
+		registry.register(Arrays.asList(
+				OpenMetric.counter("h1_errors", "Errors", eastErrors),
+				OpenMetric.counter("h1_retries", "Retries", eastRetries)), 
+				OpenMetricsWriter.label("ensemble", "east"));
+		registry.register(Arrays.asList(
+				OpenMetric.counter("h1_errors", "Errors", westErrors),
+				OpenMetric.counter("h1_retries", "Retries", westRetries)), 
+				OpenMetricsWriter.label("ensemble", "west"));
+		assertEquals("# TYPE h1_errors counter\n"
+				+ "# HELP h1_errors Errors\n"
+				+ "h1_errors_total{ensemble=\"east\"} 1\n"
+				+ "h1_errors_total{ensemble=\"west\"} 0\n"
+				+ "# TYPE h1_retries counter\n"
+				+ "# HELP h1_retries Retries\n"
+				+ "h1_retries_total{ensemble=\"east\"} 0\n"
+				+ "h1_retries_total{ensemble=\"west\"} 2\n"
+				+ "# EOF\n", write(registry));
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void metricsWithTheSameNameMustHaveTheSameType() {
+		registry.register(Arrays.asList(
+				OpenMetric.counter("h1_errors", "Errors", new RollingCounter())), 
+				null);
+		registry.register(Arrays.asList(
+				OpenMetric.summary("h1_errors", "Errors", new LatencyMetric())), 
+				null);
+	}
+
+	@Test
+	public void jvmMetricsAreRegisteredByDefault() throws Exception {
+		String text = write(new OpenMetricsRegistry());
+		assertTrue(text.startsWith("# TYPE jvm_uptime_seconds gauge\n"));
+		assertTrue(text.contains("\njvm_memory_used_bytes{area=\"heap\"} "));
+		assertTrue(text.contains("\njvm_threads "));
+		assertTrue(text.endsWith("\n# EOF\n"));
+	}
+
+	private static String write(OpenMetricsRegistry registry) throws Exception {
+		StringWriter text = new StringWriter();
+		registry.writeTo(new OpenMetricsWriter(text));
+		return text.toString();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OpenMetricsWriterTest {
+
+	StringWriter text;
+	OpenMetricsWriter out;
+
+	@Before
+	public void setup() {
+		text = new StringWriter();
+		out = new OpenMetricsWriter(text);
+	}
+
+	@Test
+	public void familyIsDescribedByTypeThenHelp() throws Exception {
+		out.family("h1_errors", OpenMetric.COUNTER, "Errors\nwith a \\ \"quote\"");
+		assertEquals("# TYPE h1_errors counter\n"
+				+ "# HELP h1_errors Errors\\nwith a \\\\ \"quote\"\n", 
+				text.toString());
+	}
+
+	@Test
+	public void sampleWithoutLabels() throws Exception {
+		out.sample("h1_errors_total", null, 3);
+		out.sample("h1_uptime_seconds", null, 1.5);
+		assertEquals("h1_errors_total 3\nh1_uptime_seconds 1.5\n", text.toString());
+	}
+
+	@Test
+	public void sampleWithLabels() throws Exception {
+		String ensemble = OpenMetricsWriter.label("ensemble", "east");
+		String quantile = OpenMetricsWriter.label("quantile", "0.5");
+		out.sample("h1_errors_total", ensemble, 3);
+		out.sample("h1_latency_seconds", null, quantile, 0.25);
+		out.sample("h1_latency_seconds", ensemble, quantile, 0.5);
+		assertEquals("h1_errors_total{ensemble=\"east\"} 3\n"
+				+ "h1_latency_seconds{quantile=\"0.5\"} 0.25\n"
+				+ "h1_latency_seconds{ensemble=\"east\",quantile=\"0.5\"} 0.5\n", 
+				text.toString());
+	}
+
+	@Test
+	public void labelValuesAreEscaped() {
+		assertEquals("gc=\"a\\\\b\\\"c\\nd\"", 
+				OpenMetricsWriter.label("gc", "a\\b\"c\nd"));
+	}
+
+	@Test
+	public void joiningLabelsSkipsNulls() {
+		assertNull(OpenMetricsWriter.join(null, null));
+		assertEquals("a=\"1\"", OpenMetricsWriter.join("a=\"1\"", null));
+		assertEquals("b=\"2\"", OpenMetricsWriter.join(null, "b=\"2\""));
+		assertEquals("a=\"1\",b=\"2\"", 
+				OpenMetricsWriter.join("a=\"1\"", "b=\"2\""));
+	}
+
+	@Test
+	public void finishMarksEndOfExposition() throws Exception {
+		out.finish();
+		assertEquals("# EOF\n", text.toString());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.platform.TimestampProvider;
+
+public class RollingCounterTest {
+
+	SettableTimestampProvider timestampProvider;
+	RollingCounter counter;
+
+	@Before
+	public void setup() {
+		timestampProvider = new SettableTimestampProvider();
+		timestampProvider.now = 1000000;
+		counter = new RollingCounter(timestampProvider);
+	}
+
+	@Test
+	public void countsAreZeroWhenNothingRecorded() {
+		assertEquals(0, counter.getTotal());
+		assertEquals(0, counter.getLastMinutes(1));
+		assertEquals(0, counter.getLastMinutes(15));
+	}
+
+	@Test
+	public void readingDoesNotResetCounts() {
+		counter.increment();
+		counter.add(2);
+		assertEquals(3, counter.getTotal());
+		assertEquals(3, counter.getTotal());
+		assertEquals(3, counter.getLastMinutes(1));
+		assertEquals(3, counter.getLastMinutes(1));
+	}
+
+	@Test
+	public void windowsOnlyCoverRecentEvents() {
+		counter.add(1);
+		timestampProvider.now += 2 * 60000;
+		counter.add(10);
+		timestampProvider.now += 4 * 60000;
+		counter.add(100);
+		assertEquals(100, counter.getLastMinutes(1));
+		assertEquals(110, counter.getLastMinutes(5));
+		assertEquals(111, counter.getLastMinutes(15));
+		assertEquals(111, counter.getTotal());
+	}
+
+	@Test
+	public void oldEventsLeaveTheWindowsButNotTheTotal() {
+		counter.add(5);
+		timestampProvider.now += 15 * 60000;
+		assertEquals(0, counter.getLastMinutes(15));
+		counter.add(1);
+		assertEquals(1, counter.getLastMinutes(15));
+		assertEquals(6, counter.getTotal());
+	}
+
+	@Test
+	public void slotsAreReusedAfterFifteenMinutes() {
+		for (int i = 0; i < 200; i++) {
+			counter.increment();
+			timestampProvider.now += TimeBuckets.BUCKET_MILLIS;
+		}
+		assertEquals(200, counter.getTotal());
+		assertEquals(TimeBuckets.BUCKETS_PER_MINUTE - 1, counter.getLastMinutes(1));
+		assertEquals(15 * TimeBuckets.BUCKETS_PER_MINUTE - 1, 
+						counter.getLastMinutes(15));
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void windowsLongerThanFifteenMinutesAreRejected() {
+		counter.getLastMinutes(16);
+	}
+
+	@Test
+	public void concurrentIncrementsAreAllCounted() throws Exception {
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80000, counter.getTotal());
+		assertEquals(80000, counter.getLastMinutes(1));
+	}
+
+	static class SettableTimestampProvider implements TimestampProvider {
+		volatile long now = 0;
+
+		@Override
+		public long getCurrentTimeInMillis() {
+			return now;
+		}
+
+		@Override
+		public long getNanoTime() {
+			return now * 1000000;
+		}
+	}
+}
@@ -16,7 +16,13 @@
 
 package com.talis.platform.sequencing.metrics;
 
+import static com.talis.platform.sequencing.metrics.LatencyHistogramTest.assertWithinError;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -33,21 +39,21 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	@Test
 	public void recordingSequenceWriteLatenciesGivesAverage() throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
-		reporter.recordSequenceWriteLatency(5);
-		reporter.recordSequenceWriteLatency(10);
-		reporter.recordSequenceWriteLatency(10);
-		reporter.recordSequenceWriteLatency(20);
+		reporter.recordSequenceWriteLatency(millis(5));
+		reporter.recordSequenceWriteLatency(millis(5));
+		reporter.recordSequenceWriteLatency(millis(10));
+		reporter.recordSequenceWriteLatency(millis(10));
+		reporter.recordSequenceWriteLatency(millis(20));
 		assertEquals(10, reporter.getAverageWriteSequenceLatency());
 	}
 	
 	@Test
-	public void retrievingAverageSequenceWriteLatencyResetsCounts()
+	public void retrievingAverageSequenceWriteLatencyDoesNotResetCounts()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
+		reporter.recordSequenceWriteLatency(millis(5));
+		assertEquals(5, reporter.getAverageWriteSequenceLatency());
 		assertEquals(5, reporter.getAverageWriteSequenceLatency());
-		assertEquals(0, reporter.getAverageWriteSequenceLatency());
 	}
 	
 	@Test
@@ -61,9 +67,9 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceWriteLatencyIncrementsOperationCount()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
-		reporter.recordSequenceWriteLatency(4);
-		reporter.recordSequenceWriteLatency(6);
+		reporter.recordSequenceWriteLatency(millis(5));
+		reporter.recordSequenceWriteLatency(millis(4));
+		reporter.recordSequenceWriteLatency(millis(6));
 		assertEquals(3, reporter.getWriteSequenceOperations());
 	}
 	
@@ -71,8 +77,8 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceWriteLatencyWithNewFloorValue()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(6);
-		reporter.recordSequenceWriteLatency(5);
+		reporter.recordSequenceWriteLatency(millis(6));
+		reporter.recordSequenceWriteLatency(millis(5));
 		assertEquals(5, reporter.getMinWriteSequenceLatency());
 	}
 	
@@ -80,37 +86,37 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceWriteLatencyWithNewCeilingValue()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
-		reporter.recordSequenceWriteLatency(6);
+		reporter.recordSequenceWriteLatency(millis(5));
+		reporter.recordSequenceWriteLatency(millis(6));
 		assertEquals(6, reporter.getMaxWriteSequenceLatency());
 	}	
 	
 		
 	@Test
-	public void retrievingSequenceWriteMinLatencyResetsCounter()
+	public void retrievingSequenceWriteMinLatencyDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
+		reporter.recordSequenceWriteLatency(millis(5));
+		assertEquals(5, reporter.getMinWriteSequenceLatency());
 		assertEquals(5, reporter.getMinWriteSequenceLatency());
-		assertEquals(0, reporter.getMinWriteSequenceLatency());
 	}
 
 	@Test
-	public void retrievingSequenceWriteMaxLatencyResetsCounter()
+	public void retrievingSequenceWriteMaxLatencyDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
+		reporter.recordSequenceWriteLatency(millis(5));
+		assertEquals(5, reporter.getMaxWriteSequenceLatency());
 		assertEquals(5, reporter.getMaxWriteSequenceLatency());
-		assertEquals(0, reporter.getMaxWriteSequenceLatency());
 	}
 		
 	@Test
-	public void retrievingSequenceWriteCountResetsCounter()
+	public void retrievingSequenceWriteCountDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceWriteLatency(5);
+		reporter.recordSequenceWriteLatency(millis(5));
+		assertEquals(1, reporter.getWriteSequenceOperations());
 		assertEquals(1, reporter.getWriteSequenceOperations());
-		assertEquals(0, reporter.getWriteSequenceOperations());
 	}
 	
 	@Test
@@ -124,32 +130,32 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	}
 	
 	@Test
-	public void retrievingErrorResponsesResetsCounts()
+	public void retrievingErrorResponsesDoesNotResetCounts()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
 		reporter.incrementErrorResponses();
 		assertEquals(1, reporter.getErrorResponseCount());
-		assertEquals(0, reporter.getErrorResponseCount());
+		assertEquals(1, reporter.getErrorResponseCount());
 	}
 	
 	@Test
 	public void recordingSequenceReadLatenciesGivesAverage() throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
-		reporter.recordSequenceReadLatency(5);
-		reporter.recordSequenceReadLatency(10);
-		reporter.recordSequenceReadLatency(10);
-		reporter.recordSequenceReadLatency(20);
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(10));
+		reporter.recordSequenceReadLatency(millis(10));
+		reporter.recordSequenceReadLatency(millis(20));
 		assertEquals(10, reporter.getAverageReadSequenceLatency());
 	}
 	
 	@Test
-	public void retrievingAverageSequenceReadLatencyResetsCounts()
+	public void retrievingAverageSequenceReadLatencyDoesNotResetCounts()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
+		reporter.recordSequenceReadLatency(millis(5));
+		assertEquals(5, reporter.getAverageReadSequenceLatency());
 		assertEquals(5, reporter.getAverageReadSequenceLatency());
-		assertEquals(0, reporter.getAverageReadSequenceLatency());
 	}
 	
 	@Test
@@ -163,9 +169,9 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceReadLatencyIncrementsOperationCount()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
-		reporter.recordSequenceReadLatency(4);
-		reporter.recordSequenceReadLatency(6);
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(4));
+		reporter.recordSequenceReadLatency(millis(6));
 		assertEquals(3, reporter.getReadSequenceOperations());
 	}
 	
@@ -173,8 +179,8 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceReadLatencyWithNewFloorValue()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(6);
-		reporter.recordSequenceReadLatency(5);
+		reporter.recordSequenceReadLatency(millis(6));
+		reporter.recordSequenceReadLatency(millis(5));
 		assertEquals(5, reporter.getMinReadSequenceLatency());
 	}
 	
@@ -182,37 +188,37 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	public void recordingSequenceReadLatencyWithNewCeilingValue()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
-		reporter.recordSequenceReadLatency(6);
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(6));
 		assertEquals(6, reporter.getMaxReadSequenceLatency());
 	}	
 	
 		
 	@Test
-	public void retrievingSequenceReadMinLatencyResetsCounter()
+	public void retrievingSequenceReadMinLatencyDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
+		reporter.recordSequenceReadLatency(millis(5));
+		assertEquals(5, reporter.getMinReadSequenceLatency());
 		assertEquals(5, reporter.getMinReadSequenceLatency());
-		assertEquals(0, reporter.getMinReadSequenceLatency());
 	}
 
 	@Test
-	public void retrievingSequenceReadMaxLatencyResetsCounter()
+	public void retrievingSequenceReadMaxLatencyDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
+		reporter.recordSequenceReadLatency(millis(5));
+		assertEquals(5, reporter.getMaxReadSequenceLatency());
 		assertEquals(5, reporter.getMaxReadSequenceLatency());
-		assertEquals(0, reporter.getMaxReadSequenceLatency());
 	}
 		
 	@Test
-	public void retrievingSequenceReadCountResetsCounter()
+	public void retrievingSequenceReadCountDoesNotResetCounter()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
-		reporter.recordSequenceReadLatency(5);
+		reporter.recordSequenceReadLatency(millis(5));
+		assertEquals(1, reporter.getReadSequenceOperations());
 		assertEquals(1, reporter.getReadSequenceOperations());
-		assertEquals(0, reporter.getReadSequenceOperations());
 	}
 	
 	@Test
@@ -226,12 +232,21 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 	}
 	
 	@Test
-	public void retrievingReadErrorResponsesResetsCounts()
+	public void retrievingReadErrorResponsesDoesNotResetCounts()
 	throws Exception{
 		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
 		reporter.incrementReadErrorResponses();
 		assertEquals(1, reporter.getReadErrorResponseCount());
-		assertEquals(0, reporter.getReadErrorResponseCount());
+		assertEquals(1, reporter.getReadErrorResponseCount());
+	}
+	
+	@Test
+	public void incrementDuplicateRequests() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		reporter.incrementDuplicateRequests();
+		reporter.incrementDuplicateRequests();
+		assertEquals(2, reporter.getDuplicateRequestCount());
+		assertEquals(2, reporter.getDuplicateRequestCount());
 	}
 	
 	@Test
@@ -241,4 +256,88 @@ public class SequencingMetricsJmxTest extends AbstractJmxSupportTest{
 		assertEquals(0, reporter.getErrorResponseCount());
 		assertEquals(0, reporter.getReadErrorResponseCount());
 	}
+
+	@Test
+	public void sequenceWriteLatencyPercentilesInMicroseconds() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		for (int i = 0; i < 999; i++) {
+			reporter.recordSequenceWriteLatency(millis(2));
+		}
+		reporter.recordSequenceWriteLatency(millis(400));
+		assertWithinError(2000, reporter.getWriteSequenceLatencyP50());
+		assertWithinError(2000, reporter.getWriteSequenceLatencyP90());
+		assertWithinError(2000, reporter.getWriteSequenceLatencyP99());
+		assertWithinError(2000, reporter.getWriteSequenceLatencyP999());
+		assertEquals(400000, reporter.getWriteSequenceLatencyMax());
+	}
+
+	@Test
+	public void sequenceReadLatencyPercentilesInMicroseconds() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		reporter.recordSequenceReadLatency(millis(3));
+		assertEquals(3000, reporter.getReadSequenceLatencyP50());
+		assertEquals(3000, reporter.getReadSequenceLatencyP90());
+		assertEquals(3000, reporter.getReadSequenceLatencyP99());
+		assertEquals(3000, reporter.getReadSequenceLatencyP999());
+		assertEquals(3000, reporter.getReadSequenceLatencyMax());
+	}
+
+	@Test
+	public void stagesOutsideResourceMethodsAreKeptApart() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		reporter.recordDispatchLatency(120000);
+		reporter.recordSerializationLatency(millis(3));
+		assertWithinError(120, reporter.getDispatchLatencyP50());
+		assertEquals(3000, reporter.getSerializationLatencyP99());
+		assertEquals(3000, reporter.getSerializationLatencyMax());
+		assertEquals(0, reporter.getWriteSequenceOperations());
+	}
+
+	@Test
+	public void subMillisecondLatenciesAreNotRoundedAway() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		reporter.recordSequenceWriteLatency(250000);
+		reporter.recordSequenceReadLatency(40000);
+		assertWithinError(250, reporter.getWriteSequenceLatencyP50());
+		assertEquals(40, reporter.getReadSequenceLatencyMax());
+		assertEquals(0, reporter.getMaxWriteSequenceLatency());
+	}
+
+	@Test
+	public void countsAreAlsoReportedOverRecentWindows() throws Exception{
+		SequencingMetricsJmx reporter = (SequencingMetricsJmx)getReporter();
+		reporter.recordSequenceWriteLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.recordSequenceReadLatency(millis(5));
+		reporter.incrementErrorResponses();
+		reporter.incrementDuplicateRequests();
+		assertEquals(1, reporter.getWriteSequenceOperations1m());
+		assertEquals(1, reporter.getWriteSequenceOperations15m());
+		assertEquals(2, reporter.getReadSequenceOperations5m());
+		assertEquals(1, reporter.getErrorResponseCount1m());
+		assertEquals(0, reporter.getReadErrorResponseCount5m());
+		assertEquals(1, reporter.getDuplicateRequestCount15m());
+	}
+
+	@Test
+	public void injectedMetricsAreExportedToRegistry() throws Exception{
+		OpenMetricsRegistry registry = 
+			new OpenMetricsRegistry(Collections.<OpenMetric>emptyList());
+		SequencingMetricsJmx reporter = 
+			new SequencingMetricsJmx(new HotKeysJmx(), registry);
+		reporter.incrementErrorResponses();
+		reporter.incrementDuplicateRequests();
+		reporter.incrementDuplicateRequests();
+		StringWriter text = new StringWriter();
+		registry.writeTo(new OpenMetricsWriter(text));
+		assertTrue(text.toString().startsWith(
+				"# TYPE h1_write_latency_seconds summary\n"));
+		assertTrue(text.toString().contains("\nh1_write_errors_total 1\n"));
+		assertTrue(text.toString().contains("\nh1_duplicate_requests_total 2\n"));
+		assertTrue(text.toString().contains("\nh1_read_latency_seconds_count 0\n"));
+	}
+
+	private static long millis(long latency) {
+		return TimeUnit.MILLISECONDS.toNanos(latency);
+	}
 }
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void sumsEveryStripe() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[StripedCounter.STRIPES * 2];
+		for (int i = 0; i < threads.length; i++) {
+			final long delta = i + 1;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					counter.add(delta);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long n = threads.length;
+		assertEquals(n * (n + 1) / 2, counter.sum());
+	}
+
+	@Test
+	public void stripesArePowersOfTwo() {
+		assertEquals(1, StripedCounter.stripesFor(1));
+		assertEquals(4, StripedCounter.stripesFor(3));
+		assertEquals(8, StripedCounter.stripesFor(8));
+		assertEquals(64, StripedCounter.stripesFor(1000));
+	}
+}
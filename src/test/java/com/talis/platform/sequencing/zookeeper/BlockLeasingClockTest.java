@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.google.inject.Provider;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+
+public class BlockLeasingClockTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeper myKeeper;
+	private Provider<ZkClock> myClockProvider;
+	private String leasedKey;
+	private String otherKey;
+
+	@Before
+	public void setup() throws Exception {
+		myKeeper = embeddedZookeeper.getZookeeper();
+		final ZooKeeperProvider keeperProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return myKeeper;
+			}
+		};
+		myClockProvider = new Provider<ZkClock>() {
+			@Override
+			public ZkClock get() {
+				try {
+					return new ZkClock(keeperProvider, new NullZooKeeperMetrics());
+				} catch (SequencingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		int index = TEST_INDEX++;
+		leasedKey = String.format("/ids.test-key-%s-%s", KEY_SEED, index);
+		otherKey = String.format("/test-key-%s-%s", KEY_SEED, index);
+	}
+
+	@Test
+	public void onlyKeysInConfiguredNamespacesAreLeased() {
+		BlockLeasingClock clock = newClock(10, 2);
+		assertTrue(clock.isLeased(leasedKey));
+		assertTrue(clock.isLeased("ids.foo"));
+		assertFalse(clock.isLeased(otherKey));
+	}
+
+	@Test
+	public void leasedKeyServesSequencesFromOneBlock() throws Exception {
+		BlockLeasingClock clock = newClock(10, 0);
+		for (int i = 0; i < 9; i++) {
+			assertEquals(i, clock.getNextSequence(leasedKey));
+		}
+		assertEquals(9, getNodeDataAsLong(leasedKey));
+		assertEquals(9, clock.getNextSequence(leasedKey));
+		assertEquals(10, clock.getNextSequence(leasedKey));
+		assertEquals(19, getNodeDataAsLong(leasedKey));
+	}
+
+	@Test
+	public void nextBlockIsPrefetchedAtLowWaterMark() throws Exception {
+		BlockLeasingClock clock = newClock(10, 3);
+		for (int i = 0; i < 7; i++) {
+			assertEquals(i, clock.getNextSequence(leasedKey));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (getNodeDataAsLong(leasedKey) != 19
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(19, getNodeDataAsLong(leasedKey));
+		for (int i = 7; i < 20; i++) {
+			assertEquals(i, clock.getNextSequence(leasedKey));
+		}
+	}
+
+	@Test
+	public void twoNodesLeaseDisjointBlocks() throws Exception {
+		BlockLeasingClock first = newClock(10, 0);
+		BlockLeasingClock second = newClock(10, 0);
+		assertEquals(0, first.getNextSequence(leasedKey));
+		assertEquals(10, second.getNextSequence(leasedKey));
+		assertEquals(1, first.getNextSequence(leasedKey));
+		assertEquals(11, second.getNextSequence(leasedKey));
+	}
+
+	@Test
+	public void rangesAreServedFromTheCurrentBlockWhenTheyFit() throws Exception {
+		BlockLeasingClock clock = newClock(10, 0);
+		assertEquals(0, clock.getNextSequence(leasedKey));
+		assertEquals(new SequenceRange(1, 5), clock.getNextSequences(leasedKey, 5));
+		assertEquals(9, getNodeDataAsLong(leasedKey));
+		assertEquals(new SequenceRange(10, 14), clock.getNextSequences(leasedKey, 5));
+		assertEquals(14, getNodeDataAsLong(leasedKey));
+		assertEquals(15, clock.getNextSequence(leasedKey));
+		assertEquals(24, getNodeDataAsLong(leasedKey));
+	}
+
+	@Test
+	public void sequencesFollowARangeLeasedPastAPendingPrefetch() 
+	throws Exception {
+		BlockLeasingClock clock = newClock(10, 9);
+		assertEquals(0, clock.getNextSequence(leasedKey));
+		SequenceRange range = clock.getNextSequences(leasedKey, 20);
+		assertTrue(clock.getNextSequence(leasedKey) > range.getEnd());
+	}
+
+	@Test
+	public void otherKeysAreIncrementedInZooKeeper() throws Exception {
+		BlockLeasingClock clock = newClock(10, 2);
+		assertEquals(0, clock.getNextSequence(otherKey));
+		assertEquals(1, clock.getNextSequence(otherKey));
+		assertEquals(1, getNodeDataAsLong(otherKey));
+		assertEquals(1, clock.getSequence(otherKey));
+	}
+
+	private BlockLeasingClock newClock(int blockSize, int lowWater) {
+		return new BlockLeasingClock(myClockProvider, Arrays.asList("ids."),
+										blockSize, lowWater);
+	}
+
+	private long getNodeDataAsLong(String key) throws Exception {
+		byte[] data = myKeeper.getData(key, false, new Stat());
+		return ByteBuffer.wrap(data).getLong();
+	}
+}
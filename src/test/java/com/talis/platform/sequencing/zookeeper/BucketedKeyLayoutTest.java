@@ -0,0 +1,62 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class BucketedKeyLayoutTest {
+
+	@Test
+	public void keyIsStoredTwoBucketsBelowRoot() {
+		String path = new BucketedKeyLayout("/h1/seq").pathFor("/foo");
+		// md5("foo") = acbd18db4cc2f85cedef654fccc4a4d8
+		assertEquals("/h1/seq/ac/bd/foo", path);
+	}
+
+	@Test
+	public void leadingSlashIsOptional() {
+		BucketedKeyLayout layout = new BucketedKeyLayout("/root");
+		assertEquals(layout.pathFor("/foo"), layout.pathFor("foo"));
+	}
+
+	@Test
+	public void keysAreSpreadOverBuckets() {
+		BucketedKeyLayout layout = new BucketedKeyLayout("/root");
+		Set<String> buckets = new HashSet<String>();
+		for (int i = 0; i < 1000; i++) {
+			String path = layout.pathFor("/key-" + i);
+			buckets.add(path.substring(0, path.lastIndexOf('/')));
+		}
+		assertTrue(buckets.size() > 900);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rootMustBeAbsolute() {
+		new BucketedKeyLayout("h1/seq");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rootMustNotEndWithSlash() {
+		new BucketedKeyLayout("/h1/seq/");
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ClusterMembershipTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeper myKeeper;
+	private ZooKeeperProvider myProvider;
+	private String myRoot;
+	private ClusterMembership first;
+	private ClusterMembership second;
+
+	@Before
+	public void setup() throws Exception {
+		myKeeper = embeddedZookeeper.getZookeeper();
+		myProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return myKeeper;
+			}
+		};
+		myRoot = String.format("/members-%s-%s", KEY_SEED, TEST_INDEX++);
+		first = new ClusterMembership(myProvider, myRoot, "h1-a:9595", 100);
+		second = new ClusterMembership(myProvider, myRoot, "h1-b:9595", 100);
+	}
+
+	@After
+	public void tearDown() {
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void membersAgreeOnTheOwnerOfEachKey() throws Exception {
+		first.start();
+		second.start();
+		Set<String> both = new HashSet<String>(Arrays.asList("h1-a:9595", "h1-b:9595"));
+		awaitMembers(first, both);
+		awaitMembers(second, both);
+		Set<String> owners = new HashSet<String>();
+		for (int i = 0; i < 100; i++) {
+			String key = "/key-" + i;
+			assertEquals(first.ownerOf(key), second.ownerOf(key));
+			owners.add(first.ownerOf(key));
+		}
+		assertEquals(both, owners);
+	}
+
+	@Test
+	public void listenersHearWhenAMemberLeaves() throws Exception {
+		first.start();
+		second.start();
+		awaitMembers(first, 
+				new HashSet<String>(Arrays.asList("h1-a:9595", "h1-b:9595")));
+		final CountDownLatch latch = new CountDownLatch(1);
+		first.addListener(new ClusterMembership.Listener() {
+			@Override
+			public void membershipChanged(ConsistentHashRing ring) {
+				if (ring.getNodes().size() == 1) {
+					latch.countDown();
+				}
+			}
+		});
+		second.close();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals("h1-a:9595", first.ownerOf("/any-key"));
+	}
+
+	@Test
+	public void registrationIsRestoredIfItGoesMissing() throws Exception {
+		first.start();
+		myKeeper.delete(myRoot + "/h1-a:9595", -1);
+		first.refresh();
+		assertNotNull(myKeeper.exists(myRoot + "/h1-a:9595", false));
+	}
+
+	@Test
+	public void registrationLeftByAnEarlierSessionIsReplaced() throws Exception {
+		ZooKeeper earlier = EnsembleRebalancerTest.connect("");
+		try {
+			ZkPaths.createParents(earlier, myRoot + "/h1-a:9595");
+			earlier.create(myRoot + "/h1-a:9595", new byte[0], ZkClock.DEFAULT_ACL, 
+							CreateMode.EPHEMERAL);
+			first.start();
+			assertEquals(myKeeper.getSessionId(), 
+				myKeeper.exists(myRoot + "/h1-a:9595", false).getEphemeralOwner());
+		} finally {
+			earlier.close();
+		}
+	}
+
+	private void awaitMembers(ClusterMembership membership, Set<String> members) 
+	throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!members.equals(membership.getMembers()) 
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(members, membership.getMembers());
+	}
+}
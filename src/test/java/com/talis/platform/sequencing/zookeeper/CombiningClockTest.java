@@ -0,0 +1,52 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.talis.platform.sequencing.Clock;
+import com.talis.platform.sequencing.SequenceRange;
+
+public class CombiningClockTest {
+
+	private static final String KEY = "/foo";
+
+	@Test
+	public void singleIncrementIsTakenAsRangeFromWrappedClock() throws Exception {
+		Clock delegate = createStrictMock(Clock.class);
+		expect(delegate.getNextSequences(KEY, 1)).andReturn(new SequenceRange(5, 5));
+		replay(delegate);
+		assertEquals(5, new CombiningClock(delegate).getNextSequence(KEY));
+		verify(delegate);
+	}
+
+	@Test
+	public void otherCallsArePassedThrough() throws Exception {
+		Clock delegate = createStrictMock(Clock.class);
+		expect(delegate.getNextSequences(KEY, 3)).andReturn(new SequenceRange(1, 3));
+		expect(delegate.getSequence(KEY)).andReturn(3L);
+		replay(delegate);
+		CombiningClock clock = new CombiningClock(delegate);
+		assertEquals(new SequenceRange(1, 3), clock.getNextSequences(KEY, 3));
+		assertEquals(3, clock.getSequence(KEY));
+		assertSame(delegate, clock.getDelegate());
+		verify(delegate);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+	private static final int KEYS = 10000;
+
+	@Test
+	public void ownerDoesNotDependOnNodeOrder() {
+		ConsistentHashRing first = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+		ConsistentHashRing second = new ConsistentHashRing(Arrays.asList("c", "a", "b"));
+		for (int i = 0; i < KEYS; i++) {
+			String key = "/key-" + i;
+			assertEquals(first.nodeFor(key), second.nodeFor(key));
+		}
+	}
+
+	@Test
+	public void keysAreSpreadOverEveryNode() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"));
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < KEYS; i++) {
+			String node = ring.nodeFor("/key-" + i);
+			Integer count = counts.get(node);
+			counts.put(node, null == count ? 1 : count + 1);
+		}
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			// within a third of a perfectly even share
+			assertTrue(count > KEYS / 4 * 2 / 3);
+			assertTrue(count < KEYS / 4 * 4 / 3);
+		}
+	}
+
+	@Test
+	public void addingANodeOnlyMovesKeysOntoIt() {
+		ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+		ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"));
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String key = "/key-" + i;
+			String owner = after.nodeFor(key);
+			if (!owner.equals(before.nodeFor(key))) {
+				assertEquals("d", owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0);
+		assertTrue(moved < KEYS / 3);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void ringMustHaveANode() {
+		new ConsistentHashRing(Arrays.<String>asList());
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ContentionBackoffTest {
+
+	private static final String KEY = "/contended";
+
+	@Test
+	public void retriesAreCappedAtMaxAttempts() {
+		ContentionBackoff backoff = new ContentionBackoff(1, 10, 3);
+		assertTrue(backoff.mayRetry(1));
+		assertTrue(backoff.mayRetry(2));
+		assertFalse(backoff.mayRetry(3));
+	}
+
+	@Test
+	public void delaysStayBetweenBaseAndMax() {
+		ContentionBackoff backoff = new ContentionBackoff(2, 50, 100);
+		long delay = 0;
+		for (int i = 0; i < 1000; i++) {
+			delay = backoff.conflicted(KEY, delay);
+			assertTrue(delay >= 2);
+			assertTrue(delay <= 50);
+		}
+	}
+
+	@Test
+	public void delayGrowsWithPreviousDelay() {
+		ContentionBackoff backoff = new ContentionBackoff(1, 1000, 100);
+		long largest = 0;
+		long delay = 0;
+		for (int i = 0; i < 50; i++) {
+			delay = backoff.conflicted(KEY, delay);
+			largest = Math.max(largest, delay);
+		}
+		assertTrue(largest > 3);
+	}
+
+	@Test
+	public void conflictsRaiseContentionEstimate() {
+		ContentionBackoff backoff = new ContentionBackoff(1, 10, 100);
+		assertEquals(0.0, backoff.contention(KEY), 0.0);
+		backoff.conflicted(KEY, 0);
+		double once = backoff.contention(KEY);
+		backoff.conflicted(KEY, 0);
+		assertEquals(ContentionBackoff.ALPHA, once, 0.0001);
+		assertTrue(backoff.contention(KEY) > once);
+	}
+
+	@Test
+	public void commitsLowerContentionEstimateUntilItIsForgotten() {
+		ContentionBackoff backoff = new ContentionBackoff(1, 10, 100);
+		backoff.conflicted(KEY, 0);
+		double before = backoff.contention(KEY);
+		backoff.committed(KEY);
+		assertTrue(backoff.contention(KEY) < before);
+		for (int i = 0; i < 100; i++) {
+			backoff.committed(KEY);
+		}
+		assertEquals(0.0, backoff.contention(KEY), 0.0);
+	}
+
+	@Test
+	public void commitsOnUncontendedKeysAreNotTracked() {
+		ContentionBackoff backoff = new ContentionBackoff(1, 10, 100);
+		backoff.committed(KEY);
+		assertEquals(0.0, backoff.contention(KEY), 0.0);
+	}
+
+	@Test
+	public void contentionWidensFirstDelay() {
+		ContentionBackoff backoff = new ContentionBackoff(0, 1000, 100);
+		for (int i = 0; i < 50; i++) {
+			backoff.conflicted(KEY, 0);
+		}
+		long total = 0;
+		for (int i = 0; i < 100; i++) {
+			total += backoff.conflicted(KEY, 0);
+		}
+		// the estimate is close to 1, so first delays spread over most of
+		// the range rather than sitting at the base
+		assertTrue(total / 100 > 100);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void maxDelayMustNotBeBelowBase() {
+		new ContentionBackoff(10, 5, 3);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void maxAttemptsMustBePositive() {
+		new ContentionBackoff(1, 5, 0);
+	}
+}
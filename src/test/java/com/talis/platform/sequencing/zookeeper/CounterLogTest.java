@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CounterLogTest {
+
+	@Rule
+	public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private File directory;
+	private CounterLog log;
+
+	@Before
+	public void setup() throws Exception {
+		directory = new File(tmpFolder.getRoot(), "ownership");
+		log = new CounterLog(directory, 1024 * 1024);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		log.close();
+	}
+
+	@Test
+	public void recordsAreReadBackAfterReopening() throws Exception {
+		log.await(log.append("/foo", 10, 99));
+		log.await(log.append("/bar", 3, 9));
+		log.await(log.append("/foo", 11, 99));
+		log.close();
+		log = new CounterLog(directory, 1024 * 1024);
+		assertEquals(11, log.get("/foo").getIssued());
+		assertEquals(99, log.get("/foo").getBlockEnd());
+		assertEquals(3, log.get("/bar").getIssued());
+		assertNull(log.get("/baz"));
+	}
+
+	@Test
+	public void concurrentAppendsAreAllSynced() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				final String key = "/key-" + i;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int j = 0; j < 100; j++) {
+							log.await(log.append(key, j, 1000));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		log.close();
+		log = new CounterLog(directory, 1024 * 1024);
+		for (int i = 0; i < 8; i++) {
+			assertEquals(99, log.get("/key-" + i).getIssued());
+		}
+	}
+
+	@Test
+	public void incompleteRecordAtTheEndIsDiscarded() throws Exception {
+		log.await(log.append("/foo", 10, 99));
+		log.await(log.append("/foo", 11, 99));
+		log.close();
+		File file = new File(directory, CounterLog.FILE_NAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		log = new CounterLog(directory, 1024 * 1024);
+		assertEquals(10, log.get("/foo").getIssued());
+		log.await(log.append("/foo", 12, 99));
+		log.close();
+		log = new CounterLog(directory, 1024 * 1024);
+		assertEquals(12, log.get("/foo").getIssued());
+	}
+
+	@Test
+	public void directoryCanBeSynced() throws Exception {
+		CounterLog.syncDirectory(directory);
+	}
+
+	@Test
+	public void logIsCompactedOnceItPassesItsMaximumSize() throws Exception {
+		log.close();
+		log = new CounterLog(directory, 512);
+		for (int i = 0; i < 200; i++) {
+			log.await(log.append("/key-" + (i % 4), i, 1000));
+		}
+		File file = new File(directory, CounterLog.FILE_NAME);
+		assertTrue(file.length() < 1024);
+		log.close();
+		log = new CounterLog(directory, 512);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(196 + i, log.get("/key-" + i).getIssued());
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class EnsembleRebalancerTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private Map<String, ZooKeeper> myEnsembles;
+	private ZooKeeper myFirst;
+	private ZooKeeper mySecond;
+	private ConsistentHashRing myRing;
+
+	@Before
+	public void setup() throws Exception {
+		// two chrooted views of the one embedded server stand in for
+		// separate ensembles
+		String root = String.format("/ensembles-%s-%s", KEY_SEED, TEST_INDEX++);
+		ZooKeeper keeper = embeddedZookeeper.getZookeeper();
+		keeper.create(root, new byte[0], ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		keeper.create(root + "/first", new byte[0], ZkClock.DEFAULT_ACL, 
+						CreateMode.PERSISTENT);
+		keeper.create(root + "/second", new byte[0], ZkClock.DEFAULT_ACL, 
+						CreateMode.PERSISTENT);
+		myFirst = connect(root + "/first");
+		mySecond = connect(root + "/second");
+		myEnsembles = new LinkedHashMap<String, ZooKeeper>();
+		myEnsembles.put("first", myFirst);
+		myEnsembles.put("second", mySecond);
+		myRing = new ConsistentHashRing(myEnsembles.keySet());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		myFirst.close();
+		mySecond.close();
+	}
+
+	static ZooKeeper connect(String chroot) throws Exception {
+		return new ZooKeeper(ZkTestHelper.DEFAULT_HOST_PORT + chroot, 
+							ZkTestHelper.CONNECTION_TIMEOUT, new NullWatcher());
+	}
+
+	@Test
+	public void countersAreMovedToTheEnsembleWhichOwnsThem() throws Exception {
+		for (int i = 0; i < 40; i++) {
+			writeCounter(myFirst, "/key-" + i, i * 10);
+		}
+		int moved = new EnsembleRebalancer(myEnsembles, new FlatKeyLayout(), 4)
+							.rebalance();
+		int expected = 0;
+		for (int i = 0; i < 40; i++) {
+			String key = "/key-" + i;
+			if ("second".equals(myRing.nodeFor(key))) {
+				expected++;
+				assertNull(myFirst.exists(key, false));
+				assertEquals(i * 10, readCounter(mySecond, key));
+			} else {
+				assertEquals(i * 10, readCounter(myFirst, key));
+				assertNull(mySecond.exists(key, false));
+			}
+		}
+		assertTrue(expected > 0);
+		assertEquals(expected, moved);
+	}
+
+	@Test
+	public void countersInBucketedLayoutAreMoved() throws Exception {
+		BucketedKeyLayout layout = new BucketedKeyLayout("/buckets");
+		String key = keyOwnedBy("second");
+		String path = layout.pathFor(key);
+		ZkPaths.createParents(myFirst, path);
+		writeCounter(myFirst, path, 7);
+		new EnsembleRebalancer(myEnsembles, layout, 1).rebalance();
+		assertNull(myFirst.exists(path, false));
+		assertEquals(7, readCounter(mySecond, path));
+	}
+
+	@Test
+	public void nodesWhichAreNotCountersAreLeftAlone() throws Exception {
+		String key = keyOwnedBy("second");
+		myFirst.create(key, new byte[] { 1, 2, 3 }, ZkClock.DEFAULT_ACL, 
+						CreateMode.PERSISTENT);
+		new EnsembleRebalancer(myEnsembles, new FlatKeyLayout(), 1).rebalance();
+		assertNotNull(myFirst.exists(key, false));
+		assertNull(mySecond.exists(key, false));
+	}
+
+	@Test
+	public void higherValueOnOwnerIsKept() throws Exception {
+		String key = keyOwnedBy("second");
+		writeCounter(myFirst, key, 5);
+		writeCounter(mySecond, key, 50);
+		EnsembleRebalancer rebalancer = 
+			new EnsembleRebalancer(myEnsembles, new FlatKeyLayout(), 1);
+		rebalancer.moveKey(key, "first", "second");
+		assertNull(myFirst.exists(key, false));
+		assertEquals(50, readCounter(mySecond, key));
+	}
+
+	private String keyOwnedBy(String ensemble) {
+		for (int i = 0; ; i++) {
+			String key = "/owned-" + i;
+			if (ensemble.equals(myRing.nodeFor(key))) {
+				return key;
+			}
+		}
+	}
+
+	private void writeCounter(ZooKeeper keeper, String path, long value) 
+	throws Exception {
+		keeper.create(path, ByteBuffer.allocate(8).putLong(value).array(),
+						ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+	}
+
+	private long readCounter(ZooKeeper keeper, String path) throws Exception {
+		return ByteBuffer.wrap(keeper.getData(path, false, new Stat())).getLong();
+	}
+}
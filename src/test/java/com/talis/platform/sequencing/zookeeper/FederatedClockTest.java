@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+
+public class FederatedClockTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private Map<String, ZooKeeper> myKeepers;
+	private FederatedClock myClock;
+
+	@Before
+	public void setup() throws Exception {
+		String root = String.format("/federated-%s-%s", KEY_SEED, TEST_INDEX++);
+		ZooKeeper keeper = embeddedZookeeper.getZookeeper();
+		keeper.create(root, new byte[0], ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		myKeepers = new LinkedHashMap<String, ZooKeeper>();
+		Map<String, ZkClock> clocks = new LinkedHashMap<String, ZkClock>();
+		for (String ensemble : new String[] { "first", "second", "third" }) {
+			keeper.create(root + "/" + ensemble, new byte[0], ZkClock.DEFAULT_ACL, 
+							CreateMode.PERSISTENT);
+			final ZooKeeper chrooted = 
+				EnsembleRebalancerTest.connect(root + "/" + ensemble);
+			myKeepers.put(ensemble, chrooted);
+			ZooKeeperProvider provider = new ZooKeeperProvider() {
+				@Override
+				public ZooKeeper get() {
+					return chrooted;
+				}
+			};
+			NullZooKeeperMetrics metrics = new NullZooKeeperMetrics();
+			clocks.put(ensemble, new ZkClock(provider, metrics, 
+						new IncrementCombiner(), new ZkReadCache(metrics, 0), 
+						new FlatKeyLayout(), new ContentionBackoff()));
+		}
+		myClock = new FederatedClock(clocks);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (ZooKeeper keeper : myKeepers.values()) {
+			keeper.close();
+		}
+	}
+
+	@Test
+	public void keysAreStoredOnlyOnTheirOwnEnsemble() throws Exception {
+		for (int i = 0; i < 30; i++) {
+			String key = "/key-" + i;
+			assertEquals(0, myClock.getNextSequence(key));
+			assertEquals(1, myClock.getNextSequence(key));
+			String owner = myClock.ensembleFor(key);
+			for (Map.Entry<String, ZooKeeper> ensemble : myKeepers.entrySet()) {
+				if (owner.equals(ensemble.getKey())) {
+					assertEquals(1, myClock.getSequence(key));
+				} else {
+					assertNull(ensemble.getValue().exists(key, false));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rangesAndAsyncCallsGoToTheSameEnsemble() throws Exception {
+		String key = "/mixed";
+		assertEquals(0, myClock.getNextSequence(key));
+		assertEquals(5, myClock.getNextSequences(key, 5).getEnd());
+		assertEquals(6, (long) myClock.getNextSequenceAsync(key).get());
+		assertEquals(6, (long) myClock.getSequenceAsync(key).get());
+	}
+}
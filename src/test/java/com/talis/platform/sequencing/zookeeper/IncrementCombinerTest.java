@@ -0,0 +1,138 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.SequencingException;
+
+public class IncrementCombinerTest {
+
+	private static final String KEY = "/combined";
+
+	private IncrementCombiner combiner;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		combiner = new IncrementCombiner();
+		executor = Executors.newFixedThreadPool(16);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void singleCallerIncrementsByOne() throws Exception {
+		CountingIncrementer incrementer = new CountingIncrementer(0);
+		assertEquals(0, combiner.increment(KEY, incrementer));
+		assertEquals(1, combiner.increment(KEY, incrementer));
+		assertEquals(2, incrementer.calls.get());
+	}
+
+	@Test
+	public void concurrentCallersReceiveContiguousSequencesInFewerCalls()
+	throws Exception {
+		final int callers = 200;
+		final CountingIncrementer incrementer = new CountingIncrementer(50);
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+		Future<?>[] futures = new Future<?>[callers];
+		for (int i = 0; i < callers; i++) {
+			futures[i] = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					startGate.await();
+					sequences.add(combiner.increment(KEY, incrementer));
+					return null;
+				}
+			});
+		}
+		startGate.countDown();
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		assertEquals(callers, sequences.size());
+		for (long i = 0; i < callers; i++) {
+			assertTrue(sequences.contains(i));
+		}
+		assertTrue(incrementer.calls.get() < callers);
+	}
+
+	@Test
+	public void failureIsReportedToEveryCallerInTheBatch() throws Exception {
+		final SequencingException failure = new SequencingException("BANG!", null);
+		IncrementCombiner.Incrementer incrementer = new IncrementCombiner.Incrementer() {
+			@Override
+			public long incrementBy(String key, int delta)
+			throws SequencingException {
+				throw failure;
+			}
+		};
+		try {
+			combiner.increment(KEY, incrementer);
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			assertSame(failure, e);
+		}
+		CountingIncrementer working = new CountingIncrementer(0);
+		assertEquals(0, combiner.increment(KEY, working));
+	}
+
+	class CountingIncrementer implements IncrementCombiner.Incrementer {
+		final AtomicInteger calls = new AtomicInteger(0);
+		final AtomicLong counter = new AtomicLong(-1);
+		final long delay;
+
+		CountingIncrementer(long delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public long incrementBy(String key, int delta) throws SequencingException {
+			calls.incrementAndGet();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new SequencingException("Interrupted", e);
+				}
+			}
+			return counter.addAndGet(delta);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+
+public class KeyLayoutMigrationTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeper myKeeper;
+	private BucketedKeyLayout myLayout;
+	private String keyPrefix;
+
+	@Before
+	public void setup() throws Exception {
+		myKeeper = embeddedZookeeper.getZookeeper();
+		myLayout = new BucketedKeyLayout(String.format("/migrated-%s-%s", 
+										KEY_SEED, TEST_INDEX));
+		keyPrefix = String.format("/test-key-%s-%s-", KEY_SEED, TEST_INDEX++);
+	}
+
+	@Test
+	public void countersAreMovedIntoNewLayout() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			writeCounter(keyPrefix + i, i * 10);
+		}
+		new KeyLayoutMigration(myKeeper, myLayout, 4).migrate();
+		for (int i = 0; i < 20; i++) {
+			String key = keyPrefix + i;
+			assertNull(myKeeper.exists(key, false));
+			assertEquals(i * 10, readCounter(myLayout.pathFor(key)));
+		}
+	}
+
+	@Test
+	public void nodesWhichAreNotCountersAreLeftAlone() throws Exception {
+		String other = keyPrefix + "other";
+		myKeeper.create(other, new byte[] { 1, 2, 3 }, ZkClock.DEFAULT_ACL, 
+							CreateMode.PERSISTENT);
+		new KeyLayoutMigration(myKeeper, myLayout, 4).migrate();
+		assertNotNull(myKeeper.exists(other, false));
+		assertNull(myKeeper.exists(myLayout.pathFor(other), false));
+	}
+
+	@Test
+	public void higherExistingValueIsKept() throws Exception {
+		String key = keyPrefix + "existing";
+		writeCounter(key, 5);
+		String path = myLayout.pathFor(key);
+		ZkPaths.createParents(myKeeper, path);
+		writeCounter(path, 50);
+		new KeyLayoutMigration(myKeeper, myLayout, 1).migrateKey(key);
+		assertNull(myKeeper.exists(key, false));
+		assertEquals(50, readCounter(path));
+	}
+
+	@Test
+	public void clockContinuesFromMigratedValue() throws Exception {
+		String key = keyPrefix + "clock";
+		writeCounter(key, 41);
+		new KeyLayoutMigration(myKeeper, myLayout, 1).migrate();
+		ZooKeeperProvider provider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return myKeeper;
+			}
+		};
+		NullZooKeeperMetrics metrics = new NullZooKeeperMetrics();
+		ZkClock clock = new ZkClock(provider, metrics, new IncrementCombiner(), 
+									new ZkReadCache(metrics, 0), myLayout, 
+									new ContentionBackoff());
+		assertEquals(42, clock.getNextSequence(key));
+	}
+
+	private void writeCounter(String path, long value) throws Exception {
+		myKeeper.create(path, ByteBuffer.allocate(8).putLong(value).array(),
+							ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+	}
+
+	private long readCounter(String path) throws Exception {
+		return ByteBuffer.wrap(myKeeper.getData(path, false, new Stat())).getLong();
+	}
+}
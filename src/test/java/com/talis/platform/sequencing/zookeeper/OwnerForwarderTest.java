@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.test.NetworkUtils;
+
+public class OwnerForwarderTest {
+
+	private HttpServer server;
+	private String owner;
+	private OwnerForwarder forwarder;
+	private final List<String> requests = 
+		Collections.synchronizedList(new ArrayList<String>());
+	private volatile int status;
+	private volatile String response;
+
+	@Before
+	public void setup() throws Exception {
+		int port = NetworkUtils.findFreePort();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext(OwnerForwarder.OWNED_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.add(exchange.getRequestMethod() + " " 
+								+ exchange.getRequestURI().getRawPath() 
+								+ (null == exchange.getRequestURI().getRawQuery() 
+									? "" : "?" + exchange.getRequestURI().getRawQuery()));
+				byte[] body = response.getBytes("UTF-8");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		owner = "127.0.0.1:" + port;
+		forwarder = new OwnerForwarder(2000);
+		status = 200;
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void incrementsArePostedToTheOwner() throws Exception {
+		response = "40-42";
+		assertEquals(new SequenceRange(40, 42), forwarder.increment(owner, "/foo", 3));
+		assertEquals("POST /owned/foo?count=3", requests.get(0));
+	}
+
+	@Test
+	public void readsAreSentToTheOwner() throws Exception {
+		response = "41";
+		assertEquals(41, forwarder.getSequence(owner, "/foo"));
+		assertEquals("GET /owned/foo", requests.get(0));
+	}
+
+	@Test
+	public void keysAreEncoded() throws Exception {
+		response = "0";
+		forwarder.getSequence(owner, "/foo bar&baz");
+		assertEquals("GET /owned/foo%20bar%26baz", requests.get(0));
+	}
+
+	@Test (expected=NoSuchSequenceException.class)
+	public void unknownKeyIsReported() throws Exception {
+		response = "-1";
+		forwarder.getSequence(owner, "/foo");
+	}
+
+	@Test (expected=SequencingException.class)
+	public void errorFromOwnerIsReported() throws Exception {
+		status = 500;
+		response = "Internal Error";
+		forwarder.increment(owner, "/foo", 1);
+	}
+
+	@Test (expected=SequencingException.class)
+	public void unreachableOwnerIsReported() throws Exception {
+		forwarder.increment("127.0.0.1:" + NetworkUtils.findFreePort(), "/foo", 1);
+	}
+}
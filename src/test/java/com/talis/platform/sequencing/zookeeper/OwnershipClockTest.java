@@ -0,0 +1,292 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+
+public class OwnershipClockTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	@Rule
+	public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private static final String SELF = "h1-a:9595";
+	private static final String OTHER = "h1-b:9595";
+	private static final int BLOCK_SIZE = 10;
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeperProvider myProvider;
+	private ZkClock myZkClock;
+	private String key;
+	private List<OwnershipClock> myClocks = new ArrayList<OwnershipClock>();
+
+	@Before
+	public void setup() throws Exception {
+		final ZooKeeper keeper = embeddedZookeeper.getZookeeper();
+		myProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return keeper;
+			}
+		};
+		NullZooKeeperMetrics metrics = new NullZooKeeperMetrics();
+		myZkClock = new ZkClock(myProvider, metrics, new IncrementCombiner(), 
+								new ZkReadCache(metrics, 0), new FlatKeyLayout(), 
+								new ContentionBackoff());
+		key = String.format("/owned-key-%s-%s", KEY_SEED, TEST_INDEX++);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (OwnershipClock clock : myClocks) {
+			clock.close();
+		}
+	}
+
+	private OwnershipClock newClock(String directory, OwnerForwarder forwarder) 
+	throws Exception {
+		return newClock(new ClusterMembership(myProvider, "/unused", SELF, 1000), 
+						directory, forwarder);
+	}
+
+	private OwnershipClock newClock(ClusterMembership membership, String directory,
+									OwnerForwarder forwarder) throws Exception {
+		CounterLog log = new CounterLog(new File(tmpFolder.getRoot(), directory), 
+										1024 * 1024);
+		OwnershipClock clock = 
+			new OwnershipClock(myZkClock, membership, log, forwarder, BLOCK_SIZE);
+		myClocks.add(clock);
+		return clock;
+	}
+
+	@Test
+	public void ownedKeysAreIssuedContiguouslyFromLeasedBlocks() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		for (long i = 0; i < 25; i++) {
+			assertEquals(i, clock.getNextSequence(key));
+		}
+		assertEquals(24, clock.getSequence(key));
+		assertEquals(29, myZkClock.getSequence(key));
+	}
+
+	@Test
+	public void rangesLargerThanABlockStayContiguous() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		assertEquals(new SequenceRange(0, 4), clock.getNextSequences(key, 5));
+		assertEquals(new SequenceRange(5, 54), clock.getNextSequences(key, 50));
+		assertEquals(55, clock.getNextSequence(key));
+		assertEquals(59, myZkClock.getSequence(key));
+	}
+
+	@Test (expected=NoSuchSequenceException.class)
+	public void readingAnUnknownKeyThrowsException() throws Exception {
+		newClock("a", new OwnerForwarder()).getSequence(key);
+	}
+
+	@Test
+	public void readingUnknownKeysKeepsNoCounters() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(-1, clock.getSequenceOrDefault(key + "-" + i, -1));
+		}
+		assertEquals(0, clock.countersHeld());
+		assertEquals(0, clock.getNextSequence(key));
+		assertEquals(0, clock.getSequenceOrDefault(key, -1));
+		assertEquals(1, clock.countersHeld());
+	}
+
+	@Test
+	public void readingAnExistingKeyKeepsItsCounter() throws Exception {
+		myZkClock.getNextSequence(key);
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		assertEquals(0, clock.getSequence(key));
+		assertEquals(1, clock.countersHeld());
+		assertEquals(1, clock.getNextSequence(key));
+	}
+
+	@Test
+	public void restartedOwnerCarriesOnFromItsLog() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		for (long i = 0; i < 3; i++) {
+			clock.getNextSequence(key);
+		}
+		clock.close();
+		OwnershipClock restarted = newClock("a", new OwnerForwarder());
+		assertEquals(2, restarted.getSequence(key));
+		assertEquals(3, restarted.getNextSequence(key));
+	}
+
+	@Test
+	public void newOwnerCarriesOnFromTheHighWaterMark() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		for (long i = 0; i < 3; i++) {
+			clock.getNextSequence(key);
+		}
+		OwnershipClock other = newClock("b", new OwnerForwarder());
+		assertEquals(9, other.getSequence(key));
+		assertEquals(10, other.getNextSequence(key));
+	}
+
+	@Test
+	public void logIsIgnoredIfAnotherOwnerHasLeasedSince() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		clock.getNextSequence(key);
+		clock.close();
+		assertEquals(10, newClock("b", new OwnerForwarder()).getNextSequence(key));
+		assertEquals(20, newClock("a", new OwnerForwarder()).getNextSequence(key));
+	}
+
+	@Test
+	public void keysAreReloadedAfterBeingOwnedElsewhere() throws Exception {
+		OwnershipClock clock = newClock("a", new OwnerForwarder());
+		assertEquals(0, clock.getNextSequence(key));
+		clock.membershipChanged(new ConsistentHashRing(Collections.singleton(OTHER)));
+		myZkClock.incrementBy(key, BLOCK_SIZE);
+		clock.membershipChanged(new ConsistentHashRing(Collections.singleton(SELF)));
+		assertEquals(20, clock.getNextSequence(key));
+	}
+
+	@Test
+	public void droppingCountersWhileIncrementingNeverReissuesSequences() 
+	throws Exception {
+		final OwnershipClock clock = newClock("a", new OwnerForwarder());
+		final ConsistentHashRing elsewhere = 
+			new ConsistentHashRing(Collections.singleton(OTHER));
+		final Set<Long> issued = 
+			Collections.synchronizedSet(new HashSet<Long>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		List<Thread> incrementers = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			incrementers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 200; j++) {
+							long seq = clock.incrementLocally(key, 1).getEnd();
+							if (!issued.add(seq)) {
+								duplicates.incrementAndGet();
+							}
+						}
+					} catch (SequencingException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		Thread dropper = new Thread() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					clock.membershipChanged(elsewhere);
+				}
+			}
+		};
+		dropper.start();
+		for (Thread thread : incrementers) {
+			thread.start();
+		}
+		for (Thread thread : incrementers) {
+			thread.join();
+		}
+		done.set(true);
+		dropper.join();
+		assertEquals(0, duplicates.get());
+		assertEquals(800, issued.size());
+	}
+
+	@Test
+	public void requestsForKeysOwnedElsewhereAreForwarded() throws Exception {
+		String root = key + "-members";
+		ClusterMembership self = new ClusterMembership(myProvider, root, SELF, 100);
+		ClusterMembership other = new ClusterMembership(myProvider, root, OTHER, 100);
+		try {
+			other.start();
+			self.start();
+			RecordingForwarder forwarder = new RecordingForwarder();
+			OwnershipClock clock = newClock(self, "a", forwarder);
+			String remoteKey = keyOwnedBy(self, OTHER);
+			assertEquals(42, clock.getNextSequence(remoteKey));
+			assertEquals(new SequenceRange(40, 42), 
+						 clock.getNextSequences(remoteKey, 3));
+			assertEquals(41, clock.getSequence(remoteKey));
+			assertEquals(42, (long) clock.getNextSequenceAsync(remoteKey).get());
+			assertEquals(4, forwarder.calls.size());
+			for (String call : forwarder.calls) {
+				assertTrue(call.startsWith(OTHER + " " + remoteKey));
+			}
+			String localKey = keyOwnedBy(self, SELF);
+			assertEquals(0, clock.getNextSequence(localKey));
+			assertEquals(4, forwarder.calls.size());
+		} finally {
+			other.close();
+		}
+	}
+
+	private String keyOwnedBy(ClusterMembership membership, String owner) {
+		for (int i = 0; ; i++) {
+			String candidate = key + "-" + i;
+			if (owner.equals(membership.ownerOf(candidate))) {
+				return candidate;
+			}
+		}
+	}
+
+	class RecordingForwarder extends OwnerForwarder {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public SequenceRange increment(String owner, String key, int count)
+		throws SequencingException {
+			calls.add(owner + " " + key + " " + count);
+			return new SequenceRange(43 - count, 42);
+		}
+
+		@Override
+		public long getSequence(String owner, String key) throws SequencingException {
+			calls.add(owner + " " + key);
+			return 41;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.RangesNotSupportedException;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+
+public class SequentialZnodeClockTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeper myKeeper;
+	private ZooKeeperProvider myKeeperProvider;
+	private String key;
+
+	@Before
+	public void setup() throws Exception {
+		myKeeper = embeddedZookeeper.getZookeeper();
+		myKeeperProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return myKeeper;
+			}
+		};
+		key = String.format("/test-key-%s-%s", KEY_SEED, TEST_INDEX++);
+	}
+
+	@Test
+	public void sequencesStartAtZeroForNewKey() throws Exception {
+		SequentialZnodeClock clock = newClock(0);
+		assertEquals(0, clock.getNextSequence(key));
+		assertEquals(1, clock.getNextSequence(key));
+		assertEquals(2, clock.getNextSequence(key));
+		assertEquals(2, clock.getSequence(key));
+	}
+
+	@Test
+	public void eachSequenceIsAChildOfTheKeyNode() throws Exception {
+		SequentialZnodeClock clock = newClock(0);
+		clock.getNextSequence(key);
+		clock.getNextSequence(key);
+		assertEquals(2, 
+			myKeeper.getChildren(SequentialZnodeClock.DEFAULT_ROOT + key, false).size());
+	}
+
+	@Test
+	public void migratesFromCounterNode() throws Exception {
+		ZkClock legacy = new ZkClock(myKeeperProvider, new NullZooKeeperMetrics());
+		legacy.getNextSequence(key);
+		legacy.getNextSequence(key);
+		assertEquals(6, legacy.getNextSequences(key, 5).getEnd());
+
+		SequentialZnodeClock clock = newClock(0);
+		assertEquals(6, clock.getSequence(key));
+		assertEquals(7, clock.getNextSequence(key));
+		assertEquals(7, clock.getSequence(key));
+	}
+
+	@Test(expected = NoSuchSequenceException.class)
+	public void getUnknownKeyThrowsNoSuchSequenceException() throws Exception {
+		newClock(0).getSequence(key);
+	}
+
+	@Test
+	public void clocksOnDifferentNodesIssueUniqueIncreasingSequences() 
+	throws Exception {
+		final SequentialZnodeClock first = newClock(0);
+		final SequentialZnodeClock second = newClock(0);
+		final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] futures = new Future<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				final SequentialZnodeClock clock = i % 2 == 0 ? first : second;
+				futures[i] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						long previous = -1;
+						for (int j = 0; j < 25; j++) {
+							long sequence = clock.getNextSequence(key);
+							assertTrue(sequence > previous);
+							sequences.add(sequence);
+							previous = sequence;
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(100, sequences.size());
+	}
+
+	@Test
+	public void pruningKeepsOnlyNewestChild() throws Exception {
+		SequentialZnodeClock clock = newClock(0);
+		for (int i = 0; i < 10; i++) {
+			clock.getNextSequence(key);
+		}
+		String parent = clock.parentPath(key);
+		clock.prune(parent);
+		assertEquals(1, myKeeper.getChildren(parent, false).size());
+		assertEquals(9, clock.getSequence(key));
+		assertTrue(clock.getNextSequence(key) > 9);
+	}
+
+	@Test
+	public void childrenArePrunedInTheBackground() throws Exception {
+		SequentialZnodeClock clock = newClock(5);
+		for (int i = 0; i < 20; i++) {
+			clock.getNextSequence(key);
+		}
+		String parent = clock.parentPath(key);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (myKeeper.getChildren(parent, false).size() > 5 
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(myKeeper.getChildren(parent, false).size() <= 5);
+	}
+
+	@Test(expected = RangesNotSupportedException.class)
+	public void rangesAreNotSupported() throws Exception {
+		newClock(0).getNextSequences(key, 10);
+	}
+
+	@Test
+	public void parkRequestsUntilExpiredSessionIsReplaced() throws Exception {
+		ZooKeeper expired = createStrictMock(ZooKeeper.class);
+		expired.getData(SequentialZnodeClock.DEFAULT_ROOT + key, false, new Stat());
+		expectLastCall().andThrow(new KeeperException.SessionExpiredException());
+		replay(expired);
+
+		final ZooKeeper[] sessions = new ZooKeeper[] { expired, myKeeper };
+		myKeeperProvider = new ZooKeeperProvider() {
+			int calls = 0;
+			@Override
+			public synchronized ZooKeeper get() {
+				return sessions[Math.min(calls++, 1)];
+			}
+		};
+		SequentialZnodeClock clock = newClock(0);
+		assertEquals(0, clock.getNextSequence(key));
+		verify(expired);
+	}
+
+	@Test
+	public void sessionIsLookedUpForEachOperation() throws Exception {
+		final ZooKeeper[] current = new ZooKeeper[] { myKeeper };
+		myKeeperProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return current[0];
+			}
+		};
+		SequentialZnodeClock clock = newClock(0);
+		assertEquals(0, clock.getNextSequence(key));
+		ZooKeeper expired = createStrictMock(ZooKeeper.class);
+		expired.getData(SequentialZnodeClock.DEFAULT_ROOT + key, false, new Stat());
+		expectLastCall().andThrow(new KeeperException.SessionExpiredException());
+		replay(expired);
+		current[0] = expired;
+		try {
+			clock.getSequence(key);
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			assertTrue(e.getCause() instanceof 
+					KeeperException.SessionExpiredException);
+		}
+		current[0] = myKeeper;
+		assertEquals(1, clock.getNextSequence(key));
+		verify(expired);
+	}
+
+	@Test
+	public void parentsAreSpreadByTheKeyLayout() throws Exception {
+		BucketedKeyLayout layout = new BucketedKeyLayout();
+		SequentialZnodeClock clock = new SequentialZnodeClock(myKeeperProvider, 
+							new NullZooKeeperMetrics(), layout, 
+							SequentialZnodeClock.DEFAULT_ROOT, 0, 
+							SequentialZnodeClock.DEFAULT_MAX_KEYS);
+		String parent = clock.parentPath(key);
+		assertEquals(SequentialZnodeClock.DEFAULT_ROOT + layout.pathFor(key), 
+						parent);
+		assertEquals(0, clock.getNextSequence(key));
+		assertEquals(1, clock.getNextSequence(key));
+		assertEquals(1, clock.getSequence(key));
+		assertEquals(2, myKeeper.getChildren(parent, false).size());
+	}
+
+	@Test
+	public void suffixIsParsedFromChildName() {
+		assertEquals(12, SequentialZnodeClock.parseSuffix("s-0000000012"));
+		assertEquals(3, SequentialZnodeClock.parseSuffix(
+				"/h1-seq/my-key/s-0000000003"));
+		assertEquals(-5, SequentialZnodeClock.parseSuffix(
+				"/h1-seq/my-key/s--000000005"));
+	}
+
+	@Test
+	public void incrementFailsOnceSuffixHasWrapped() throws Exception {
+		String parent = SequentialZnodeClock.DEFAULT_ROOT + key;
+		final ZooKeeper wrapped = createStrictMock(ZooKeeper.class);
+		expect(wrapped.getData(parent, false, new Stat()))
+				.andReturn(ByteBuffer.allocate(8).putLong(100).array());
+		expect(wrapped.create(parent + "/" + SequentialZnodeClock.CHILD_PREFIX, 
+				SequentialZnodeClock.EMPTY_DATA, ZkClock.DEFAULT_ACL, 
+				CreateMode.PERSISTENT_SEQUENTIAL))
+				.andReturn(parent + "/s--000000005");
+		replay(wrapped);
+		myKeeperProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return wrapped;
+			}
+		};
+		try {
+			newClock(0).getNextSequence(key);
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			assertTrue(e.getMessage().contains(key));
+		}
+		verify(wrapped);
+	}
+
+	@Test
+	public void forgottenKeysCarryOnFromTheirParent() throws Exception {
+		SequentialZnodeClock clock = newClock(0, 2);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, clock.getNextSequence(key + "-" + i));
+		}
+		assertEquals(2, clock.keysHeld());
+		assertEquals(1, clock.getNextSequence(key + "-0"));
+		assertEquals(2, clock.keysHeld());
+	}
+
+	private SequentialZnodeClock newClock(int pruneInterval) {
+		return newClock(pruneInterval, SequentialZnodeClock.DEFAULT_MAX_KEYS);
+	}
+
+	private SequentialZnodeClock newClock(int pruneInterval, int maxKeys) {
+		return new SequentialZnodeClock(myKeeperProvider, new NullZooKeeperMetrics(),
+							new FlatKeyLayout(), SequentialZnodeClock.DEFAULT_ROOT, 
+							pruneInterval, maxKeys);
+	}
+}
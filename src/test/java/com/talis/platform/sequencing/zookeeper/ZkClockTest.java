@@ -17,14 +17,18 @@
 package com.talis.platform.sequencing.zookeeper;
 
 import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.createStrictMock;
 import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -32,9 +36,17 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -50,7 +62,9 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.talis.platform.TimestampProvider;
 import com.talis.platform.sequencing.NoSuchSequenceException;
+import com.talis.platform.sequencing.SequenceRange;
 import com.talis.platform.sequencing.SequencingException;
 import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
 
@@ -68,6 +82,7 @@ public class ZkClockTest {
 	private byte[] firstDataValue = new byte[] { 0,0,0,0,0,0,0,10 };
 	private byte[] secondDataValue = new byte[] { 0,0,0,0,0,0,0,11 };
 	private byte[] thirdDataValue = new byte[] { 0,0,0,0,0,0,0,12 };
+	private byte[] createdDataValue = new byte[] { 0,0,0,0,0,0,0,0 };
 	
 	private static int TEST_INDEX = 0;
 	private static int KEY_SEED = new Random().nextInt(10000); 
@@ -93,15 +108,113 @@ public class ZkClockTest {
 	@Test
 	public void reportKeyCreationsViaMetricsObject() throws Exception{
 		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordCreateLatency(anyLong());
 		mockMetrics.incrementKeyCreations();
+		mockMetrics.recordKeyCreationLatency(anyLong());
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.recordCasAttempts(1);
 		replay(mockMetrics);
 		
 		ZkClock clock = new ZkClock(myKeeperProvider, mockMetrics);
 		assertNull(myKeeper.exists(key, false));
 		clock.getNextSequence(key);
+		clock.getNextSequence(key);
+		verify(mockMetrics);
+	}
+	
+	
+	@Test
+	public void roundTripsAreTimedByTheTimestampProvider() throws Exception{
+		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(10l);
+		mockMetrics.recordSetDataLatency(20l);
+		mockMetrics.recordCasAttempts(1);
+		replay(mockMetrics);
+		
+		TimestampProvider mockProvider = createMock(TimestampProvider.class);
+		expect(mockProvider.getNanoTime()).andReturn(100l).times(3);
+		expect(mockProvider.getNanoTime()).andReturn(110l);
+		expect(mockProvider.getNanoTime()).andReturn(200l);
+		expect(mockProvider.getNanoTime()).andReturn(220l);
+		replay(mockProvider);
+		
+		Stat stat = new Stat();
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		mockKeeper.getData(key, false, stat);
+		expectLastCall().andReturn(Arrays.copyOf(firstDataValue, 8));
+		mockKeeper.setData(eq(key), aryEq(secondDataValue), anyInt());
+		expectLastCall().andReturn(stat);
+		replay(mockKeeper);
+		
+		NullMetrics metrics = new NullMetrics();
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), 
+									mockMetrics, new IncrementCombiner(), 
+									new ZkReadCache(metrics, 0), 
+									new ZkMissCache(metrics, 0), 
+									new FlatKeyLayout(), new ContentionBackoff(), 
+									mockProvider);
+		clock.getNextSequence(key);
+		verify(mockKeeper);
 		verify(mockMetrics);
+		verify(mockProvider);
+	}
+	
+	@Test
+	public void firstIncrementOfNewKeyCreatesItHoldingFirstSequence() 
+	throws Exception{
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		mockKeeper.getData(key, false, new Stat());
+		expectLastCall().andThrow(new NoNodeException());
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+							eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
+		expectLastCall().andReturn(key);
+		replay(mockKeeper);
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), 
+									new NullMetrics());
+		assertEquals(0, clock.getNextSequence(key));
+		verify(mockKeeper);
+	}
+	
+	@Test
+	public void firstRangeOfNewKeyIsCreatedInOneWrite() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertEquals(new SequenceRange(0, 9), clock.getNextSequences(key, 10));
+		assertCurrentStateAs(9);
+		assertEquals(10, clock.getNextSequence(key));
 	}
 	
+	@Test
+	public void keyKnownToBeMissingIsCreatedWithoutReadingFirst() throws Exception{
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+							eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
+		expectLastCall().andReturn(key);
+		replay(mockKeeper);
+		NullMetrics metrics = new NullMetrics();
+		ZkMissCache cache = new ZkMissCache(metrics, 100);
+		cache.completeLoad(key, cache.startLoad(key));
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), metrics, 
+									new IncrementCombiner(), new ZkReadCache(metrics, 0), 
+									cache, new FlatKeyLayout(), new ContentionBackoff());
+		assertEquals(0, clock.getNextSequence(key));
+		assertFalse(cache.isMissing(key));
+		verify(mockKeeper);
+	}
+	
+	@Test
+	public void asyncFirstIncrementOfKeyKnownToBeMissingCreatesIt() throws Exception{
+		ZkClock clock = newMissCachingClock();
+		assertEquals(-1, clock.getSequenceOrDefault(key, -1));
+		assertEquals(Long.valueOf(0), 
+				clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		assertEquals(Long.valueOf(1), 
+				clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		assertCurrentStateAs(1);
+	}
 	
 	@Test 
 	public void handleRaceConditionWhereKeyAlreadyExistsWhenClientTriesToCreateIt() 
@@ -109,8 +222,8 @@ public class ZkClockTest {
 		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andThrow(new NoNodeException());
-		mockKeeper.create(key, ZkClock.DEFAULT_DATA, 
-							ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+							eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
 		expectLastCall().andThrow(new NodeExistsException());
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andReturn(Arrays.copyOf(ZkClock.DEFAULT_DATA,
@@ -134,8 +247,8 @@ public class ZkClockTest {
 		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andThrow(new NoNodeException());
-		mockKeeper.create(key, ZkClock.DEFAULT_DATA, 
-							ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+							eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
 		expectLastCall().andThrow(new KeeperException.MarshallingErrorException());
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andReturn(Arrays.copyOf(ZkClock.DEFAULT_DATA,
@@ -158,8 +271,13 @@ public class ZkClockTest {
 	public void clientThrowsInterruptedExceptionWhenCreatingNewKeyAndKeyIsntCreated()
 	throws Exception{
 		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordCreateLatency(anyLong());
 		mockMetrics.incrementInterruptedExceptions();
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordCreateLatency(anyLong());
 		mockMetrics.incrementKeyCreations();
+		mockMetrics.recordKeyCreationLatency(anyLong());
 		replay(mockMetrics);
 		
 		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
@@ -167,23 +285,16 @@ public class ZkClockTest {
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andThrow(new NoNodeException());
 		
-		mockKeeper.create(key, ZkClock.DEFAULT_DATA, 
-					ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+					eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
 		expectLastCall().andThrow(new InterruptedException());
 
 		mockKeeper.getData(key, false, new Stat());
 		expectLastCall().andThrow(new NoNodeException());
 		
-		mockKeeper.create(key, ZkClock.DEFAULT_DATA, 
-					ZkClock.DEFAULT_ACL, CreateMode.PERSISTENT);
+		mockKeeper.create(eq(key), aryEq(createdDataValue), 
+					eq(ZkClock.DEFAULT_ACL), eq(CreateMode.PERSISTENT));
 		expectLastCall().andReturn(key);
-		
-		mockKeeper.getData(key, false, new Stat());
-		expectLastCall().andReturn(Arrays.copyOf(ZkClock.DEFAULT_DATA, 
-										ZkClock.DEFAULT_DATA.length));
-		
-		mockKeeper.setData(eq(key), (byte[])anyObject(), anyInt());
-		expectLastCall().andReturn(new Stat());
 		replay(mockKeeper);
 		
 		try{
@@ -207,6 +318,74 @@ public class ZkClockTest {
 		assertCurrentStateAs(sequence);
 	}
 		
+	@Test
+	public void getNextSequencesAdvancesSequenceByCount() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertEquals(new SequenceRange(0, 499), clock.getNextSequences(key, 500));
+		assertCurrentStateAs(499);
+		assertEquals(new SequenceRange(500, 509), clock.getNextSequences(key, 10));
+		assertCurrentStateAs(509);
+		assertEquals(510, clock.getNextSequence(key));
+	}
+	
+	@Test
+	public void getNextSequencesUsesSingleCompareAndSet() throws Exception{
+		Stat stat = new Stat();
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		mockKeeper.getData(key, false, stat);
+		expectLastCall().andReturn(Arrays.copyOf(firstDataValue, 8));
+		mockKeeper.setData(eq(key), aryEq(thirdDataValue), anyInt());
+		expectLastCall().andReturn(stat);
+		replay(mockKeeper);
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), 
+										new NullMetrics());
+		try{
+			assertEquals(new SequenceRange(11, 12), clock.getNextSequences(key, 2));
+		}finally{
+			verify(mockKeeper);
+		}
+	}
+	
+	@Test (expected=IllegalArgumentException.class)
+	public void getNextSequencesRejectsNonPositiveCount() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		clock.getNextSequences(key, 0);
+	}
+	
+	@Test
+	public void combinedIncrementsAreContiguousAndCommitted() throws Exception{
+		System.setProperty(ZkClock.COMBINING_PROPERTY, "true");
+		try{
+			final ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+			final int threads = 10;
+			final int iterations = 20;
+			final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+			final CountDownLatch endGate = new CountDownLatch(threads);
+			for (int i = 0; i < threads; i++){
+				new Thread(new Runnable(){
+					@Override
+					public void run() {
+						try{
+							for (int j = 0; j < iterations; j++){
+								sequences.add(clock.getNextSequence(key));
+							}
+						}catch(SequencingException e){
+							LOG.error("Increment failed", e);
+						}finally{
+							endGate.countDown();
+						}
+					}
+				}).start();
+			}
+			endGate.await();
+			assertEquals(threads * iterations, sequences.size());
+			assertCurrentStateAs((threads * iterations) - 1);
+		}finally{
+			System.clearProperty(ZkClock.COMBINING_PROPERTY);
+		}
+	}
+
 	@Test
 	public void clockSurvivesDisconnectionFromServer() throws Exception{
 		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
@@ -235,6 +414,73 @@ public class ZkClockTest {
 		assertEquals(1, clock.getNextSequence(key));
 	}
 	
+	@Test
+	public void incrementKeysThroughPooledSessions() throws Exception{
+		System.setProperty(ZooKeeperProvider.SERVER_LIST_LOCATION_PROPERTY, 
+							embeddedZookeeper.getZkServersFileLocation());
+		System.setProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY, "4");
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider();
+			ZkClock clock = new ZkClock(provider, new NullMetrics());
+			for (int i = 0; i < 8; i++) {
+				String pooledKey = key + "-" + i;
+				assertEquals(0, clock.getNextSequence(pooledKey));
+				assertEquals(1, clock.getNextSequence(pooledKey));
+				assertEquals(1, clock.getSequence(pooledKey));
+				assertEquals(Long.valueOf(2), 
+					clock.getNextSequenceAsync(pooledKey).get(5, TimeUnit.SECONDS));
+				assertEquals(2, getNodeDataAsLong(pooledKey));
+			}
+		}finally{
+			System.clearProperty(ZooKeeperProvider.SERVER_LIST_LOCATION_PROPERTY);
+			System.clearProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void parkRequestsUntilExpiredSessionIsReplaced() throws Exception{
+		ZooKeeper expired = createStrictMock(ZooKeeper.class);
+		expired.getData(key, false, new Stat());
+		expectLastCall().andThrow(new KeeperException.SessionExpiredException());
+		replay(expired);
+		
+		final ZooKeeper[] current = new ZooKeeper[] { expired };
+		ZooKeeperProvider provider = new ZooKeeperProvider(){
+			@Override
+			public ZooKeeper get(){
+				return current[0];
+			}
+		};
+		ZkClock clock = new ZkClock(provider, new NullMetrics());
+		current[0] = myKeeper;
+		assertEquals(0, clock.getNextSequence(key));
+		assertEquals(0, clock.getSequence(key));
+		assertEquals(Long.valueOf(1), 
+				clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		assertEquals(1, getNodeDataAsLong(key));
+		verify(expired);
+	}
+	
+	@Test
+	public void parkedRequestsFailIfSessionIsNotReplaced() throws Exception{
+		ZooKeeper expired = createStrictMock(ZooKeeper.class);
+		expired.getData(key, false, new Stat());
+		expectLastCall().andThrow(new KeeperException.SessionExpiredException());
+		replay(expired);
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(expired), 
+										new NullMetrics());
+		try{
+			clock.getSequence(key);
+			fail("Expected an exception here");
+		}catch (SequencingException e){
+			assertTrue(e.getCause() instanceof 
+					KeeperException.SessionExpiredException);
+		}finally{
+			verify(expired);
+		}
+	}
+	
 	@Test 
 	public void surviveSessionExpiration() throws Exception{
 		System.setProperty(ZooKeeperProvider.SESSION_TIMEOUT_PROPERTY, "100");
@@ -255,7 +501,9 @@ public class ZkClockTest {
 	public void sessionExpiryExceptionThrownWhenIncrementingSequence() 
 	throws Exception{
 		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
 		mockMetrics.incrementSessionExpiredEvents();
+		mockMetrics.recordWaitLatency(anyLong());
 		replay(mockMetrics);
 		
 		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
@@ -300,7 +548,13 @@ public class ZkClockTest {
 	public void clientThrowsInterruptedExceptionWhenIncrementingSequenceAndAllDataIsWritten() 
 	throws Exception{
 		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
 		mockMetrics.incrementInterruptedExceptions();
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.recordCasAttempts(2);
+		mockMetrics.recordCasRetryLatency(anyLong());
 		replay(mockMetrics);
 		
 		Stat stat = new Stat();
@@ -353,7 +607,14 @@ public class ZkClockTest {
 	@Test
 	public void reportKeyCollisionsViaMetricsObject() throws Exception{
 		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
-		mockMetrics.incrementKeyCollisions();
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.incrementKeyCollisions(key);
+		mockMetrics.recordWaitLatency(anyLong());
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.recordCasAttempts(2);
+		mockMetrics.recordCasRetryLatency(anyLong());
 		replay(mockMetrics);
 		
 		Stat stat = new Stat();
@@ -378,6 +639,46 @@ public class ZkClockTest {
 		}
 	}
 		
+	@Test
+	public void giveUpOnceVersionConflictsExhaustTheBackoff() throws Exception{
+		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.incrementKeyCollisions(key);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.incrementKeyCollisions(key);
+		replay(mockMetrics);
+		
+		Stat stat = new Stat();
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		mockKeeper.getData(key, false, stat);
+		expectLastCall().andReturn(Arrays.copyOf(firstDataValue, 8));
+		mockKeeper.setData(eq(key), aryEq(secondDataValue), anyInt());
+		expectLastCall().andThrow(new KeeperException.BadVersionException());
+		mockKeeper.getData(key, false, stat);
+		expectLastCall().andReturn(Arrays.copyOf(firstDataValue, 8));
+		mockKeeper.setData(eq(key), aryEq(secondDataValue), anyInt());
+		expectLastCall().andThrow(new KeeperException.BadVersionException());
+		replay(mockKeeper);
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), 
+									mockMetrics, new IncrementCombiner(), 
+									new ZkReadCache(mockMetrics, 0), 
+									new FlatKeyLayout(), 
+									new ContentionBackoff(0, 0, 2));
+		try{
+			clock.getNextSequence(key);
+			fail("Expected an exception here");
+		}catch (SequencingException e){
+			assertTrue(e.getCause() instanceof 
+					KeeperException.BadVersionException);
+		}finally{
+			verify(mockKeeper);
+			verify(mockMetrics);
+		}
+	}
+	
 	@Test @Ignore
 	public void testManyIterations() throws Exception{
 		int iterations = 1000000;
@@ -457,6 +758,239 @@ public class ZkClockTest {
 		}
 	}
 	
+	@Test
+	public void createNodeForKeyIfRequiredAsync() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertNull(myKeeper.exists(key, false));
+		assertEquals(Long.valueOf(0), 
+				clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		assertCurrentStateAs(0);
+	}
+
+	@Test
+	public void reportRoundTripsViaMetricsObjectForAsyncOperations() 
+	throws Exception{
+		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordCreateLatency(anyLong());
+		mockMetrics.incrementKeyCreations();
+		mockMetrics.recordKeyCreationLatency(anyLong());
+		mockMetrics.recordGetDataLatency(anyLong());
+		mockMetrics.recordSetDataLatency(anyLong());
+		mockMetrics.recordCasAttempts(1);
+		mockMetrics.recordGetDataLatency(anyLong());
+		replay(mockMetrics);
+
+		ZkClock clock = new ZkClock(myKeeperProvider, mockMetrics);
+		clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS);
+		clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS);
+		assertEquals(Long.valueOf(1), 
+				clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		verify(mockMetrics);
+	}
+
+	@Test
+	public void concurrentAsyncIncrementsAreUniqueAndCommitted() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		int requests = 50;
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (int i = 0; i < requests; i++) {
+			futures.add(clock.getNextSequenceAsync(key));
+		}
+		Set<Long> sequences = new HashSet<Long>();
+		for (Future<Long> future : futures) {
+			sequences.add(future.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(requests, sequences.size());
+		for (long i = 0; i < requests; i++) {
+			assertTrue(sequences.contains(i));
+		}
+		assertCurrentStateAs(requests - 1);
+	}
+
+	@Test
+	public void getSequenceForKeyAsync() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		clock.getNextSequence(key);
+		clock.getNextSequence(key);
+		assertEquals(Long.valueOf(1), 
+				clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void getUnknownKeyAsyncFailsWithNoSuchSequenceException() 
+	throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		try {
+			clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS);
+			fail("Expected an exception here");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoSuchSequenceException);
+			assertEquals(String.format(ZkClock.NOT_FOUND_FORMAT, key), 
+							e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void asyncIncrementRetriesThenFailsWhileDisconnected() throws Exception{
+		System.setProperty(ZkClock.RETRY_DELAY_PROPERTY, "100");
+		System.setProperty(ZkClock.RETRY_COUNT_PROPERTY, "2");
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertEquals(0, clock.getNextSequence(key));
+		embeddedZookeeper.stopServer();
+		Thread.sleep(5000l);
+		try{
+			clock.getNextSequenceAsync(key).get(30, TimeUnit.SECONDS);
+			fail("Expected an exception here");
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof SequencingException);
+		}
+		embeddedZookeeper.startServer();
+		assertEquals(1, clock.getNextSequence(key));
+	}
+
+	@Test
+	public void cachedSequenceIsServedWithoutReadingZooKeeper() throws Exception{
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		replay(mockKeeper);
+		NullMetrics metrics = new NullMetrics();
+		ZkReadCache cache = new ZkReadCache(metrics, 100);
+		cache.completeLoad(key, cache.startLoad(key), 7);
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), metrics, 
+									new IncrementCombiner(), cache, new FlatKeyLayout(), 
+									new ContentionBackoff());
+		assertEquals(7, clock.getSequence(key));
+		assertEquals(Long.valueOf(7), 
+				clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		verify(mockKeeper);
+	}
+	
+	@Test
+	public void cachedSequenceIsDroppedWhenAnotherClientIncrementsIt() 
+	throws Exception{
+		ZkClock clock = newCachingClock();
+		ZkClock otherClock = new ZkClock(myKeeperProvider, new NullMetrics());
+		clock.getNextSequence(key);
+		assertEquals(0, clock.getSequence(key));
+		otherClock.getNextSequence(key);
+		long deadline = System.currentTimeMillis() + 5000;
+		long current = clock.getSequence(key);
+		while (current != 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			current = clock.getSequence(key);
+		}
+		assertEquals(1, current);
+	}
+	
+	@Test
+	public void cachedSequenceIsDroppedWhenThisClockIncrementsIt() 
+	throws Exception{
+		ZkClock clock = newCachingClock();
+		clock.getNextSequence(key);
+		assertEquals(0, clock.getSequence(key));
+		clock.getNextSequence(key);
+		assertEquals(1, clock.getSequence(key));
+		clock.getNextSequenceAsync(key).get(5, TimeUnit.SECONDS);
+		assertEquals(Long.valueOf(2), 
+				clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS));
+	}
+	
+	private ZkClock newCachingClock() throws SequencingException {
+		NullMetrics metrics = new NullMetrics();
+		return new ZkClock(myKeeperProvider, metrics, new IncrementCombiner(), 
+							new ZkReadCache(metrics, 100), new FlatKeyLayout(), 
+							new ContentionBackoff());
+	}
+
+	@Test
+	public void getSequenceOrDefaultReturnsAbsentForUnknownKey() throws Exception{
+		ZkClock clock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertEquals(-1, clock.getSequenceOrDefault(key, -1));
+		clock.getNextSequence(key);
+		assertEquals(0, clock.getSequenceOrDefault(key, -1));
+	}
+	
+	@Test
+	public void cachedMissIsServedWithoutReadingZooKeeper() throws Exception{
+		ZooKeeper mockKeeper = createStrictMock(ZooKeeper.class);
+		replay(mockKeeper);
+		NullMetrics metrics = new NullMetrics();
+		ZkMissCache cache = new ZkMissCache(metrics, 100);
+		cache.completeLoad(key, cache.startLoad(key));
+		
+		ZkClock clock = new ZkClock(getProviderForZooKeeper(mockKeeper), metrics, 
+									new IncrementCombiner(), new ZkReadCache(metrics, 0), 
+									cache, new FlatKeyLayout(), new ContentionBackoff());
+		assertEquals(-1, clock.getSequenceOrDefault(key, -1));
+		try {
+			clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS);
+			fail("Expected an exception here");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoSuchSequenceException);
+		}
+		verify(mockKeeper);
+	}
+	
+	@Test
+	public void cachedMissIsDroppedWhenAnotherClientCreatesKey() 
+	throws Exception{
+		ZkClock clock = newMissCachingClock();
+		ZkClock otherClock = new ZkClock(myKeeperProvider, new NullMetrics());
+		assertEquals(-1, clock.getSequenceOrDefault(key, -1));
+		otherClock.getNextSequence(key);
+		long deadline = System.currentTimeMillis() + 5000;
+		long current = clock.getSequenceOrDefault(key, -1);
+		while (current != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			current = clock.getSequenceOrDefault(key, -1);
+		}
+		assertEquals(0, current);
+	}
+	
+	@Test
+	public void cachedMissIsDroppedWhenThisClockCreatesKey() 
+	throws Exception{
+		ZkClock clock = newMissCachingClock();
+		try {
+			clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS);
+			fail("Expected an exception here");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoSuchSequenceException);
+		}
+		assertEquals(-1, clock.getSequenceOrDefault(key, -1));
+		clock.getNextSequence(key);
+		assertEquals(0, clock.getSequence(key));
+	}
+	
+	private ZkClock newMissCachingClock() throws SequencingException {
+		NullMetrics metrics = new NullMetrics();
+		return new ZkClock(myKeeperProvider, metrics, new IncrementCombiner(), 
+							new ZkReadCache(metrics, 0), new ZkMissCache(metrics, 100), 
+							new FlatKeyLayout(), new ContentionBackoff());
+	}
+
+	@Test
+	public void bucketedLayoutCreatesParentNodesOnDemand() throws Exception{
+		BucketedKeyLayout layout = new BucketedKeyLayout(
+				String.format("/bucketed-%s-%s", KEY_SEED, TEST_INDEX));
+		NullMetrics metrics = new NullMetrics();
+		ZkClock clock = new ZkClock(myKeeperProvider, metrics, new IncrementCombiner(), 
+									new ZkReadCache(metrics, 0), layout, 
+									new ContentionBackoff());
+		assertEquals(0, clock.getNextSequence(key));
+		assertEquals(Long.valueOf(0), 
+				clock.getSequenceAsync(key).get(5, TimeUnit.SECONDS));
+		assertEquals(0, getNodeDataAsLong(layout.pathFor(key)));
+		assertNull(myKeeper.exists(key, false));
+		
+		String otherKey = key + "-async";
+		assertEquals(Long.valueOf(0), 
+				clock.getNextSequenceAsync(otherKey).get(5, TimeUnit.SECONDS));
+		assertEquals(0, clock.getSequence(otherKey));
+		assertEquals(0, getNodeDataAsLong(layout.pathFor(otherKey)));
+	}
+	
 	@Test(expected = SequencingException.class)
 	public void getSequenceWrapsInteruptedException() throws Exception{
 		Exception ex = new InterruptedException();
@@ -546,7 +1080,7 @@ public class ZkClockTest {
 	
 	class NullMetrics implements ZooKeeperMetrics{
 		@Override
-		public void incrementKeyCollisions() {}
+		public void incrementKeyCollisions(String key) {}
 
 		@Override
 		public void incrementConnectionLossEvents() {}
@@ -556,11 +1090,44 @@ public class ZkClockTest {
 
 		@Override
 		public void incrementInterruptedExceptions() {}
+		
+		@Override
+		public void incrementReadCacheHits() {}
+		
+		@Override
+		public void incrementReadCacheMisses() {}
+		
+		@Override
+		public void incrementReadCacheEvictions() {}
+
+		@Override
+		public void incrementMissCacheHits() {}
+
+		@Override
+		public void recordKeyCreationLatency(long latency) {}
+		
+		@Override
+		public void recordCasAttempts(int attempts) {}
 
 		@Override
 		public void incrementKeeperExceptions() {}
 
 		@Override
 		public void incrementKeyCreations() {}
+
+		@Override
+		public void recordGetDataLatency(long latency) {}
+
+		@Override
+		public void recordSetDataLatency(long latency) {}
+
+		@Override
+		public void recordCreateLatency(long latency) {}
+
+		@Override
+		public void recordCasRetryLatency(long latency) {}
+
+		@Override
+		public void recordWaitLatency(long latency) {}
 	}
 }
@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
+
+public class ZkMissCacheTest {
+
+	private static final String KEY = "/missing";
+	private static final String OTHER_KEY = "/other";
+
+	@Test
+	public void disabledWhenSizeIsZero() {
+		assertFalse(new ZkMissCache(new NullZooKeeperMetrics(), 0).isEnabled());
+		assertTrue(new ZkMissCache(new NullZooKeeperMetrics(), 1).isEnabled());
+	}
+
+	@Test
+	public void completedLoadIsRecordedAsMissing() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		assertFalse(cache.isMissing(KEY));
+		Object load = cache.startLoad(KEY);
+		assertFalse(cache.isMissing(KEY));
+		cache.completeLoad(KEY, load);
+		assertTrue(cache.isMissing(KEY));
+	}
+
+	@Test
+	public void creationDuringLoadPreventsCaching() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		Object load = cache.startLoad(KEY);
+		cache.process(new WatchedEvent(EventType.NodeCreated, 
+										KeeperState.SyncConnected, KEY));
+		cache.completeLoad(KEY, load);
+		assertFalse(cache.isMissing(KEY));
+	}
+
+	@Test
+	public void cancelledLoadIsNotRecorded() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		Object load = cache.startLoad(KEY);
+		cache.cancelLoad(KEY, load);
+		cache.completeLoad(KEY, load);
+		assertFalse(cache.isMissing(KEY));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void cancellingCompletedLoadLeavesMissCached() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		Object load = cache.startLoad(KEY);
+		cache.completeLoad(KEY, load);
+		cache.cancelLoad(KEY, load);
+		assertTrue(cache.isMissing(KEY));
+	}
+
+	@Test
+	public void creationDropsEntry() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		cache.completeLoad(KEY, cache.startLoad(KEY));
+		cache.completeLoad(OTHER_KEY, cache.startLoad(OTHER_KEY));
+		cache.process(new WatchedEvent(EventType.NodeCreated, 
+										KeeperState.SyncConnected, KEY));
+		assertFalse(cache.isMissing(KEY));
+		assertTrue(cache.isMissing(OTHER_KEY));
+	}
+
+	@Test
+	public void disconnectionClearsCache() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 10);
+		cache.completeLoad(KEY, cache.startLoad(KEY));
+		cache.process(new WatchedEvent(EventType.None, 
+										KeeperState.SyncConnected, null));
+		assertTrue(cache.isMissing(KEY));
+		cache.process(new WatchedEvent(EventType.None, 
+										KeeperState.Expired, null));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() {
+		ZkMissCache cache = new ZkMissCache(new NullZooKeeperMetrics(), 2);
+		cache.completeLoad("/a", cache.startLoad("/a"));
+		cache.completeLoad("/b", cache.startLoad("/b"));
+		cache.isMissing("/a");
+		cache.completeLoad("/c", cache.startLoad("/c"));
+		assertEquals(2, cache.size());
+		assertTrue(cache.isMissing("/a"));
+		assertFalse(cache.isMissing("/b"));
+		assertTrue(cache.isMissing("/c"));
+	}
+
+	@Test
+	public void reportHitsViaMetricsObject() {
+		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.incrementMissCacheHits();
+		replay(mockMetrics);
+
+		ZkMissCache cache = new ZkMissCache(mockMetrics, 10);
+		assertFalse(cache.isMissing(KEY));
+		cache.completeLoad(KEY, cache.startLoad(KEY));
+		assertTrue(cache.isMissing(KEY));
+		verify(mockMetrics);
+	}
+}
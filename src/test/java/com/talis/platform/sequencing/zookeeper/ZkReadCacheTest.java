@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.junit.Test;
+
+import com.talis.platform.sequencing.zookeeper.metrics.NullZooKeeperMetrics;
+import com.talis.platform.sequencing.zookeeper.metrics.ZooKeeperMetrics;
+
+public class ZkReadCacheTest {
+
+	private static final String KEY = "/cached";
+	private static final String OTHER_KEY = "/other";
+
+	@Test
+	public void disabledWhenSizeIsZero() {
+		assertFalse(new ZkReadCache(new NullZooKeeperMetrics(), 0).isEnabled());
+		assertTrue(new ZkReadCache(new NullZooKeeperMetrics(), 1).isEnabled());
+	}
+
+	@Test
+	public void completedLoadIsServedFromCache() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		assertNull(cache.get(KEY));
+		Object load = cache.startLoad(KEY);
+		assertNull(cache.get(KEY));
+		cache.completeLoad(KEY, load, 42);
+		assertEquals(Long.valueOf(42), cache.get(KEY));
+	}
+
+	@Test
+	public void changeNotificationDuringLoadPreventsCaching() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		Object load = cache.startLoad(KEY);
+		cache.process(new WatchedEvent(EventType.NodeDataChanged, 
+										KeeperState.SyncConnected, KEY));
+		cache.completeLoad(KEY, load, 42);
+		assertNull(cache.get(KEY));
+	}
+
+	@Test
+	public void laterLoadIsNotOverwrittenByEarlierOne() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		Object first = cache.startLoad(KEY);
+		Object second = cache.startLoad(KEY);
+		cache.completeLoad(KEY, second, 43);
+		cache.completeLoad(KEY, first, 42);
+		cache.cancelLoad(KEY, first);
+		assertEquals(Long.valueOf(43), cache.get(KEY));
+	}
+
+	@Test
+	public void cancellingCompletedLoadLeavesValueCached() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		Object load = cache.startLoad(KEY);
+		cache.completeLoad(KEY, load, 42);
+		cache.cancelLoad(KEY, load);
+		assertEquals(Long.valueOf(42), cache.get(KEY));
+	}
+
+	@Test
+	public void dataChangeAndDeletionDropEntry() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		cache.completeLoad(KEY, cache.startLoad(KEY), 42);
+		cache.completeLoad(OTHER_KEY, cache.startLoad(OTHER_KEY), 99);
+		cache.process(new WatchedEvent(EventType.NodeDataChanged, 
+										KeeperState.SyncConnected, KEY));
+		assertNull(cache.get(KEY));
+		assertEquals(Long.valueOf(99), cache.get(OTHER_KEY));
+		cache.process(new WatchedEvent(EventType.NodeDeleted, 
+										KeeperState.SyncConnected, OTHER_KEY));
+		assertNull(cache.get(OTHER_KEY));
+	}
+
+	@Test
+	public void disconnectionClearsCache() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 10);
+		cache.completeLoad(KEY, cache.startLoad(KEY), 42);
+		cache.process(new WatchedEvent(EventType.None, 
+										KeeperState.SyncConnected, null));
+		assertEquals(Long.valueOf(42), cache.get(KEY));
+		cache.process(new WatchedEvent(EventType.None, 
+										KeeperState.Disconnected, null));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() {
+		ZkReadCache cache = new ZkReadCache(new NullZooKeeperMetrics(), 2);
+		cache.completeLoad("/a", cache.startLoad("/a"), 1);
+		cache.completeLoad("/b", cache.startLoad("/b"), 2);
+		cache.get("/a");
+		cache.completeLoad("/c", cache.startLoad("/c"), 3);
+		assertEquals(2, cache.size());
+		assertEquals(Long.valueOf(1), cache.get("/a"));
+		assertNull(cache.get("/b"));
+		assertEquals(Long.valueOf(3), cache.get("/c"));
+	}
+
+	@Test
+	public void reportHitsMissesAndEvictionsViaMetricsObject() {
+		ZooKeeperMetrics mockMetrics = createStrictMock(ZooKeeperMetrics.class);
+		mockMetrics.incrementReadCacheMisses();
+		mockMetrics.incrementReadCacheHits();
+		mockMetrics.incrementReadCacheEvictions();
+		replay(mockMetrics);
+
+		ZkReadCache cache = new ZkReadCache(mockMetrics, 1);
+		assertNull(cache.get(KEY));
+		cache.completeLoad(KEY, cache.startLoad(KEY), 42);
+		assertEquals(Long.valueOf(42), cache.get(KEY));
+		cache.startLoad(OTHER_KEY);
+		verify(mockMetrics);
+	}
+}
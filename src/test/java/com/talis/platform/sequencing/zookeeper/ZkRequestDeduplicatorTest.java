@@ -0,0 +1,154 @@
+/*
+ *    Copyright 2010 Talis Systems Ltd
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.talis.platform.sequencing.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.talis.platform.SystemTimestampProvider;
+import com.talis.platform.TimestampProvider;
+import com.talis.platform.sequencing.LocalRequestDeduplicator;
+import com.talis.platform.sequencing.RequestDeduplicator;
+import com.talis.platform.sequencing.SequencingException;
+import com.talis.platform.sequencing.metrics.NullSequencingMetrics;
+
+public class ZkRequestDeduplicatorTest {
+
+	@Rule
+	public final EmbeddedZookeeper embeddedZookeeper = new EmbeddedZookeeper();
+
+	private static final String KEY = "/deduplicated";
+	private static int TEST_INDEX = 0;
+	private static int KEY_SEED = new Random().nextInt(10000);
+
+	private ZooKeeper myKeeper;
+	private ZooKeeperProvider myProvider;
+	private TimestampProvider myTimestampProvider;
+	private String myRoot;
+	private ZkRequestDeduplicator first;
+	private ZkRequestDeduplicator second;
+
+	@Before
+	public void setup() throws Exception {
+		myKeeper = embeddedZookeeper.getZookeeper();
+		myProvider = new ZooKeeperProvider() {
+			@Override
+			public ZooKeeper get() {
+				return myKeeper;
+			}
+		};
+		myTimestampProvider = new SystemTimestampProvider();
+		myRoot = String.format("/requests-%s-%s", KEY_SEED, TEST_INDEX++);
+		first = newDeduplicator(60000);
+		second = newDeduplicator(60000);
+	}
+
+	@After
+	public void tearDown() {
+		first.close();
+		second.close();
+	}
+
+	private ZkRequestDeduplicator newDeduplicator(long timeToLive) {
+		NullSequencingMetrics metrics = new NullSequencingMetrics();
+		return new ZkRequestDeduplicator(myProvider, 
+				new LocalRequestDeduplicator(myTimestampProvider, metrics), 
+				myTimestampProvider, metrics, myRoot, timeToLive, 500);
+	}
+
+	@Test
+	public void retryOnAnotherNodeReturnsFirstResult() throws Exception {
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", first.deduplicate(KEY, "request-1", increment));
+		assertEquals("0", second.deduplicate(KEY, "request-1", increment));
+		assertEquals(1, increment.calls.get());
+		assertEquals("1", second.deduplicate(KEY, "request-2", increment));
+	}
+
+	@Test
+	public void failedRequestReleasesItsClaim() throws Exception {
+		try {
+			first.deduplicate(KEY, "request-1", new RequestDeduplicator.Increment() {
+				@Override
+				public String run() throws SequencingException {
+					throw new SequencingException("BANG!", null);
+				}
+			});
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			// expected
+		}
+		assertNull(myKeeper.exists(first.pathFor(KEY, "request-1"), false));
+		CountingIncrement increment = new CountingIncrement();
+		assertEquals("0", second.deduplicate(KEY, "request-1", increment));
+	}
+
+	@Test
+	public void requestStillInProgressElsewhereIsAnError() throws Exception {
+		String path = first.pathFor(KEY, "request-1");
+		ZkPaths.createParents(myKeeper, path);
+		myKeeper.create(path, new byte[0], ZkClock.DEFAULT_ACL, CreateMode.EPHEMERAL);
+		CountingIncrement increment = new CountingIncrement();
+		try {
+			first.deduplicate(KEY, "request-1", increment);
+			fail("Expected an exception here");
+		} catch (SequencingException e) {
+			// expected
+		}
+		assertEquals(0, increment.calls.get());
+	}
+
+	@Test
+	public void expiredClaimsArePruned() throws Exception {
+		ZkRequestDeduplicator pruning = newDeduplicator(500);
+		try {
+			CountingIncrement increment = new CountingIncrement();
+			pruning.deduplicate(KEY, "request-1", increment);
+			String path = pruning.pathFor(KEY, "request-1");
+			assertNotNull(myKeeper.exists(path, false));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (null != myKeeper.exists(path, false) 
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertNull(myKeeper.exists(path, false));
+		} finally {
+			pruning.close();
+		}
+	}
+
+	class CountingIncrement implements RequestDeduplicator.Increment {
+		final AtomicInteger calls = new AtomicInteger(0);
+
+		@Override
+		public String run() throws SequencingException {
+			return Integer.toString(calls.getAndIncrement());
+		}
+	}
+}
@@ -17,7 +17,10 @@
 package com.talis.platform.sequencing.zookeeper;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -25,11 +28,15 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -210,6 +217,204 @@ public class ZooKeeperProviderTest {
 		assertNotSame(first, third);
 	}
 	
+	@Test
+	public void singleSessionIsUsedForEveryKeyByDefault() throws Exception{
+		ZooKeeperProvider provider = new ZooKeeperProvider();
+		assertEquals(1, provider.getPoolSize());
+		ZooKeeper keeper = provider.get();
+		assertSame(keeper, provider.get("/foo"));
+		assertSame(keeper, provider.get("/bar"));
+	}
+	
+	@Test
+	public void keysAreStripedOverPooledSessions() throws Exception{
+		System.setProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY, "3");
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider();
+			assertEquals(3, provider.getPoolSize());
+			assertSame(provider.get(), provider.get(0));
+			assertNotSame(provider.get(0), provider.get(1));
+			assertNotSame(provider.get(1), provider.get(2));
+			for (String key : new String[] {"/foo", "/bar", "/baz", "/qux"}) {
+				int stripe = provider.stripeFor(key);
+				assertTrue(stripe >= 0 && stripe < 3);
+				assertSame(provider.get(stripe), provider.get(key));
+				assertSame(provider.get(key), provider.get(key));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertTrue(provider.isConnected(i));
+				assertEquals(1, provider.getConnections(i));
+				assertEquals(0, provider.getExpiries(i));
+			}
+			provider.reset();
+			assertFalse(provider.isConnected(2));
+		}finally{
+			System.clearProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void expiryOfFirstSessionLeavesOthersInPlace() throws Exception{
+		System.setProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY, "2");
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider();
+			ZooKeeper first = provider.get(0);
+			ZooKeeper second = provider.get(1);
+			provider.process(new WatchedEvent(Watcher.Event.EventType.None, 
+					 		 Watcher.Event.KeeperState.Expired, 
+					 		 null));
+			assertEquals(1, provider.getExpiries(0));
+			assertNotSame(first, provider.get(0));
+			assertSame(second, provider.get(1));
+		}finally{
+			System.clearProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY);
+		}
+	}
+	
+	@Test (expected=IllegalArgumentException.class)
+	public void poolSizeMustBePositive() throws Exception{
+		System.setProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY, "0");
+		try{
+			new ZooKeeperProvider();
+		}finally{
+			System.clearProperty(ZooKeeperProvider.POOL_SIZE_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void plainServerListIsTheDefaultEnsemble() throws Exception{
+		Map<String, String> ensembles = ZooKeeperProvider.parseEnsembles(
+				Arrays.asList("", "127.0.0.1:9000,127.0.0.1:9001"));
+		assertEquals(1, ensembles.size());
+		assertEquals("127.0.0.1:9000,127.0.0.1:9001", 
+					 ensembles.get(ZooKeeperProvider.DEFAULT_ENSEMBLE));
+	}
+	
+	@Test
+	public void namedEnsemblesAreReadInOrder() throws Exception{
+		Map<String, String> ensembles = ZooKeeperProvider.parseEnsembles(
+				Arrays.asList("# federated", "b = 127.0.0.1:9001", "", 
+							  "a=127.0.0.1:9000/h1"));
+		assertEquals(Arrays.asList("b", "a"), 
+					 Arrays.asList(ensembles.keySet().toArray()));
+		assertEquals("127.0.0.1:9001", ensembles.get("b"));
+		assertEquals("127.0.0.1:9000/h1", ensembles.get("a"));
+	}
+	
+	@Test (expected=IllegalArgumentException.class)
+	public void ensembleNamesMustBeUnique() throws Exception{
+		ZooKeeperProvider.parseEnsembles(
+				Arrays.asList("a=127.0.0.1:9000", "a=127.0.0.1:9001"));
+	}
+	
+	@Test (expected=IllegalArgumentException.class)
+	public void unnamedEnsembleCannotFollowNamedOnes() throws Exception{
+		ZooKeeperProvider.parseEnsembles(
+				Arrays.asList("a=127.0.0.1:9000", "127.0.0.1:9001"));
+	}
+	
+	@Test (expected=IllegalArgumentException.class)
+	public void serverListMustNameAnEnsemble() throws Exception{
+		ZooKeeperProvider.parseEnsembles(Arrays.asList("# nothing here", ""));
+	}
+	
+	@Test
+	public void parkedRequestIsResumedWithReplacementSession() throws Exception{
+		ZooKeeperProvider provider = new ZooKeeperProvider();
+		ZooKeeper first = provider.get();
+		provider.process(new WatchedEvent(Watcher.Event.EventType.None, 
+				 		 Watcher.Event.KeeperState.Expired, 
+				 		 null));
+		RecordingRequest request = new RecordingRequest();
+		provider.park(0, first, request);
+		assertTrue(request.latch.await(5, TimeUnit.SECONDS));
+		assertNotNull(request.keeper);
+		assertNotSame(first, request.keeper);
+		assertSame(request.keeper, provider.get());
+		assertEquals(1, provider.getExpiries(0));
+		first.close();
+	}
+	
+	@Test
+	public void parkedRequestExpiresIfSessionIsNotReplacedInTime() throws Exception{
+		System.setProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY, "100");
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider();
+			ZooKeeper first = provider.get();
+			ensureServerStopped(DEFAULT_HOST_PORT);
+			provider.process(new WatchedEvent(Watcher.Event.EventType.None, 
+					 		 Watcher.Event.KeeperState.Expired, 
+					 		 null));
+			RecordingRequest request = new RecordingRequest();
+			long start = System.currentTimeMillis();
+			provider.park(0, first, request);
+			assertEquals(1, provider.getParked(0));
+			assertTrue(request.latch.await(5, TimeUnit.SECONDS));
+			assertTrue(System.currentTimeMillis() - start >= 100);
+			assertTrue(request.expired);
+			assertNull(request.keeper);
+			first.close();
+		}finally{
+			System.clearProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void parkingFailsFastWhenQueueIsFull() throws Exception{
+		System.setProperty(ZooKeeperProvider.PARK_CAPACITY_PROPERTY, "1");
+		System.setProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY, "30000");
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider();
+			ZooKeeper first = provider.get();
+			ensureServerStopped(DEFAULT_HOST_PORT);
+			provider.process(new WatchedEvent(Watcher.Event.EventType.None, 
+					 		 Watcher.Event.KeeperState.Expired, 
+					 		 null));
+			RecordingRequest parked = new RecordingRequest();
+			provider.park(0, first, parked);
+			RecordingRequest rejected = new RecordingRequest();
+			provider.park(0, first, rejected);
+			assertTrue(rejected.latch.await(1, TimeUnit.SECONDS));
+			assertTrue(rejected.expired);
+			assertEquals(1, parked.latch.getCount());
+			
+			ensureServerStarted(DEFAULT_HOST_PORT);
+			assertTrue(parked.latch.await(30, TimeUnit.SECONDS));
+			assertNotNull(parked.keeper);
+			first.close();
+		}finally{
+			System.clearProperty(ZooKeeperProvider.PARK_CAPACITY_PROPERTY);
+			System.clearProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void parkedRequestExpiresOnTimeWhileItsLookupBlocks() throws Exception{
+		System.setProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY, "100");
+		final CountDownLatch connecting = new CountDownLatch(1);
+		try{
+			ZooKeeperProvider provider = new ZooKeeperProvider() {
+				@Override
+				public ZooKeeper get() {
+					try {
+						connecting.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return null;
+				}
+			};
+			// a handle the pool never handed out has to be looked up
+			RecordingRequest request = new RecordingRequest();
+			provider.park(0, null, request);
+			assertTrue(request.latch.await(5, TimeUnit.SECONDS));
+			assertTrue(request.expired);
+		}finally{
+			connecting.countDown();
+			System.clearProperty(ZooKeeperProvider.PARK_TIMEOUT_PROPERTY);
+		}
+	}
+	
 	private void ensureServerStarted(String hostPort){
 		try{
 			myHelper.startServer(hostPort);
@@ -226,4 +431,21 @@ public class ZooKeeperProviderTest {
 		}
 	}
 	
+	class RecordingRequest implements ZooKeeperProvider.ParkedRequest {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile ZooKeeper keeper;
+		volatile boolean expired = false;
+		
+		@Override
+		public void resume(ZooKeeper keeper) {
+			this.keeper = keeper;
+			latch.countDown();
+		}
+		
+		@Override
+		public void expire() {
+			expired = true;
+			latch.countDown();
+		}
+	}
 }
@@ -16,12 +16,31 @@
 
 package com.talis.platform.sequencing.zookeeper.metrics;
 
+import static com.talis.platform.sequencing.metrics.LatencyHistogramTest.assertWithinError;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 
 import com.talis.jmx.AbstractJmxSupportTest;
+import com.talis.platform.sequencing.metrics.HotKeys;
+import com.talis.platform.sequencing.metrics.HotKeysJmx;
+import com.talis.platform.sequencing.metrics.OpenMetric;
+import com.talis.platform.sequencing.metrics.OpenMetricsRegistry;
+import com.talis.platform.sequencing.metrics.OpenMetricsWriter;
 import com.talis.platform.sequencing.metrics.SequencingMetricsJmxTest;
+import com.talis.platform.sequencing.zookeeper.ZooKeeperProvider;
 
 public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 
@@ -33,19 +52,19 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	@Test
 	public void incrementKeyCollisions() throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
-		reporter.incrementKeyCollisions();
-		reporter.incrementKeyCollisions();
-		reporter.incrementKeyCollisions();
+		reporter.incrementKeyCollisions("/key");
+		reporter.incrementKeyCollisions("/key");
+		reporter.incrementKeyCollisions("/key");
 		assertEquals(3, reporter.getKeyCollisions());
 	}
 	
 	@Test
-	public void retrievingKeyCollisionsResetsCounts()
+	public void retrievingKeyCollisionsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
-		reporter.incrementKeyCollisions();
+		reporter.incrementKeyCollisions("/key");
+		assertEquals(1, reporter.getKeyCollisions());
 		assertEquals(1, reporter.getKeyCollisions());
-		assertEquals(0, reporter.getKeyCollisions());
 	}
 	
 	@Test
@@ -75,12 +94,12 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	}
 	
 	@Test
-	public void retrievingConnectionLostEventsResetsCounts()
+	public void retrievingConnectionLostEventsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
 		reporter.incrementConnectionLossEvents();
 		assertEquals(1, reporter.getConnectionLossEvents());
-		assertEquals(0, reporter.getConnectionLossEvents());
+		assertEquals(1, reporter.getConnectionLossEvents());
 	}
 	
 	@Test
@@ -110,12 +129,12 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	}
 	
 	@Test
-	public void retrievingSessionExpiredEventsResetsCounts()
+	public void retrievingSessionExpiredEventsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
 		reporter.incrementSessionExpiredEvents();
 		assertEquals(1, reporter.getSessionExpiredEvents());
-		assertEquals(0, reporter.getSessionExpiredEvents());
+		assertEquals(1, reporter.getSessionExpiredEvents());
 	}
 	
 	@Test
@@ -136,12 +155,12 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	}
 	
 	@Test
-	public void retrievingInterruptedExceptionsResetsCounts()
+	public void retrievingInterruptedExceptionsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
 		reporter.incrementInterruptedExceptions();
 		assertEquals(1, reporter.getInterruptedExceptions());
-		assertEquals(0, reporter.getInterruptedExceptions());
+		assertEquals(1, reporter.getInterruptedExceptions());
 	}
 	
 	@Test
@@ -162,12 +181,12 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	}
 	
 	@Test
-	public void retrievingKeeperExceptionsResetsCounts()
+	public void retrievingKeeperExceptionsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
 		reporter.incrementKeeperExceptions();
 		assertEquals(1, reporter.getKeeperExceptions());
-		assertEquals(0, reporter.getKeeperExceptions());
+		assertEquals(1, reporter.getKeeperExceptions());
 	}
 	
 	@Test
@@ -188,12 +207,12 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 	}
 	
 	@Test
-	public void retrievingKeyCreationsResetsCounts()
+	public void retrievingKeyCreationsDoesNotResetCounts()
 	throws Exception{
 		ZooKeeperMetricsJmx reporter = getReporter();
 		reporter.incrementKeyCreations();
 		assertEquals(1, reporter.getKeyCreations());
-		assertEquals(0, reporter.getKeyCreations());
+		assertEquals(1, reporter.getKeyCreations());
 	}
 	
 	@Test
@@ -203,4 +222,314 @@ public class ZooKeeperMetricsJmxTest extends AbstractJmxSupportTest {
 		assertEquals(0, reporter.getKeyCreations());
 	}
 	
+	@Test
+	public void recordKeyCreationLatency() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordKeyCreationLatency(millis(10));
+		reporter.recordKeyCreationLatency(millis(30));
+		assertEquals(20, reporter.getAverageKeyCreationLatency());
+		assertEquals(10, reporter.getMinKeyCreationLatency());
+		assertEquals(30, reporter.getMaxKeyCreationLatency());
+	}
+	
+	@Test
+	public void retrievingKeyCreationLatencyDoesNotResetIt() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordKeyCreationLatency(millis(10));
+		assertEquals(10, reporter.getAverageKeyCreationLatency());
+		assertEquals(10, reporter.getMaxKeyCreationLatency());
+		assertEquals(10, reporter.getAverageKeyCreationLatency());
+		assertEquals(10, reporter.getMaxKeyCreationLatency());
+	}
+	
+	@Test
+	public void keyCreationLatencyPercentilesInMicroseconds() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordKeyCreationLatency(millis(10));
+		reporter.recordKeyCreationLatency(millis(30));
+		assertWithinError(10000, reporter.getKeyCreationLatencyP50());
+		assertEquals(30000, reporter.getKeyCreationLatencyP90());
+		assertEquals(30000, reporter.getKeyCreationLatencyP99());
+		assertEquals(30000, reporter.getKeyCreationLatencyP999());
+		assertEquals(30000, reporter.getKeyCreationLatencyMax());
+	}
+	
+	@Test
+	public void roundTripLatenciesAreKeptPerOperation() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordGetDataLatency(300000);
+		reporter.recordSetDataLatency(millis(2));
+		reporter.recordSetDataLatency(millis(2));
+		reporter.recordCreateLatency(millis(5));
+		assertWithinError(300, reporter.getGetDataLatencyP50());
+		assertEquals(300, reporter.getGetDataLatencyMax());
+		assertEquals(2000, reporter.getSetDataLatencyP99());
+		assertEquals(5000, reporter.getCreateLatencyMax());
+		assertEquals(0, reporter.getCasRetryLatencyMax());
+	}
+
+	@Test
+	public void retryAndWaitLatenciesAreKeptApart() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordCasRetryLatency(millis(7));
+		reporter.recordWaitLatency(millis(3));
+		assertEquals(7000, reporter.getCasRetryLatencyP90());
+		assertEquals(3000, reporter.getWaitLatencyP999());
+		assertEquals(0, reporter.getGetDataLatencyMax());
+	}
+
+	@Test
+	public void incrementReadCacheHits() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheHits();
+		reporter.incrementReadCacheHits();
+		assertEquals(2, reporter.getReadCacheHits());
+	}
+	
+	@Test
+	public void retrievingReadCacheHitsDoesNotResetCounts()
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheHits();
+		assertEquals(1, reporter.getReadCacheHits());
+		assertEquals(1, reporter.getReadCacheHits());
+	}
+	
+	@Test
+	public void incrementReadCacheMisses() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheMisses();
+		reporter.incrementReadCacheMisses();
+		assertEquals(2, reporter.getReadCacheMisses());
+	}
+	
+	@Test
+	public void retrievingReadCacheMissesDoesNotResetCounts()
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheMisses();
+		assertEquals(1, reporter.getReadCacheMisses());
+		assertEquals(1, reporter.getReadCacheMisses());
+	}
+	
+	@Test
+	public void incrementReadCacheEvictions() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheEvictions();
+		reporter.incrementReadCacheEvictions();
+		assertEquals(2, reporter.getReadCacheEvictions());
+	}
+	
+	@Test
+	public void retrievingReadCacheEvictionsDoesNotResetCounts()
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementReadCacheEvictions();
+		assertEquals(1, reporter.getReadCacheEvictions());
+		assertEquals(1, reporter.getReadCacheEvictions());
+	}
+	
+	@Test
+	public void incrementMissCacheHits() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementMissCacheHits();
+		reporter.incrementMissCacheHits();
+		assertEquals(2, reporter.getMissCacheHits());
+	}
+	
+	@Test
+	public void retrievingMissCacheHitsDoesNotResetCounts()
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementMissCacheHits();
+		assertEquals(1, reporter.getMissCacheHits());
+		assertEquals(1, reporter.getMissCacheHits());
+	}
+	
+	@Test
+	public void recordCasAttemptsInBuckets() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordCasAttempts(1);
+		reporter.recordCasAttempts(1);
+		reporter.recordCasAttempts(2);
+		reporter.recordCasAttempts(3);
+		reporter.recordCasAttempts(4);
+		reporter.recordCasAttempts(8);
+		reporter.recordCasAttempts(9);
+		reporter.recordCasAttempts(17);
+		reporter.recordCasAttempts(1000);
+		assertEquals(2, reporter.getCasAttempts1());
+		assertEquals(1, reporter.getCasAttempts2());
+		assertEquals(2, reporter.getCasAttempts3To4());
+		assertEquals(1, reporter.getCasAttempts5To8());
+		assertEquals(1, reporter.getCasAttempts9To16());
+		assertEquals(2, reporter.getCasAttempts17Plus());
+	}
+	
+	@Test
+	public void retrievingCasAttemptsDoesNotResetCounts()
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordCasAttempts(2);
+		assertEquals(1, reporter.getCasAttempts2());
+		assertEquals(1, reporter.getCasAttempts2());
+	}
+	
+	@Test
+	public void countsAreAlsoReportedOverRecentWindows() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.incrementKeyCollisions("/key");
+		reporter.incrementConnectionLossEvents();
+		reporter.incrementReadCacheHits();
+		reporter.incrementReadCacheHits();
+		assertEquals(1, reporter.getKeyCollisions1m());
+		assertEquals(1, reporter.getConnectionLossEvents5m());
+		assertEquals(1, reporter.getKeeperExceptions15m());
+		assertEquals(2, reporter.getReadCacheHits1m());
+		assertEquals(0, reporter.getMissCacheHits1m());
+	}
+	
+	@Test
+	public void collisionsAreRankedByKeyAcrossEnsembles() throws Exception{
+		HotKeys keyCollisions = createStrictMock(HotKeys.class);
+		keyCollisions.record("/a");
+		keyCollisions.record("/a");
+		keyCollisions.record("/b");
+		replay(keyCollisions);
+
+		ZooKeeperMetricsJmx east = ZooKeeperMetricsJmx.forEnsemble("east", 
+																keyCollisions);
+		ZooKeeperMetricsJmx west = ZooKeeperMetricsJmx.forEnsemble("west", 
+																keyCollisions);
+		east.incrementKeyCollisions("/a");
+		west.incrementKeyCollisions("/a");
+		west.incrementKeyCollisions("/b");
+		assertEquals(1, east.getKeyCollisions());
+		assertEquals(2, west.getKeyCollisions());
+		verify(keyCollisions);
+	}
+
+	@Test
+	public void ensembleMetricsAreRegisteredUnderQualifiedName() 
+	throws Exception{
+		ZooKeeperMetricsJmx reporter = ZooKeeperMetricsJmx.forEnsemble("east");
+		ObjectName name = new ObjectName(
+				"com.talis:name=ZkSequencingMetrics,ensemble=\"east\"");
+		assertEquals(name.toString(), reporter.getBeanName());
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue(server.isRegistered(name));
+		reporter.incrementKeyCollisions("/key");
+		assertEquals(1l, server.getAttribute(name, "KeyCollisions"));
+	}
+
+	@Test
+	public void casAttemptsAreExportedAsCumulativeHistogram() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.recordCasAttempts(1);
+		reporter.recordCasAttempts(3);
+		reporter.recordCasAttempts(20);
+		StringWriter text = new StringWriter();
+		OpenMetricsWriter out = new OpenMetricsWriter(text);
+		for (OpenMetric metric : reporter.getOpenMetrics()) {
+			if ("h1_zk_cas_attempts".equals(metric.getName())) {
+				assertEquals(OpenMetric.HISTOGRAM, metric.getType());
+				metric.writeSamples(out, 
+						OpenMetricsWriter.label("ensemble", "east"));
+			}
+		}
+		assertEquals(
+				"h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"1\"} 1\n"
+				+ "h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"2\"} 1\n"
+				+ "h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"4\"} 2\n"
+				+ "h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"8\"} 2\n"
+				+ "h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"16\"} 2\n"
+				+ "h1_zk_cas_attempts_bucket{ensemble=\"east\",le=\"+Inf\"} 3\n"
+				+ "h1_zk_cas_attempts_count{ensemble=\"east\"} 3\n"
+				+ "h1_zk_cas_attempts_sum{ensemble=\"east\"} 24\n", 
+				text.toString());
+	}
+
+	@Test
+	public void injectedMetricsAreExportedToRegistry() throws Exception{
+		OpenMetricsRegistry registry = new OpenMetricsRegistry();
+		ZooKeeperMetricsJmx reporter = 
+			new ZooKeeperMetricsJmx(new HotKeysJmx(), registry, 
+								new ZooKeeperProvider());
+		reporter.incrementKeyCollisions("/key");
+		reporter.recordSetDataLatency(millis(2));
+		StringWriter text = new StringWriter();
+		registry.writeTo(new OpenMetricsWriter(text));
+		assertTrue(text.toString().contains(
+				"\n# TYPE h1_zk_key_collisions counter\n"));
+		assertTrue(text.toString().contains("\nh1_zk_key_collisions_total 1\n"));
+		assertTrue(text.toString().contains(
+				"\nh1_zk_set_data_latency_seconds{quantile=\"0.5\"} 0.002\n"));
+		assertTrue(text.toString().contains(
+				"\nh1_zk_set_data_latency_seconds_count 1\n"));
+	}
+
+	@Test
+	public void sessionsAreExportedBySession() throws Exception{
+		ZooKeeperProvider provider = createStrictMock(ZooKeeperProvider.class);
+		expect(provider.getPoolSize()).andReturn(2);
+		expect(provider.isConnected(0)).andReturn(true);
+		expect(provider.isConnected(1)).andReturn(false);
+		expect(provider.getPoolSize()).andReturn(2);
+		expect(provider.getParked(0)).andReturn(0);
+		expect(provider.getParked(1)).andReturn(7);
+		replay(provider);
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.watchSessions(provider);
+		StringWriter text = new StringWriter();
+		OpenMetricsWriter out = new OpenMetricsWriter(text);
+		for (OpenMetric metric : reporter.getOpenMetrics()) {
+			if ("h1_zk_pool_session_connected".equals(metric.getName())
+					|| "h1_zk_pool_session_parked_requests".equals(metric.getName())) {
+				assertEquals(OpenMetric.GAUGE, metric.getType());
+				metric.writeSamples(out, 
+						OpenMetricsWriter.label("ensemble", "east"));
+			}
+		}
+		assertEquals(
+				"h1_zk_pool_session_connected{ensemble=\"east\",session=\"0\"} 1\n"
+				+ "h1_zk_pool_session_connected{ensemble=\"east\",session=\"1\"} 0\n"
+				+ "h1_zk_pool_session_parked_requests{ensemble=\"east\",session=\"0\"} 0\n"
+				+ "h1_zk_pool_session_parked_requests{ensemble=\"east\",session=\"1\"} 7\n", 
+				text.toString());
+		verify(provider);
+	}
+
+	@Test
+	public void sessionStateIsReportedByPosition() throws Exception{
+		ZooKeeperProvider provider = createStrictMock(ZooKeeperProvider.class);
+		expect(provider.getPoolSize()).andReturn(2);
+		expect(provider.getConnections(0)).andReturn(3);
+		expect(provider.getConnections(1)).andReturn(1);
+		expect(provider.getPoolSize()).andReturn(2);
+		expect(provider.getExpiries(0)).andReturn(2);
+		expect(provider.getExpiries(1)).andReturn(0);
+		replay(provider);
+		ZooKeeperMetricsJmx reporter = getReporter();
+		reporter.watchSessions(provider);
+		int[] connections = reporter.getSessionConnections();
+		assertEquals(2, connections.length);
+		assertEquals(3, connections[0]);
+		assertEquals(1, connections[1]);
+		int[] expiries = reporter.getSessionExpiries();
+		assertEquals(2, expiries.length);
+		assertEquals(2, expiries[0]);
+		assertEquals(0, expiries[1]);
+		verify(provider);
+	}
+
+	@Test
+	public void noSessionsAreReportedUntilPoolIsKnown() throws Exception{
+		ZooKeeperMetricsJmx reporter = getReporter();
+		assertEquals(0, reporter.getSessionsConnected().length);
+		assertEquals(0, reporter.getSessionParkedRequests().length);
+	}
+
+	private static long millis(long latency) {
+		return TimeUnit.MILLISECONDS.toNanos(latency);
+	}
 }